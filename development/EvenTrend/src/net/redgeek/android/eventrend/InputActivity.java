@@ -69,6 +69,7 @@ import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.GUITask;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 import net.redgeek.android.eventrend.util.ValuePickerDialog;
 
 import java.util.ArrayList;
@@ -245,7 +246,8 @@ public class InputActivity extends EvenTrendActivity {
           mOldHour = newHour;
           mDataUpdater.setZerofill(true);
           mDataUpdater.setUpdateTrend(true);
-          GUITaskQueue.getInstance().addTask(mProgress, (GUITask) getCtx());
+          GUITaskQueue.getInstance().addTask(getCtx(), Priority.BACKGROUND,
+              mProgress, (GUITask) getCtx());
         }
 
         mNowHandler.postDelayed(mUpdateNowTime, DateUtil.SECOND_MS);
@@ -410,7 +412,8 @@ public class InputActivity extends EvenTrendActivity {
     if (mDataUpdater != null) {
       mDataUpdater.setZerofill(true);
       mDataUpdater.setUpdateTrend(true);
-      GUITaskQueue.getInstance().addTask(mProgress, this);
+      GUITaskQueue.getInstance().addTask(this, Priority.BACKGROUND,
+          mProgress, this);
     }
     super.onResume();
   }
@@ -17,6 +17,7 @@
 package net.redgeek.android.eventrend.backgroundtasks;
 
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.util.Cancellable;
 import android.util.Log;
 
 /**
@@ -57,4 +58,12 @@ public class DataCollectionTask {
   public void doCollection() {
     mTSC.gatherSeriesLocking(mStartMS, mEndMS);
   }
+
+  /**
+   * As doCollection(), but gives up between series once <code>cancel</code>
+   * is cancelled. Returns false if it did.
+   */
+  public boolean doCollection(Cancellable cancel) {
+    return mTSC.gatherSeriesLocking(mStartMS, mEndMS, cancel);
+  }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
 
 import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
@@ -32,12 +33,20 @@ import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
  * appropriately.
  * 
  * <p>
+ * File exports are streamed straight from the database cursor to the file, so
+ * they take constant memory. Mail exports still have to build the whole body
+ * as a String for the Intent.
+ * 
+ * <p>
  * Note that since this is "backgroundtask", no UI operations may be performed.
  * 
  * @author barclay
  */
 public class ExportTask {
+  private static final int BUFFER_SIZE = 16 * 1024;
+
   private EvenTrendDbAdapter mDbh;
+  private EvenTrendDbAdapter.ExportListener mListener;
 
   public String mDirectory;
   public String mFilename;
@@ -77,6 +86,14 @@ public class ExportTask {
     mToFile = toFile;
   }
 
+  /**
+   * Sets a listener to be notified of progress during doExport(). Note that
+   * it is called on the thread running the export, not the UI thread.
+   */
+  public void setListener(EvenTrendDbAdapter.ExportListener listener) {
+    mListener = listener;
+  }
+
   public void doExport() throws IOException {
     if (mToFile) {
       exportToFile();
@@ -85,20 +102,24 @@ public class ExportTask {
     }
   }
 
-  private void exportToMail() {
-    mBody = mDbh.flattenDB();
+  private void exportToMail() throws IOException {
+    StringWriter output = new StringWriter();
+    mDbh.exportDB(output, mListener);
+    mBody = output.toString();
   }
 
   private void exportToFile() throws IOException {
-    mBody = mDbh.flattenDB();
+    mBody = "";
 
     File f = new File(mDirectory);
     f.mkdirs();
     f = new File(mFilename);
-    Writer output = null;
     f.createNewFile();
-    output = new BufferedWriter(new FileWriter(f));
-    output.write(mBody);
-    output.close();
+    Writer output = new BufferedWriter(new FileWriter(f), BUFFER_SIZE);
+    try {
+      mDbh.exportDB(output, mListener);
+    } finally {
+      output.close();
+    }
   }
-}
\ No newline at end of file
+}
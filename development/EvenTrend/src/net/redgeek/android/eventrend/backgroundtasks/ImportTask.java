@@ -17,11 +17,13 @@
 package net.redgeek.android.eventrend.backgroundtasks;
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import net.redgeek.android.eventrend.db.CategoryDbTable;
 import net.redgeek.android.eventrend.db.EntryDbTable;
@@ -38,19 +40,67 @@ import net.redgeek.android.eventrend.importing.CSV;
  * created when importing.
  * 
  * <p>
+ * Rows are inserted in batches of <code>setBatchSize()</code> rows, each batch
+ * in its own transaction, rather than committing every row separately. The
+ * category fields are only parsed the first time a category name is seen;
+ * after that the category's id is looked up in memory. If the import fails
+ * partway through, the batches already committed are kept.
+ * 
+ * <p>
  * Note that since this is "backgroundtask", no UI operations may be performed.
  * 
  * @author barclay
  * 
  */
 public class ImportTask {
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  // What each column of the file holds. The header is only compared against
+  // the column names once, and the rows then switch on these.
+  private static final int COLUMN_IGNORED = 0;
+  private static final int COLUMN_GROUP_NAME = 1;
+  private static final int COLUMN_CATEGORY_NAME = 2;
+  private static final int COLUMN_DEFAULT_VALUE = 3;
+  private static final int COLUMN_GOAL = 4;
+  private static final int COLUMN_INCREMENT = 5;
+  private static final int COLUMN_COLOR = 6;
+  private static final int COLUMN_TYPE = 7;
+  private static final int COLUMN_PERIOD_MS = 8;
+  private static final int COLUMN_RANK = 9;
+  private static final int COLUMN_INTERPOLATION = 10;
+  private static final int COLUMN_ZEROFILL = 11;
+  private static final int COLUMN_SYNTHETIC = 12;
+  private static final int COLUMN_FORMULA = 13;
+  private static final int COLUMN_TIMESTAMP = 14;
+  private static final int COLUMN_VALUE = 15;
+  private static final int COLUMN_N_ENTRIES = 16;
+
+  private static final String[] COLUMN_KEYS = { null,
+      CategoryDbTable.KEY_GROUP_NAME, CategoryDbTable.KEY_CATEGORY_NAME,
+      CategoryDbTable.KEY_DEFAULT_VALUE, CategoryDbTable.KEY_GOAL,
+      CategoryDbTable.KEY_INCREMENT, CategoryDbTable.KEY_COLOR,
+      CategoryDbTable.KEY_TYPE, CategoryDbTable.KEY_PERIOD_MS,
+      CategoryDbTable.KEY_RANK, CategoryDbTable.KEY_INTERPOLATION,
+      CategoryDbTable.KEY_ZEROFILL, CategoryDbTable.KEY_SYNTHETIC,
+      CategoryDbTable.KEY_FORMULA, EntryDbTable.KEY_TIMESTAMP,
+      EntryDbTable.KEY_VALUE, EntryDbTable.KEY_N_ENTRIES };
+
   private EvenTrendDbAdapter mDbh = null;
   private String mFilename = null;
   private int mHistory = -1;
+  private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+  private CSV.LineTokenizer mTokenizer = new CSV.LineTokenizer();
+  private int[] mColumns;
+  private int mCategoryNameColumn;
+  // category name -> id, or -id for synthetic categories
+  private HashMap<String, Long> mCategoryIds = new HashMap<String, Long>();
 
-  // Intended for future discrete progress bar indicator:
-  public int mNumRecords;
-  public int mNumRecordsDone;
+  // Intended for future discrete progress bar indicator. mNumRecords is set
+  // before any rows are inserted, and mNumRecordsDone is updated after each
+  // row.
+  public volatile int mNumRecords;
+  public volatile int mNumRecordsDone;
 
   public ImportTask() {
   }
@@ -77,32 +127,51 @@ public class ImportTask {
     mHistory = history;
   }
 
+  /**
+   * Sets the number of rows to insert per transaction. Larger batches are
+   * faster, at the cost of losing more rows if the import fails.
+   */
+  public void setBatchSize(int batchSize) {
+    mBatchSize = batchSize < 1 ? 1 : batchSize;
+  }
+
   public void doImport() throws IOException {
     if (mDbh == null || mFilename == null || mHistory < 0)
       return;
 
-    String line;
-    ArrayList<String> columns = null;
-    ArrayList<String> data = null;
+    mNumRecordsDone = 0;
+    mNumRecords = countRecords(mFilename);
+    mCategoryIds.clear();
+
+    BufferedReader input = new BufferedReader(new InputStreamReader(
+        new FileInputStream(mFilename)));
+    mDbh.beginTransaction();
+    try {
+      mDbh.deleteAllCategories();
+      mDbh.deleteAllEntries();
 
-    mDbh.deleteAllCategories();
-    mDbh.deleteAllEntries();
+      String line = input.readLine();
+      if (line != null)
+        parseHeader(CSV.parseHeader(line));
 
-    BufferedReader input = null;
-    FileInputStream f = new FileInputStream(mFilename);
-    input = new BufferedReader(new InputStreamReader(new DataInputStream(f)));
+      int batch = 0;
+      while ((line = input.readLine()) != null) {
+        mTokenizer.split(line);
+        insertEntry();
+        mNumRecordsDone++;
 
-    int i = 0;
-    while ((line = input.readLine()) != null) {
-      if (i == 0) {
-        columns = CSV.parseHeader(line);
-      } else {
-        data = CSV.getNextLine(line);
-        insertEntry(data, columns);
+        if (++batch == mBatchSize) {
+          mDbh.setTransactionSuccessful();
+          mDbh.endTransaction();
+          mDbh.beginTransaction();
+          batch = 0;
+        }
       }
-      i++;
+      mDbh.setTransactionSuccessful();
+    } finally {
+      mDbh.endTransaction();
+      input.close();
     }
-    input.close();
 
     // Cursor c = mDbh.fetchAllCategories();
     // c.moveToFirst();
@@ -117,52 +186,140 @@ public class ImportTask {
     return;
   }
 
-  private void insertEntry(ArrayList<String> data, ArrayList<String> columns) {
-    CategoryDbTable.Row catQuery;
-    CategoryDbTable.Row catNew = new CategoryDbTable.Row();
-    EntryDbTable.Row entry = new EntryDbTable.Row();
-    int i = 0;
-
-    long catId = 0;
-    for (i = 0; i < data.size() && i < columns.size(); i++) {
-      String datum = data.get(i);
+  // Counts the data lines in the file, for mNumRecords. This is a pass over
+  // raw characters, so it's cheap next to the inserts.
+  private static int countRecords(String filename) throws IOException {
+    Reader input = new FileReader(filename);
+    char[] buffer = new char[8192];
+    int lines = 0;
+    char last = '\n';
+    try {
+      int n;
+      while ((n = input.read(buffer)) > 0) {
+        for (int i = 0; i < n; i++) {
+          if (buffer[i] == '\n')
+            lines++;
+        }
+        last = buffer[n - 1];
+      }
+    } finally {
+      input.close();
+    }
+    if (last != '\n')
+      lines++;
+    // don't count the header
+    return lines > 0 ? lines - 1 : 0;
+  }
 
+  private void parseHeader(ArrayList<String> columns) {
+    mColumns = new int[columns.size()];
+    mCategoryNameColumn = -1;
+    for (int i = 0; i < columns.size(); i++) {
       // TODO: this can probably be compressed to just walk/index the
       // EXPORTABLE arrays of the *DbTable classes.
-      if (columns.get(i).equals(CategoryDbTable.KEY_GROUP_NAME))
-        catNew.setGroupName(datum);
-      else if (columns.get(i).equals(CategoryDbTable.KEY_CATEGORY_NAME))
-        catNew.setCategoryName(datum);
-      else if (columns.get(i).equals(CategoryDbTable.KEY_DEFAULT_VALUE))
-        catNew.setDefaultValue(Float.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_GOAL))
-        catNew.setGoal(Float.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_INCREMENT))
-        catNew.setIncrement(Float.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_COLOR))
-        catNew.setColor(datum);
-      else if (columns.get(i).equals(CategoryDbTable.KEY_TYPE))
-        catNew.setType(datum);
-      else if (columns.get(i).equals(CategoryDbTable.KEY_PERIOD_MS))
-        catNew.setPeriodMs(Long.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_RANK))
-        catNew.setRank(Integer.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_INTERPOLATION))
-        catNew.setInterpolation(datum);
-      else if (columns.get(i).equals(CategoryDbTable.KEY_ZEROFILL))
-        catNew.setZeroFill(Integer.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_SYNTHETIC))
-        catNew.setSynthetic(Integer.valueOf(datum));
-      else if (columns.get(i).equals(CategoryDbTable.KEY_FORMULA))
-        catNew.setFormula(datum);
-      else if (columns.get(i).equals(EntryDbTable.KEY_TIMESTAMP))
-        entry.setTimestamp(Long.valueOf(datum));
-      else if (columns.get(i).equals(EntryDbTable.KEY_VALUE))
-        entry.setValue(Float.valueOf(datum));
-      else if (columns.get(i).equals(EntryDbTable.KEY_N_ENTRIES))
-        entry.setNEntries(Integer.valueOf(datum));
+      mColumns[i] = COLUMN_IGNORED;
+      for (int j = 1; j < COLUMN_KEYS.length; j++) {
+        if (columns.get(i).equals(COLUMN_KEYS[j])) {
+          mColumns[i] = j;
+          break;
+        }
+      }
+      if (mColumns[i] == COLUMN_CATEGORY_NAME)
+        mCategoryNameColumn = i;
     }
+  }
+
+  private void insertEntry() {
+    int n = Math.min(mTokenizer.count(), mColumns.length);
 
+    Long cached = mCategoryIds.get(mTokenizer.get(mCategoryNameColumn));
+    long catId;
+    if (cached != null) {
+      catId = cached.longValue();
+    } else {
+      catId = findOrCreateCategory(n);
+    }
+
+    // synthetic categories have no entries
+    if (catId < 0)
+      return;
+
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    for (int i = 0; i < n; i++) {
+      String datum = mTokenizer.get(i);
+      switch (mColumns[i]) {
+        case COLUMN_TIMESTAMP:
+          entry.setTimestamp(Long.valueOf(datum));
+          break;
+        case COLUMN_VALUE:
+          entry.setValue(Float.valueOf(datum));
+          break;
+        case COLUMN_N_ENTRIES:
+          entry.setNEntries(Integer.valueOf(datum));
+          break;
+        default:
+          break;
+      }
+    }
+
+    entry.setCategoryId(catId);
+    mDbh.createEntry(entry);
+
+    return;
+  }
+
+  private long findOrCreateCategory(int n) {
+    CategoryDbTable.Row catQuery;
+    CategoryDbTable.Row catNew = new CategoryDbTable.Row();
+
+    for (int i = 0; i < n; i++) {
+      String datum = mTokenizer.get(i);
+      switch (mColumns[i]) {
+        case COLUMN_GROUP_NAME:
+          catNew.setGroupName(datum);
+          break;
+        case COLUMN_CATEGORY_NAME:
+          catNew.setCategoryName(datum);
+          break;
+        case COLUMN_DEFAULT_VALUE:
+          catNew.setDefaultValue(Float.valueOf(datum));
+          break;
+        case COLUMN_GOAL:
+          catNew.setGoal(Float.valueOf(datum));
+          break;
+        case COLUMN_INCREMENT:
+          catNew.setIncrement(Float.valueOf(datum));
+          break;
+        case COLUMN_COLOR:
+          catNew.setColor(datum);
+          break;
+        case COLUMN_TYPE:
+          catNew.setType(datum);
+          break;
+        case COLUMN_PERIOD_MS:
+          catNew.setPeriodMs(Long.valueOf(datum));
+          break;
+        case COLUMN_RANK:
+          catNew.setRank(Integer.valueOf(datum));
+          break;
+        case COLUMN_INTERPOLATION:
+          catNew.setInterpolation(datum);
+          break;
+        case COLUMN_ZEROFILL:
+          catNew.setZeroFill(Integer.valueOf(datum));
+          break;
+        case COLUMN_SYNTHETIC:
+          catNew.setSynthetic(Integer.valueOf(datum));
+          break;
+        case COLUMN_FORMULA:
+          catNew.setFormula(datum);
+          break;
+        default:
+          break;
+      }
+    }
+
+    long catId;
     catQuery = mDbh.fetchCategory(catNew.getCategoryName());
     if (catQuery == null) {
       catId = mDbh.createCategory(catNew);
@@ -170,11 +327,9 @@ public class ImportTask {
       catId = catQuery.getId();
     }
 
-    if (catNew.getSynthetic() == false) {
-      entry.setCategoryId(catId);
-      mDbh.createEntry(entry);
-    }
-
-    return;
+    if (catNew.getSynthetic() == true)
+      catId = -catId;
+    mCategoryIds.put(catNew.getCategoryName(), Long.valueOf(catId));
+    return catId;
   }
-}
\ No newline at end of file
+}
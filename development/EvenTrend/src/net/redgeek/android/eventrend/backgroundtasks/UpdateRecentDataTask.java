@@ -16,14 +16,13 @@
 
 package net.redgeek.android.eventrend.backgroundtasks;
 
-import java.util.Calendar;
-
 import net.redgeek.android.eventrend.EvenTrendActivity;
 import net.redgeek.android.eventrend.db.EntryDbTable;
 import net.redgeek.android.eventrend.primitives.Datapoint;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
 import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.PeriodMath;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import android.util.Log;
 
@@ -49,7 +48,6 @@ import android.util.Log;
  */
 public class UpdateRecentDataTask {
   private TimeSeriesCollector mTSC;
-  private Calendar mCal;
   private int     mHistory;
 
   private boolean mZerofill;
@@ -57,7 +55,6 @@ public class UpdateRecentDataTask {
 
   public UpdateRecentDataTask(TimeSeriesCollector tsc, int history) {
     mTSC = tsc;
-    mCal = Calendar.getInstance();
     mHistory = history;
     mZerofill = false;
     mUpdateTrend = false;
@@ -110,37 +107,16 @@ public class UpdateRecentDataTask {
     long periodMs = ts.getDbRow().getPeriodMs();
     long now = System.currentTimeMillis();
 
-    mCal.setTimeInMillis(d.mMillis);
+    Period p = DateUtil.mapLongToPeriod(periodMs);
+    PeriodMath periods = mTSC.getPeriodMath();
+    long ms = d.mMillis;
     while (true) {
-      if (periodMs == DateUtil.HOUR_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.HOUR);        
-        mCal.add(Calendar.HOUR, 1);
-      } else if (periodMs == DateUtil.AMPM_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.AMPM);
-        mCal.add(Calendar.HOUR, 12);
-      } else if (periodMs == DateUtil.DAY_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.DAY);
-        mCal.add(Calendar.DAY_OF_MONTH, 1);
-      } else if (periodMs == DateUtil.WEEK_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.WEEK);
-        mCal.add(Calendar.WEEK_OF_YEAR, 1);
-      } else if (periodMs == DateUtil.MONTH_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.MONTH);
-        mCal.add(Calendar.MONTH, 1);
-      } else if (periodMs == DateUtil.QUARTER_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.QUARTER);
-        mCal.add(Calendar.MONTH, 3);
-      } else if (periodMs == DateUtil.YEAR_MS) {
-        DateUtil.setToPeriodStart(mCal, Period.YEAR);
-        mCal.add(Calendar.YEAR, 1);
-      }
-
-      long ms = mCal.getTimeInMillis();
+      ms = periods.nextPeriodStart(ms, p);
       if (ms + periodMs >= now)
         break;
       
       entry.setCategoryId(catId);
-      entry.setTimestamp(mCal.getTimeInMillis());
+      entry.setTimestamp(ms);
       entry.setValue(0.0f);
       entry.setNEntries(1);
       mTSC.getDbh().createEntry(entry);
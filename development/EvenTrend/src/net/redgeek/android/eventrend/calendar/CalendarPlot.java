@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import net.redgeek.android.eventrend.Preferences;
 import net.redgeek.android.eventrend.R;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.primitives.TimeSeriesSnapshot;
 import net.redgeek.android.eventrend.primitives.Tuple;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
@@ -178,21 +179,19 @@ public class CalendarPlot {
     if (mPlotSize.x <= 0 || mPlotSize.y <= 0)
       return;
 
-    if (mTSC.lock() == false)
-      return;
+    // drawn from a snapshot, rather than waiting on a collection in progress
+    TimeSeriesSnapshot snapshot = mTSC.getSnapshot();
 
     canvas.translate(mPlotBorder.x / 2, mPlotBorder.y / 2);
     if (mSpan == Period.MONTH) {
       mMonthPlot.setStart(mStartMS);
-      mMonthPlot.plot(canvas);
+      mMonthPlot.plot(canvas, snapshot);
     }
      else if (mSpan == Period.YEAR) {
       mYearPlot.setStart(mStartMS);
-      mYearPlot.plot(canvas);
+      mYearPlot.plot(canvas, snapshot);
     }
 
-    mTSC.unlock();
-
     return;
   }
 
@@ -21,9 +21,10 @@ import java.util.Calendar;
 
 import net.redgeek.android.eventrend.Preferences;
 import net.redgeek.android.eventrend.calendar.CalendarPlot.PaintIndex;
-import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.primitives.TimeSeriesSnapshot;
 import net.redgeek.android.eventrend.primitives.Tuple;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.Number;
@@ -81,17 +82,17 @@ public class CalendarPlotMonth {
   private void setCellSizes() {
     mCellHeight = (mDimensions.y) / 6.0f;
     mCellWidth = (mDimensions.x) / 7.0f;
-    mColorHeight = mCellHeight / mTSC.numSeries();
+    mColorHeight = mCellHeight / mTSC.getSnapshot().numSeries();
   }
 
-  public synchronized void plot(Canvas canvas) {
+  public synchronized void plot(Canvas canvas, TimeSeriesSnapshot snapshot) {
     if (canvas == null)
       return;
 
     if (mDimensions.x <= 0 || mDimensions.y <= 0)
       return;
 
-    drawMonth(canvas);
+    drawMonth(canvas, snapshot);
 
     return;
   }
@@ -141,11 +142,9 @@ public class CalendarPlotMonth {
   private int setStartTime() {
     int focusMonth;
 
-    Calendar cal = mDates.getCalendar();
-    cal.setTimeInMillis(mStartMS);
-    DateUtil.setToPeriodStart(cal, Period.MONTH);
-    long ms = cal.getTimeInMillis();
+    long ms = mTSC.getPeriodMath().periodStart(mStartMS, Period.MONTH);
     mDates.setBaseTime(ms);
+    Calendar cal = mDates.getCalendar();
 
     int month = mDates.get(Calendar.MONTH);
     int position = mDates.get(Calendar.DAY_OF_WEEK);
@@ -353,10 +352,11 @@ public class CalendarPlotMonth {
     canvas.drawPath(border, p);
   }
 
-  private void drawMonth(Canvas canvas) {
+  private void drawMonth(Canvas canvas, TimeSeriesSnapshot snapshot) {
     Calendar tmp = Calendar.getInstance();
     TimeSeries ts;
-    Datapoint prev, current;
+    DatapointColumns columns;
+    int prev, current;
     int focusMonth;
     int firstPosition = 0;
     int lastPosition = 0;
@@ -375,33 +375,39 @@ public class CalendarPlotMonth {
       month = mDates.get(Calendar.MONTH);
 
       ms = mDates.getCalendar().getTimeInMillis();
-      for (int s = 0; s < mTSC.numSeries(); s++) {
-        ts = (TimeSeries) mTSC.getSeries(s);
-        if (ts == null || mTSC.isSeriesEnabled(ts.getDbRow().getId()) == false)
+      for (int s = 0; s < snapshot.numSeries(); s++) {
+        ts = snapshot.getSeries(s);
+        if (ts == null || ts.isEnabled() == false)
           continue;
 
-        current = ts.findPostNeighbor(ms);
-        prev = ts.findPreNeighbor(ms - 1);
+        // read the neighbors straight from the columns, rather than copying
+        // out two Datapoints per cell on every draw
+        columns = ts.getColumns();
+        current = ts.findNeighborIdx(ms, false);
+        prev = ts.findNeighborIdx(ms - 1, true);
 
-        if (current != null && prev != null) {
+        if (current >= 0 && prev >= 0) {
           if (focusMonth == mDates.get(Calendar.MONTH)) {
-            drawMonthDayBackground(canvas, true, position, day, prev.mTrend.y,
-                current.mTrend.y, ts.getDbRow().getGoal(), current.mStdDev);
+            drawMonthDayBackground(canvas, true, position, day, columns.mTrend[prev],
+                columns.mTrend[current], ts.getDbRow().getGoal(),
+                columns.mStdDev[current]);
           } else {
-            drawMonthDayBackground(canvas, false, position, day, prev.mTrend.y,
-                current.mTrend.y, ts.getDbRow().getGoal(), current.mStdDev);
+            drawMonthDayBackground(canvas, false, position, day, columns.mTrend[prev],
+                columns.mTrend[current], ts.getDbRow().getGoal(),
+                columns.mStdDev[current]);
           }
         }
 
-        if (current != null) {
-          float oldVal = current.mValue.y;
-          if (prev != null)
-            oldVal = prev.mValue.y;
+        if (current >= 0) {
+          float oldVal = columns.mValue[current];
+          if (prev >= 0)
+            oldVal = columns.mValue[prev];
 
-          tmp.setTimeInMillis(current.mMillis);
+          tmp.setTimeInMillis(columns.mMillis[current]);
           if (month == tmp.get(Calendar.MONTH) && day == tmp.get(Calendar.DAY_OF_MONTH)) {
-            drawMonthDayValue(canvas, position, oldVal, current.mValue.y, ts
-                .getDbRow().getGoal(), current.mStdDev);
+            drawMonthDayValue(canvas, position, oldVal,
+                columns.mValue[current], ts.getDbRow().getGoal(),
+                columns.mStdDev[current]);
           }
         }
       }
@@ -21,9 +21,10 @@ import java.util.Calendar;
 
 import net.redgeek.android.eventrend.Preferences;
 import net.redgeek.android.eventrend.calendar.CalendarPlot.PaintIndex;
-import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.primitives.TimeSeriesSnapshot;
 import net.redgeek.android.eventrend.primitives.Tuple;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.Number;
@@ -92,17 +93,17 @@ public class CalendarPlotYear {
                     - (CalendarView.TEXT_HEIGHT * (mNYears + 1)))
                     / mNYears;
     mCellWidth = (mDimensions.x) / 12.0f;
-    mColorHeight = mCellHeight / mTSC.numSeries();
+    mColorHeight = mCellHeight / mTSC.getSnapshot().numSeries();
   }
 
-  public synchronized void plot(Canvas canvas) {
+  public synchronized void plot(Canvas canvas, TimeSeriesSnapshot snapshot) {
     if (canvas == null)
       return;
 
     if (mDimensions.x <= 0 || mDimensions.y <= 0)
       return;
 
-    drawYear(canvas);
+    drawYear(canvas, snapshot);
 
     return;
   }
@@ -158,13 +159,9 @@ public class CalendarPlotYear {
   private int setStartTime() {
     int focusYear;
     
-    Calendar cal = mDates.getCalendar();
-    cal.setTimeInMillis(mStartMS);
-    DateUtil.setToPeriodStart(cal, Period.YEAR);
-    focusYear = mDates.get(Calendar.YEAR);
-
-    long ms = cal.getTimeInMillis();
+    long ms = mTSC.getPeriodMath().periodStart(mStartMS, Period.YEAR);
     mDates.setBaseTime(ms);
+    focusYear = mDates.get(Calendar.YEAR);
     mDates.advance(Period.YEAR, -2);
     
     return focusYear;
@@ -331,10 +328,11 @@ public class CalendarPlotYear {
         - 3, p);
   }
 
-  private void drawYear(Canvas canvas) {
+  private void drawYear(Canvas canvas, TimeSeriesSnapshot snapshot) {
     Calendar tmp = Calendar.getInstance();
     TimeSeries ts;
-    Datapoint prev, current;
+    DatapointColumns columns;
+    int prev, current;
     int focusYear;
     int month, year;
     int firstPosition = 0;
@@ -353,33 +351,39 @@ public class CalendarPlotYear {
       month = mDates.get(Calendar.MONTH);
 
       ms = mDates.getCalendar().getTimeInMillis();
-      for (int s = 0; s < mTSC.numSeries(); s++) {
-        ts = (TimeSeries) mTSC.getSeries(s);
-        if (ts == null || mTSC.isSeriesEnabled(ts.getDbRow().getId()) == false)
+      for (int s = 0; s < snapshot.numSeries(); s++) {
+        ts = snapshot.getSeries(s);
+        if (ts == null || ts.isEnabled() == false)
           continue;
 
-        current = ts.findPostNeighbor(ms);
-        prev = ts.findPreNeighbor(ms - 1);
+        // read the neighbors straight from the columns, rather than copying
+        // out two Datapoints per cell on every draw
+        columns = ts.getColumns();
+        current = ts.findNeighborIdx(ms, false);
+        prev = ts.findNeighborIdx(ms - 1, true);
 
-        if (current != null && prev != null) {
+        if (current >= 0 && prev >= 0) {
           if (focusYear == mDates.get(Calendar.YEAR)) {
-            drawYearMonthBackground(canvas, true, position, month, prev.mTrend.y,
-                current.mTrend.y, ts.getDbRow().getGoal(), current.mStdDev);
+            drawYearMonthBackground(canvas, true, position, month, columns.mTrend[prev],
+                columns.mTrend[current], ts.getDbRow().getGoal(),
+                columns.mStdDev[current]);
           } else {
-            drawYearMonthBackground(canvas, false, position, month, prev.mTrend.y,
-                current.mTrend.y, ts.getDbRow().getGoal(), current.mStdDev);
+            drawYearMonthBackground(canvas, false, position, month, columns.mTrend[prev],
+                columns.mTrend[current], ts.getDbRow().getGoal(),
+                columns.mStdDev[current]);
           }
         }
 
-        if (current != null) {
-          float oldVal = current.mValue.y;
-          if (prev != null)
-            oldVal = prev.mValue.y;
+        if (current >= 0) {
+          float oldVal = columns.mValue[current];
+          if (prev >= 0)
+            oldVal = columns.mValue[prev];
 
-          tmp.setTimeInMillis(current.mMillis);
+          tmp.setTimeInMillis(columns.mMillis[current]);
           if (month == tmp.get(Calendar.MONTH) && year == tmp.get(Calendar.YEAR)) {
-            drawYearMonthValue(canvas, position, oldVal, current.mValue.y, ts
-                .getDbRow().getGoal(), current.mStdDev);
+            drawYearMonthValue(canvas, position, oldVal,
+                columns.mValue[current], ts.getDbRow().getGoal(),
+                columns.mStdDev[current]);
           }
         }
       }
@@ -26,6 +26,7 @@ import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.GUITask;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import android.content.Context;
 import android.graphics.Canvas;
@@ -161,7 +162,8 @@ public class CalendarView extends View implements OnLongClickListener, GUITask {
     // updateStatus();
     // invalidate();
 
-    GUITaskQueue.getInstance().addTask(mProgress, this);
+    GUITaskQueue.getInstance().addLatestTask(this, Priority.INTERACTIVE,
+        mProgress, this);
   }
   
   public void setPeriod(Period p) {
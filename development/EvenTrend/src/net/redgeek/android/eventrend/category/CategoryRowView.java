@@ -47,6 +47,7 @@ import net.redgeek.android.eventrend.util.GUITask;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.Number;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 import net.redgeek.android.eventrend.util.ValuePickerDialog;
 import net.redgeek.android.eventrend.util.ValuePickerFrame;
 
@@ -373,7 +374,8 @@ public class CategoryRowView extends LinearLayout implements GUITask {
   public void addEntry() {
     mTimestamp = ((InputActivity) mCtx).getTimestampMs();
     mAddValue = Float.valueOf(mDefaultValueButton.getText().toString()).floatValue();
-    GUITaskQueue.getInstance().addTask(mProgress, this);
+    GUITaskQueue.getInstance().addTask(this, Priority.INTERACTIVE, mProgress,
+        this);
 
     mAddButton.setClickable(false);
     mAddButton.setTextColor(Color.LTGRAY);
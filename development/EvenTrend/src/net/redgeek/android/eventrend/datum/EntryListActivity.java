@@ -17,6 +17,7 @@
 package net.redgeek.android.eventrend.datum;
 
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
@@ -37,12 +38,14 @@ import net.redgeek.android.eventrend.EvenTrendActivity;
 import net.redgeek.android.eventrend.R;
 import net.redgeek.android.eventrend.backgroundtasks.ExportTask;
 import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
 import net.redgeek.android.eventrend.db.EntryDbTable;
 import net.redgeek.android.eventrend.importing.ImportActivity;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.DynamicSpinner;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 
 import java.util.Calendar;
 
@@ -59,6 +62,8 @@ public class EntryListActivity extends EvenTrendActivity {
   private static final int DIALOG_ERR_FILEWRITE = 2;
   private static final int DIALOG_PROGRESS = 3;
 
+  private static final String EXPORT_MESSAGE = "Exporting database ...";
+
   // UI elements
   private EntryListAdapter mEla;
   private LinearLayout mCategoryMenuRow;
@@ -69,6 +74,7 @@ public class EntryListActivity extends EvenTrendActivity {
   private String mFilename;
   private String mErrMsg;
   ProgressIndicator.DialogSoft mProgress;
+  private ProgressDialog mProgressDialog;
 
   // Listeners
   private OnItemSelectedListener mCategoryMenuListener;
@@ -103,6 +109,17 @@ public class EntryListActivity extends EvenTrendActivity {
 
   private void setupTasks() {
     mExporter = new ExportTask(getDbh());
+    mExporter.setListener(new EvenTrendDbAdapter.ExportListener() {
+      public void onExportProgress(final int rowsWritten, final int rowsTotal) {
+        runOnUiThread(new Runnable() {
+          public void run() {
+            if (mProgressDialog != null)
+              mProgressDialog.setMessage(EXPORT_MESSAGE + " " + rowsWritten
+                  + " of " + rowsTotal + " rows");
+          }
+        });
+      }
+    });
   }
 
   private void setupUI() {
@@ -190,12 +207,13 @@ public class EntryListActivity extends EvenTrendActivity {
     mStatus.setText(status);
 
     mEla = new EntryListAdapter(this);
+    EntryDbTable.RowMapper mapper = new EntryDbTable.RowMapper(c);
+    int catNameIdx = c.getColumnIndexOrThrow(CategoryDbTable.KEY_CATEGORY_NAME);
     c.moveToFirst();
     for (int i = 0; i < c.getCount(); i++) {
       row = new EntryDbTable.Row();
-      row.populateFromCursor(c);
-      catName = c.getString(c
-          .getColumnIndexOrThrow(CategoryDbTable.KEY_CATEGORY_NAME));
+      mapper.populate(row);
+      catName = c.getString(catNameIdx);
       mEla.addItem(new EntryRow(row, catName));
       c.moveToNext();
     }
@@ -270,7 +288,7 @@ public class EntryListActivity extends EvenTrendActivity {
 
     mExporter.setSubject(appName + " backup " + prettyDate);
     mExporter.setToFile(false);
-    GUITaskQueue.getInstance().addTask(mProgress, this);
+    GUITaskQueue.getInstance().addTask(this, Priority.BULK, mProgress, this);
   }
 
   private void exportToFile() {
@@ -281,7 +299,7 @@ public class EntryListActivity extends EvenTrendActivity {
     mExporter.setDirectory(mImportDir);
     mExporter.setFilename(mImportDir + "/" + mFilename);
     mExporter.setToFile(true);
-    GUITaskQueue.getInstance().addTask(mProgress, this);
+    GUITaskQueue.getInstance().addTask(this, Priority.BULK, mProgress, this);
   }
 
   @Override
@@ -312,12 +330,20 @@ public class EntryListActivity extends EvenTrendActivity {
         return getDialogUtil().newOkDialog("Export Failure",
             "Error writing to " + mFilename + ": " + mErrMsg);
       case DIALOG_PROGRESS:
-        return getDialogUtil().newProgressDialog("Exporting database ...");
+        mProgressDialog = getDialogUtil().newProgressDialog(EXPORT_MESSAGE);
+        return mProgressDialog;
       default:
     }
     return null;
   }
 
+  @Override
+  protected void onPrepareDialog(int id, Dialog dialog) {
+    super.onPrepareDialog(id, dialog);
+    if (id == DIALOG_PROGRESS)
+      ((ProgressDialog) dialog).setMessage(EXPORT_MESSAGE);
+  }
+
   @Override
   protected void onPause() {
     super.onPause();
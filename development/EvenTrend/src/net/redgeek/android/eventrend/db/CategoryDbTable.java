@@ -239,6 +239,72 @@ public class CategoryDbTable {
     return c.getString(c.getColumnIndexOrThrow(KEY_FORMULA));
   }
 
+  /**
+   * Reads rows from a cursor, resolving the column indices once up front
+   * rather than with getColumnIndexOrThrow() for each column of each row.
+   */
+  public static class RowMapper {
+    private Cursor mCursor;
+    private int mIdIdx;
+    private int mGroupNameIdx;
+    private int mCategoryNameIdx;
+    private int mDefaultValueIdx;
+    private int mLastValueIdx;
+    private int mLastTrendIdx;
+    private int mIncrementIdx;
+    private int mGoalIdx;
+    private int mTypeIdx;
+    private int mColorIdx;
+    private int mPeriodMsIdx;
+    private int mRankIdx;
+    private int mTrendStateIdx;
+    private int mInterpolationIdx;
+    private int mZeroFillIdx;
+    private int mSyntheticIdx;
+    private int mFormulaIdx;
+
+    public RowMapper(Cursor c) {
+      mCursor = c;
+      mIdIdx = c.getColumnIndexOrThrow(KEY_ROWID);
+      mGroupNameIdx = c.getColumnIndexOrThrow(KEY_GROUP_NAME);
+      mCategoryNameIdx = c.getColumnIndexOrThrow(KEY_CATEGORY_NAME);
+      mDefaultValueIdx = c.getColumnIndexOrThrow(KEY_DEFAULT_VALUE);
+      mLastValueIdx = c.getColumnIndexOrThrow(KEY_LAST_VALUE);
+      mLastTrendIdx = c.getColumnIndexOrThrow(KEY_LAST_TREND);
+      mIncrementIdx = c.getColumnIndexOrThrow(KEY_INCREMENT);
+      mGoalIdx = c.getColumnIndexOrThrow(KEY_GOAL);
+      mTypeIdx = c.getColumnIndexOrThrow(KEY_TYPE);
+      mColorIdx = c.getColumnIndexOrThrow(KEY_COLOR);
+      mPeriodMsIdx = c.getColumnIndexOrThrow(KEY_PERIOD_MS);
+      mRankIdx = c.getColumnIndexOrThrow(KEY_RANK);
+      mTrendStateIdx = c.getColumnIndexOrThrow(KEY_TREND_STATE);
+      mInterpolationIdx = c.getColumnIndexOrThrow(KEY_INTERPOLATION);
+      mZeroFillIdx = c.getColumnIndexOrThrow(KEY_ZEROFILL);
+      mSyntheticIdx = c.getColumnIndexOrThrow(KEY_SYNTHETIC);
+      mFormulaIdx = c.getColumnIndexOrThrow(KEY_FORMULA);
+    }
+
+    public void populate(Row row) {
+      row.mId = mCursor.getLong(mIdIdx);
+      row.mGroupName = mCursor.getString(mGroupNameIdx);
+      row.mCategoryName = mCursor.getString(mCategoryNameIdx);
+      row.mDefaultValue = mCursor.getFloat(mDefaultValueIdx);
+      row.mLastValue = mCursor.getFloat(mLastValueIdx);
+      row.mLastTrend = mCursor.getFloat(mLastTrendIdx);
+      row.mIncrement = mCursor.getFloat(mIncrementIdx);
+      row.mGoal = mCursor.getFloat(mGoalIdx);
+      row.mType = mCursor.getString(mTypeIdx);
+      row.mColor = mCursor.getString(mColorIdx);
+      row.mPeriodMs = mCursor.getLong(mPeriodMsIdx);
+      row.mRank = mCursor.getInt(mRankIdx);
+      row.mTrendState = mCursor.getString(mTrendStateIdx);
+      row.mInterpolation = mCursor.getString(mInterpolationIdx);
+      row.setZeroFill(mCursor.getInt(mZeroFillIdx));
+      row.setSynthetic(mCursor.getInt(mSyntheticIdx));
+      row.mFormula = mCursor.getString(mFormulaIdx);
+    }
+  }
+
   public static class Row {
     private long mId = 0;
     private String mGroupName = "";
@@ -289,27 +355,16 @@ public class CategoryDbTable {
       mFormula = new String(r.mFormula);
     }
 
+    /**
+     * Populates the row from the current cursor position. This looks up each
+     * column by name; when reading more than a row or two from the same
+     * cursor, use a RowMapper instead.
+     */
     public void populateFromCursor(Cursor c) {
       if (c == null)
         return;
 
-      mId = c.getLong(c.getColumnIndexOrThrow(KEY_ROWID));
-      mGroupName = c.getString(c.getColumnIndexOrThrow(KEY_GROUP_NAME));
-      mCategoryName = c.getString(c.getColumnIndexOrThrow(KEY_CATEGORY_NAME));
-      mDefaultValue = c.getFloat(c.getColumnIndexOrThrow(KEY_DEFAULT_VALUE));
-      mLastValue = c.getFloat(c.getColumnIndexOrThrow(KEY_LAST_VALUE));
-      mLastTrend = c.getFloat(c.getColumnIndexOrThrow(KEY_LAST_TREND));
-      mIncrement = c.getFloat(c.getColumnIndexOrThrow(KEY_INCREMENT));
-      mGoal = c.getFloat(c.getColumnIndexOrThrow(KEY_GOAL));
-      mType = c.getString(c.getColumnIndexOrThrow(KEY_TYPE));
-      mColor = c.getString(c.getColumnIndexOrThrow(KEY_COLOR));
-      mPeriodMs = c.getLong(c.getColumnIndexOrThrow(KEY_PERIOD_MS));
-      mRank = c.getInt(c.getColumnIndexOrThrow(KEY_RANK));
-      mTrendState = c.getString(c.getColumnIndexOrThrow(KEY_TREND_STATE));
-      mInterpolation = c.getString(c.getColumnIndexOrThrow(KEY_INTERPOLATION));
-      setZeroFill(c.getInt(c.getColumnIndexOrThrow(KEY_ZEROFILL)));
-      setSynthetic(c.getInt(c.getColumnIndexOrThrow(KEY_SYNTHETIC)));
-      mFormula = c.getString(c.getColumnIndexOrThrow(KEY_FORMULA));
+      new RowMapper(c).populate(this);
       return;
     }
 
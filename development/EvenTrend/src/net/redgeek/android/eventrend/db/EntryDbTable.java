@@ -49,6 +49,15 @@ public class EntryDbTable {
       + " integer key not null, " + KEY_TIMESTAMP + " long key not null, "
       + KEY_VALUE + " float not null, " + KEY_N_ENTRIES + " integer not null);";
 
+  // Every entry query selects by category and a range of (or the latest)
+  // timestamps. The index carries the remaining columns too, so those queries
+  // never touch the table itself.
+  public static final String INDEX_NAME = "entries_category_timestamp";
+
+  public static final String INDEX_CREATE = "create index if not exists "
+      + INDEX_NAME + " on " + TABLE_NAME + " (" + KEY_CATEGORY_ID + ", "
+      + KEY_TIMESTAMP + ", " + KEY_VALUE + ", " + KEY_N_ENTRIES + ");";
+
   public static long getId(Cursor c) {
     return c.getLong(c.getColumnIndexOrThrow(KEY_ROWID));
   }
@@ -69,6 +78,36 @@ public class EntryDbTable {
     return c.getInt(c.getColumnIndexOrThrow(KEY_N_ENTRIES));
   }
 
+  /**
+   * Reads rows from a cursor, resolving the column indices once up front
+   * rather than with getColumnIndexOrThrow() for each column of each row.
+   */
+  public static class RowMapper {
+    private Cursor mCursor;
+    private int mIdIdx;
+    private int mCategoryIdIdx;
+    private int mTimestampIdx;
+    private int mValueIdx;
+    private int mNEntriesIdx;
+
+    public RowMapper(Cursor c) {
+      mCursor = c;
+      mIdIdx = c.getColumnIndexOrThrow(KEY_ROWID);
+      mCategoryIdIdx = c.getColumnIndexOrThrow(KEY_CATEGORY_ID);
+      mTimestampIdx = c.getColumnIndexOrThrow(KEY_TIMESTAMP);
+      mValueIdx = c.getColumnIndexOrThrow(KEY_VALUE);
+      mNEntriesIdx = c.getColumnIndexOrThrow(KEY_N_ENTRIES);
+    }
+
+    public void populate(Row row) {
+      row.setId(mCursor.getLong(mIdIdx));
+      row.setCategoryId(mCursor.getLong(mCategoryIdIdx));
+      row.setTimestamp(mCursor.getLong(mTimestampIdx));
+      row.setValue(mCursor.getFloat(mValueIdx));
+      row.setNEntries(mCursor.getInt(mNEntriesIdx));
+    }
+  }
+
   public static class Row {
     private long mId = 0;
     private long mCategoryId = 0;
@@ -91,16 +130,16 @@ public class EntryDbTable {
       setNEntries(r.getNEntries());
     }
 
+    /**
+     * Populates the row from the current cursor position. This looks up each
+     * column by name; when reading more than a row or two from the same
+     * cursor, use a RowMapper instead.
+     */
     public void populateFromCursor(Cursor c) {
       if (c == null)
         return;
 
-      setId(c.getLong(c.getColumnIndexOrThrow(KEY_ROWID)));
-      setCategoryId(c.getLong(c.getColumnIndexOrThrow(KEY_CATEGORY_ID)));
-      setTimestamp(c.getLong(c.getColumnIndexOrThrow(KEY_TIMESTAMP)));
-      setValue(c.getFloat(c.getColumnIndexOrThrow(KEY_VALUE)));
-      setNEntries(c.getInt(c.getColumnIndexOrThrow(KEY_N_ENTRIES)));
-
+      new RowMapper(c).populate(this);
       return;
     }
 
@@ -1,10 +1,15 @@
 package net.redgeek.android.eventrend.db;
 
-import java.util.Calendar;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import net.redgeek.android.eventrend.db.CategoryDbTable.Row;
 import net.redgeek.android.eventrend.importing.CSV;
 import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.PeriodMath;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import android.content.ContentValues;
 import android.content.Context;
@@ -12,6 +17,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -25,8 +31,58 @@ public interface EvenTrendDbAdapter {
 
   public void close();
 
+  /**
+   * Begins an explicit transaction, as with SQLiteDatabase. Bulk operations
+   * should group their writes into transactions, since otherwise each write is
+   * committed (and synced) on its own. Transactions may nest; only the
+   * outermost one commits.
+   */
+  public void beginTransaction();
+
+  /**
+   * Marks the current transaction as successful. Must be called before
+   * {@link #endTransaction()} for the changes to be committed.
+   */
+  public void setTransactionSuccessful();
+
+  /**
+   * Ends the current transaction, committing it if it was marked successful
+   * and rolling it back otherwise.
+   */
+  public void endTransaction();
+
+  /**
+   * Returns the entire database as CSV, as written by
+   * {@link #exportDB(Writer, ExportListener)}. The result is held in memory;
+   * use exportDB() directly to stream to a file.
+   */
   public String flattenDB();
 
+  /**
+   * Writes the database to <code>out</code> as CSV, one line per entry joined
+   * with its category, followed by a line for each synthetic category. Rows
+   * are written as the cursor advances, so memory use doesn't depend on the
+   * size of the database.
+   * 
+   * @param out
+   *          The Writer to write to. It is flushed but not closed.
+   * @param listener
+   *          Notified every {@link #EXPORT_PROGRESS_INTERVAL} rows and once at
+   *          the end, or null.
+   * @return The number of rows written, not counting the header.
+   */
+  public int exportDB(Writer out, ExportListener listener) throws IOException;
+
+  public static final int EXPORT_PROGRESS_INTERVAL = 250;
+
+  /**
+   * Progress callback for {@link EvenTrendDbAdapter#exportDB(Writer,
+   * ExportListener)}. Called on the exporting thread.
+   */
+  public interface ExportListener {
+    public void onExportProgress(int rowsWritten, int rowsTotal);
+  }
+
   // Category-focused Operations
   public long createCategory(CategoryDbTable.Row category);
 
@@ -72,6 +128,9 @@ public interface EvenTrendDbAdapter {
   public Cursor fetchCategoryEntriesRange(long catId, long milliStart,
       long milliEnd);
 
+  public Cursor fetchCategoriesEntriesRanges(long[] catIds,
+      long[] milliStarts, long[] milliEnds);
+
   public long createEntry(EntryDbTable.Row entry);
 
   public boolean deleteEntry(long rowId);
@@ -91,15 +150,191 @@ public interface EvenTrendDbAdapter {
 
   public Cursor fetchRecentCategoryEntries(long catId, int nItems);
 
+  /**
+   * Returns up to <code>nItems</code> entries of category <code>catId</code>
+   * at or before <code>milliEnd</code>, latest first.
+   */
+  public Cursor fetchCategoryEntriesBefore(long catId, long milliEnd,
+      int nItems);
+
+  // Synthetic-focused Operations
+
+  /**
+   * Records the categories the formula of synthetic category
+   * <code>catId</code> refers to. Changes to their entries, or to their own
+   * stored values if they're synthetic, invalidate the stored values of
+   * <code>catId</code> from the change on.
+   */
+  public void setSyntheticDependents(long catId, long[] dependentIds);
+
+  /**
+   * Returns the state of the stored values of synthetic category
+   * <code>catId</code>, or null if none have been stored.
+   */
+  public SyntheticStateDbTable.Row fetchSyntheticState(long catId);
+
+  /**
+   * Returns the states of the stored values of those of the synthetic
+   * categories <code>catIds</code> that have any, in one query.
+   */
+  public ArrayList<SyntheticStateDbTable.Row> fetchSyntheticStates(
+      long[] catIds);
+
+  /**
+   * Marks the stored values of synthetic category <code>catId</code> as being
+   * recalculated, if their state is still <code>seen</code> (null if there
+   * was none). While they are, the state has the hash
+   * {@link SyntheticStateDbTable#HASH_PENDING}, so nothing else trusts them,
+   * and a watermark of {@link SyntheticStateDbTable#VALID_ALL} that anything
+   * they depend on changing lowers as usual.
+   * 
+   * @return Whether they were marked; if not, the state changed since it was
+   *         read.
+   */
+  public boolean claimSyntheticValues(long catId,
+      SyntheticStateDbTable.Row seen);
+
+  public Cursor fetchSyntheticValuesRange(long catId, long milliStart,
+      long milliEnd);
+
+  /**
+   * Returns up to <code>nItems</code> stored values of synthetic category
+   * <code>catId</code> at or before <code>milliEnd</code>, latest first.
+   */
+  public Cursor fetchSyntheticValuesBefore(long catId, long milliEnd,
+      int nItems);
+
+  /**
+   * Replaces the stored values of synthetic category <code>catId</code> after
+   * <code>milliAfter</code> (all of them if it's
+   * {@link SyntheticStateDbTable#VALID_NONE}) with the first
+   * <code>count</code> of <code>millis</code> and <code>values</code>, and
+   * marks them current as calculated by the formula identified by
+   * <code>formulaHash</code>. The stored values of the synthetic categories
+   * depending on <code>catId</code> are invalidated from the same point.
+   * 
+   * <p>
+   * The values must have been claimed with
+   * {@link #claimSyntheticValues(long, SyntheticStateDbTable.Row)} before
+   * what they're calculated from was read. If anything they depend on has
+   * changed since, they're only marked current up to the change.
+   * 
+   * @return Whether they were written; they aren't if the claim was lost to
+   *         another writer, or the category deleted.
+   */
+  public boolean replaceSyntheticValues(long catId, long formulaHash,
+      long milliAfter, long[] millis, float[] values, int count);
+
   public static class SqlAdapter implements EvenTrendDbAdapter {
     private static final String TAG = "EvenTrendDbAdapter";
     protected static final String DATABASE_NAME = "data";
-    protected static final int DATABASE_VERSION = 3;
+    // 3: categories and entries tables
+    // 4: adds the entries (category, timestamp) index
+    // 5: adds the formulas table and the stored synthetic values
+    protected static final int DATABASE_VERSION = 5;
+
+    // The frequently run queries are constant, parameterized SQL so that the
+    // compiled statements can be reused, and the frequent inserts and updates
+    // are compiled once when the database is opened.
+    private static final String RECENT_ENTRIES_SQL = "SELECT "
+        + CategoryDbTable.KEY_STAR + ", " + EntryDbTable.KEY_STAR + " FROM "
+        + CategoryDbTable.TABLE_NAME + ", " + EntryDbTable.TABLE_NAME
+        + " WHERE " + EntryDbTable.TABLE_NAME + "."
+        + EntryDbTable.KEY_CATEGORY_ID + " = " + CategoryDbTable.TABLE_NAME
+        + "." + CategoryDbTable.KEY_ROWID + " ORDER BY "
+        + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT ?, ?";
+
+    private static final String RECENT_ENTRIES_FOR_CATEGORY_SQL = "SELECT "
+        + CategoryDbTable.KEY_STAR + ", " + EntryDbTable.KEY_STAR + " FROM "
+        + CategoryDbTable.TABLE_NAME + ", " + EntryDbTable.TABLE_NAME
+        + " WHERE " + EntryDbTable.TABLE_NAME + "."
+        + EntryDbTable.KEY_CATEGORY_ID + " = " + CategoryDbTable.TABLE_NAME
+        + "." + CategoryDbTable.KEY_ROWID + " AND "
+        + CategoryDbTable.TABLE_NAME + "." + CategoryDbTable.KEY_ROWID
+        + " = ? ORDER BY " + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT ?, ?";
+
+    private static final String RECENT_CATEGORY_ENTRIES_SQL = "SELECT * FROM "
+        + EntryDbTable.TABLE_NAME + " WHERE " + EntryDbTable.KEY_CATEGORY_ID
+        + " = ? ORDER BY " + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT ?";
+
+    private static final String CATEGORY_ENTRY_IN_PERIOD_SQL = "SELECT * FROM "
+        + EntryDbTable.TABLE_NAME + " WHERE " + EntryDbTable.KEY_CATEGORY_ID
+        + " = ? AND " + EntryDbTable.KEY_TIMESTAMP + " >= ? AND "
+        + EntryDbTable.KEY_TIMESTAMP + " < ? ORDER BY "
+        + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT 1";
+
+    private static final String INSERT_ENTRY_SQL = "INSERT INTO "
+        + EntryDbTable.TABLE_NAME + " (" + EntryDbTable.KEY_CATEGORY_ID + ", "
+        + EntryDbTable.KEY_VALUE + ", " + EntryDbTable.KEY_TIMESTAMP + ", "
+        + EntryDbTable.KEY_N_ENTRIES + ") VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_ENTRY_SQL = "UPDATE "
+        + EntryDbTable.TABLE_NAME + " SET " + EntryDbTable.KEY_CATEGORY_ID
+        + " = ?, " + EntryDbTable.KEY_VALUE + " = ?, "
+        + EntryDbTable.KEY_TIMESTAMP + " = ?, " + EntryDbTable.KEY_N_ENTRIES
+        + " = ? WHERE " + EntryDbTable.KEY_ROWID + " = ?";
+
+    private static final String UPDATE_CATEGORY_TREND_SQL = "UPDATE "
+        + CategoryDbTable.TABLE_NAME + " SET " + CategoryDbTable.KEY_TREND_STATE
+        + " = ?, " + CategoryDbTable.KEY_LAST_TREND + " = ? WHERE "
+        + CategoryDbTable.KEY_ROWID + " = ?";
+
+    private static final String CATEGORY_ENTRIES_BEFORE_SQL = "SELECT * FROM "
+        + EntryDbTable.TABLE_NAME + " WHERE " + EntryDbTable.KEY_CATEGORY_ID
+        + " = ? AND " + EntryDbTable.KEY_TIMESTAMP + " <= ? ORDER BY "
+        + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT ?";
+
+    private static final String SYNTHETIC_VALUES_BEFORE_SQL = "SELECT * FROM "
+        + SyntheticDbTable.TABLE_NAME + " WHERE "
+        + SyntheticDbTable.KEY_CATEGORY_ID + " = ? AND "
+        + SyntheticDbTable.KEY_TIMESTAMP + " <= ? ORDER BY "
+        + SyntheticDbTable.KEY_TIMESTAMP + " DESC LIMIT ?";
+
+    private static final String INSERT_SYNTHETIC_VALUE_SQL = "INSERT INTO "
+        + SyntheticDbTable.TABLE_NAME + " (" + SyntheticDbTable.KEY_CATEGORY_ID
+        + ", " + SyntheticDbTable.KEY_TIMESTAMP + ", "
+        + SyntheticDbTable.KEY_VALUE + ") VALUES (?, ?, ?)";
+
+    // The latest timestamp of a category's entries before the one given, and
+    // of a synthetic category's stored values at or before it. The first
+    // argument is returned if there are none.
+    private static final String PREVIOUS_ENTRY_TIMESTAMP_SQL = "SELECT ifnull(max("
+        + EntryDbTable.KEY_TIMESTAMP + "), ?) FROM " + EntryDbTable.TABLE_NAME
+        + " WHERE " + EntryDbTable.KEY_CATEGORY_ID + " = ? AND "
+        + EntryDbTable.KEY_TIMESTAMP + " < ?";
+
+    private static final String PREVIOUS_SYNTHETIC_TIMESTAMP_SQL = "SELECT ifnull(max("
+        + SyntheticDbTable.KEY_TIMESTAMP + "), ?) FROM "
+        + SyntheticDbTable.TABLE_NAME + " WHERE "
+        + SyntheticDbTable.KEY_CATEGORY_ID + " = ? AND "
+        + SyntheticDbTable.KEY_TIMESTAMP + " <= ?";
+
+    // only ever lowers the watermark
+    private static final String INVALIDATE_SYNTHETIC_SQL = "UPDATE "
+        + SyntheticStateDbTable.TABLE_NAME + " SET "
+        + SyntheticStateDbTable.KEY_VALID_TO + " = ? WHERE "
+        + SyntheticStateDbTable.KEY_CATEGORY_ID + " = ? AND "
+        + SyntheticStateDbTable.KEY_VALID_TO + " > ?";
 
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
     private Context mCtx;
-    private Calendar mCal;
+    private PeriodMath mPeriods;
+    private SQLiteStatement mInsertEntry;
+    private SQLiteStatement mUpdateEntry;
+    private SQLiteStatement mUpdateCategoryTrend;
+    private SQLiteStatement mChanges;
+    private SQLiteStatement mInsertSyntheticValue;
+    private SQLiteStatement mPreviousEntryTimestamp;
+    private SQLiteStatement mPreviousSyntheticTimestamp;
+    private SQLiteStatement mInvalidateSynthetic;
+
+    // The synthetic categories calculated from each category, cached for the
+    // length of an explicit transaction so that an import doesn't look them
+    // up again for every entry. Transactions are exclusive, so no other
+    // connection can change the formulas while one is open.
+    private HashMap<Long, ArrayList<Long>> mDependees;
+    private int mTransactionDepth;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
       DatabaseHelper(Context context) {
@@ -110,6 +345,8 @@ public interface EvenTrendDbAdapter {
       public void onCreate(SQLiteDatabase db) {
         db.execSQL(CategoryDbTable.TABLE_CREATE);
         db.execSQL(EntryDbTable.TABLE_CREATE);
+        db.execSQL(EntryDbTable.INDEX_CREATE);
+        createSyntheticTables(db);
         
         // Install some defaults:
         ContentValues args = new ContentValues();
@@ -193,83 +430,209 @@ public interface EvenTrendDbAdapter {
 
       @Override
       public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (upgrade(db, oldVersion, newVersion) == true) {
+          Log.i(TAG, "Upgraded database from version " + oldVersion + " to "
+              + newVersion);
+          return;
+        }
+
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
             + newVersion + ", which will destroy all old data");
         db.execSQL("DROP TABLE IF EXISTS " + CategoryDbTable.TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EntryDbTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + FormulaCacheDbTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SyntheticDbTable.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SyntheticStateDbTable.TABLE_NAME);
         onCreate(db);
       }
     }
 
+    /**
+     * Migrates the schema from oldVersion to newVersion in place, one version
+     * at a time, keeping all data.
+     * 
+     * @return false if there's no migration from oldVersion, in which case the
+     *         tables need to be recreated.
+     */
+    public static boolean upgrade(SQLiteDatabase db, int oldVersion,
+        int newVersion) {
+      if (oldVersion < 3 || newVersion > DATABASE_VERSION)
+        return false;
+
+      for (int version = oldVersion; version < newVersion; version++) {
+        switch (version) {
+          case 3:
+            db.execSQL(EntryDbTable.INDEX_CREATE);
+            break;
+          case 4:
+            // nothing is stored yet, so it's all calculated on first use
+            createSyntheticTables(db);
+            break;
+          default:
+            return false;
+        }
+      }
+      return true;
+    }
+
+    private static void createSyntheticTables(SQLiteDatabase db) {
+      db.execSQL(FormulaCacheDbTable.TABLE_CREATE);
+      db.execSQL(FormulaCacheDbTable.INDEX_CREATE);
+      db.execSQL(SyntheticDbTable.TABLE_CREATE);
+      db.execSQL(SyntheticDbTable.INDEX_CREATE);
+      db.execSQL(SyntheticStateDbTable.TABLE_CREATE);
+    }
+
     public SqlAdapter(Context context) {
       mCtx = context;
-      mCal = Calendar.getInstance();
+      mPeriods = new PeriodMath();
     }
 
     public EvenTrendDbAdapter open() throws SQLException {
       mDbHelper = new DatabaseHelper(mCtx);
       mDb = mDbHelper.getWritableDatabase();
+      mInsertEntry = mDb.compileStatement(INSERT_ENTRY_SQL);
+      mUpdateEntry = mDb.compileStatement(UPDATE_ENTRY_SQL);
+      mUpdateCategoryTrend = mDb.compileStatement(UPDATE_CATEGORY_TREND_SQL);
+      mChanges = mDb.compileStatement("SELECT changes()");
+      mInsertSyntheticValue = mDb.compileStatement(INSERT_SYNTHETIC_VALUE_SQL);
+      mPreviousEntryTimestamp = mDb
+          .compileStatement(PREVIOUS_ENTRY_TIMESTAMP_SQL);
+      mPreviousSyntheticTimestamp = mDb
+          .compileStatement(PREVIOUS_SYNTHETIC_TIMESTAMP_SQL);
+      mInvalidateSynthetic = mDb.compileStatement(INVALIDATE_SYNTHETIC_SQL);
       return this;
     }
 
     public void close() {
+      mInsertEntry.close();
+      mUpdateEntry.close();
+      mUpdateCategoryTrend.close();
+      mChanges.close();
+      mInsertSyntheticValue.close();
+      mPreviousEntryTimestamp.close();
+      mPreviousSyntheticTimestamp.close();
+      mInvalidateSynthetic.close();
       mDbHelper.close();
     }
 
+    // The depth and cache are only changed while holding the database lock,
+    // so only by the thread whose transaction it is.
+    public void beginTransaction() {
+      mDb.beginTransaction();
+      if (mTransactionDepth++ == 0)
+        mDependees = new HashMap<Long, ArrayList<Long>>();
+    }
+
+    public void setTransactionSuccessful() {
+      mDb.setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+      if (--mTransactionDepth == 0)
+        mDependees = null;
+      mDb.endTransaction();
+    }
+
+    // Runs a compiled update, returning whether any rows were changed. The
+    // transaction keeps any other statement from running before changes() is
+    // read.
+    private boolean executeUpdate(SQLiteStatement update) {
+      mDb.beginTransaction();
+      try {
+        update.execute();
+        boolean changed = mChanges.simpleQueryForLong() > 0;
+        mDb.setTransactionSuccessful();
+        return changed;
+      } finally {
+        mDb.endTransaction();
+      }
+    }
+
     // Flatten the entries db for export. Note this may substantially increase
-    // the
-    // DB size,
-    // since we'll be duplicating category/trend columns for each datapoint
+    // the DB size, since we'll be duplicating category/trend columns for each
+    // datapoint. Prefer exportDB() for anything but small databases, since this
+    // holds the whole export in memory.
     public String flattenDB() {
+      StringWriter out = new StringWriter();
+      try {
+        exportDB(out, null);
+      } catch (IOException e) {
+        // can't happen with a StringWriter
+      }
+      return out.toString();
+    }
+
+    public int exportDB(Writer out, ExportListener listener)
+        throws IOException {
       CategoryDbTable.Row cr = new CategoryDbTable.Row();
       EntryDbTable.Row er = new EntryDbTable.Row();
-      String[] line = new String[2];
 
-      line[0] = CSV.joinCSV(CategoryDbTable.EXPORTABLE);
-      line[1] = CSV.joinCSV(EntryDbTable.EXPORTABLE);
+      out.write(CSV.joinCSV(CategoryDbTable.EXPORTABLE));
+      out.write(',');
+      out.write(CSV.joinCSV(EntryDbTable.EXPORTABLE));
+      out.write('\n');
 
-      String db = CSV.joinCSVTerminated(line);
-
-      Cursor c = mDb.rawQuery("SELECT " + CategoryDbTable.KEY_STAR + ", "
+      Cursor entries = mDb.rawQuery("SELECT " + CategoryDbTable.KEY_STAR + ", "
           + EntryDbTable.KEY_STAR + " " + " FROM " + CategoryDbTable.TABLE_NAME
           + ", " + EntryDbTable.TABLE_NAME + " " + " WHERE "
           + CategoryDbTable.TABLE_NAME + "." + CategoryDbTable.KEY_ROWID
           + " = " + EntryDbTable.TABLE_NAME + "."
           + EntryDbTable.KEY_CATEGORY_ID + " ORDER BY "
           + EntryDbTable.KEY_TIMESTAMP, null);
-      if (c != null) {
-        c.moveToFirst();
-
-        for (int i = 0; i < c.getCount(); i++) {
-          cr.populateFromCursor(c);
-          er.populateFromCursor(c);
-
-          line[0] = CSV.joinCSV(cr);
-          line[1] = CSV.joinCSV(er);
+      Cursor synthetics = fetchAllSynthetics();
+      int total = entries.getCount() + synthetics.getCount();
+      int written = 0;
+
+      try {
+        CategoryDbTable.RowMapper categories = new CategoryDbTable.RowMapper(
+            entries);
+        EntryDbTable.RowMapper values = new EntryDbTable.RowMapper(entries);
+        entries.moveToFirst();
+        while (entries.isAfterLast() == false) {
+          categories.populate(cr);
+          values.populate(er);
+          writeExportRow(out, cr, er);
+          entries.moveToNext();
+          written = exported(listener, written, total);
+        }
 
-          db += CSV.joinCSVTerminated(line);
-          c.moveToNext();
+        // synthetic categories have no entries, so they're exported with
+        // empty entry columns
+        er = new EntryDbTable.Row();
+        categories = new CategoryDbTable.RowMapper(synthetics);
+        synthetics.moveToFirst();
+        while (synthetics.isAfterLast() == false) {
+          categories.populate(cr);
+          writeExportRow(out, cr, er);
+          synthetics.moveToNext();
+          written = exported(listener, written, total);
         }
+      } finally {
+        entries.close();
+        synthetics.close();
       }
-      c.close();
 
-      c = fetchAllSynthetics();
-      if (c != null) {
-        c.moveToFirst();
-        for (int i = 0; i < c.getCount(); i++) {
-          cr.populateFromCursor(c);
-          er = new EntryDbTable.Row();
-
-          line[0] = CSV.joinCSV(cr);
-          line[1] = CSV.joinCSV(er);
+      out.flush();
+      if (listener != null && written % EXPORT_PROGRESS_INTERVAL != 0)
+        listener.onExportProgress(written, total);
+      return written;
+    }
 
-          db += CSV.joinCSVTerminated(line);
-          c.moveToNext();
-        }
-      }
-      c.close();
+    private static void writeExportRow(Writer out, CategoryDbTable.Row cr,
+        EntryDbTable.Row er) throws IOException {
+      out.write(CSV.joinCSV(cr));
+      out.write(',');
+      out.write(CSV.joinCSV(er));
+      out.write('\n');
+    }
 
-      return db;
+    private static int exported(ExportListener listener, int written,
+        int total) {
+      written++;
+      if (listener != null && written % EXPORT_PROGRESS_INTERVAL == 0)
+        listener.onExportProgress(written, total);
+      return written;
     }
 
     //
@@ -299,12 +662,31 @@ public interface EvenTrendDbAdapter {
       return mDb.insert(CategoryDbTable.TABLE_NAME, null, args);
     }
 
-    public boolean deleteCategory(long rowId) {
-      return mDb.delete(CategoryDbTable.TABLE_NAME, CategoryDbTable.KEY_ROWID
-          + "=" + rowId, null) > 0;
+    public synchronized boolean deleteCategory(long rowId) {
+      mDb.beginTransaction();
+      try {
+        invalidateSynthetics(rowId, SyntheticStateDbTable.VALID_NONE);
+        formulasChanged();
+        mDb.delete(FormulaCacheDbTable.TABLE_NAME,
+            FormulaCacheDbTable.KEY_CATEGORY_ID + "=" + rowId, null);
+        mDb.delete(SyntheticDbTable.TABLE_NAME,
+            SyntheticDbTable.KEY_CATEGORY_ID + "=" + rowId, null);
+        mDb.delete(SyntheticStateDbTable.TABLE_NAME,
+            SyntheticStateDbTable.KEY_CATEGORY_ID + "=" + rowId, null);
+        boolean deleted = mDb.delete(CategoryDbTable.TABLE_NAME,
+            CategoryDbTable.KEY_ROWID + "=" + rowId, null) > 0;
+        mDb.setTransactionSuccessful();
+        return deleted;
+      } finally {
+        mDb.endTransaction();
+      }
     }
 
-    public boolean deleteAllCategories() {
+    public synchronized boolean deleteAllCategories() {
+      formulasChanged();
+      mDb.delete(FormulaCacheDbTable.TABLE_NAME, null, null);
+      mDb.delete(SyntheticDbTable.TABLE_NAME, null, null);
+      mDb.delete(SyntheticStateDbTable.TABLE_NAME, null, null);
       return mDb.delete(CategoryDbTable.TABLE_NAME, null, null) > 0;
     }
 
@@ -430,14 +812,12 @@ public interface EvenTrendDbAdapter {
           CategoryDbTable.KEY_ROWID + "=" + rowId, null) > 0;
     }
 
-    public boolean updateCategoryTrend(long catId, String trendStr,
-        float newTrend) {
-      ContentValues args = new ContentValues();
-      args.put(CategoryDbTable.KEY_TREND_STATE, trendStr);
-      args.put(CategoryDbTable.KEY_LAST_TREND, newTrend);
-
-      return mDb.update(CategoryDbTable.TABLE_NAME, args,
-          CategoryDbTable.KEY_ROWID + "=" + catId, null) > 0;
+    public synchronized boolean updateCategoryTrend(long catId,
+        String trendStr, float newTrend) {
+      mUpdateCategoryTrend.bindString(1, trendStr);
+      mUpdateCategoryTrend.bindDouble(2, newTrend);
+      mUpdateCategoryTrend.bindLong(3, catId);
+      return executeUpdate(mUpdateCategoryTrend);
     }
 
     //
@@ -449,19 +829,23 @@ public interface EvenTrendDbAdapter {
           null, null, null, EntryDbTable.KEY_TIMESTAMP);
     }
 
-    public boolean deleteAllEntries() {
+    public synchronized boolean deleteAllEntries() {
+      // everything stored is calculated from the entries
+      mDb.delete(SyntheticDbTable.TABLE_NAME, null, null);
+      mDb.delete(SyntheticStateDbTable.TABLE_NAME, null, null);
       return mDb.delete(EntryDbTable.TABLE_NAME, null, null) > 0;
     }
 
-    public boolean deleteCategoryEntries(long catId) {
+    public synchronized boolean deleteCategoryEntries(long catId) {
+      invalidateSynthetics(catId, SyntheticStateDbTable.VALID_NONE);
       return mDb.delete(EntryDbTable.TABLE_NAME, EntryDbTable.KEY_CATEGORY_ID
           + "=" + catId, null) > 0;
     }
 
     public Cursor fetchCategoryEntries(long catId) {
       return mDb.query(true, EntryDbTable.TABLE_NAME, EntryDbTable.KEY_ALL,
-          EntryDbTable.KEY_CATEGORY_ID + "=" + catId, null, null, null,
-          EntryDbTable.KEY_TIMESTAMP, null);
+          EntryDbTable.KEY_CATEGORY_ID + "=?", new String[] { Long
+              .toString(catId) }, null, null, EntryDbTable.KEY_TIMESTAMP, null);
     }
 
     public Cursor fetchEntriesRange(long milliStart, long milliEnd) {
@@ -475,58 +859,93 @@ public interface EvenTrendDbAdapter {
 
     public Cursor fetchCategoryEntriesRange(long catId, long milliStart,
         long milliEnd) {
-      // these will be ordered in-core
+      // ordered so the datapoint cache can append the results as a block
       return mDb.query(true, EntryDbTable.TABLE_NAME, EntryDbTable.KEY_ALL,
           EntryDbTable.KEY_CATEGORY_ID + "= ? and "
               + EntryDbTable.KEY_TIMESTAMP + " >= ? and "
               + EntryDbTable.KEY_TIMESTAMP + " <= ?", new String[] {
               Long.toString(catId), Long.toString(milliStart),
-              Long.toString(milliEnd) }, null, null, null, null);
+              Long.toString(milliEnd) }, null, null,
+          EntryDbTable.KEY_TIMESTAMP + " ASC", null);
     }
 
-    public long createEntry(EntryDbTable.Row entry) {
-      ContentValues args = new ContentValues();
+    public Cursor fetchCategoriesEntriesRanges(long[] catIds,
+        long[] milliStarts, long[] milliEnds) {
+      // the values are all longs, so they're inlined rather than bound to stay
+      // clear of the limit on the number of bind arguments
+      StringBuilder where = new StringBuilder();
+      for (int i = 0; i < catIds.length; i++) {
+        if (i > 0)
+          where.append(" or ");
+        where.append("(" + EntryDbTable.KEY_CATEGORY_ID + " = " + catIds[i]
+            + " and " + EntryDbTable.KEY_TIMESTAMP + " >= " + milliStarts[i]
+            + " and " + EntryDbTable.KEY_TIMESTAMP + " <= " + milliEnds[i]
+            + ")");
+      }
 
-      args.put(EntryDbTable.KEY_CATEGORY_ID, entry.getCategoryId());
-      args.put(EntryDbTable.KEY_VALUE, entry.getValue());
-      args.put(EntryDbTable.KEY_TIMESTAMP, entry.getTimestamp());
-      args.put(EntryDbTable.KEY_N_ENTRIES, entry.getNEntries());
-      return mDb.insert(EntryDbTable.TABLE_NAME, null, args);
+      return mDb.query(true, EntryDbTable.TABLE_NAME, EntryDbTable.KEY_ALL,
+          where.toString(), null, null, null, EntryDbTable.KEY_CATEGORY_ID
+              + " ASC, " + EntryDbTable.KEY_TIMESTAMP + " ASC", null);
     }
 
-    public boolean deleteEntry(long rowId) {
-      return mDb.delete(EntryDbTable.TABLE_NAME, EntryDbTable.KEY_ROWID + "="
-          + rowId, null) > 0;
+    public synchronized long createEntry(EntryDbTable.Row entry) {
+      mInsertEntry.bindLong(1, entry.getCategoryId());
+      mInsertEntry.bindDouble(2, entry.getValue());
+      mInsertEntry.bindLong(3, entry.getTimestamp());
+      mInsertEntry.bindLong(4, entry.getNEntries());
+      // the entry and the invalidation of what's calculated from it are
+      // written together, or not at all
+      long id = -1;
+      mDb.beginTransaction();
+      try {
+        id = mInsertEntry.executeInsert();
+        entryChanged(entry.getCategoryId(), entry.getTimestamp());
+        mDb.setTransactionSuccessful();
+        return id;
+      } catch (SQLException e) {
+        Log.e(TAG, "Error inserting entry", e);
+        // if nothing was written, an enclosing transaction (such as an
+        // import's) can still commit
+        if (id == -1)
+          mDb.setTransactionSuccessful();
+        return -1;
+      } finally {
+        mDb.endTransaction();
+      }
+    }
+
+    public synchronized boolean deleteEntry(long rowId) {
+      // the old entry's category and timestamp, for invalidating anything
+      // calculated from it
+      mDb.beginTransaction();
+      try {
+        EntryDbTable.Row old = fetchEntry(rowId);
+
+        boolean deleted = mDb.delete(EntryDbTable.TABLE_NAME,
+            EntryDbTable.KEY_ROWID + "=" + rowId, null) > 0;
+        if (deleted && old != null)
+          entryChanged(old.getCategoryId(), old.getTimestamp());
+        mDb.setTransactionSuccessful();
+        return deleted;
+      } finally {
+        mDb.endTransaction();
+      }
     }
 
     public Cursor fetchRecentEntries(int nItems, int skip) {
-      return mDb.rawQuery("SELECT " + CategoryDbTable.KEY_STAR + ", "
-          + EntryDbTable.KEY_STAR + " FROM " + CategoryDbTable.TABLE_NAME
-          + ", " + EntryDbTable.TABLE_NAME + " WHERE "
-          + EntryDbTable.TABLE_NAME + "." + EntryDbTable.KEY_CATEGORY_ID
-          + " = " + CategoryDbTable.TABLE_NAME + "."
-          + CategoryDbTable.KEY_ROWID + " ORDER BY "
-          + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT " + skip + ", " + nItems,
-          null);
+      return mDb.rawQuery(RECENT_ENTRIES_SQL, new String[] {
+          Integer.toString(skip), Integer.toString(nItems) });
     }
 
     public Cursor fetchRecentEntries(int nItems, long catId, int skip) {
-      return mDb.rawQuery("SELECT " + CategoryDbTable.KEY_STAR + ", "
-          + EntryDbTable.KEY_STAR + " FROM " + CategoryDbTable.TABLE_NAME
-          + ", " + EntryDbTable.TABLE_NAME + " WHERE "
-          + EntryDbTable.TABLE_NAME + "." + EntryDbTable.KEY_CATEGORY_ID
-          + " = " + CategoryDbTable.TABLE_NAME + "."
-          + CategoryDbTable.KEY_ROWID + " AND " + CategoryDbTable.TABLE_NAME
-          + "." + CategoryDbTable.KEY_ROWID + " = " + catId + " ORDER BY "
-          + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT " + skip + ", " + nItems,
-          null);
+      return mDb.rawQuery(RECENT_ENTRIES_FOR_CATEGORY_SQL, new String[] {
+          Long.toString(catId), Integer.toString(skip),
+          Integer.toString(nItems) });
     }
 
     public EntryDbTable.Row fetchLastCategoryEntry(long catId) {
       EntryDbTable.Row row = null;
-      Cursor c = mDb.rawQuery("SELECT * FROM " + EntryDbTable.TABLE_NAME
-          + " WHERE " + EntryDbTable.KEY_CATEGORY_ID + " = " + catId
-          + " ORDER BY " + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT 1", null);
+      Cursor c = fetchRecentCategoryEntries(catId, 1);
       c.moveToFirst();
       if (c.getCount() > 0) {
         row = new EntryDbTable.Row();
@@ -539,24 +958,12 @@ public interface EvenTrendDbAdapter {
     public EntryDbTable.Row fetchCategoryEntryInPeriod(long catId, long period,
         long date_ms) {
       EntryDbTable.Row row = null;
-      mCal.setTimeInMillis(date_ms);
-
       Period p = DateUtil.mapLongToPeriod(period);
-      DateUtil.setToPeriodStart(mCal, p);
-      long min = mCal.getTimeInMillis();
-
-      int step = 1;
-      if (p == Period.QUARTER)
-        step = 3;
-      mCal.add(DateUtil.mapLongToCal(period), step);
+      long min = mPeriods.periodStart(date_ms, p);
+      long max = mPeriods.nextPeriodStart(date_ms, p);
 
-      long max = mCal.getTimeInMillis();
-
-      Cursor c = mDb.rawQuery("SELECT * FROM " + EntryDbTable.TABLE_NAME
-          + " WHERE " + EntryDbTable.KEY_CATEGORY_ID + " = " + catId + " AND "
-          + EntryDbTable.KEY_TIMESTAMP + " >= " + min + " AND "
-          + EntryDbTable.KEY_TIMESTAMP + " < " + max + " ORDER BY "
-          + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT 1", null);
+      Cursor c = mDb.rawQuery(CATEGORY_ENTRY_IN_PERIOD_SQL, new String[] {
+          Long.toString(catId), Long.toString(min), Long.toString(max) });
       c.moveToFirst();
       if (c.getCount() > 0) {
         row = new EntryDbTable.Row();
@@ -580,23 +987,262 @@ public interface EvenTrendDbAdapter {
       return row;
     }
 
-    public boolean updateEntry(EntryDbTable.Row entry) {
+    public synchronized boolean updateEntry(EntryDbTable.Row entry) {
+      mDb.beginTransaction();
+      try {
+        EntryDbTable.Row old = fetchEntry(entry.getId());
+
+        mUpdateEntry.bindLong(1, entry.getCategoryId());
+        mUpdateEntry.bindDouble(2, entry.getValue());
+        mUpdateEntry.bindLong(3, entry.getTimestamp());
+        mUpdateEntry.bindLong(4, entry.getNEntries());
+        mUpdateEntry.bindLong(5, entry.getId());
+        boolean updated = executeUpdate(mUpdateEntry);
+        if (updated) {
+          if (old != null)
+            entryChanged(old.getCategoryId(), old.getTimestamp());
+          entryChanged(entry.getCategoryId(), entry.getTimestamp());
+        }
+        mDb.setTransactionSuccessful();
+        return updated;
+      } finally {
+        mDb.endTransaction();
+      }
+    }
+
+    public Cursor fetchRecentCategoryEntries(long catId, int nItems) {
+      return mDb.rawQuery(RECENT_CATEGORY_ENTRIES_SQL, new String[] {
+          Long.toString(catId), Integer.toString(nItems) });
+    }
+
+    public Cursor fetchCategoryEntriesBefore(long catId, long milliEnd,
+        int nItems) {
+      return mDb.rawQuery(CATEGORY_ENTRIES_BEFORE_SQL, new String[] {
+          Long.toString(catId), Long.toString(milliEnd),
+          Integer.toString(nItems) });
+    }
+
+    //
+    // Synthetic-focused Operations
+    //
+
+    public synchronized void setSyntheticDependents(long catId,
+        long[] dependentIds) {
+      mDb.beginTransaction();
+      try {
+        formulasChanged();
+        mDb.delete(FormulaCacheDbTable.TABLE_NAME,
+            FormulaCacheDbTable.KEY_CATEGORY_ID + "=" + catId, null);
+        ContentValues args = new ContentValues();
+        for (int i = 0; i < dependentIds.length; i++) {
+          args.put(FormulaCacheDbTable.KEY_CATEGORY_ID, catId);
+          args.put(FormulaCacheDbTable.KEY_DEPENDENT_ID, dependentIds[i]);
+          mDb.insert(FormulaCacheDbTable.TABLE_NAME, null, args);
+        }
+        mDb.setTransactionSuccessful();
+      } finally {
+        mDb.endTransaction();
+      }
+    }
+
+    public ArrayList<SyntheticStateDbTable.Row> fetchSyntheticStates(
+        long[] catIds) {
+      ArrayList<SyntheticStateDbTable.Row> states = new ArrayList<SyntheticStateDbTable.Row>();
+      if (catIds.length == 0)
+        return states;
+
+      // inlined, as the ids are all longs
+      StringBuilder where = new StringBuilder(
+          SyntheticStateDbTable.KEY_CATEGORY_ID + " in (");
+      for (int i = 0; i < catIds.length; i++) {
+        if (i > 0)
+          where.append(",");
+        where.append(catIds[i]);
+      }
+      where.append(")");
+
+      Cursor c = mDb.query(SyntheticStateDbTable.TABLE_NAME,
+          SyntheticStateDbTable.KEY_ALL, where.toString(), null, null, null,
+          null);
+      c.moveToFirst();
+      for (int i = 0; i < c.getCount(); i++) {
+        SyntheticStateDbTable.Row row = new SyntheticStateDbTable.Row();
+        row.populateFromCursor(c);
+        states.add(row);
+        c.moveToNext();
+      }
+      c.close();
+      return states;
+    }
+
+    public synchronized boolean claimSyntheticValues(long catId,
+        SyntheticStateDbTable.Row seen) {
+      mDb.beginTransaction();
+      try {
+        SyntheticStateDbTable.Row state = fetchSyntheticState(catId);
+        if (SyntheticStateDbTable.sameState(state, seen) == false)
+          return false;
+        writeSyntheticState(catId, SyntheticStateDbTable.HASH_PENDING,
+            SyntheticStateDbTable.VALID_ALL);
+        mDb.setTransactionSuccessful();
+        return true;
+      } finally {
+        mDb.endTransaction();
+      }
+    }
+
+    public SyntheticStateDbTable.Row fetchSyntheticState(long catId) {
+      SyntheticStateDbTable.Row row = null;
+      Cursor c = mDb.query(SyntheticStateDbTable.TABLE_NAME,
+          SyntheticStateDbTable.KEY_ALL, SyntheticStateDbTable.KEY_CATEGORY_ID
+              + "=?", new String[] { Long.toString(catId) }, null, null, null);
+      c.moveToFirst();
+      if (c.getCount() > 0) {
+        row = new SyntheticStateDbTable.Row();
+        row.populateFromCursor(c);
+      }
+      c.close();
+      return row;
+    }
+
+    public Cursor fetchSyntheticValuesRange(long catId, long milliStart,
+        long milliEnd) {
+      return mDb.query(SyntheticDbTable.TABLE_NAME, SyntheticDbTable.KEY_ALL,
+          SyntheticDbTable.KEY_CATEGORY_ID + "= ? and "
+              + SyntheticDbTable.KEY_TIMESTAMP + " >= ? and "
+              + SyntheticDbTable.KEY_TIMESTAMP + " <= ?", new String[] {
+              Long.toString(catId), Long.toString(milliStart),
+              Long.toString(milliEnd) }, null, null,
+          SyntheticDbTable.KEY_TIMESTAMP + " ASC");
+    }
+
+    public Cursor fetchSyntheticValuesBefore(long catId, long milliEnd,
+        int nItems) {
+      return mDb.rawQuery(SYNTHETIC_VALUES_BEFORE_SQL, new String[] {
+          Long.toString(catId), Long.toString(milliEnd),
+          Integer.toString(nItems) });
+    }
+
+    public synchronized boolean replaceSyntheticValues(long catId,
+        long formulaHash, long milliAfter, long[] millis, float[] values,
+        int count) {
+      mDb.beginTransaction();
+      try {
+        SyntheticStateDbTable.Row state = fetchSyntheticState(catId);
+        if (state == null
+            || state.getFormulaHash() != SyntheticStateDbTable.HASH_PENDING)
+          return false;
+
+        String where = SyntheticDbTable.KEY_CATEGORY_ID + "=" + catId;
+        if (milliAfter != SyntheticStateDbTable.VALID_NONE)
+          where += " and " + SyntheticDbTable.KEY_TIMESTAMP + " > "
+              + milliAfter;
+        mDb.delete(SyntheticDbTable.TABLE_NAME, where, null);
+
+        for (int i = 0; i < count; i++) {
+          mInsertSyntheticValue.bindLong(1, catId);
+          mInsertSyntheticValue.bindLong(2, millis[i]);
+          mInsertSyntheticValue.bindDouble(3, values[i]);
+          mInsertSyntheticValue.executeInsert();
+        }
+
+        // whatever lowered the watermark since the claim changed after the
+        // values were read, so they're only current up to it
+        writeSyntheticState(catId, formulaHash, state.getValidTo());
+
+        long previous = milliAfter;
+        if (milliAfter != SyntheticStateDbTable.VALID_NONE)
+          previous = previousTimestamp(mPreviousSyntheticTimestamp, catId,
+              milliAfter);
+        invalidateSynthetics(catId, previous);
+        mDb.setTransactionSuccessful();
+        return true;
+      } finally {
+        mDb.endTransaction();
+      }
+    }
+
+    private void writeSyntheticState(long catId, long formulaHash,
+        long validTo) {
       ContentValues args = new ContentValues();
+      args.put(SyntheticStateDbTable.KEY_CATEGORY_ID, catId);
+      args.put(SyntheticStateDbTable.KEY_FORMULA_HASH, formulaHash);
+      args.put(SyntheticStateDbTable.KEY_VALID_TO, validTo);
+      mDb.replace(SyntheticStateDbTable.TABLE_NAME, null, args);
+    }
 
-      args.put(EntryDbTable.KEY_CATEGORY_ID, entry.getCategoryId());
-      args.put(EntryDbTable.KEY_VALUE, entry.getValue());
-      args.put(EntryDbTable.KEY_TIMESTAMP, entry.getTimestamp());
-      args.put(EntryDbTable.KEY_N_ENTRIES, entry.getNEntries());
+    // An entry of category catId at millis was added, changed or removed.
+    // Any value calculated from the category after its previous entry may
+    // depend on it, since it's interpolated from the two either side.
+    private void entryChanged(long catId, long millis) {
+      if (fetchSyntheticDependees(catId).size() == 0)
+        return;
+      invalidateSynthetics(catId, previousTimestamp(mPreviousEntryTimestamp,
+          catId, millis));
+    }
 
-      return mDb.update(EntryDbTable.TABLE_NAME, args, EntryDbTable.KEY_ROWID
-          + "=" + entry.getId(), null) > 0;
+    // Lowers the watermark of the stored values of the synthetic categories
+    // depending on catId to milliValid, and so on for those depending on
+    // them, from their last stored value at or before it.
+    private void invalidateSynthetics(long catId, long milliValid) {
+      ArrayList<Long> dependees = fetchSyntheticDependees(catId);
+      for (int i = 0; i < dependees.size(); i++) {
+        long id = dependees.get(i).longValue();
+        mInvalidateSynthetic.bindLong(1, milliValid);
+        mInvalidateSynthetic.bindLong(2, id);
+        mInvalidateSynthetic.bindLong(3, milliValid);
+        // if it's already invalid from earlier, so is everything after it
+        if (executeUpdate(mInvalidateSynthetic) == false)
+          continue;
+
+        long previous = milliValid;
+        if (milliValid != SyntheticStateDbTable.VALID_NONE)
+          previous = previousTimestamp(mPreviousSyntheticTimestamp, id,
+              milliValid);
+        invalidateSynthetics(id, previous);
+      }
     }
 
-    public Cursor fetchRecentCategoryEntries(long catId, int nItems) {
-      return mDb.rawQuery(
-          "SELECT * FROM " + EntryDbTable.TABLE_NAME + " WHERE "
-              + EntryDbTable.KEY_CATEGORY_ID + " = " + catId + " ORDER BY "
-              + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT " + nItems, null);
+    private long previousTimestamp(SQLiteStatement query, long catId,
+        long millis) {
+      query.bindLong(1, SyntheticStateDbTable.VALID_NONE);
+      query.bindLong(2, catId);
+      query.bindLong(3, millis);
+      return query.simpleQueryForLong();
+    }
+
+    // The synthetic categories calculated directly from catId. Read from the
+    // formulas table on each write outside of an explicit transaction, since
+    // the formulas can be changed through any other adapter instance.
+    private ArrayList<Long> fetchSyntheticDependees(long catId) {
+      Long key = Long.valueOf(catId);
+      ArrayList<Long> dependees;
+      if (mDependees != null) {
+        dependees = mDependees.get(key);
+        if (dependees != null)
+          return dependees;
+      }
+
+      dependees = new ArrayList<Long>();
+      Cursor c = mDb.query(FormulaCacheDbTable.TABLE_NAME,
+          new String[] { FormulaCacheDbTable.KEY_CATEGORY_ID },
+          FormulaCacheDbTable.KEY_DEPENDENT_ID + "=?", new String[] { Long
+              .toString(catId) }, null, null, null);
+      c.moveToFirst();
+      for (int i = 0; i < c.getCount(); i++) {
+        dependees.add(Long.valueOf(FormulaCacheDbTable.getCategoryId(c)));
+        c.moveToNext();
+      }
+      c.close();
+      if (mDependees != null)
+        mDependees.put(key, dependees);
+      return dependees;
+    }
+
+    // Drops the cached dependees, when the formulas are about to change.
+    private void formulasChanged() {
+      if (mDependees != null)
+        mDependees.clear();
     }
   }
 }
@@ -45,6 +45,14 @@ public class FormulaCacheDbTable {
       + " integer key not null, " + KEY_DEPENDENT_ID
       + " integer key not null);";
 
+  // Looked up by dependent whenever an entry changes, to find the synthetic
+  // categories whose stored values that affects.
+  public static final String INDEX_NAME = "formulas_dependent";
+
+  public static final String INDEX_CREATE = "create index if not exists "
+      + INDEX_NAME + " on " + TABLE_NAME + " (" + KEY_DEPENDENT_ID + ", "
+      + KEY_CATEGORY_ID + ");";
+
   public static long getId(Cursor c) {
     return c.getLong(c.getColumnIndexOrThrow(KEY_ROWID));
   }
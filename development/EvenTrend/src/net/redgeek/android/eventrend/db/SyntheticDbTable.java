@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.redgeek.android.eventrend.db;
+
+import android.database.Cursor;
+
+/**
+ * Class encapsulating the database table definition and convenience routines
+ * for the stored values of synthetic categories. These are the results of
+ * evaluating each synthetic category's formula over the whole history of its
+ * sources, so a graph can read them by range instead of recalculating them.
+ * They're derived data; whether they're current is tracked in
+ * {@link SyntheticStateDbTable}.
+ * 
+ * @author barclay
+ * 
+ */
+public class SyntheticDbTable {
+  public static final String TABLE_NAME = "synthetic_values";
+
+  public static final String KEY_ROWID = "_id";
+  public static final String KEY_CATEGORY_ID = "category_id";
+  public static final String KEY_TIMESTAMP = "timestamp";
+  public static final String KEY_VALUE = "value";
+
+  public static final String KEY_STAR = TABLE_NAME + ".*";
+  public static final String[] KEY_ALL = { KEY_ROWID, KEY_CATEGORY_ID,
+      KEY_TIMESTAMP, KEY_VALUE };
+
+  public static final String TABLE_CREATE = "create table " + TABLE_NAME + " ("
+      + KEY_ROWID + " integer primary key autoincrement, " + KEY_CATEGORY_ID
+      + " integer key not null, " + KEY_TIMESTAMP + " long key not null, "
+      + KEY_VALUE + " float not null);";
+
+  // As with the entries, every query selects by category and a range of
+  // timestamps.
+  public static final String INDEX_NAME = "synthetic_values_category_timestamp";
+
+  public static final String INDEX_CREATE = "create index if not exists "
+      + INDEX_NAME + " on " + TABLE_NAME + " (" + KEY_CATEGORY_ID + ", "
+      + KEY_TIMESTAMP + ", " + KEY_VALUE + ");";
+
+  public static long getCategoryId(Cursor c) {
+    return c.getLong(c.getColumnIndexOrThrow(KEY_CATEGORY_ID));
+  }
+
+  public static long getTimestamp(Cursor c) {
+    return c.getLong(c.getColumnIndexOrThrow(KEY_TIMESTAMP));
+  }
+
+  public static float getValue(Cursor c) {
+    return c.getFloat(c.getColumnIndexOrThrow(KEY_VALUE));
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.redgeek.android.eventrend.db;
+
+import android.database.Cursor;
+
+/**
+ * Class encapsulating the database table definition and convenience routines
+ * for the state of the stored values of each synthetic category: a hash of
+ * what they were calculated from, other than the datapoints themselves, and
+ * the watermark up to which they're still current.
+ * 
+ * <p>
+ * Changing an entry lowers the watermark of the synthetic categories depending
+ * on its category to just before the change, and so on for those depending on
+ * them, so that only the values after the watermark need to be calculated
+ * again.
+ * 
+ * @author barclay
+ * 
+ */
+public class SyntheticStateDbTable {
+  public static final String TABLE_NAME = "synthetic_state";
+
+  public static final String KEY_CATEGORY_ID = "category_id";
+  public static final String KEY_FORMULA_HASH = "formula_hash";
+  public static final String KEY_VALID_TO = "valid_to";
+
+  public static final String[] KEY_ALL = { KEY_CATEGORY_ID, KEY_FORMULA_HASH,
+      KEY_VALID_TO };
+
+  // the watermark of values that are entirely current
+  public static final long VALID_ALL = Long.MAX_VALUE;
+  // the watermark of values that all need to be calculated again
+  public static final long VALID_NONE = Long.MIN_VALUE;
+  // the hash of values claimed for recalculation, which matches no formula
+  public static final long HASH_PENDING = Long.MIN_VALUE;
+
+  public static final String TABLE_CREATE = "create table " + TABLE_NAME + " ("
+      + KEY_CATEGORY_ID + " integer primary key, " + KEY_FORMULA_HASH
+      + " long not null, " + KEY_VALID_TO + " long not null);";
+
+  public static long getCategoryId(Cursor c) {
+    return c.getLong(c.getColumnIndexOrThrow(KEY_CATEGORY_ID));
+  }
+
+  public static long getFormulaHash(Cursor c) {
+    return c.getLong(c.getColumnIndexOrThrow(KEY_FORMULA_HASH));
+  }
+
+  public static long getValidTo(Cursor c) {
+    return c.getLong(c.getColumnIndexOrThrow(KEY_VALID_TO));
+  }
+
+  /**
+   * Returns whether the states a and b, either of which may be null for
+   * none, are the same.
+   */
+  public static boolean sameState(Row a, Row b) {
+    if (a == null || b == null)
+      return a == b;
+    return a.getFormulaHash() == b.getFormulaHash()
+        && a.getValidTo() == b.getValidTo();
+  }
+
+  public static class Row {
+    private long mCategoryId = 0;
+    private long mFormulaHash = 0;
+    private long mValidTo = VALID_NONE;
+
+    public Row() {
+    }
+
+    public Row(Row r) {
+      set(r);
+    }
+
+    public void set(Row r) {
+      setCategoryId(r.getCategoryId());
+      setFormulaHash(r.getFormulaHash());
+      setValidTo(r.getValidTo());
+    }
+
+    public void populateFromCursor(Cursor c) {
+      if (c == null)
+        return;
+
+      setCategoryId(SyntheticStateDbTable.getCategoryId(c));
+      setFormulaHash(SyntheticStateDbTable.getFormulaHash(c));
+      setValidTo(SyntheticStateDbTable.getValidTo(c));
+    }
+
+    public long getCategoryId() {
+      return mCategoryId;
+    }
+
+    public void setCategoryId(long categoryId) {
+      mCategoryId = categoryId;
+    }
+
+    public long getFormulaHash() {
+      return mFormulaHash;
+    }
+
+    public void setFormulaHash(long formulaHash) {
+      mFormulaHash = formulaHash;
+    }
+
+    /**
+     * Returns the timestamp up to which, inclusive, the stored values are
+     * current: {@link #VALID_ALL} if they all are, {@link #VALID_NONE} if none
+     * are.
+     */
+    public long getValidTo() {
+      return mValidTo;
+    }
+
+    public void setValidTo(long validTo) {
+      mValidTo = validTo;
+    }
+  }
+}
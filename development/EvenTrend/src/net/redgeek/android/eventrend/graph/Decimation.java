@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.graph;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+
+/**
+ * The rows of a series that are actually transformed and drawn. When there
+ * are more datapoints than pixels, drawing all of them only piles points on
+ * top of each other, so the series is reduced with M4 decimation: time is
+ * cut into buckets no wider than a pixel, and only the first, last, minimum
+ * and maximum values of each bucket are kept. The line drawn through those is
+ * the same, to the pixel, as the one through every datapoint, and no peak or
+ * trough is lost.
+ *
+ * <p>
+ * Buckets are aligned to multiples of their width from the epoch, and the
+ * width is rounded down to a power of two milliseconds, so the buckets for a
+ * zoom level are the same wherever the graph is panned to. The rows kept for
+ * the whole series are cached for the last few zoom levels, until the series
+ * changes, and each plot only has to pick out the ones in range.
+ *
+ * @author barclay
+ *
+ */
+public class Decimation {
+  /** The most rows kept per bucket. */
+  public static final int POINTS_PER_BUCKET = 4;
+  /** Number of zoom levels whose buckets are kept. */
+  public static final int CACHED_LEVELS = 4;
+
+  private static final int[] EMPTY = new int[0];
+
+  private LinkedHashMap<Long, int[]> mLevels;
+  private int mVersion;
+
+  private int[] mRows;
+  private int mSize;
+
+  public Decimation() {
+    mLevels = new LinkedHashMap<Long, int[]>(CACHED_LEVELS, 0.75f, true);
+    mVersion = -1;
+    mRows = EMPTY;
+    mSize = 0;
+  }
+
+  /**
+   * Returns the rows selected by the last call to select(), in ascending
+   * order. Only the first size() elements are valid.
+   */
+  public int[] getRows() {
+    return mRows;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Selects the rows of <code>ts</code> to draw: the decimated rows from the
+   * last one before the visible range through the first one after it, as
+   * TimeSeriesPainter.Default draws them, plus the first and last visible
+   * rows themselves. If <code>millisPerPixel</code> is less than 1, no rows
+   * are dropped.
+   */
+  public void select(TimeSeries ts, float millisPerPixel) {
+    DatapointColumns columns = ts.getColumns();
+    int n = columns.size();
+
+    int first = ts.getVisiblePreLastIdx();
+    if (first < 0 || first == Integer.MAX_VALUE)
+      first = 0;
+    int last = ts.getVisiblePostFirstIdx();
+    if (last < 0 || last == Integer.MAX_VALUE)
+      last = n - 1;
+    if (last >= n)
+      last = n - 1;
+
+    mSize = 0;
+    if (n == 0 || first > last)
+      return;
+
+    ensureCapacity(last - first + 1);
+    long bucketMs = bucketWidth(millisPerPixel);
+    if (bucketMs <= 0 || last - first + 1 <= 2 * POINTS_PER_BUCKET) {
+      for (int i = first; i <= last; i++) {
+        mRows[mSize++] = i;
+      }
+      return;
+    }
+
+    int[] level = getLevel(ts, bucketMs);
+    int lo = lowerBound(level, first);
+    int visibleFirst = ts.getVisibleFirstIdx();
+    int visibleLast = ts.getVisibleLastIdx();
+
+    append(first);
+    for (int k = lo; k < level.length && level[k] <= last; k++) {
+      int row = level[k];
+      if (visibleFirst >= 0 && visibleFirst < row)
+        append(visibleFirst);
+      if (visibleLast >= 0 && visibleLast < row)
+        append(visibleLast);
+      append(row);
+    }
+    if (visibleFirst >= 0 && visibleFirst <= last)
+      append(visibleFirst);
+    if (visibleLast >= 0 && visibleLast <= last)
+      append(visibleLast);
+    append(last);
+  }
+
+  /**
+   * Drops the cached buckets for every zoom level.
+   */
+  public void clear() {
+    mLevels.clear();
+    mVersion = -1;
+  }
+
+  /**
+   * Returns the rows of <code>columns</code> kept by M4 decimation with
+   * buckets of <code>bucketMs</code> milliseconds, in ascending order.
+   */
+  public static int[] decimate(DatapointColumns columns, long bucketMs) {
+    long[] millis = columns.mMillis;
+    float[] value = columns.mValue;
+    int n = columns.size();
+
+    int[] rows = new int[n];
+    int size = 0;
+    int i = 0;
+    while (i < n) {
+      long end = bucketStart(millis[i], bucketMs) + bucketMs;
+      int min = i;
+      int max = i;
+      int j = i + 1;
+      for (; j < n && millis[j] < end; j++) {
+        if (value[j] < value[min])
+          min = j;
+        if (value[j] > value[max])
+          max = j;
+      }
+
+      // first, min and max in whichever order they occur, then last
+      rows[size++] = i;
+      int a = min < max ? min : max;
+      int b = min < max ? max : min;
+      if (a != i)
+        rows[size++] = a;
+      if (b != a && b != i)
+        rows[size++] = b;
+      if (j - 1 != b && j - 1 != i)
+        rows[size++] = j - 1;
+      i = j;
+    }
+
+    int[] out = new int[size];
+    System.arraycopy(rows, 0, out, 0, size);
+    return out;
+  }
+
+  // The widest power of two milliseconds that isn't wider than a pixel, or 0
+  // if a pixel is narrower than a millisecond.
+  static long bucketWidth(float millisPerPixel) {
+    if (millisPerPixel < 1.0f || Float.isNaN(millisPerPixel))
+      return 0;
+    if (millisPerPixel >= (float) (1L << 62))
+      return 1L << 62;
+    return Long.highestOneBit((long) millisPerPixel);
+  }
+
+  private int[] getLevel(TimeSeries ts, long bucketMs) {
+    if (ts.getVersion() != mVersion) {
+      mLevels.clear();
+      mVersion = ts.getVersion();
+    }
+
+    Long key = Long.valueOf(bucketMs);
+    int[] level = mLevels.get(key);
+    if (level == null) {
+      level = decimate(ts.getColumns(), bucketMs);
+      mLevels.put(key, level);
+      if (mLevels.size() > CACHED_LEVELS) {
+        Iterator<Long> eldest = mLevels.keySet().iterator();
+        eldest.next();
+        eldest.remove();
+      }
+    }
+    return level;
+  }
+
+  private void append(int row) {
+    // rows arrive in ascending order, apart from the explicitly added ones,
+    // which are only ever added just before a greater row
+    if (mSize > 0 && mRows[mSize - 1] >= row)
+      return;
+    mRows[mSize++] = row;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (mRows.length < capacity)
+      mRows = new int[Math.max(capacity, mRows.length * 2)];
+  }
+
+  private static long bucketStart(long millis, long bucketMs) {
+    long r = millis % bucketMs;
+    return r < 0 ? millis - r - bucketMs : millis - r;
+  }
+
+  private static int lowerBound(int[] rows, int row) {
+    int lo = 0;
+    int hi = rows.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (rows[mid] < row)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return lo;
+  }
+}
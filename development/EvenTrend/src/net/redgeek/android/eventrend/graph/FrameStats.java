@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.graph;
+
+/**
+ * Running timings of the frames drawn by a Graph, along with how many series
+ * were drawn from their cached paths and how many had to be rebuilt.
+ *
+ * @author barclay
+ *
+ */
+public class FrameStats {
+  private int mFrames;
+  private long mTotalNs;
+  private long mMaxNs;
+  private int mReused;
+  private int mRebuilt;
+  private long mStartNs;
+
+  public FrameStats() {
+    reset();
+  }
+
+  public void reset() {
+    mFrames = 0;
+    mTotalNs = 0;
+    mMaxNs = 0;
+    mReused = 0;
+    mRebuilt = 0;
+  }
+
+  public void beginFrame() {
+    mStartNs = System.nanoTime();
+  }
+
+  public void endFrame() {
+    long ns = System.nanoTime() - mStartNs;
+    mFrames++;
+    mTotalNs += ns;
+    if (ns > mMaxNs)
+      mMaxNs = ns;
+  }
+
+  public void seriesReused() {
+    mReused++;
+  }
+
+  public void seriesRebuilt() {
+    mRebuilt++;
+  }
+
+  public int getFrames() {
+    return mFrames;
+  }
+
+  public float getMeanMs() {
+    if (mFrames == 0)
+      return 0.0f;
+    return mTotalNs / (float) mFrames / 1000000.0f;
+  }
+
+  public float getMaxMs() {
+    return mMaxNs / 1000000.0f;
+  }
+
+  public int getReused() {
+    return mReused;
+  }
+
+  public int getRebuilt() {
+    return mRebuilt;
+  }
+
+  @Override
+  public String toString() {
+    return mFrames + " frames, mean " + getMeanMs() + "ms, max " + getMaxMs()
+        + "ms, series reused: " + mReused + ", rebuilt: " + mRebuilt;
+  }
+}
@@ -24,8 +24,10 @@ import net.redgeek.android.eventrend.db.CategoryDbTable;
 import net.redgeek.android.eventrend.db.EntryDbTable;
 import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
 import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.primitives.TimeSeriesSnapshot;
 import net.redgeek.android.eventrend.primitives.Tuple;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.Number;
@@ -64,7 +66,11 @@ public class Graph {
   // Private data
   private Context mCtx;
   private TimeSeriesCollector mTSC;
+  // the series as last plotted, which lookups are made against
+  private TimeSeriesSnapshot mPlotted;
   private Transformation mTransform;
+  private FrameStats mFrameStats;
+  private Tuple mLookup;
   private DateUtil mDates;
   private int mDecimals;
 
@@ -84,6 +90,7 @@ public class Graph {
   public Graph(Context context, TimeSeriesCollector tsc, float viewWidth,
       float viewHeight) {
     mTSC = tsc;
+    mPlotted = TimeSeriesSnapshot.EMPTY;
     mCtx = context;
 
     setupData(viewWidth, viewHeight);
@@ -94,6 +101,8 @@ public class Graph {
     mGraphSize = new Tuple();
     mPlotSize = new Tuple();
     mTransform = new Transformation();
+    mFrameStats = new FrameStats();
+    mLookup = new Tuple();
 
     mDates = new DateUtil();
     mPlotOffset = new Tuple(GraphView.LEFT_MARGIN, GraphView.TOP_MARGIN
@@ -209,6 +218,10 @@ public class Graph {
     mShowMarkers = b;
   }
 
+  public FrameStats getFrameStats() {
+    return mFrameStats;
+  }
+
   public TimeSeriesCollector getTimeSeriesCollector() {
     return mTSC;
   }
@@ -261,11 +274,12 @@ public class Graph {
         || mPlotSize.y <= 0)
       return;
 
-    if (mTSC.lock() == false)
-      return;
-
+    // drawn from a snapshot, so that a collection in progress neither blocks
+    // the frame nor changes the series part way through it
+    mFrameStats.beginFrame();
+    mPlotted = mTSC.getSnapshot();
     TimeSeries ts = null;
-    ArrayList<TimeSeries> series = mTSC.getAllEnabledSeries();
+    ArrayList<TimeSeries> series = mPlotted.getAllEnabledSeries();
 
     mTransform.clear();
 
@@ -284,7 +298,14 @@ public class Graph {
       setupRange(ts, mShowGoals);
 
       mTransform.setVirtualSize(mBoundsMins, mBoundsMaxs);
-      mTransform.transformPath(ts.getDatapoints());
+      if (ts.getPaths().prepare(ts, mTransform) == true) {
+        mFrameStats.seriesReused();
+      } else {
+        Decimation rows = ts.getDecimation();
+        rows.select(ts, (mBoundsMaxs.x - mBoundsMins.x) / mPlotSize.x);
+        mTransform.transformRows(ts, rows.getRows(), rows.size());
+        mFrameStats.seriesRebuilt();
+      }
 
       ts.setPointRadius(GraphView.POINT_RADIUS);
       ts.drawPath(canvas);
@@ -305,8 +326,7 @@ public class Graph {
       offset++;
     }
 
-    mTSC.unlock();
-
+    mFrameStats.endFrame();
     return;
   }
 
@@ -418,17 +438,20 @@ public class Graph {
             - GraphView.BOTTOM_MARGIN - GraphView.PLOT_BOTTOM_PAD, mAxisPaint);
   }
 
+  // The screen coordinates are read from the columns, where the transform
+  // writes them.
   private void drawTrendMarker(Canvas canvas, TimeSeries ts) {
-    Datapoint d = ts.getLastVisible();
-    if (d == null)
-      d = ts.getFirstPostVisible();
-    if (d == null)
-      d = ts.getLastPreVisible();
-    if (d == null)
+    DatapointColumns columns = ts.getColumns();
+    int i = ts.getVisibleLastIdx();
+    if (i < 0 || i >= columns.size())
+      i = ts.getVisiblePostFirstIdx();
+    if (i < 0 || i >= columns.size())
+      i = ts.getVisiblePreLastIdx();
+    if (i < 0 || i >= columns.size())
       return;
 
-    float y = d.mTrendScreen.y;
-    float label = Number.Round(d.mTrend.y, mDecimals);
+    float y = columns.mTrendScreenY[i];
+    float label = Number.Round(columns.mTrend[i], mDecimals);
 
     ts.drawText(canvas, "" + label, 2, y + GraphView.TEXT_HEIGHT - 3);
     ts.drawMarker(canvas, new Tuple(0, y), new Tuple(mGraphSize.x
@@ -456,9 +479,14 @@ public class Graph {
     TimeSeries ts = null;
     Datapoint d = null;
 
-    for (int i = 0; i < mTSC.numSeries(); i++) {
-      ts = (TimeSeries) mTSC.getSeries(i);
-      d = ts.lookupVisibleDatapoint(t);
+    // only the series drawn have screen coordinates to match against
+    ArrayList<TimeSeries> series = mPlotted.getAllEnabledSeries();
+    for (int i = 0; i < series.size(); i++) {
+      ts = series.get(i);
+      // the screen coordinates are those from when the series' paths were
+      // built, which may since have been panned
+      mLookup.set(t.x - ts.getPaths().getOffsetX(), t.y);
+      d = ts.lookupVisibleDatapoint(mLookup);
       if (d != null)
         break;
     }
@@ -490,7 +518,7 @@ public class Graph {
   private Dialog pointInfoDialog(Datapoint mSelected) {
     Builder b = new AlertDialog.Builder(mCtx);
 
-    TimeSeries ts = mTSC.getSeriesByIdLocking(mSelected.mCatId);
+    TimeSeries ts = mPlotted.getSeriesById(mSelected.mCatId);
     int decimals = Preferences.getDecimalPlaces(mCtx);
 
     EvenTrendDbAdapter dbh = ((GraphActivity) mCtx).getDbh();
@@ -549,7 +577,7 @@ public class Graph {
     Builder b = new AlertDialog.Builder(mCtx);
     EvenTrendDbAdapter dbh = ((GraphActivity) mCtx).getDbh();
     CategoryDbTable.Row cat = dbh.fetchCategory(catId);
-    TimeSeries ts = mTSC.getSeriesByIdLocking(catId);
+    TimeSeries ts = mPlotted.getSeriesById(catId);
 
     int decimals = Preferences.getDecimalPlaces(mCtx);
 
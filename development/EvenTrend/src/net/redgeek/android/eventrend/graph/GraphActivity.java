@@ -32,6 +32,7 @@ import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.DynamicSpinner;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.AlertDialog.Builder;
@@ -327,7 +328,8 @@ public class GraphActivity extends EvenTrendActivity {
         LinearMatrixCorrelator c = new LinearMatrixCorrelator();
         mCorrelator.setCorrelator(c);
         mCorrelator.setTimeSeries(mTSC.getAllEnabledSeries());
-        GUITaskQueue.getInstance().addTask(mProgress, this);
+        GUITaskQueue.getInstance().addTask(this, Priority.BACKGROUND,
+            mProgress, this);
         return true;
       case MENU_GRAPH_SNAP_TO_PERIOD_ID:
         mGraphView.snapToSpan();
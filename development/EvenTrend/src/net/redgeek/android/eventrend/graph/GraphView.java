@@ -22,10 +22,12 @@ import net.redgeek.android.eventrend.Preferences;
 import net.redgeek.android.eventrend.backgroundtasks.DataCollectionTask;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
 import net.redgeek.android.eventrend.primitives.Tuple;
+import net.redgeek.android.eventrend.util.Cancellable;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.GUITask;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import android.content.Context;
 import android.graphics.Canvas;
@@ -73,6 +75,10 @@ public class GraphView extends View implements OnLongClickListener, GUITask {
   public static final int ZOOM_CTRL_LINES_MS = 200;
 
   public static final float MINIMUM_DELTA = 0.00001f;
+  // log the frame timings, every FRAME_STATS_INTERVAL frames, and cancelled
+  // collections
+  public static final boolean DEBUG = false;
+  public static final int FRAME_STATS_INTERVAL = 100;
   
   // UI elements
   private ZoomControls mZoomControls;
@@ -251,6 +257,14 @@ public class GraphView extends View implements OnLongClickListener, GUITask {
     if (getWidth() > 0 && getHeight() > 0) {
       mCanvas = canvas;
       mGraph.plot(mCanvas);
+
+      if (DEBUG) {
+        FrameStats stats = mGraph.getFrameStats();
+        if (stats.getFrames() >= FRAME_STATS_INTERVAL) {
+          Log.v("graphview", "drew " + stats);
+          stats.reset();
+        }
+      }
     }
   }
 
@@ -262,6 +276,32 @@ public class GraphView extends View implements OnLongClickListener, GUITask {
     mCollector.doCollection();
   }
 
+  // A request to collect the data for the graph's range as of when it runs.
+  // Each updateData() adds a new one, which supersedes any still waiting or
+  // running, since their ranges are no longer the one being displayed.
+  private class CollectionRequest extends Cancellable.Flag implements GUITask {
+    public void executeNonGuiTask() throws Exception {
+      long start = mGraph.getGraphStart();
+      long end = mGraph.getGraphEnd();
+
+      mCollector.setSpan(start, end);
+      if (mCollector.doCollection(this) == false && DEBUG) {
+        GUITaskQueue q = GUITaskQueue.getInstance();
+        Log.v("graphview", "collection cancelled (coalesced: "
+            + q.getCoalescedCount() + ", cancelled: " + q.getCancelledCount()
+            + ")");
+      }
+    }
+
+    public void afterExecute() {
+      GraphView.this.afterExecute();
+    }
+
+    public void onFailure(Throwable t) {
+      GraphView.this.onFailure(t);
+    }
+  }
+
   public void afterExecute() {
     updateStatus();
     setFocusable(true);
@@ -284,7 +324,8 @@ public class GraphView extends View implements OnLongClickListener, GUITask {
     // updateStatus();
     // invalidate();
 
-    GUITaskQueue.getInstance().addTask(mProgress, this);
+    GUITaskQueue.getInstance().addLatestTask(this, Priority.INTERACTIVE,
+        mProgress, new CollectionRequest());
   }
 
   private void updateStatus() {
@@ -317,10 +358,7 @@ public class GraphView extends View implements OnLongClickListener, GUITask {
     long end = mGraph.getGraphEnd();
 
     long delta = end - start;
-    Calendar cal = Calendar.getInstance();
-    cal.setTimeInMillis(start);
-    DateUtil.setToPeriodStart(cal, mGraph.getSpan());
-    start = cal.getTimeInMillis();
+    start = mTSC.getPeriodMath().periodStart(start, mGraph.getSpan());
     end = start + delta;
 
     mGraph.setGraphRange(start, end);
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.graph;
+
+import android.graphics.Path;
+
+import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.primitives.Tuple;
+
+/**
+ * The paths last drawn for a series, kept so that they needn't be rebuilt
+ * every frame. They stay valid until the series' data or the scale it's
+ * drawn at changes: a pan only moves the graph along the x axis, which is
+ * applied when drawing as a translation of the cached paths by
+ * getOffsetX(). The screen coordinates in the series' columns are likewise
+ * those as of when the paths were built, so lookups against them need the
+ * same offset taken off.
+ *
+ * <p>
+ * The paths themselves are created and filled in by the painter; this just
+ * tracks whether they're current.
+ *
+ * @author barclay
+ *
+ */
+public class SeriesPaths {
+  /**
+   * How far, in pixels, drawing the cached paths may be from drawing them
+   * afresh. The graph's bounds are floats, so even a pure pan perturbs the
+   * scale slightly.
+   */
+  public static final float MAX_DRIFT_PX = 0.5f;
+
+  private Path mValue;
+  private Path mPoints;
+  private Path mTrend;
+
+  private int mVersion;
+  private TimeSeriesInterpolator mInterpolator;
+  private Tuple mScale;
+  private Tuple mShift;
+  private Tuple mPlotSize;
+  private float mOffsetX;
+  private float mValueRadius;
+  private boolean mValueBuilt;
+  private boolean mTrendBuilt;
+
+  public SeriesPaths() {
+    mVersion = -1;
+    mScale = new Tuple(0.0f, 0.0f);
+    mShift = new Tuple(0.0f, 0.0f);
+    mPlotSize = new Tuple(0.0f, 0.0f);
+    mOffsetX = 0.0f;
+    mValueBuilt = false;
+    mTrendBuilt = false;
+  }
+
+  /**
+   * Checks whether the cached paths can be drawn for <code>ts</code> as
+   * transformed by <code>t</code>. If they can, returns true, and the
+   * offset to draw them at is updated. If not, returns false, and the caller
+   * must transform the rows to draw before the painter is asked to draw the
+   * series, which will rebuild the paths from them.
+   */
+  public boolean prepare(TimeSeries ts, Transformation t) {
+    Tuple scale = t.getScale();
+    Tuple shift = t.getShift();
+    Tuple plotSize = t.getPlotSize();
+
+    if (mVersion == ts.getVersion() && mInterpolator == ts.getInterpolator()
+        && mPlotSize.y == plotSize.y
+        && Math.abs(scale.x - mScale.x) * (plotSize.x / scale.x) < MAX_DRIFT_PX
+        && Math.abs(scale.y - mScale.y) * (plotSize.y / scale.y) < MAX_DRIFT_PX
+        && Math.abs(shift.y - mShift.y) * scale.y < MAX_DRIFT_PX) {
+      mOffsetX = (mShift.x - shift.x) * mScale.x;
+      return true;
+    }
+
+    mVersion = ts.getVersion();
+    mInterpolator = ts.getInterpolator();
+    mScale.set(scale);
+    mShift.set(shift);
+    mPlotSize.set(plotSize);
+    mOffsetX = 0.0f;
+    mValueBuilt = false;
+    mTrendBuilt = false;
+    return false;
+  }
+
+  /**
+   * Forgets the cached paths, so that the next prepare() returns false.
+   */
+  public void invalidate() {
+    mVersion = -1;
+    mValueBuilt = false;
+    mTrendBuilt = false;
+  }
+
+  /**
+   * Returns how far along the x axis, in pixels, the cached paths are to be
+   * drawn from where they were built.
+   */
+  public float getOffsetX() {
+    return mOffsetX;
+  }
+
+  /**
+   * Returns whether the value path and points, drawn with points of
+   * <code>radius</code>, are up to date.
+   */
+  public boolean isValueBuilt(float radius) {
+    return mValueBuilt == true && mValueRadius == radius;
+  }
+
+  public void setValueBuilt(float radius) {
+    mValueBuilt = true;
+    mValueRadius = radius;
+  }
+
+  public boolean isTrendBuilt() {
+    return mTrendBuilt;
+  }
+
+  public void setTrendBuilt() {
+    mTrendBuilt = true;
+  }
+
+  public Path getValuePath() {
+    if (mValue == null)
+      mValue = new Path();
+    return mValue;
+  }
+
+  public Path getPointsPath() {
+    if (mPoints == null)
+      mPoints = new Path();
+    return mPoints;
+  }
+
+  public Path getTrendPath() {
+    if (mTrend == null)
+      mTrend = new Path();
+    return mTrend;
+  }
+}
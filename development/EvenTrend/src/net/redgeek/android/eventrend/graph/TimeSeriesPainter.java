@@ -22,12 +22,10 @@ import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Path;
 
-import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.Tuple;
 
-import java.util.ArrayList;
-
 public interface TimeSeriesPainter {
   public void setColor(String colorStr);
 
@@ -44,9 +42,6 @@ public interface TimeSeriesPainter {
   public void drawText(Canvas canvas, String text, float x, float y);
 
   public static class Default implements TimeSeriesPainter {
-    private Path mPath;
-    private Path mTrend;
-    private Path mPoints;
     private Paint mPathPaint;
     private Paint mPointsPaint;
     private Paint mTrendPaint;
@@ -54,6 +49,9 @@ public interface TimeSeriesPainter {
     private Paint mGoalPaint;
     private Paint mLabelPaint;
     private float mPointRadius;
+    // reused for handing consecutive points to the interpolator
+    private Tuple mScratch1 = new Tuple(0, 0);
+    private Tuple mScratch2 = new Tuple(0, 0);
 
     public Default() {
       defaultInit();
@@ -63,11 +61,7 @@ public interface TimeSeriesPainter {
       if (other == null) {
         defaultInit();
       } else
-        mPath = new Path(other.mPath);
-      mTrend = new Path(other.mTrend);
-      mPoints = new Path(other.mPoints);
-
-      mPathPaint = new Paint(other.mPathPaint);
+        mPathPaint = new Paint(other.mPathPaint);
       mPointsPaint = new Paint(other.mPointsPaint);
       mTrendPaint = new Paint(other.mTrendPaint);
       mTrendMarkerPaint = new Paint(other.mTrendMarkerPaint);
@@ -78,10 +72,6 @@ public interface TimeSeriesPainter {
     }
 
     private void defaultInit() {
-      mPath = new Path();
-      mTrend = new Path();
-      mPoints = new Path();
-
       mPathPaint = new Paint();
       mPointsPaint = new Paint();
       mTrendPaint = new Paint();
@@ -109,90 +99,102 @@ public interface TimeSeriesPainter {
     }
 
     public void drawPath(Canvas canvas, TimeSeries ts) {
-      Datapoint thisPoint = null;
-      Datapoint prevPoint = null;
-      Tuple first = null;
-      Tuple second = null;
-      int datapointsSize;
-
       if (ts.isEnabled() == false)
         return;
 
-      mPath.rewind();
-      mPoints.rewind();
-
-      // we don't have to draw all the point preceding the first visible on,
-      // just the last of them, up until one after the last visible
-      ArrayList<Datapoint> datapoints = ts.getDatapoints();
-      datapointsSize = datapoints.size();
-      
-      int offset = ts.getVisiblePreLastIdx();
-      if (offset < 0 || offset == Integer.MAX_VALUE)
-        offset = 0;
-      int end = ts.getVisiblePostFirstIdx();
-      if (end < 0 || end == Integer.MAX_VALUE)
-        end = datapointsSize - 1;
-
-      for (int i = offset; i < datapointsSize && i <= end; i++) {
-        thisPoint = datapoints.get(i);
-        if (thisPoint != null)
-          second = thisPoint.mValueScreen;
-        if (prevPoint != null)
-          first = prevPoint.mValueScreen;
-
-        ts.getInterpolator().updatePath(mPath, first, second);
-
-        mPoints.moveTo(thisPoint.mValueScreen.x, thisPoint.mValueScreen.y);
-        mPoints.addCircle(thisPoint.mValueScreen.x, thisPoint.mValueScreen.y,
-            mPointRadius, Path.Direction.CW);
-
-        prevPoint = thisPoint;
+      // the paths are only rebuilt when the series or the scale have
+      // changed, otherwise the ones from the last frame are moved into place
+      SeriesPaths paths = ts.getPaths();
+      if (paths.isValueBuilt(mPointRadius) == false) {
+        buildPath(ts, paths);
+        paths.setValueBuilt(mPointRadius);
       }
+      if (ts.getDecimation().size() < 1)
+        return;
 
-      if (thisPoint != null) {
-        mPath.setLastPoint(thisPoint.mValueScreen.x, thisPoint.mValueScreen.y);
-        canvas.drawPath(mPath, mPathPaint);
-        canvas.drawPath(mPoints, mPointsPaint);
-      }
+      canvas.save();
+      canvas.translate(paths.getOffsetX(), 0.0f);
+      canvas.drawPath(paths.getValuePath(), mPathPaint);
+      canvas.drawPath(paths.getPointsPath(), mPointsPaint);
+      canvas.restore();
     }
 
     public void drawTrend(Canvas canvas, TimeSeries ts) {
-      Datapoint thisPoint = null;
-      Datapoint prevPoint = null;
+      if (ts.isEnabled() == false)
+        return;
+
+      SeriesPaths paths = ts.getPaths();
+      if (paths.isTrendBuilt() == false) {
+        buildTrend(ts, paths);
+        paths.setTrendBuilt();
+      }
+      if (ts.getDecimation().size() < 1)
+        return;
+
+      canvas.save();
+      canvas.translate(paths.getOffsetX(), 0.0f);
+      canvas.drawPath(paths.getTrendPath(), mTrendPaint);
+      canvas.restore();
+    }
+
+    private void buildPath(TimeSeries ts, SeriesPaths paths) {
       Tuple first = null;
       Tuple second = null;
-      int datapointsSize;
+      int last = -1;
+      Path path = paths.getValuePath();
+      Path points = paths.getPointsPath();
 
-      if (ts.isEnabled() == false)
-        return;
+      path.rewind();
+      points.rewind();
 
       // we don't have to draw all the point preceding the first visible on,
-      // just the last of them, up until one after the last visible
-      ArrayList<Datapoint> datapoints = ts.getDatapoints();
-      datapointsSize = datapoints.size();
-      
-      int offset = ts.getVisiblePreLastIdx();
-      if (offset < 0 || offset == Integer.MAX_VALUE)
-        offset = 0;
-      int end = ts.getVisiblePostFirstIdx();
-      if (end < 0 || end == Integer.MAX_VALUE)
-        end = datapointsSize - 1;
-
-      mTrend.rewind();
-      for (int i = offset; i < datapointsSize && i <= end; i++) {
-        thisPoint = datapoints.get(i);
-        if (thisPoint != null)
-          second = thisPoint.mTrendScreen;
-        if (prevPoint != null)
-          first = prevPoint.mTrendScreen;
-
-        ts.getInterpolator().updatePath(mTrend, first, second);
-
-        prevPoint = thisPoint;
+      // just the last of them, up until one after the last visible, and of
+      // those only the ones the decimation kept
+      DatapointColumns columns = ts.getColumns();
+      float[] screenX = columns.mScreenX;
+      float[] screenY = columns.mValueScreenY;
+      int[] rows = ts.getDecimation().getRows();
+      int nRows = ts.getDecimation().size();
+
+      for (int k = 0; k < nRows; k++) {
+        int i = rows[k];
+        first = second;
+        second = (second == mScratch1) ? mScratch2 : mScratch1;
+        second.set(screenX[i], screenY[i]);
+
+        ts.getInterpolator().updatePath(path, first, second);
+
+        points.moveTo(screenX[i], screenY[i]);
+        points.addCircle(screenX[i], screenY[i], mPointRadius,
+            Path.Direction.CW);
+
+        last = i;
       }
 
-      if (thisPoint != null) {
-        canvas.drawPath(mTrend, mTrendPaint);
+      if (last >= 0)
+        path.setLastPoint(screenX[last], screenY[last]);
+    }
+
+    private void buildTrend(TimeSeries ts, SeriesPaths paths) {
+      Tuple first = null;
+      Tuple second = null;
+      Path trend = paths.getTrendPath();
+
+      // the same rows as the value path
+      DatapointColumns columns = ts.getColumns();
+      float[] screenX = columns.mScreenX;
+      float[] screenY = columns.mTrendScreenY;
+      int[] rows = ts.getDecimation().getRows();
+      int nRows = ts.getDecimation().size();
+
+      trend.rewind();
+      for (int k = 0; k < nRows; k++) {
+        int i = rows[k];
+        first = second;
+        second = (second == mScratch1) ? mScratch2 : mScratch1;
+        second.set(screenX[i], screenY[i]);
+
+        ts.getInterpolator().updatePath(trend, first, second);
       }
     }
 
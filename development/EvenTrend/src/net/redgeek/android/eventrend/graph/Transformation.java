@@ -19,6 +19,8 @@ package net.redgeek.android.eventrend.graph;
 import java.util.ArrayList;
 
 import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.Tuple;
 
 /**
@@ -74,6 +76,14 @@ public class Transformation {
     return new Tuple(mVirtualSize);
   }
 
+  public Tuple getScale() {
+    return new Tuple(mScale);
+  }
+
+  public Tuple getShift() {
+    return new Tuple(mShift);
+  }
+
   private void updateScale() {
     mScale.set(mPlotSize);
     if (mVirtualSize.x == 0 || mVirtualSize.y == 0
@@ -144,6 +154,58 @@ public class Transformation {
     return;
   }
 
+  /**
+   * Transforms every datapoint of the series, writing the results directly
+   * into its screen coordinate columns. Equivalent to
+   * <code>transformPath(ts.getDatapoints())</code>, but without requiring the
+   * Datapoint objects.
+   */
+  public void transformSeries(TimeSeries ts) {
+    if (ts == null)
+      return;
+
+    DatapointColumns c = ts.getColumns();
+    long[] millis = c.mMillis;
+    float[] value = c.mValue;
+    float[] trend = c.mTrend;
+    float[] screenX = c.mScreenX;
+    float[] valueScreenY = c.mValueScreenY;
+    float[] trendScreenY = c.mTrendScreenY;
+
+    hasData = true;
+    for (int i = 0; i < c.size(); i++) {
+      screenX[i] = ((float) millis[i] - mShift.x) * mScale.x;
+      valueScreenY[i] = mPlotSize.y - (value[i] - mShift.y) * mScale.y;
+      trendScreenY[i] = mPlotSize.y - (trend[i] - mShift.y) * mScale.y;
+    }
+  }
+
+  /**
+   * Transforms only the given rows of the series, the first <code>n</code>
+   * elements of <code>rows</code>, as transformSeries() would. The screen
+   * coordinates of the other rows are left as they were.
+   */
+  public void transformRows(TimeSeries ts, int[] rows, int n) {
+    if (ts == null)
+      return;
+
+    DatapointColumns c = ts.getColumns();
+    long[] millis = c.mMillis;
+    float[] value = c.mValue;
+    float[] trend = c.mTrend;
+    float[] screenX = c.mScreenX;
+    float[] valueScreenY = c.mValueScreenY;
+    float[] trendScreenY = c.mTrendScreenY;
+
+    hasData = true;
+    for (int k = 0; k < n; k++) {
+      int i = rows[k];
+      screenX[i] = ((float) millis[i] - mShift.x) * mScale.x;
+      valueScreenY[i] = mPlotSize.y - (value[i] - mShift.y) * mScale.y;
+      trendScreenY[i] = mPlotSize.y - (trend[i] - mShift.y) * mScale.y;
+    }
+  }
+
   public void transformDatapoint(Datapoint point) {
     hasData = true;
     transformV2P(point.mTrend, point.mTrendScreen);
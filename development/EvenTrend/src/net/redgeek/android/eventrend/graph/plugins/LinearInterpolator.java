@@ -73,6 +73,14 @@ public class LinearInterpolator implements TimeSeriesInterpolator {
     return new Float(first.y + (slope * (atX - first.x)));
   }
 
+  public float interpolateY(float x1, float y1, float x2, float y2, float atX) {
+    if (x1 == x2)
+      return Float.NaN;
+
+    float slope = (y2 - y1) / (x2 - x1);
+    return y1 + (slope * (atX - x1));
+  }
+
   public void updatePath(Path path, Tuple first, Tuple second) {
     if (first == null && second != null)
       path.moveTo(second.x, second.y);
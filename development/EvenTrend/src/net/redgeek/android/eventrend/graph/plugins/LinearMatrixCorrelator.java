@@ -51,7 +51,7 @@ public class LinearMatrixCorrelator implements TimeSeriesCorrelator {
 
         for (int k = i + 1; k < nSeries; k++) {
           ts2 = timeseries.get(k);
-          values[k] = ts2.interpolateScreenCoord((long) d.mValue.x);
+          values[k] = ts2.interpolateValue((long) d.mValue.x);
         }
 
         lcm.update(values);
@@ -79,6 +79,12 @@ public class StepLateInterpolator implements TimeSeriesInterpolator {
     return null;
   }
 
+  public float interpolateY(float x1, float y1, float x2, float y2, float atX) {
+    if (atX > x1 && atX < x2)
+      return y1;
+    return Float.NaN;
+  }
+
   public void updatePath(Path path, Tuple first, Tuple second) {
     if (first == null && second != null)
       path.moveTo(second.x, second.y);
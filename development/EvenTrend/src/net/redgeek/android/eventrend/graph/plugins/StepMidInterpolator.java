@@ -77,6 +77,15 @@ public class StepMidInterpolator implements TimeSeriesInterpolator {
     return null;
   }
 
+  public float interpolateY(float x1, float y1, float x2, float y2, float atX) {
+    if (atX > x1 && atX < x2) {
+      if (atX <= x1 + ((x2 - x1) / 2.0f))
+        return y1;
+      return y2;
+    }
+    return Float.NaN;
+  }
+
   public void updatePath(Path path, Tuple first, Tuple second) {
     if (first == null && second != null)
       path.moveTo(second.x, second.y);
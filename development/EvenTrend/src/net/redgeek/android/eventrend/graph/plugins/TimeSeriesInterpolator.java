@@ -107,6 +107,15 @@ public interface TimeSeriesInterpolator {
    */
   Float interpolateY(Tuple first, Tuple second, float atX);
 
+  /**
+   * As {@link #interpolateY(Tuple, Tuple, float)}, for the points
+   * (<code>x1</code>, <code>y1</code>) and (<code>x2</code>, <code>y2</code>),
+   * but without allocating. Returns Float.NaN where that would return null.
+   * 
+   * @return The Y value at value X, or Float.NaN.
+   */
+  float interpolateY(float x1, float y1, float x2, float y2, float atX);
+
   /**
    * Draws a path between the two points. Note that for the first point of the
    * series, one of the two datapoints will be null, as there is nothing to
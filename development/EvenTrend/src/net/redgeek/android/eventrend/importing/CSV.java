@@ -277,4 +277,78 @@ public class CSV {
 
     return entries;
   }
-}
\ No newline at end of file
+
+  /**
+   * A reusable splitter for CSV data lines, for parsing many lines without
+   * allocating a new list per line. Fields are split and unquoted exactly as
+   * {@link CSV#getNextLine(String)} does; the only allocations are the field
+   * Strings themselves.
+   * 
+   * @author barclay
+   */
+  public static class LineTokenizer {
+    private String[] mFields = new String[16];
+    private int mCount;
+
+    /**
+     * Splits <code>line</code> into fields, replacing the fields of the
+     * previous line.
+     * 
+     * @param line
+     *          The line to split.
+     * @return The number of fields.
+     */
+    public int split(String line) {
+      int length = line.length();
+      int start = 0;
+
+      mCount = 0;
+      while (start < length) {
+        boolean inQuotes = false;
+        int end;
+        for (end = start; end < length; end++) {
+          char c = line.charAt(end);
+          if (inQuotes == false && c == ',')
+            break;
+          if (end == start && c == '"')
+            inQuotes = true;
+          else if (inQuotes == true && c == '"')
+            inQuotes = false;
+        }
+
+        // Remove quotes around quoted strings
+        if (end - start > 1 && line.charAt(start) == '"'
+            && line.charAt(end - 1) == '"')
+          add(line.substring(start + 1, end - 1));
+        else
+          add(line.substring(start, end));
+
+        start = end + 1;
+      }
+      return mCount;
+    }
+
+    public int count() {
+      return mCount;
+    }
+
+    /**
+     * Returns field <code>i</code> of the last line split, or null if there is
+     * no such field.
+     */
+    public String get(int i) {
+      if (i < 0 || i >= mCount)
+        return null;
+      return mFields[i];
+    }
+
+    private void add(String field) {
+      if (mCount == mFields.length) {
+        String[] fields = new String[mFields.length * 2];
+        System.arraycopy(mFields, 0, fields, 0, mCount);
+        mFields = fields;
+      }
+      mFields[mCount++] = field;
+    }
+  }
+}
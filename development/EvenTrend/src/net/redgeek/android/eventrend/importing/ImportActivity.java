@@ -29,6 +29,7 @@ import net.redgeek.android.eventrend.R;
 import net.redgeek.android.eventrend.backgroundtasks.ImportTask;
 import net.redgeek.android.eventrend.util.GUITaskQueue;
 import net.redgeek.android.eventrend.util.ProgressIndicator;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 
 import java.io.File;
 
@@ -128,7 +129,7 @@ public class ImportActivity extends EvenTrendActivity {
     mFilename = filename;
     mImporter.setFilename(mImportDir + "/" + filename);
     mImporter.setHistory(mHistory);
-    GUITaskQueue.getInstance().addTask(mProgress, this);
+    GUITaskQueue.getInstance().addTask(this, Priority.BULK, mProgress, this);
   }
 
   @Override
@@ -17,28 +17,59 @@
 package net.redgeek.android.eventrend.primitives;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.List;
 
+/**
+ * A contiguous range of datapoints for a single category, sorted by
+ * timestamp. The datapoints are kept column-wise, as parallel primitive
+ * arrays of the timestamp, value, number of entries and entry id, so lookups
+ * are binary searches over a long[], and a cached datapoint costs its slots
+ * rather than a Datapoint and its Tuples. Datapoints are only created when a
+ * range is returned, by copying out a slice.
+ * 
+ * <p>
+ * The occupied slots are [mFirst, mFirst + mSize) of the arrays, with free
+ * space left at either end, so that ranges loaded from before or after the
+ * cached one (the common case when panning the graph) can be added without
+ * shifting the existing contents.
+ * 
+ * @author barclay
+ * 
+ */
 public class CategoryDatapointCache {
+  private static final int MIN_CAPACITY = 16;
+
   private long mCatId;
   private boolean mValid;
-  private TreeMap<Long, Datapoint> mCache;
+  private long[] mMillis;
+  private float[] mValue;
+  private int[] mNEntries;
+  private long[] mEntryId;
+  private int mFirst;
+  private int mSize;
   private long mStart;
   private long mEnd;
   private int mHistory;
 
+  // The range most recently requested by DatapointCache, and when, used to
+  // pick what to evict when over the memory budget.
+  private long mWindowStart;
+  private long mWindowEnd;
+  private long mLastUsed;
+
   public CategoryDatapointCache(long catId, int history) {
     mCatId = catId;
     mValid = false;
-    mCache = new TreeMap<Long, Datapoint>();
+    allocate(MIN_CAPACITY);
     resetRangeMarkers();
     mHistory = history;
+    mWindowStart = Long.MIN_VALUE;
+    mWindowEnd = Long.MAX_VALUE;
+    mLastUsed = 0;
   }
 
   public void clear() {
-    mCache.clear();
+    allocate(MIN_CAPACITY);
     resetRangeMarkers();
   }
 
@@ -76,112 +107,294 @@ public class CategoryDatapointCache {
     return mHistory;
   }
 
+  public int size() {
+    return mSize;
+  }
+
+  public void touch(long windowStart, long windowEnd, long tick) {
+    mWindowStart = windowStart;
+    mWindowEnd = windowEnd;
+    mLastUsed = tick;
+  }
+
+  public long getWindowStart() {
+    return mWindowStart;
+  }
+
+  public long getWindowEnd() {
+    return mWindowEnd;
+  }
+
+  public long getLastUsed() {
+    return mLastUsed;
+  }
+
+  /**
+   * Drops the datapoints before <code>ms</code>, moving the start of the
+   * cached range up to <code>ms</code> so that the range stays contiguous.
+   * 
+   * @return The number of datapoints dropped.
+   */
+  public int trimBefore(long ms) {
+    if (mValid == false || ms <= mStart)
+      return 0;
+
+    int n = mSize;
+    if (ms > mEnd) {
+      clear();
+      return n;
+    }
+
+    int cut = ceiling(ms);
+    n = cut - mFirst;
+    mFirst = cut;
+    mSize -= n;
+    mStart = ms;
+    compact();
+    return n;
+  }
+
+  /**
+   * Drops the datapoints after <code>ms</code>, moving the end of the cached
+   * range down to <code>ms</code> so that the range stays contiguous.
+   * 
+   * @return The number of datapoints dropped.
+   */
+  public int trimAfter(long ms) {
+    if (mValid == false || ms >= mEnd)
+      return 0;
+
+    int n = mSize;
+    if (ms < mStart) {
+      clear();
+      return n;
+    }
+
+    int cut = floor(ms) + 1;
+    n = mFirst + mSize - cut;
+    mSize -= n;
+    mEnd = ms;
+    compact();
+    return n;
+  }
+
   public Datapoint addDatapoint(Datapoint d) {
     if (d.mMillis < mStart)
       mStart = d.mMillis;
     if (d.mMillis > mEnd)
       mEnd = d.mMillis;
     mValid = true;
-    return mCache.put(d.mMillis, d);
+
+    int i = search(d.mMillis);
+    if (i >= 0) {
+      Datapoint old = toDatapoint(i);
+      set(i, d);
+      return old;
+    }
+
+    insert(-(i + 1), d);
+    return null;
+  }
+
+  /**
+   * Adds a run of datapoints. If they're in ascending order and all fall
+   * before or after the cached datapoints, as when extending the cached range
+   * from the database, they're copied in as a block; otherwise they're added
+   * one at a time.
+   */
+  public void addDatapoints(List<Datapoint> list) {
+    int n = list == null ? 0 : list.size();
+    if (n == 0)
+      return;
+
+    boolean sorted = true;
+    for (int i = 1; i < n && sorted == true; i++) {
+      if (list.get(i).mMillis <= list.get(i - 1).mMillis)
+        sorted = false;
+    }
+
+    long first = list.get(0).mMillis;
+    long last = list.get(n - 1).mMillis;
+    if (sorted == true && (mSize == 0 || first > mMillis[mFirst + mSize - 1])) {
+      ensureRoom(0, n);
+      for (int i = 0; i < n; i++)
+        set(mFirst + mSize + i, list.get(i));
+      mSize += n;
+    } else if (sorted == true && last < mMillis[mFirst]) {
+      ensureRoom(n, 0);
+      mFirst -= n;
+      mSize += n;
+      for (int i = 0; i < n; i++)
+        set(mFirst + i, list.get(i));
+    } else {
+      for (int i = 0; i < n; i++)
+        addDatapoint(list.get(i));
+      return;
+    }
+
+    if (first < mStart)
+      mStart = first;
+    if (last > mEnd)
+      mEnd = last;
+    mValid = true;
   }
 
   public Datapoint updateDatapoint(Datapoint d) {
-    if (mCache.get(d.mMillis) == null)
+    int i = search(d.mMillis);
+    if (i < 0)
       return null;
-    return mCache.put(d.mMillis, d);
+    Datapoint old = toDatapoint(i);
+    set(i, d);
+    return old;
   }
 
   public ArrayList<Datapoint> getDataInRange(long msStart, long msEnd) {
-    ArrayList<Datapoint> range = new ArrayList<Datapoint>();
-    SortedMap<Long, Datapoint> map;
-
     if (msStart > msEnd)
-      return range;
-    
-    try {
-      map = mCache.subMap(Long.valueOf(msStart), Long.valueOf(msEnd + 1));
-    } catch (NullPointerException e) {
-      return range;
-    }
+      return new ArrayList<Datapoint>();
 
-    Iterator<Datapoint> iterator = map.values().iterator();
-    while (iterator.hasNext()) {
-      Datapoint d = iterator.next();
-      if (d != null)
-        range.add(d);
-    }
-
-    return range;
+    return slice(ceiling(msStart), floor(msEnd) + 1);
   }
 
   public ArrayList<Datapoint> getDataBefore(int number, long ms) {
-    ArrayList<Datapoint> pre = new ArrayList<Datapoint>();
-    SortedMap<Long, Datapoint> range;
-    SortedMap<Long, Datapoint> reverse;
-    
-    try {
-      range = mCache.headMap(Long.valueOf(ms));
-    } catch (NullPointerException e) {
-      return pre;
-    } catch (IllegalArgumentException e) {
-      return pre;
-    }
-    
-    reverse = new TreeMap<Long, Datapoint>(java.util.Collections.reverseOrder());
-    reverse.putAll(range);
-
-    Iterator<Datapoint> iterator = reverse.values().iterator();
-    for (int i = 0; i < number && iterator.hasNext();) {
-      Datapoint d = iterator.next();
-      if (d != null) {
-        i++;
-        pre.add(0, d);
-      }
-    }
-
-    return pre;
+    int end = ceiling(ms);
+    return slice(Math.max(mFirst, end - number), end);
   }
 
   public ArrayList<Datapoint> getDataAfter(int number, long ms) {
-    ArrayList<Datapoint> post = new ArrayList<Datapoint>();
-    SortedMap<Long, Datapoint> range;
-
-    try {
-      range = mCache.tailMap(Long.valueOf(ms) + 1);
-    } catch (NullPointerException e) {
-      return post;
-    } catch (IllegalArgumentException e) {
-      return post;
-    }
+    int start = floor(ms) + 1;
+    if (number < 0)
+      number = 0;
+    return slice(start, Math.min(mFirst + mSize, start + number));
+  }
 
-    Iterator<Datapoint> iterator = range.values().iterator();
-    for (int i = 0; i < number && iterator.hasNext();) {
-      Datapoint d = iterator.next();
-      if (d != null) {
-        i++;
-        post.add(d);
-      }
+  public ArrayList<Datapoint> getLast(int number) {
+    int end = mFirst + mSize;
+    return slice(Math.max(mFirst, end - number), end);
+  }
+
+  // Returns new datapoints for slots [start, end) in order.
+  private ArrayList<Datapoint> slice(int start, int end) {
+    ArrayList<Datapoint> list = new ArrayList<Datapoint>(end > start ? end
+        - start : 0);
+    for (int i = start; i < end; i++)
+      list.add(toDatapoint(i));
+    return list;
+  }
+
+  private Datapoint toDatapoint(int slot) {
+    return new Datapoint(mMillis[slot], mValue[slot], mCatId, mEntryId[slot],
+        mNEntries[slot]);
+  }
+
+  private void set(int slot, Datapoint d) {
+    mMillis[slot] = d.mMillis;
+    mValue[slot] = d.mValue.y;
+    mNEntries[slot] = d.mNEntries;
+    mEntryId[slot] = d.mEntryId;
+  }
+
+  // Copies n slots from src to dst within the arrays.
+  private void shift(int src, int dst, int n) {
+    System.arraycopy(mMillis, src, mMillis, dst, n);
+    System.arraycopy(mValue, src, mValue, dst, n);
+    System.arraycopy(mNEntries, src, mNEntries, dst, n);
+    System.arraycopy(mEntryId, src, mEntryId, dst, n);
+  }
+
+  // Returns the slot of ms, or (-(insertion slot) - 1) if it's not present.
+  private int search(long ms) {
+    int lo = mFirst;
+    int hi = mFirst + mSize - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (mMillis[mid] < ms)
+        lo = mid + 1;
+      else if (mMillis[mid] > ms)
+        hi = mid - 1;
+      else
+        return mid;
     }
+    return -(lo + 1);
+  }
 
-    return post;
+  // Returns the first slot with a timestamp >= ms, or the end if none.
+  private int ceiling(long ms) {
+    int i = search(ms);
+    return i >= 0 ? i : -(i + 1);
   }
 
-  public ArrayList<Datapoint> getLast(int number) {
-    ArrayList<Datapoint> last = new ArrayList<Datapoint>();
-    SortedMap<Long, Datapoint> reverse = new TreeMap<Long, Datapoint>(
-        java.util.Collections.reverseOrder());
-    reverse.putAll(mCache);
-
-    Iterator<Datapoint> iterator = reverse.values().iterator();
-    for (int i = 0; i < number && iterator.hasNext();) {
-      Datapoint d = iterator.next();
-      if (d != null) {
-        i++;
-        last.add(0, d);
-      }
+  // Returns the last slot with a timestamp <= ms, or mFirst - 1 if none.
+  private int floor(long ms) {
+    int i = search(ms);
+    return i >= 0 ? i : -(i + 1) - 1;
+  }
+
+  private void insert(int slot, Datapoint d) {
+    int end = mFirst + mSize;
+    if (end < mMillis.length && (slot - mFirst >= end - slot || mFirst == 0)) {
+      // shift the tail right
+      shift(slot, slot + 1, end - slot);
+    } else if (mFirst > 0) {
+      // shift the head left
+      shift(mFirst, mFirst - 1, slot - mFirst);
+      mFirst--;
+      slot--;
+    } else {
+      int offset = slot - mFirst;
+      ensureRoom(0, 1);
+      insert(mFirst + offset, d);
+      return;
     }
+    set(slot, d);
+    mSize++;
+  }
+
+  // Makes sure there are at least the specified number of free slots before
+  // and after the occupied ones, reallocating if needed.
+  private void ensureRoom(int before, int after) {
+    int end = mFirst + mSize;
+    if (mFirst >= before && mMillis.length - end >= after)
+      return;
+
+    int capacity = Math.max(mMillis.length * 2, mSize + before + after
+        + MIN_CAPACITY);
+    int slack = capacity - mSize - before - after;
+    move(capacity, before + slack / 2);
+  }
+
+  // Releases most of the free space after a large trim.
+  private void compact() {
+    if (mMillis.length <= MIN_CAPACITY || mSize >= mMillis.length / 4)
+      return;
+
+    int capacity = Math.max(MIN_CAPACITY, mSize * 2);
+    move(capacity, (capacity - mSize) / 2);
+  }
+
+  // Reallocates the arrays, placing the occupied slots starting at first.
+  private void move(int capacity, int first) {
+    long[] millis = mMillis;
+    float[] value = mValue;
+    int[] nEntries = mNEntries;
+    long[] entryId = mEntryId;
+    mMillis = new long[capacity];
+    mValue = new float[capacity];
+    mNEntries = new int[capacity];
+    mEntryId = new long[capacity];
+    System.arraycopy(millis, mFirst, mMillis, first, mSize);
+    System.arraycopy(value, mFirst, mValue, first, mSize);
+    System.arraycopy(nEntries, mFirst, mNEntries, first, mSize);
+    System.arraycopy(entryId, mFirst, mEntryId, first, mSize);
+    mFirst = first;
+  }
 
-    return last;
+  private void allocate(int capacity) {
+    mMillis = new long[capacity];
+    mValue = new float[capacity];
+    mNEntries = new int[capacity];
+    mEntryId = new long[capacity];
+    mFirst = capacity / 2;
+    mSize = 0;
   }
 
   private void resetRangeMarkers() {
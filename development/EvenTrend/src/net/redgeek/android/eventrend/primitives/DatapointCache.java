@@ -17,24 +17,99 @@
 package net.redgeek.android.eventrend.primitives;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 
 import net.redgeek.android.eventrend.db.EntryDbTable;
 import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
 import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.PeriodMath;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import android.database.Cursor;
 import android.util.Log;
 
 public class DatapointCache {
+  // Rough heap cost of a cached datapoint: its slots in the
+  // CategoryDatapointCache columns, doubled for the free space around them.
+  public static final int BYTES_PER_DATAPOINT = 48;
+  public static final long DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+
+  // Ranges fetched per query by populateRanges(); each is a term in the where
+  // clause, and SQLite limits the expression depth.
+  public static final int MAX_RANGES_PER_QUERY = 100;
+
+  private static final Comparator<CategoryDatapointCache> LEAST_RECENTLY_USED = new Comparator<CategoryDatapointCache>() {
+    public int compare(CategoryDatapointCache a, CategoryDatapointCache b) {
+      if (a.getLastUsed() < b.getLastUsed())
+        return -1;
+      if (a.getLastUsed() > b.getLastUsed())
+        return 1;
+      return 0;
+    }
+  };
+
   private HashMap<Long, CategoryDatapointCache> mCache;
   private EvenTrendDbAdapter mDbh;
+  private PeriodMath mPeriods;
+  private long mMemoryBudget;
+  private long mTick;
+  private long mHits;
+  private long mMisses;
+  private long mEvictions;
 
   public DatapointCache(EvenTrendDbAdapter dbh) {
     mDbh = dbh;
+    mPeriods = new PeriodMath();
     mCache = new HashMap<Long, CategoryDatapointCache>();
+    mMemoryBudget = DEFAULT_MEMORY_BUDGET;
+  }
+
+  /**
+   * Sets the approximate number of bytes of datapoints to keep across all
+   * categories. When a range is populated and the total exceeds this, cached
+   * data outside the most recently requested range of each category is
+   * trimmed, least recently used categories first, and then whole categories
+   * are dropped, sparing the one just requested. Use 0 for no limit.
+   */
+  public synchronized void setMemoryBudget(long bytes) {
+    mMemoryBudget = bytes;
+    enforceBudget(Long.MAX_VALUE);
+  }
+
+  public long getMemoryBudget() {
+    return mMemoryBudget;
+  }
+
+  public synchronized int getCachedDatapoints() {
+    int size = 0;
+    Iterator<CategoryDatapointCache> itr = mCache.values().iterator();
+    while (itr.hasNext()) {
+      size += itr.next().size();
+    }
+    return size;
+  }
+
+  // Range requests satisfied entirely from the cache
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  // Range requests that had to go to the database
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  // Datapoints evicted to stay under the memory budget
+  public synchronized long getEvictions() {
+    return mEvictions;
+  }
+
+  public synchronized void resetCounters() {
+    mHits = 0;
+    mMisses = 0;
+    mEvictions = 0;
   }
 
   public void clearCache() {
@@ -119,9 +194,10 @@ public class DatapointCache {
     }
 
     EntryDbTable.Row entry = new EntryDbTable.Row();
+    EntryDbTable.RowMapper mapper = new EntryDbTable.RowMapper(c);
     c.moveToFirst();
     for (int i = 0; i < count; i++) {
-      entry.populateFromCursor(c);
+      mapper.populate(entry);
       if (entry.getTimestamp() < lastEntryTS)
         lastEntryTS = entry.getTimestamp();
       if (entry.getTimestamp() <= oldEnd && entry.getTimestamp() >= oldStart)
@@ -140,9 +216,12 @@ public class DatapointCache {
       populateRangeFromDb(catCache, oldEnd + 1, lastEntryTS - 1);
     }
 
-    for (int i = 0; i < append.size(); i++)
-      catCache.addDatapoint(append.get(i));
+    // fetched newest-first; reverse so they can be appended as a block
+    Collections.reverse(append);
+    catCache.addDatapoints(append);
 
+    catCache.touch(lastEntryTS, Long.MAX_VALUE, ++mTick);
+    enforceBudget(mTick);
     return;
   }
 
@@ -153,6 +232,60 @@ public class DatapointCache {
     if (catCache == null)
       return;
 
+    long[] range = new long[] { milliStart, milliEnd };
+    widenRange(catCache, range, aggregationMs);
+
+    catCache.touch(range[0], range[1], ++mTick);
+    populateRangeFromDb(catCache, range[0], range[1]);
+    enforceBudget(mTick);
+  }
+
+  /**
+   * Equivalent to calling populateRange() for each of the categories, but
+   * whatever isn't already cached for any of them is fetched in a single
+   * query (or one per MAX_RANGES_PER_QUERY ranges) rather than one or two
+   * queries per category.
+   */
+  public synchronized void populateRanges(long[] catIds, long milliStart,
+      long milliEnd, long aggregationMs) {
+    ArrayList<CategoryDatapointCache> caches = new ArrayList<CategoryDatapointCache>();
+    long[] starts = new long[catIds.length * 2];
+    long[] ends = new long[catIds.length * 2];
+    long[] range = new long[2];
+    long[] missing = new long[4];
+    int nRanges = 0;
+
+    mTick++;
+    for (int i = 0; i < catIds.length; i++) {
+      CategoryDatapointCache catCache = mCache.get(Long.valueOf(catIds[i]));
+      if (catCache == null || catCache.getLastUsed() == mTick)
+        continue;
+
+      range[0] = milliStart;
+      range[1] = milliEnd;
+      widenRange(catCache, range, aggregationMs);
+      catCache.touch(range[0], range[1], mTick);
+
+      int n = missingRanges(catCache, range[0], range[1], missing);
+      for (int j = 0; j < n; j++) {
+        caches.add(catCache);
+        starts[nRanges] = missing[j * 2];
+        ends[nRanges] = missing[j * 2 + 1];
+        nRanges++;
+      }
+    }
+
+    for (int i = 0; i < nRanges; i += MAX_RANGES_PER_QUERY)
+      addDatapoints(caches, starts, ends, i, Math.min(nRanges, i
+          + MAX_RANGES_PER_QUERY));
+
+    enforceBudget(mTick);
+  }
+
+  // Widens the requested range[0] - range[1] to take in the history needed
+  // before it and a little after.
+  private void widenRange(CategoryDatapointCache catCache, long[] range,
+      long aggregationMs) {
     if (aggregationMs == 0) {
       // we actually double the range, hoping to gather data from each category
       // that we can use to connect the first datapoint to an offscreen
@@ -164,9 +297,9 @@ public class DatapointCache {
       // TODO: fix to guarantee this, instead of hoping -- and do it with a
       // miminum
       // of sql queries.
-      long quarter = (milliEnd - milliStart) / 4;
-      milliStart -= quarter * 2;
-      milliEnd += quarter;
+      long quarter = (range[1] - range[0]) / 4;
+      range[0] -= quarter * 2;
+      range[1] += quarter;
     } else {
       // This fixup looks similar to the previous in
       // TimerSeriesCollector::gatherSeries,
@@ -179,37 +312,62 @@ public class DatapointCache {
       // mess up the trend because we're short on datapoints. Same goes for the
       // endMillis
       // adjustment.
-      Calendar c1 = Calendar.getInstance();
-      Calendar c2 = Calendar.getInstance();
       Period p = DateUtil.mapLongToPeriod(aggregationMs);
-      int step = 2;
-      if (p == Period.QUARTER)
-        step = 6;
-
-      c1.setTimeInMillis(milliStart);
-      DateUtil.setToPeriodStart(c1, p);
-      c1.add(DateUtil.mapLongToCal(aggregationMs),
-          -(catCache.getHistory() * step));
-      milliStart = c1.getTimeInMillis();
-
-      c2.setTimeInMillis(milliEnd);
-      DateUtil.setToPeriodStart(c2, p);
-      c2.add(DateUtil.mapLongToCal(aggregationMs), step);
-      milliEnd = c2.getTimeInMillis();
+      range[0] = mPeriods.addPeriods(range[0], p, -(catCache.getHistory() * 2));
+      range[1] = mPeriods.addPeriods(range[1], p, 2);
+    }
+  }
+
+  // Categories last used at or after the specified tick are never dropped
+  // entirely, only trimmed.
+  private void enforceBudget(long spareTick) {
+    if (mMemoryBudget <= 0)
+      return;
+
+    long max = mMemoryBudget / BYTES_PER_DATAPOINT;
+    int size = getCachedDatapoints();
+    if (size <= max)
+      return;
+
+    ArrayList<CategoryDatapointCache> lru = new ArrayList<CategoryDatapointCache>(
+        mCache.values());
+    Collections.sort(lru, LEAST_RECENTLY_USED);
+
+    // Trimming from the ends keeps each category's cached range contiguous,
+    // and keeps whatever was last requested (and so likely on screen.)
+    for (int i = 0; i < lru.size() && size > max; i++) {
+      CategoryDatapointCache catCache = lru.get(i);
+      int n = catCache.trimBefore(catCache.getWindowStart());
+      n += catCache.trimAfter(catCache.getWindowEnd());
+      size -= n;
+      mEvictions += n;
     }
 
-    populateRangeFromDb(catCache, milliStart, milliEnd);
+    for (int i = 0; i < lru.size() && size > max; i++) {
+      CategoryDatapointCache catCache = lru.get(i);
+      if (catCache.getLastUsed() >= spareTick || catCache.isValid() == false)
+        continue;
+      int n = catCache.size();
+      catCache.clear();
+      size -= n;
+      mEvictions += n;
+    }
   }
 
   private synchronized void populateRangeFromDb(
       CategoryDatapointCache catCache, long milliStart, long milliEnd) {
-    long query1Start = milliStart;
-    long query1End = milliEnd;
-    long query2Start = -1;
-    long query2End = -1;
+    long[] missing = new long[4];
+    int n = missingRanges(catCache, milliStart, milliEnd, missing);
+    for (int i = 0; i < n; i++)
+      addDatapoints(catCache, missing[i * 2], missing[i * 2 + 1]);
+  }
 
+  // Fills in missing with the start and end of each range in milliStart -
+  // milliEnd not already in the cache, and returns the number of ranges.
+  private int missingRanges(CategoryDatapointCache catCache,
+      long milliStart, long milliEnd, long[] missing) {
     if (milliStart > milliEnd)
-      return;
+      return 0;
 
     // SQL ops are the expensive thing, so see if we can minimize or obviate the
     // query
@@ -219,33 +377,33 @@ public class DatapointCache {
     // the pre
     // and post.
     if (catCache.isValid() == true) {
-      if (milliStart >= catCache.getStart() && milliEnd <= catCache.getEnd())
-        return;
+      if (milliStart >= catCache.getStart() && milliEnd <= catCache.getEnd()) {
+        mHits++;
+        return 0;
+      }
     }
+    mMisses++;
 
     if (catCache.isValid() == false) {
-      query1Start = milliStart;
-      query1End = milliEnd;
-    } else {
-      if (milliStart < catCache.getStart()) {
-        query1Start = milliStart;
-        query1End = catCache.getStart() - 1;
-        if (milliEnd > catCache.getEnd()) {
-          query2Start = catCache.getEnd() + 1;
-          query2End = milliEnd;
-        }
-      }
-      if (milliStart >= catCache.getStart()) {
-        query1Start = catCache.getEnd() + 1;
-        query1End = milliEnd;
-      }
+      missing[0] = milliStart;
+      missing[1] = milliEnd;
+      return 1;
     }
 
-    addDatapoints(catCache, query1Start, query1End);
-    if (query2Start >= 0 && query2End >= 0)
-      addDatapoints(catCache, query2Start, query2End);
+    if (milliStart >= catCache.getStart()) {
+      missing[0] = catCache.getEnd() + 1;
+      missing[1] = milliEnd;
+      return 1;
+    }
 
-    return;
+    missing[0] = milliStart;
+    missing[1] = catCache.getStart() - 1;
+    if (milliEnd > catCache.getEnd()) {
+      missing[2] = catCache.getEnd() + 1;
+      missing[3] = milliEnd;
+      return 2;
+    }
+    return 1;
   }
 
   private void addDatapoints(CategoryDatapointCache catCache, long start,
@@ -256,18 +414,75 @@ public class DatapointCache {
         start, end);
 
     if (entries != null && entries.getCount() > 0) {
+      ArrayList<Datapoint> range = new ArrayList<Datapoint>(entries.getCount());
+      EntryDbTable.RowMapper mapper = new EntryDbTable.RowMapper(entries);
       entries.moveToFirst();
       for (int j = 0; j < entries.getCount(); j++) {
-        entry.populateFromCursor(entries);
-        catCache.addDatapoint(new Datapoint(entry));
+        mapper.populate(entry);
+        range.add(new Datapoint(entry));
         entries.moveToNext();
       }
+      catCache.addDatapoints(range);
     }
     entries.close();
     catCache.updateStart(start);
     catCache.updateEnd(end);
   }
 
+  // Fetches ranges [from, to) of the parallel caches/starts/ends lists with
+  // one query. Rows come back ordered by category and then timestamp, so each
+  // category's rows fall into its first range until they pass its end.
+  private void addDatapoints(ArrayList<CategoryDatapointCache> caches,
+      long[] starts, long[] ends, int from, int to) {
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    HashMap<Long, Integer> firstRange = new HashMap<Long, Integer>();
+    ArrayList<ArrayList<Datapoint>> lists = new ArrayList<ArrayList<Datapoint>>();
+    long[] catIds = new long[to - from];
+
+    for (int i = from; i < to; i++) {
+      Long catId = Long.valueOf(caches.get(i).getCategoryId());
+      catIds[i - from] = catId.longValue();
+      if (firstRange.containsKey(catId) == false)
+        firstRange.put(catId, Integer.valueOf(i));
+      lists.add(new ArrayList<Datapoint>());
+    }
+
+    Cursor entries = mDbh.fetchCategoriesEntriesRanges(catIds, copyOfRange(
+        starts, from, to), copyOfRange(ends, from, to));
+
+    if (entries != null && entries.getCount() > 0) {
+      EntryDbTable.RowMapper mapper = new EntryDbTable.RowMapper(entries);
+      entries.moveToFirst();
+      for (int j = 0; j < entries.getCount(); j++) {
+        mapper.populate(entry);
+        Integer first = firstRange.get(Long.valueOf(entry.getCategoryId()));
+        if (first != null) {
+          int r = first.intValue();
+          if (entry.getTimestamp() > ends[r] && r + 1 < to
+              && caches.get(r + 1) == caches.get(r))
+            r++;
+          lists.get(r - from).add(new Datapoint(entry));
+        }
+        entries.moveToNext();
+      }
+    }
+    if (entries != null)
+      entries.close();
+
+    for (int i = from; i < to; i++) {
+      CategoryDatapointCache catCache = caches.get(i);
+      catCache.addDatapoints(lists.get(i - from));
+      catCache.updateStart(starts[i]);
+      catCache.updateEnd(ends[i]);
+    }
+  }
+
+  private static long[] copyOfRange(long[] src, int from, int to) {
+    long[] dst = new long[to - from];
+    System.arraycopy(src, from, dst, 0, to - from);
+    return dst;
+  }
+
   public ArrayList<Datapoint> getDataInRange(long catId, long msStart,
       long msEnd) {
     CategoryDatapointCache catCache = mCache.get(Long.valueOf(catId));
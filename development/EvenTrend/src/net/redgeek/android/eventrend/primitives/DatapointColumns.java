@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.primitives;
+
+import java.util.List;
+
+/**
+ * Columnar storage for a series of datapoints. Each attribute of a
+ * Datapoint is kept in its own growable primitive array, indexed the same way
+ * the datapoints would be in a list, so that a series of n points costs a
+ * handful of arrays rather than 5n objects.
+ *
+ * <p>
+ * The arrays are exposed directly for tight loops; only the first
+ * <code>size()</code> elements of each are valid. Rows are expected to be in
+ * ascending timestamp order for the binary searches to be meaningful.
+ *
+ * @author barclay
+ *
+ */
+public final class DatapointColumns {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  public long[] mMillis;
+  public float[] mValue;
+  public float[] mTrend;
+  public float[] mStdDev;
+  public int[] mNEntries;
+  public long[] mCatId;
+  public long[] mEntryId;
+  public boolean[] mSynthetic;
+
+  // screen coordinates, as filled in by graph.Transformation. The x value is
+  // shared between the value and trend, since they're at the same timestamp.
+  public float[] mScreenX;
+  public float[] mValueScreenY;
+  public float[] mTrendScreenY;
+
+  private int mSize;
+
+  public DatapointColumns() {
+    allocate(DEFAULT_CAPACITY);
+  }
+
+  public DatapointColumns(int capacity) {
+    allocate(capacity < 1 ? 1 : capacity);
+  }
+
+  public DatapointColumns(DatapointColumns source) {
+    allocate(source.mSize < 1 ? DEFAULT_CAPACITY : source.mSize);
+    copyRows(source, 0, 0, source.mSize);
+    mSize = source.mSize;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public void clear() {
+    mSize = 0;
+  }
+
+  public void set(DatapointColumns source) {
+    mSize = 0;
+    ensureCapacity(source.mSize);
+    copyRows(source, 0, 0, source.mSize);
+    mSize = source.mSize;
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity <= mMillis.length)
+      return;
+
+    int newCapacity = mMillis.length * 2;
+    if (newCapacity < capacity)
+      newCapacity = capacity;
+
+    long[] millis = mMillis;
+    float[] value = mValue;
+    float[] trend = mTrend;
+    float[] stdDev = mStdDev;
+    int[] nEntries = mNEntries;
+    long[] catId = mCatId;
+    long[] entryId = mEntryId;
+    boolean[] synthetic = mSynthetic;
+    float[] screenX = mScreenX;
+    float[] valueScreenY = mValueScreenY;
+    float[] trendScreenY = mTrendScreenY;
+
+    allocate(newCapacity);
+    System.arraycopy(millis, 0, mMillis, 0, mSize);
+    System.arraycopy(value, 0, mValue, 0, mSize);
+    System.arraycopy(trend, 0, mTrend, 0, mSize);
+    System.arraycopy(stdDev, 0, mStdDev, 0, mSize);
+    System.arraycopy(nEntries, 0, mNEntries, 0, mSize);
+    System.arraycopy(catId, 0, mCatId, 0, mSize);
+    System.arraycopy(entryId, 0, mEntryId, 0, mSize);
+    System.arraycopy(synthetic, 0, mSynthetic, 0, mSize);
+    System.arraycopy(screenX, 0, mScreenX, 0, mSize);
+    System.arraycopy(valueScreenY, 0, mValueScreenY, 0, mSize);
+    System.arraycopy(trendScreenY, 0, mTrendScreenY, 0, mSize);
+  }
+
+  public int add(long millis, float value, long catId, long entryId,
+      int nEntries) {
+    ensureCapacity(mSize + 1);
+    int i = mSize++;
+    mMillis[i] = millis;
+    mValue[i] = value;
+    mTrend[i] = 0.0f;
+    mStdDev[i] = 0.0f;
+    mNEntries[i] = nEntries;
+    mCatId[i] = catId;
+    mEntryId[i] = entryId;
+    mSynthetic[i] = false;
+    mScreenX[i] = 0.0f;
+    mValueScreenY[i] = 0.0f;
+    mTrendScreenY[i] = 0.0f;
+    return i;
+  }
+
+  public int add(Datapoint d) {
+    ensureCapacity(mSize + 1);
+    int i = mSize++;
+    mMillis[i] = d.mMillis;
+    mValue[i] = d.mValue.y;
+    mTrend[i] = d.mTrend.y;
+    mStdDev[i] = d.mStdDev;
+    mNEntries[i] = d.mNEntries;
+    mCatId[i] = d.mCatId;
+    mEntryId[i] = d.mEntryId;
+    mSynthetic[i] = d.mSynthetic;
+    mScreenX[i] = d.mValueScreen.x;
+    mValueScreenY[i] = d.mValueScreen.y;
+    mTrendScreenY[i] = d.mTrendScreen.y;
+    return i;
+  }
+
+  /**
+   * Appends a copy of row <code>i</code> of <code>source</code>, returning
+   * its index.
+   */
+  public int add(DatapointColumns source, int i) {
+    ensureCapacity(mSize + 1);
+    copyRows(source, i, mSize, 1);
+    return mSize++;
+  }
+
+  /**
+   * Discards all but the first <code>n</code> rows.
+   */
+  public void truncate(int n) {
+    if (n < mSize)
+      mSize = Math.max(n, 0);
+  }
+
+  /**
+   * Overwrites the category, entry and synthetic flag of row <code>i</code>
+   * with those of <code>d</code>, leaving the rest of it as it is.
+   */
+  public void setIds(int i, Datapoint d) {
+    mCatId[i] = d.mCatId;
+    mEntryId[i] = d.mEntryId;
+    mSynthetic[i] = d.mSynthetic;
+  }
+
+  public void addAll(List<Datapoint> list) {
+    if (list == null)
+      return;
+    ensureCapacity(mSize + list.size());
+    for (int i = 0; i < list.size(); i++) {
+      add(list.get(i));
+    }
+  }
+
+  /**
+   * Creates a new Datapoint holding a copy of row <code>i</code>.
+   */
+  public Datapoint toDatapoint(int i) {
+    Datapoint d = new Datapoint(mMillis[i], mValue[i], mCatId[i], mEntryId[i],
+        mNEntries[i]);
+    d.mStdDev = mStdDev[i];
+    d.mSynthetic = mSynthetic[i];
+    d.mTrend.x = d.mValue.x;
+    d.mTrend.y = mTrend[i];
+    d.mValueScreen.set(mScreenX[i], mValueScreenY[i]);
+    d.mTrendScreen.set(mScreenX[i], mTrendScreenY[i]);
+    return d;
+  }
+
+  /**
+   * Returns the index of the last row with a timestamp less than or equal to
+   * <code>millis</code>, or -1 if there is no such row.
+   */
+  public int indexOfFloor(long millis) {
+    int lo = 0;
+    int hi = mSize - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (mMillis[mid] <= millis)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi;
+  }
+
+  /**
+   * Returns the index of the first row with a timestamp greater than or equal
+   * to <code>millis</code>, or -1 if there is no such row.
+   */
+  public int indexOfCeiling(long millis) {
+    int lo = 0;
+    int hi = mSize - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (mMillis[mid] < millis)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return lo < mSize ? lo : -1;
+  }
+
+  private void allocate(int capacity) {
+    mMillis = new long[capacity];
+    mValue = new float[capacity];
+    mTrend = new float[capacity];
+    mStdDev = new float[capacity];
+    mNEntries = new int[capacity];
+    mCatId = new long[capacity];
+    mEntryId = new long[capacity];
+    mSynthetic = new boolean[capacity];
+    mScreenX = new float[capacity];
+    mValueScreenY = new float[capacity];
+    mTrendScreenY = new float[capacity];
+  }
+
+  private void copyRows(DatapointColumns src, int srcPos, int dstPos, int n) {
+    System.arraycopy(src.mMillis, srcPos, mMillis, dstPos, n);
+    System.arraycopy(src.mValue, srcPos, mValue, dstPos, n);
+    System.arraycopy(src.mTrend, srcPos, mTrend, dstPos, n);
+    System.arraycopy(src.mStdDev, srcPos, mStdDev, dstPos, n);
+    System.arraycopy(src.mNEntries, srcPos, mNEntries, dstPos, n);
+    System.arraycopy(src.mCatId, srcPos, mCatId, dstPos, n);
+    System.arraycopy(src.mEntryId, srcPos, mEntryId, dstPos, n);
+    System.arraycopy(src.mSynthetic, srcPos, mSynthetic, dstPos, n);
+    System.arraycopy(src.mScreenX, srcPos, mScreenX, dstPos, n);
+    System.arraycopy(src.mValueScreenY, srcPos, mValueScreenY, dstPos, n);
+    System.arraycopy(src.mTrendScreenY, srcPos, mTrendScreenY, dstPos, n);
+  }
+}
@@ -17,12 +17,12 @@
 package net.redgeek.android.eventrend.primitives;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.TreeMap;
 
 import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.Decimation;
 import net.redgeek.android.eventrend.graph.GraphView;
+import net.redgeek.android.eventrend.graph.SeriesPaths;
 import net.redgeek.android.eventrend.graph.TimeSeriesPainter;
 import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
 import net.redgeek.android.eventrend.synthetic.AST;
@@ -50,8 +50,15 @@ public final class TimeSeries {
   // to something offscreen, in order to continue drawing the line to the edge
   // of
   // the graph.
-  private ArrayList<Datapoint> mDatapoints; // a concatenation of the
-  // following:
+  //
+  // The datapoints are stored column-wise in mColumns, which is what all the
+  // calculations below operate on. mDatapoints is an object view of the same
+  // rows for the callers that need a list of Datapoints. It's built from the
+  // columns on demand, and is null until then and whenever the rows are
+  // replaced; while it exists, the stats are kept in sync with the columns.
+  // Lookups of single rows don't build it, they copy just that row.
+  private DatapointColumns mColumns; // a concatenation of the following:
+  private ArrayList<Datapoint> mDatapoints;
   private int mVisiblePreFirstIdx;
   private int mVisiblePreLastIdx;
   private int mVisibleFirstIdx;
@@ -85,8 +92,28 @@ public final class TimeSeries {
   private Number.RunningStats mTimestampStats;
   private Number.WindowedStdDev mStdDevWindow;
 
+  // Bookkeeping for updating the stats incrementally. The stats above
+  // reflect the first mStatsRows rows of mColumns, and the bounds of the
+  // visible ones are in mStatsMin/Max* (mVisibleMin/Max* additionally take
+  // into account the offscreen neighbors.) mCheckpoints.get(j) holds the
+  // state before row j * CHECKPOINT_INTERVAL was folded in, so a change can
+  // be recomputed from the nearest checkpoint rather than the first row.
+  private static final int CHECKPOINT_INTERVAL = 64;
+  private int mStatsRows;
+  private float mStatsMinY;
+  private float mStatsMaxY;
+  private long mStatsMinX;
+  private long mStatsMaxX;
+  private ArrayList<StatsCheckpoint> mCheckpoints;
+  // incremented whenever the timestamps or values change
+  private int mVersion;
+  private Decimation mDecimation;
+  private SeriesPaths mPaths;
+
   // Interpolator
   private TimeSeriesInterpolator mInterpolator;
+  private Tuple mScratch1;
+  private Tuple mScratch2;
 
   public TimeSeries(CategoryDbTable.Row row, int history, float smoothing) {
     initialize(row, history, smoothing, null);
@@ -105,7 +132,10 @@ public final class TimeSeries {
     if (painter == null)
       mPainter = new TimeSeriesPainter.Default();
 
-    mDatapoints = new ArrayList<Datapoint>();
+    mColumns = new DatapointColumns();
+    mDatapoints = null;
+    mScratch1 = new Tuple(0, 0);
+    mScratch2 = new Tuple(0, 0);
     mEnabled = false;
     setColor(row.getColor());
     // set thusly so we can apply min()/max() operators indiscriminately
@@ -116,6 +146,10 @@ public final class TimeSeries {
     mTimestampStats = new Number.RunningStats();
     mValueTrend = new Number.Trend(smoothing);
     mStdDevWindow = new Number.WindowedStdDev(history);
+    mCheckpoints = new ArrayList<StatsCheckpoint>();
+    mDecimation = new Decimation();
+    mPaths = new SeriesPaths();
+    resetStats();
 
     mDependents = new ArrayList<TimeSeries>();
     mDependees = new ArrayList<TimeSeries>();
@@ -124,7 +158,10 @@ public final class TimeSeries {
   public TimeSeries(TimeSeries series) {
     mDbRow = new CategoryDbTable.Row(series.mDbRow);
 
-    mDatapoints = new ArrayList<Datapoint>();
+    mColumns = new DatapointColumns(series.mColumns);
+    mDatapoints = null;
+    mScratch1 = new Tuple(0, 0);
+    mScratch2 = new Tuple(0, 0);
     mVisiblePreFirstIdx = series.mVisiblePreFirstIdx;
     mVisiblePreLastIdx = series.mVisiblePreLastIdx;
     mVisibleFirstIdx = series.mVisibleFirstIdx;
@@ -132,7 +169,6 @@ public final class TimeSeries {
     mVisiblePostFirstIdx = series.mVisiblePostFirstIdx;
     mVisiblePostLastIdx = series.mVisiblePostLastIdx;
 
-    copyDatapoints(series);
     mEnabled = series.mEnabled;
     mVisibleMinY = series.mVisibleMinY;
     mVisibleMaxY = series.mVisibleMaxY;
@@ -147,6 +183,16 @@ public final class TimeSeries {
     mTimestampStats = new Number.RunningStats(series.mTimestampStats);
     mValueTrend = new Number.Trend(series.mValueTrend);
     mStdDevWindow = new Number.WindowedStdDev(series.mStdDevWindow);
+    mStatsRows = series.mStatsRows;
+    mStatsMinY = series.mStatsMinY;
+    mStatsMaxY = series.mStatsMaxY;
+    mStatsMinX = series.mStatsMinX;
+    mStatsMaxX = series.mStatsMaxX;
+    // checkpoints are immutable once taken, so can be shared
+    mCheckpoints = new ArrayList<StatsCheckpoint>(series.mCheckpoints);
+    mVersion = series.mVersion;
+    mDecimation = new Decimation();
+    mPaths = new SeriesPaths();
 
     mDependents = new ArrayList<TimeSeries>();
     for (int i = 0; i < mDependents.size(); i++) {
@@ -169,8 +215,11 @@ public final class TimeSeries {
   }
 
   public void clearSeries() {
+    mVersion++;
     resetIndices();
-    mDatapoints.clear();
+    invalidateStats();
+    mColumns.clear();
+    mDatapoints = null;
   }
 
   public void setPointRadius(float f) {
@@ -193,6 +242,10 @@ public final class TimeSeries {
     return mInterpolator;
   }
 
+  public TimeSeriesPainter getPainter() {
+    return mPainter;
+  }
+
   public void setEnabled(boolean b) {
     mEnabled = b;
   }
@@ -280,127 +333,218 @@ public final class TimeSeries {
   }
 
   public void recalcStatsAndBounds(float smoothing, int history) {
-    mValueStats = new Number.RunningStats();
-    mTimestampStats = new Number.RunningStats();
+    mVersion++;
     mValueTrend = new Number.Trend(smoothing);
     mStdDevWindow = new Number.WindowedStdDev(history);
-    calcStatsAndBounds();
-  }
-
-  private void calcStatsAndBounds() {
-    int firstNEntries = 0;
-
-    resetMinMax();
-
-    if (mDatapoints == null)
-      return;
-
-    for (int i = 0; i < mDatapoints.size(); i++) {
-      Datapoint d = mDatapoints.get(i);
+    calcStatsAndBounds(0);
+  }
+
+  // Brings the stats up to date with the datapoints, recomputing from the
+  // last checkpoint at or before row <code>from</code>. All the rows before
+  // <code>from</code> must be unchanged (in value, timestamp, entries, and
+  // visibility) since the stats were last calculated.
+  private void calcStatsAndBounds(int from) {
+    long[] millis = mColumns.mMillis;
+    float[] value = mColumns.mValue;
+    float[] trend = mColumns.mTrend;
+    float[] stdDev = mColumns.mStdDev;
+    int[] nEntries = mColumns.mNEntries;
+    int size = mColumns.size();
+    int start = restoreCheckpoint(Math.min(from, mStatsRows));
+
+    for (int i = start; i < size; i++) {
+      if (i % CHECKPOINT_INTERVAL == 0)
+        mCheckpoints.add(new StatsCheckpoint(this));
+
+      float y = value[i];
       if (i >= mVisibleFirstIdx && i <= mVisibleLastIdx) {
-        mVisibleMinY = Math.min(mVisibleMinY, d.mValue.y);
-        mVisibleMaxY = Math.max(mVisibleMaxY, d.mValue.y);
-        mVisibleMinX = Math.min(mVisibleMinX, d.mMillis);
-        mVisibleMaxX = Math.max(mVisibleMaxX, d.mMillis);
+        mStatsMinY = Math.min(mStatsMinY, y);
+        mStatsMaxY = Math.max(mStatsMaxY, y);
+        mStatsMinX = Math.min(mStatsMinX, millis[i]);
+        mStatsMaxX = Math.max(mStatsMaxX, millis[i]);
 
         // we run stats on the y-values themselves ...
-        mValueStats.update(d.mValue.y, d.mNEntries);
-        mValueTrend.update(d.mValue.y);
-        mStdDevWindow.update(d.mValue.y);
-        d.mStdDev = mStdDevWindow.getStandardDev();
-        // but use the delta of the timestamps for x-stats:
-        if (i > 0) {
-          long delta = (d.mMillis - mTimestampLast);
-          mTimestampStats.update(delta, d.mNEntries + firstNEntries);
+        mValueStats.update(y, nEntries[i]);
+        mValueTrend.update(y);
+        mStdDevWindow.update(y);
+        stdDev[i] = mStdDevWindow.getStandardDev();
+        // but use the delta of the timestamps for x-stats, the first
+        // visible point's entries being counted along with the second's:
+        if (i > mVisibleFirstIdx) {
+          long delta = (millis[i] - mTimestampLast);
+          mTimestampStats.update(delta, nEntries[i]
+              + (i == mVisibleFirstIdx + 1 ? nEntries[i - 1] : 0));
         }
-        mTimestampLast = (d.mMillis);
-        firstNEntries = 0;
-        if (i == 0)
-          firstNEntries = d.mNEntries;
-
-        // d.mTrend will be used for plotting the trend line,
-        // so we don't want to change the x value, since that
-        // should still be an absolute time
-        d.mTrend.x = d.mValue.x;
-        d.mTrend.y = mValueTrend.mTrend;
+        mTimestampLast = millis[i];
 
-        mNumEntries += d.mNEntries;
+        // the trend will be used for plotting the trend line, at the same
+        // absolute time as the value
+        trend[i] = mValueTrend.mTrend;
+
+        mNumEntries += nEntries[i];
       } else {
-        mValueTrend.update(d.mValue.y);
-        d.mTrend.x = d.mValue.x;
-        d.mTrend.y = mValueTrend.mTrend;
+        mValueTrend.update(y);
+        trend[i] = mValueTrend.mTrend;
+
+        mStdDevWindow.update(y);
+        stdDev[i] = mStdDevWindow.getStandardDev();
+      }
+    }
+    mStatsRows = size;
 
-        mStdDevWindow.update(d.mValue.y);
-        d.mStdDev = mStdDevWindow.getStandardDev();
+    // the rows before start kept their trend and deviation
+    if (mDatapoints != null) {
+      for (int i = start; i < size; i++) {
+        Datapoint d = mDatapoints.get(i);
+        d.mTrend.x = d.mValue.x;
+        d.mTrend.y = trend[i];
+        d.mStdDev = stdDev[i];
       }
     }
+
+    mVisibleMinY = mStatsMinY;
+    mVisibleMaxY = mStatsMaxY;
+    mVisibleMinX = mStatsMinX;
+    mVisibleMaxX = mStatsMaxX;
     interpolateBoundsToOffscreen();
   }
 
+  /**
+   * Replaces the datapoints of the series. If <code>recalc</code> is set,
+   * the stats and bounds are brought up to date; only the rows from the first
+   * one that differs from the previous contents of the series are folded
+   * into the stats, so appending to a series costs time proportional to the
+   * number of new points. Note that since the trend depends on every
+   * preceding point, prepending points requires a full recalculation.
+   */
   public void setDatapoints(ArrayList<Datapoint> pre,
       ArrayList<Datapoint> range, ArrayList<Datapoint> post, boolean recalc) {
+    int oldVisibleFirstIdx = mVisibleFirstIdx;
+    int oldVisibleLastIdx = mVisibleLastIdx;
+    int nPre = pre == null ? 0 : pre.size();
+    int nRange = range == null ? 0 : range.size();
+    int nPost = post == null ? 0 : post.size();
+
+    mVersion++;
+    // the caller's datapoints are copied rather than kept, so the view is
+    // rebuilt from the columns if it's asked for again
+    mDatapoints = null;
+    setIndices(nPre, nRange, nPost);
+
+    // the rows that are the same as before keep the trend and deviation
+    // calculated for them, and are rewritten in place
+    int unchanged = 0;
+    if (recalc == true)
+      unchanged = unchangedRows(pre, range, post, oldVisibleFirstIdx,
+          oldVisibleLastIdx);
+    mColumns.truncate(unchanged);
+    int row = writeRows(pre, 0, unchanged);
+    row = writeRows(range, row, unchanged);
+    writeRows(post, row, unchanged);
 
-    clearSeries();
-    if (pre != null && pre.size() > 0) {
-      mVisiblePreFirstIdx = 0;
-      mVisiblePreLastIdx = pre.size() - 1;
-      mDatapoints.addAll(pre);
+    if (recalc == true)
+      calcStatsAndBounds(unchanged);
+    else
+      invalidateStats();
+    return;
+  }
+
+  // Writes list to the columns from row on, returning the row after it. The
+  // rows before unchanged are already there, so only their ids are updated.
+  private int writeRows(List<Datapoint> list, int row, int unchanged) {
+    if (list == null)
+      return row;
+    for (int i = 0; i < list.size(); i++, row++) {
+      if (row < unchanged)
+        mColumns.setIds(row, list.get(i));
+      else
+        mColumns.add(list.get(i));
     }
-    if (range != null && range.size() > 0) {
-      mVisibleFirstIdx = mDatapoints.size();
-      mVisibleLastIdx = mVisibleFirstIdx + range.size() - 1;
-      mDatapoints.addAll(range);
+    return row;
+  }
+
+  /**
+   * Replaces the datapoints at or after <code>millis</code> with
+   * <code>tail</code>, keeping the ones before. The new datapoints are added to
+   * the last non-empty section of the kept ones (the visible range if there
+   * are none), and the stats are resumed from the last checkpoint before the
+   * first replaced row, so the cost is proportional to the size of the tail.
+   */
+  public void spliceDatapoints(long millis, List<Datapoint> tail) {
+    ArrayList<Datapoint> pre = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> range = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> post = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> current = getDatapoints();
+
+    for (int i = 0; i < current.size(); i++) {
+      Datapoint d = current.get(i);
+      if (d.mMillis >= millis)
+        break;
+      if (i >= mVisiblePreFirstIdx && i <= mVisiblePreLastIdx)
+        pre.add(d);
+      else if (i >= mVisiblePostFirstIdx && i <= mVisiblePostLastIdx)
+        post.add(d);
+      else
+        range.add(d);
     }
-    if (post != null && post.size() > 0) {
-      mVisiblePostFirstIdx = mDatapoints.size();
-      mVisiblePostLastIdx = mVisiblePostFirstIdx + post.size() - 1;
-      mDatapoints.addAll(post);
+
+    if (tail != null) {
+      if (post.size() > 0)
+        post.addAll(tail);
+      else if (range.size() == 0 && pre.size() > 0)
+        pre.addAll(tail);
+      else
+        range.addAll(tail);
     }
-    if (recalc == true)
-      calcStatsAndBounds();
-    return;
+
+    setDatapoints(pre, range, post, true);
   }
 
   public Datapoint getLastPreVisible() {
-    if (mVisiblePreLastIdx >= 0 && mVisiblePreLastIdx < mDatapoints.size())
-      return mDatapoints.get(mVisiblePreLastIdx);
+    if (mVisiblePreLastIdx >= 0 && mVisiblePreLastIdx < mColumns.size())
+      return datapointAt(mVisiblePreLastIdx);
     return null;
   }
 
   public Datapoint getFirstVisible() {
-    if (mVisibleFirstIdx >= 0 && mVisibleFirstIdx < mDatapoints.size())
-      return mDatapoints.get(mVisibleFirstIdx);
+    if (mVisibleFirstIdx >= 0 && mVisibleFirstIdx < mColumns.size())
+      return datapointAt(mVisibleFirstIdx);
     return null;
   }
 
   public Datapoint getLastVisible() {
-    if (mVisibleLastIdx >= 0 && mVisibleLastIdx < mDatapoints.size())
-      return mDatapoints.get(mVisibleLastIdx);
+    if (mVisibleLastIdx >= 0 && mVisibleLastIdx < mColumns.size())
+      return datapointAt(mVisibleLastIdx);
     return null;
   }
 
   public Datapoint getFirstPostVisible() {
-    if (mVisiblePostFirstIdx >= 0 && mVisiblePostFirstIdx < mDatapoints.size())
-      return mDatapoints.get(mVisiblePostFirstIdx);
+    if (mVisiblePostFirstIdx >= 0 && mVisiblePostFirstIdx < mColumns.size())
+      return datapointAt(mVisiblePostFirstIdx);
     return null;
   }
 
   public Datapoint lookupVisibleDatapoint(Tuple press) {
-    Datapoint d;
+    float[] screenX = mColumns.mScreenX;
+    float[] screenY = mColumns.mValueScreenY;
 
     if (isEnabled() == false)
       return null;
 
+    // only the rows that were drawn have screen coordinates
+    int[] rows = mDecimation.getRows();
+    int n = mDecimation.size();
     if (mVisibleFirstIdx != Integer.MIN_VALUE
         && mVisibleLastIdx != Integer.MAX_VALUE) {
-      for (int i = mVisibleFirstIdx; i <= mVisibleLastIdx; i++) {
-        d = mDatapoints.get(i);
-
-        if (press.x >= d.mValueScreen.x - mTouchRadius
-            && press.x <= d.mValueScreen.x + mTouchRadius
-            && press.y >= d.mValueScreen.y - mTouchRadius
-            && press.y <= d.mValueScreen.y + mTouchRadius) {
-          return d;
+      for (int k = 0; k < n; k++) {
+        int i = rows[k];
+        if (i < mVisibleFirstIdx || i > mVisibleLastIdx)
+          continue;
+        if (press.x >= screenX[i] - mTouchRadius
+            && press.x <= screenX[i] + mTouchRadius
+            && press.y >= screenY[i] - mTouchRadius
+            && press.y <= screenY[i] + mTouchRadius) {
+          return datapointAt(i);
         }
       }
     }
@@ -408,68 +552,86 @@ public final class TimeSeries {
   }
 
   public Datapoint findNeighbor(long timestamp, boolean pre) {
-    Datapoint d = null;
-
-    if (mDatapoints == null || mDatapoints.size() < 1)
-      return d;
-
-    int min = 0;
-    int max = mDatapoints.size() - 1;
-    int mid = max / 2;
-
-    d = mDatapoints.get(mid);
-    while (d != null) {
-      if (d.mMillis == timestamp) {
-        return d;
-      } else if (max < min) {
-        if (pre == true) {
-          if (d.mMillis > timestamp) {
-            if (mid - 1 >= 0)
-              d = mDatapoints.get(mid - 1);
-            else
-              d = null;
-          }
-        } else {
-          if (d.mMillis < timestamp) {
-            if (mid + 1 < mDatapoints.size())
-              d = mDatapoints.get(mid + 1);
-            else
-              d = null;
-          }
-        }
-        return d;
-      } else if (d.mMillis < timestamp) {
-        min = mid + 1;
-      } else if (d.mMillis > timestamp) {
-        max = mid - 1;
-      }
-      mid = min + ((max - min) / 2);
+    int i = findNeighborIdx(timestamp, pre);
+    if (i < 0)
+      return null;
+    return datapointAt(i);
+  }
 
-      // Check to see if we were trying to run off the end, if so, just
-      // return the first or last entry.
-      if (mid >= mDatapoints.size() && pre == true)
-        return d;
-      if (mid < 0 && pre == false)
-        return d;
+  /**
+   * Returns the index of the datapoint at <code>timestamp</code>, or, if
+   * there isn't one, of the nearest datapoint before (<code>pre</code>) or
+   * after it. Returns -1 if there is no such datapoint.
+   */
+  public int findNeighborIdx(long timestamp, boolean pre) {
+    if (pre == true)
+      return mColumns.indexOfFloor(timestamp);
+    return mColumns.indexOfCeiling(timestamp);
+  }
 
-      if (mid < 0 || mid > mDatapoints.size() - 1)
-        break;
-      d = mDatapoints.get(mid);
-    }
+  /**
+   * Returns the columnar backing store of the series. The arrays may be read
+   * directly, and the screen coordinates written; everything else should go
+   * through TimeSeries. The screen coordinates are only kept here, not
+   * copied to the Datapoint view.
+   */
+  public DatapointColumns getColumns() {
+    return mColumns;
+  }
 
-    return null;
+  /**
+   * Returns a number that changes whenever the timestamps, values or stats
+   * of the series do, for use in keying caches derived from them.
+   */
+  public int getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * Returns the rows of the series selected for drawing by the last plot.
+   */
+  public Decimation getDecimation() {
+    return mDecimation;
   }
 
+  /**
+   * Returns the paths last drawn for the series.
+   */
+  public SeriesPaths getPaths() {
+    return mPaths;
+  }
+
+  /**
+   * Returns the rows of the series as Datapoints. This builds an object per
+   * row the first time it's called after the rows change, so is only for
+   * callers that need a list; the rest should read getColumns() by index.
+   */
   public ArrayList<Datapoint> getDatapoints() {
+    if (mDatapoints == null) {
+      int size = mColumns.size();
+      mDatapoints = new ArrayList<Datapoint>(size);
+      for (int i = 0; i < size; i++) {
+        mDatapoints.add(mColumns.toDatapoint(i));
+      }
+    }
     return mDatapoints;
   }
 
+
+  // Returns the row as a Datapoint: the one in the object view if there is
+  // one, or a copy of the row otherwise.
+  private Datapoint datapointAt(int i) {
+    if (mDatapoints != null)
+      return mDatapoints.get(i);
+    return mColumns.toDatapoint(i);
+  }
+
   public List<Datapoint> getVisiblePre() {
     List<Datapoint> view = null;
     if (mVisiblePreFirstIdx != Integer.MIN_VALUE
         && mVisiblePreLastIdx != Integer.MAX_VALUE) {
       try {
-        view = mDatapoints.subList(mVisiblePreFirstIdx, mVisiblePreLastIdx + 1);
+        view = getDatapoints().subList(mVisiblePreFirstIdx, mVisiblePreLastIdx + 1);
       } catch(IndexOutOfBoundsException e) {
         // nothing
       } catch(IllegalArgumentException e) {
@@ -484,7 +646,7 @@ public final class TimeSeries {
     if (mVisibleFirstIdx != Integer.MIN_VALUE
         && mVisibleLastIdx != Integer.MAX_VALUE) {
       try {
-        view = mDatapoints.subList(mVisibleFirstIdx, mVisibleLastIdx + 1);
+        view = getDatapoints().subList(mVisibleFirstIdx, mVisibleLastIdx + 1);
       } catch(IndexOutOfBoundsException e) {        
         // nothing
       } catch(IllegalArgumentException e) {
@@ -499,7 +661,7 @@ public final class TimeSeries {
     if (mVisiblePostFirstIdx != Integer.MIN_VALUE
         && mVisiblePostLastIdx != Integer.MAX_VALUE) {
       try {
-        view =mDatapoints.subList(mVisiblePostFirstIdx, mVisiblePostLastIdx + 1);
+        view = getDatapoints().subList(mVisiblePostFirstIdx, mVisiblePostLastIdx + 1);
       } catch(IndexOutOfBoundsException e) {
         // nothing
       } catch(IllegalArgumentException e) {
@@ -518,60 +680,64 @@ public final class TimeSeries {
   }
 
   public Float interpolateScreenCoord(long timestamp) {
-    Datapoint d1 = findPreNeighbor(timestamp - 1);
-    Datapoint d2 = findPostNeighbor(timestamp);
-    if (d1 == null || d2 == null)
+    int i1 = findNeighborIdx(timestamp - 1, true);
+    int i2 = findNeighborIdx(timestamp, false);
+    if (i1 < 0 || i2 < 0)
       return null;
-    return mInterpolator.interpolateY(d1.mValueScreen, d2.mValueScreen,
-        timestamp);
+    mScratch1.set(mColumns.mScreenX[i1], mColumns.mValueScreenY[i1]);
+    mScratch2.set(mColumns.mScreenX[i2], mColumns.mValueScreenY[i2]);
+    return mInterpolator.interpolateY(mScratch1, mScratch2, timestamp);
   }
 
   public Float interpolateValue(long timestamp) {
-    Datapoint d2 = findPostNeighbor(timestamp); // inclusive
-    if (d2 == null)
+    int i2 = findNeighborIdx(timestamp, false); // inclusive
+    if (i2 < 0)
       return null;
 
-    if (d2.mMillis == timestamp)
-      return new Float(d2.mValue.y);
+    if (mColumns.mMillis[i2] == timestamp)
+      return new Float(mColumns.mValue[i2]);
 
-    Datapoint d1 = findPreNeighbor(timestamp); // inclusive
-    if (d1 == null)
+    int i1 = findNeighborIdx(timestamp, true); // inclusive
+    if (i1 < 0)
       return null;
 
-    return mInterpolator.interpolateY(d1.mValue, d2.mValue, timestamp);
+    mScratch1.set((float) mColumns.mMillis[i1], mColumns.mValue[i1]);
+    mScratch2.set((float) mColumns.mMillis[i2], mColumns.mValue[i2]);
+    return mInterpolator.interpolateY(mScratch1, mScratch2, timestamp);
   }
 
   public void floatOp(Float f, AST.Opcode op, boolean pre) {
     if (f == null || f.isNaN() || f.isInfinite())
       return;
 
-    Datapoint d;
-    for (int i = 0; i < mDatapoints.size(); i++) {
-      d = mDatapoints.get(i);
+    float fv = f.floatValue();
+    float[] value = mColumns.mValue;
+    for (int i = 0; i < mColumns.size(); i++) {
       if (pre == false) {
         if (op == AST.Opcode.PLUS)
-          d.mValue.y += f;
+          value[i] += fv;
         else if (op == AST.Opcode.MINUS)
-          d.mValue.y -= f;
+          value[i] -= fv;
         else if (op == AST.Opcode.MULTIPLY)
-          d.mValue.y *= f;
+          value[i] *= fv;
         else if (op == AST.Opcode.DIVIDE) {
-          if (f != 0)
-            d.mValue.y /= f;
+          if (fv != 0)
+            value[i] /= fv;
         }
       } else {
         if (op == AST.Opcode.PLUS)
-          d.mValue.y = f + d.mValue.y;
+          value[i] = fv + value[i];
         else if (op == AST.Opcode.MINUS)
-          d.mValue.y = f - d.mValue.y;
+          value[i] = fv - value[i];
         else if (op == AST.Opcode.MULTIPLY)
-          d.mValue.y = f * d.mValue.y;
+          value[i] = fv * value[i];
         else if (op == AST.Opcode.DIVIDE) {
-          if (d.mValue.y != 0)
-            d.mValue.y = f / d.mValue.y;
+          if (value[i] != 0)
+            value[i] = fv / value[i];
         }
       }
     }
+    valuesChanged();
   }
 
   public void plusPre(Float f) {
@@ -610,33 +776,34 @@ public final class TimeSeries {
     if (l == null)
       return;
 
-    Datapoint d;
-    for (int i = 0; i < mDatapoints.size(); i++) {
-      d = mDatapoints.get(i);
+    long lv = l.longValue();
+    float[] value = mColumns.mValue;
+    for (int i = 0; i < mColumns.size(); i++) {
       if (pre == false) {
         if (op == AST.Opcode.PLUS)
-          d.mValue.y += l;
+          value[i] += lv;
         else if (op == AST.Opcode.MINUS)
-          d.mValue.y -= l;
+          value[i] -= lv;
         else if (op == AST.Opcode.MULTIPLY)
-          d.mValue.y *= l;
+          value[i] *= lv;
         else if (op == AST.Opcode.DIVIDE) {
-          if (l != 0)
-            d.mValue.y /= l;
+          if (lv != 0)
+            value[i] /= lv;
         }
       } else {
         if (op == AST.Opcode.PLUS)
-          d.mValue.y = l + d.mValue.y;
+          value[i] = lv + value[i];
         else if (op == AST.Opcode.MINUS)
-          d.mValue.y = l - d.mValue.y;
+          value[i] = lv - value[i];
         else if (op == AST.Opcode.MULTIPLY)
-          d.mValue.y = l * d.mValue.y;
+          value[i] = lv * value[i];
         else if (op == AST.Opcode.DIVIDE) {
-          if (d.mValue.y != 0)
-            d.mValue.y = l / d.mValue.y;
+          if (value[i] != 0)
+            value[i] = lv / value[i];
         }
       }
     }
+    valuesChanged();
   }
 
   public void plusPre(Long l) {
@@ -672,119 +839,182 @@ public final class TimeSeries {
   }
 
   public void previousValue() {
-    Datapoint d1, d2;
-    for (int i = mDatapoints.size() - 1; i > 0; i--) {
-      d1 = mDatapoints.get(i - 1);
-      d2 = mDatapoints.get(i);
-      d2.mValue.y = d2.mValue.y - d1.mValue.y;
+    float[] value = mColumns.mValue;
+    for (int i = mColumns.size() - 1; i > 0; i--) {
+      value[i] = value[i] - value[i - 1];
     }
+    valuesChanged();
   }
 
   public void previousTimestamp() {
-    Datapoint d1, d2;
-    for (int i = mDatapoints.size() - 1; i > 0; i--) {
-      d1 = mDatapoints.get(i - 1);
-      d2 = mDatapoints.get(i);
-      d2.mValue.y = d2.mMillis - d1.mMillis;
+    long[] millis = mColumns.mMillis;
+    float[] value = mColumns.mValue;
+    for (int i = mColumns.size() - 1; i > 0; i--) {
+      value[i] = millis[i] - millis[i - 1];
     }
-    if (mDatapoints.size() > 0) {
-      d1 = mDatapoints.get(0);
-      d1.mValue.y = 0;
+    if (mColumns.size() > 0) {
+      value[0] = 0;
     }
+    valuesChanged();
   }
 
   public void inPeriod(DateUtil.Period p) {
-    Datapoint d;
+    float[] value = mColumns.mValue;
     long ms = DateUtil.mapPeriodToLong(p);
-    for (int i = 0; i < mDatapoints.size(); i++) {
-      d = mDatapoints.get(i);
+    for (int i = 0; i < mColumns.size(); i++) {
       if (ms != 0)
-        d.mValue.y /= ms;
+        value[i] /= ms;
     }
+    valuesChanged();
   }
 
   public void asPeriod(DateUtil.Period p) {
-    Datapoint d;
+    float[] value = mColumns.mValue;
     long ms = DateUtil.mapPeriodToLong(p);
-    for (int i = 0; i < mDatapoints.size(); i++) {
-      d = mDatapoints.get(i);
-      d.mValue.y *= ms;
+    for (int i = 0; i < mColumns.size(); i++) {
+      value[i] *= ms;
     }
+    valuesChanged();
   }
 
-  // We need to gather a list of all timestamps so we can interpolate from
+  // We need to visit all timestamps of both series so we can interpolate from
   // ones series to the other, and vice versa, in order to make the operations
   // commutative
   public void timeseriesOp(TimeSeries ts, AST.Opcode op) {
-    Float f1, f2;
-    Datapoint d1;
-    ArrayList<Datapoint> pre = new ArrayList<Datapoint>();
-    ArrayList<Datapoint> range = new ArrayList<Datapoint>();
-    ArrayList<Datapoint> post = new ArrayList<Datapoint>();
-    TreeMap<Long, Boolean> timestamps = new TreeMap<Long, Boolean>();
+    int capacity = mColumns.size() + ts.mColumns.size();
+    long[] millis = new long[capacity];
+    float[] value = new float[capacity];
+    int n = merge(mColumns.mMillis, mColumns.mValue, mColumns.size(),
+        mInterpolator, ts.mColumns.mMillis, ts.mColumns.mValue, ts.mColumns
+            .size(), ts.mInterpolator, op, millis, value);
+
+    // Since the timestamps are in order, this classification yields
+    // contiguous pre, range, and post runs.
+    int nPre = 0, nRange = 0, nPost = 0;
+    DatapointColumns result = new DatapointColumns(n);
+    for (int i = 0; i < n; i++) {
+      long ms = millis[i];
+      result.add(ms, value[i], getDbRow().getId(), -1, 1);
+      if (ms < getVisibleTimestampMin() && ms < ts.getVisibleTimestampMin()) {
+        nPre++;
+      } else if (ms > getVisibleTimestampMax()
+          && ms > ts.getVisibleTimestampMax()) {
+        nPost++;
+      } else {
+        nRange++;
+      }
+    }
 
-    for (int i = 0; i < mDatapoints.size(); i++) {
-      timestamps.put(new Long(mDatapoints.get(i).mMillis), true);
-    }
-    for (int i = 0; i < ts.mDatapoints.size(); i++) {
-      timestamps.put(new Long(ts.mDatapoints.get(i).mMillis), true);
-    }
-
-    Iterator<Long> iterator = timestamps.keySet().iterator();
-    while (iterator.hasNext()) {
-      Long ms = iterator.next();
-
-      f1 = interpolateValue(ms);
-      f2 = ts.interpolateValue(ms);
-
-      // We handle invalid interpolations slightly differing depending on
-      // opcode. For example, for + and -, it could be justified that
-      // adding
-      // or subtracting to/from a datapoint that doesn't exist means that
-      // the
-      // missing value should be 0 (this assumption can certainly be
-      // challenged,
-      // but for most of the use cases for the application, I believe this
-      // is
-      // correct.) However, for * and /, should we attempt to return the
-      // identity, or 0? It's unclear, so we bail on the calculation.
-      if (op == AST.Opcode.PLUS || op == AST.Opcode.MINUS) {
-        if (f1 == null)
-          f1 = new Float(0.0f);
-        if (f2 == null)
-          f2 = new Float(0.0f);
+    setColumns(result, nPre, nRange, nPost, true);
+  }
+
+  /**
+   * Combines series <code>a</code> and <code>b</code>, given as sorted
+   * timestamp and value arrays, at the union of their timestamps. Where a
+   * series doesn't have a datapoint at a timestamp, its value is interpolated
+   * from the datapoints either side. The series are walked in step, so this is
+   * linear in the total number of datapoints.
+   * 
+   * <p>
+   * We handle invalid interpolations slightly differing depending on opcode.
+   * For example, for + and -, it could be justified that adding or
+   * subtracting to/from a datapoint that doesn't exist means that the missing
+   * value should be 0 (this assumption can certainly be challenged, but for
+   * most of the use cases for the application, I believe this is correct.)
+   * However, for * and /, should we attempt to return the identity, or 0?
+   * It's unclear, so we bail on the calculation. Non-finite values and
+   * division by zero are skipped for all opcodes.
+   * 
+   * @param outMillis
+   *          Receives the timestamps of the result; must have room for
+   *          <code>aSize + bSize</code> rows.
+   * @param outValue
+   *          Receives the values of the result, likewise.
+   * @return The number of rows in the result.
+   */
+  public static int merge(long[] aMillis, float[] aValue, int aSize,
+      TimeSeriesInterpolator aInterpolator, long[] bMillis, float[] bValue,
+      int bSize, TimeSeriesInterpolator bInterpolator, AST.Opcode op,
+      long[] outMillis, float[] outValue) {
+    boolean additive = op == AST.Opcode.PLUS || op == AST.Opcode.MINUS;
+    float[] f = new float[2];
+    int i = 0, j = 0, n = 0;
+
+    while (i < aSize || j < bSize) {
+      long ms;
+      if (j >= bSize || (i < aSize && aMillis[i] <= bMillis[j]))
+        ms = aMillis[i];
+      else
+        ms = bMillis[j];
+
+      // i and j are now the first rows at or after ms
+      boolean has1 = valueAt(aMillis, aValue, aSize, aInterpolator, i, ms, f, 0);
+      boolean has2 = valueAt(bMillis, bValue, bSize, bInterpolator, j, ms, f, 1);
+      while (i < aSize && aMillis[i] == ms)
+        i++;
+      while (j < bSize && bMillis[j] == ms)
+        j++;
+
+      if (additive) {
+        if (has1 == false) {
+          f[0] = 0.0f;
+          has1 = true;
+        }
+        if (has2 == false) {
+          f[1] = 0.0f;
+          has2 = true;
+        }
       }
-      if (f1 == null || f1.isNaN() || f1.isInfinite())
+      if (has1 == false || Float.isNaN(f[0]) || Float.isInfinite(f[0]))
         continue;
-      if (f2 == null || f2.isNaN() || f2.isInfinite())
+      if (has2 == false || Float.isNaN(f[1]) || Float.isInfinite(f[1]))
         continue;
 
-      d1 = new Datapoint(ms, f1, getDbRow().getId(), -1, 1);
-
+      float y = f[0];
       if (op == AST.Opcode.PLUS)
-        d1.mValue.y += f2;
+        y += f[1];
       else if (op == AST.Opcode.MINUS)
-        d1.mValue.y -= f2;
+        y -= f[1];
       else if (op == AST.Opcode.MULTIPLY)
-        d1.mValue.y *= f2;
+        y *= f[1];
       else if (op == AST.Opcode.DIVIDE) {
-        if (f2 == 0)
+        if (f[1] == 0)
           continue;
         else
-          d1.mValue.y /= f2;
+          y /= f[1];
       }
 
-      if (ms < getVisibleTimestampMin() && ms < ts.getVisibleTimestampMin()) {
-        pre.add(d1);
-      } else if (ms > getVisibleTimestampMax()
-          && ms > ts.getVisibleTimestampMax()) {
-        post.add(d1);
-      } else {
-        range.add(d1);
-      }
+      outMillis[n] = ms;
+      outValue[n] = y;
+      n++;
     }
+    return n;
+  }
+
+  // The equivalent of interpolateValue(ms), given that row i is the first at
+  // or after ms. Stores the value in out[slot] and returns true, or returns
+  // false if there is no value.
+  private static boolean valueAt(long[] millis, float[] value, int size,
+      TimeSeriesInterpolator interpolator, int i, long ms, float[] out, int slot) {
+    if (i >= size)
+      return false;
+    if (millis[i] == ms) {
+      out[slot] = value[i];
+      return true;
+    }
+    if (i == 0 || interpolator == null)
+      return false;
 
-    setDatapoints(pre, range, post, true);
+    float y1 = value[i - 1];
+    float y2 = value[i];
+    out[slot] = interpolator.interpolateY((float) millis[i - 1], y1,
+        (float) millis[i], y2, ms);
+    // The primitive interpolateY() returns NaN where the Tuple version would
+    // return null, unless the NaN comes from the values themselves.
+    if (Float.isNaN(out[slot]) == false)
+      return true;
+    return Float.isNaN(y1) || Float.isInfinite(y1) || Float.isNaN(y2)
+        || Float.isInfinite(y2);
   }
 
   public void timeseriesPlus(TimeSeries ts) {
@@ -824,82 +1054,120 @@ public final class TimeSeries {
   }
   
   private void interpolateBoundsToOffscreen() {
-    int nDatapoints;
-    Datapoint d1 = null;
-    Datapoint d2 = null;
+    int i1, i2;
     float iy = 0.0f;
+    long[] millis = mColumns.mMillis;
+    float[] value = mColumns.mValue;
 
-    List<Datapoint> preVisible = getVisiblePre();
-    List<Datapoint> visible = getVisible();
-    List<Datapoint> postVisible = getVisiblePost();
+    boolean preVisible = validRange(mVisiblePreFirstIdx, mVisiblePreLastIdx);
+    boolean visible = validRange(mVisibleFirstIdx, mVisibleLastIdx);
+    boolean postVisible = validRange(mVisiblePostFirstIdx,
+        mVisiblePostLastIdx);
 
-    nDatapoints = mDatapoints.size();
-    if (nDatapoints < 2)
+    if (mColumns.size() < 2)
       return;
 
-    if (postVisible != null) {
+    if (postVisible == true) {
       // datapoints after visible range to interpolate to
-      d2 = postVisible.get(0);
-      if (visible != null) {
+      i2 = mVisiblePostFirstIdx;
+      if (visible == true) {
         // also datapoints in visible range
-        d1 = visible.get(visible.size() - 1);
-      } else if (preVisible != null) {
+        i1 = mVisibleLastIdx;
+      } else if (preVisible == true) {
         // no datapoints in visible range, grab last from before the
         // visible range
-        d1 = preVisible.get(preVisible.size() - 1);
+        i1 = mVisiblePreLastIdx;
       } else {
         // no datapoints to connect it to
         return;
       }
 
-      if (d2.mMillis > d1.mMillis) {
-        iy = (d2.mValue.y - d1.mValue.y) / (d2.mMillis - d1.mMillis);
-        if (iy > 0 && d2.mValue.y > mVisibleMaxY) {
-          mVisibleMaxY = d2.mValue.y;
+      if (millis[i2] > millis[i1]) {
+        iy = (value[i2] - value[i1]) / (millis[i2] - millis[i1]);
+        if (iy > 0 && value[i2] > mVisibleMaxY) {
+          mVisibleMaxY = value[i2];
         }
-        if (iy < 0 && d2.mValue.y < mVisibleMinY) {
-          mVisibleMinY = d2.mValue.y;
+        if (iy < 0 && value[i2] < mVisibleMinY) {
+          mVisibleMinY = value[i2];
         }
       }
     }
-    if (preVisible != null) {
+    if (preVisible == true) {
       // we have a datapoint before the beginning to interpolate
-      d1 = preVisible.get(preVisible.size() - 1);
-      if (visible != null) {
+      i1 = mVisiblePreLastIdx;
+      if (visible == true) {
         // also datapoints in visible range
-        d2 = visible.get(0);
-      } else if (postVisible != null) {
+        i2 = mVisibleFirstIdx;
+      } else if (postVisible == true) {
         // no datapoints in visible range, grab first from beyond the
         // visible range
-        d2 = postVisible.get(0);
+        i2 = mVisiblePostFirstIdx;
       } else {
         // no datapoints to connect it to
         return;
       }
 
-      if (d1.mMillis < d2.mMillis) {
-        iy = (d2.mValue.y - d1.mValue.y) / (d2.mMillis - d1.mMillis);
-        if (iy < 0 && d1.mValue.y > mVisibleMaxY) {
-          mVisibleMaxY = d1.mValue.y;
+      if (millis[i1] < millis[i2]) {
+        iy = (value[i2] - value[i1]) / (millis[i2] - millis[i1]);
+        if (iy < 0 && value[i1] > mVisibleMaxY) {
+          mVisibleMaxY = value[i1];
         }
-        if (iy > 0 && d1.mValue.y < mVisibleMinY) {
-          mVisibleMinY = d1.mValue.y;
+        if (iy > 0 && value[i1] < mVisibleMinY) {
+          mVisibleMinY = value[i1];
         }
       }
     }
   }
 
-  private void copyDatapoints(TimeSeries source) {
-    mDatapoints.clear();
-    if (source.mDatapoints == null)
+  private boolean validRange(int first, int last) {
+    if (first == Integer.MIN_VALUE || last == Integer.MAX_VALUE)
+      return false;
+    return first >= 0 && first <= last && last < mColumns.size();
+  }
+
+  /**
+   * Replaces the contents of the series with the rows of
+   * <code>columns</code>, which the series takes over, the first
+   * <code>nPre</code> of which are before the visible range and the last
+   * <code>nPost</code> after. This is setDatapoints() without the
+   * Datapoints: if <code>recalc</code> is set, the rows up to the first one
+   * that differs from the previous contents keep the trend and deviation
+   * calculated for them, and only those after are folded into the stats.
+   * Passing the series' own columns back recalculates them from scratch.
+   */
+  public void setColumns(DatapointColumns columns, int nPre, int nRange,
+      int nPost, boolean recalc) {
+    int oldVisibleFirstIdx = mVisibleFirstIdx;
+    int oldVisibleLastIdx = mVisibleLastIdx;
+
+    mVersion++;
+    mDatapoints = null;
+    setIndices(nPre, nRange, nPost);
+
+    int unchanged = 0;
+    if (recalc == true && columns != mColumns) {
+      unchanged = unchangedRows(columns, oldVisibleFirstIdx,
+          oldVisibleLastIdx);
+      System.arraycopy(mColumns.mTrend, 0, columns.mTrend, 0, unchanged);
+      System.arraycopy(mColumns.mStdDev, 0, columns.mStdDev, 0, unchanged);
+    }
+    mColumns = columns;
+
+    if (recalc == true)
+      calcStatsAndBounds(unchanged);
+    else
+      invalidateStats();
+  }
+
+  private void valuesChanged() {
+    mVersion++;
+    invalidateStats();
+    if (mDatapoints == null)
       return;
 
-    for (int i = 0; i < source.mDatapoints.size(); i++) {
-      Datapoint d = new Datapoint(source.mDatapoints.get(i));
-      mDatapoints.add(d);
+    for (int i = 0; i < mDatapoints.size(); i++) {
+      mDatapoints.get(i).mValue.y = mColumns.mValue[i];
     }
-
-    return;
   }
 
   private void setColor(String color) {
@@ -916,10 +1184,173 @@ public final class TimeSeries {
     mVisiblePostLastIdx = Integer.MIN_VALUE;
   }
 
+  // Sets the indices for nPre rows before the visible range, nRange in it,
+  // and nPost after it.
+  private void setIndices(int nPre, int nRange, int nPost) {
+    resetIndices();
+    if (nPre > 0) {
+      mVisiblePreFirstIdx = 0;
+      mVisiblePreLastIdx = nPre - 1;
+    }
+    if (nRange > 0) {
+      mVisibleFirstIdx = nPre;
+      mVisibleLastIdx = nPre + nRange - 1;
+    }
+    if (nPost > 0) {
+      mVisiblePostFirstIdx = nPre + nRange;
+      mVisiblePostLastIdx = nPre + nRange + nPost - 1;
+    }
+  }
+
   private void resetMinMax() {
     mVisibleMinY = Float.MAX_VALUE;
     mVisibleMaxY = Float.MIN_VALUE;
     mVisibleMinX = Long.MAX_VALUE;
     mVisibleMaxX = Long.MIN_VALUE;
   }
+
+  private void resetStats() {
+    mValueStats = new Number.RunningStats();
+    mTimestampStats = new Number.RunningStats();
+    mValueTrend = new Number.Trend(mValueTrend.getSmoothing());
+    mStdDevWindow = new Number.WindowedStdDev(mStdDevWindow.getHistory());
+    mTimestampLast = 0;
+    mNumEntries = 0;
+    mStatsMinY = Float.MAX_VALUE;
+    mStatsMaxY = Float.MIN_VALUE;
+    mStatsMinX = Long.MAX_VALUE;
+    mStatsMaxX = Long.MIN_VALUE;
+    mStatsRows = 0;
+    mCheckpoints.clear();
+  }
+
+  private void invalidateStats() {
+    mStatsRows = 0;
+    mCheckpoints.clear();
+  }
+
+  // Rewinds the stats to the latest checkpoint at or before row, returning
+  // the row from which they need to be recalculated.
+  private int restoreCheckpoint(int row) {
+    if (row > 0 && row == mStatsRows) {
+      // nothing has changed, just continue from where we left off
+      return row;
+    }
+
+    int n = Math.min(row / CHECKPOINT_INTERVAL, mCheckpoints.size() - 1);
+    if (row <= 0 || n < 0) {
+      resetStats();
+      return 0;
+    }
+
+    int start = n * CHECKPOINT_INTERVAL;
+    mCheckpoints.get(n).restore(this);
+    while (mCheckpoints.size() > n) {
+      mCheckpoints.remove(mCheckpoints.size() - 1);
+    }
+
+    // the window is just the preceding values, so needn't be checkpointed
+    int history = mStdDevWindow.getHistory();
+    mStdDevWindow = new Number.WindowedStdDev(history);
+    for (int i = Math.max(0, start - history); i < start; i++) {
+      mStdDevWindow.update(mColumns.mValue[i]);
+    }
+
+    mStatsRows = start;
+    return start;
+  }
+
+  // Returns the number of leading rows of pre, range and post, taken
+  // together, that are the same as far as the stats are concerned as those
+  // of mColumns, bounded by the number of rows the stats currently reflect.
+  // The visible indices must already be set for the new rows.
+  private int unchangedRows(List<Datapoint> pre, List<Datapoint> range,
+      List<Datapoint> post, int oldVisibleFirstIdx, int oldVisibleLastIdx) {
+    int nPre = pre == null ? 0 : pre.size();
+    int nRange = range == null ? 0 : range.size();
+    int nPost = post == null ? 0 : post.size();
+    int n = Math.min(mStatsRows, Math.min(mColumns.size(), nPre + nRange
+        + nPost));
+    int i;
+    for (i = 0; i < n; i++) {
+      Datapoint d;
+      if (i < nPre)
+        d = pre.get(i);
+      else if (i < nPre + nRange)
+        d = range.get(i - nPre);
+      else
+        d = post.get(i - nPre - nRange);
+      if (d.mMillis != mColumns.mMillis[i] || d.mValue.y != mColumns.mValue[i]
+          || d.mNEntries != mColumns.mNEntries[i])
+        break;
+    }
+    return sameVisibleRows(i, oldVisibleFirstIdx, oldVisibleLastIdx) ? i : 0;
+  }
+
+  // As above, for rows given as columns.
+  private int unchangedRows(DatapointColumns columns, int oldVisibleFirstIdx,
+      int oldVisibleLastIdx) {
+    int n = Math.min(mStatsRows, Math.min(mColumns.size(), columns.size()));
+    int i;
+    for (i = 0; i < n; i++) {
+      if (columns.mMillis[i] != mColumns.mMillis[i]
+          || columns.mValue[i] != mColumns.mValue[i]
+          || columns.mNEntries[i] != mColumns.mNEntries[i])
+        break;
+    }
+    return sameVisibleRows(i, oldVisibleFirstIdx, oldVisibleLastIdx) ? i : 0;
+  }
+
+  // Whether the visible rows among the first n are the same under the old
+  // visible indices as under the current ones.
+  private boolean sameVisibleRows(int n, int oldVisibleFirstIdx,
+      int oldVisibleLastIdx) {
+    int oldFirst = Math.max(oldVisibleFirstIdx, 0);
+    int oldLast = Math.min(oldVisibleLastIdx, n - 1);
+    int newFirst = Math.max(mVisibleFirstIdx, 0);
+    int newLast = Math.min(mVisibleLastIdx, n - 1);
+    boolean oldEmpty = oldFirst > oldLast;
+    boolean newEmpty = newFirst > newLast;
+    if (oldEmpty != newEmpty)
+      return false;
+    return oldEmpty == true || (oldFirst == newFirst && oldLast == newLast);
+  }
+
+  // A copy of the running stats, taken before a given row was folded in.
+  private static final class StatsCheckpoint {
+    private Number.RunningStats mValueStats;
+    private Number.RunningStats mTimestampStats;
+    private Number.Trend mValueTrend;
+    private long mTimestampLast;
+    private int mNumEntries;
+    private float mMinY;
+    private float mMaxY;
+    private long mMinX;
+    private long mMaxX;
+
+    public StatsCheckpoint(TimeSeries ts) {
+      mValueStats = new Number.RunningStats(ts.mValueStats);
+      mTimestampStats = new Number.RunningStats(ts.mTimestampStats);
+      mValueTrend = new Number.Trend(ts.mValueTrend);
+      mTimestampLast = ts.mTimestampLast;
+      mNumEntries = ts.mNumEntries;
+      mMinY = ts.mStatsMinY;
+      mMaxY = ts.mStatsMaxY;
+      mMinX = ts.mStatsMinX;
+      mMaxX = ts.mStatsMaxX;
+    }
+
+    public void restore(TimeSeries ts) {
+      ts.mValueStats = new Number.RunningStats(mValueStats);
+      ts.mTimestampStats = new Number.RunningStats(mTimestampStats);
+      ts.mValueTrend = new Number.Trend(mValueTrend);
+      ts.mTimestampLast = mTimestampLast;
+      ts.mNumEntries = mNumEntries;
+      ts.mStatsMinY = mMinY;
+      ts.mStatsMaxY = mMaxY;
+      ts.mStatsMinX = mMinX;
+      ts.mStatsMaxX = mMaxX;
+    }
+  }
+
 }
\ No newline at end of file
@@ -22,41 +22,75 @@ import android.util.Log;
 import net.redgeek.android.eventrend.db.CategoryDbTable;
 import net.redgeek.android.eventrend.db.EntryDbTable;
 import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
+import net.redgeek.android.eventrend.db.SyntheticDbTable;
+import net.redgeek.android.eventrend.db.SyntheticStateDbTable;
 import net.redgeek.android.eventrend.graph.TimeSeriesPainter;
 import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+import net.redgeek.android.eventrend.synthetic.DependencyGraph;
 import net.redgeek.android.eventrend.synthetic.Formula;
 import net.redgeek.android.eventrend.synthetic.FormulaCache;
+import net.redgeek.android.eventrend.util.Cancellable;
 import net.redgeek.android.eventrend.util.DateUtil;
 import net.redgeek.android.eventrend.util.Number;
+import net.redgeek.android.eventrend.util.PeriodMath;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import net.redgeek.android.eventrend.util.Number.TrendState;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class TimeSeriesCollector {
+  // upper bound on the threads used to collect series and evaluate synthetic
+  // ones
+  private static final int MAX_WORKERS = 4;
+  // how long an idle worker is kept before its thread exits
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+  // Shared by every collector, so that each Activity that makes one doesn't
+  // add threads of its own; they exit once idle, so nothing needs shutting
+  // down.
+  private static ExecutorService sWorkers;
+
   private ArrayList<TimeSeries> mSeries;
+  private HashMap<Long, TimeSeries> mSeriesById;
 
   private long mAggregationMs;
   private int mHistory = 20;
   private float mSmoothing = 0.1f;
   private float mSensitivity = 1.0f;
   private Lock mLock;
+  private volatile TimeSeriesSnapshot mSnapshot;
   private boolean mAutoAggregation;
   private int mAutoAggregationOffset;
 
   private DatapointCache mDatapointCache;
   private FormulaCache mFormulaCache;
+  // Synthetic series calculated by updateCategoryTrend(), mapped to the
+  // earliest timestamp from which they're out of date with their sources
+  // (Long.MAX_VALUE if they're current.) Those that aren't present need to
+  // be calculated from scratch.
+  private HashMap<Long, Long> mSyntheticDirty;
+  // The dependencies between the series; the dependents and dependees of
+  // each TimeSeries are updated from it when its version changes.
+  private DependencyGraph mGraph;
+  private int mGraphVersion;
+  private boolean mParallelCollection;
   private ArrayList<TimeSeriesInterpolator> mInterpolators;
 
   private EvenTrendDbAdapter mDbh;
   private DateUtil mAutoAggSpan;
-  private Calendar mCal1;
-  private Calendar mCal2;
+  private PeriodMath mPeriods;
 
   private long mCollectionStart;
   private long mCollectionEnd;
@@ -76,18 +110,23 @@ public class TimeSeriesCollector {
   public void initialize(EvenTrendDbAdapter dbh, TimeSeriesPainter painter) {
     mDbh = dbh;
     mSeries = new ArrayList<TimeSeries>();
+    mSeriesById = new HashMap<Long, TimeSeries>();
 
     mAutoAggSpan = new DateUtil();
     mDatapointCache = new DatapointCache(mDbh);
     mFormulaCache = new FormulaCache();
+    mSyntheticDirty = new HashMap<Long, Long>();
+    mGraph = new DependencyGraph();
+    mGraphVersion = -1;
     mAutoAggregation = false;
     mAutoAggregationOffset = 0;
-    mCal1 = Calendar.getInstance();
-    mCal2 = Calendar.getInstance();
+    mPeriods = new PeriodMath();
+    mParallelCollection = true;
 
     mDefaultPainter = painter;
 
     mLock = new ReentrantLock();
+    mSnapshot = TimeSeriesSnapshot.EMPTY;
   }
 
   @Override
@@ -99,24 +138,32 @@ public class TimeSeriesCollector {
     return mDbh;
   }
 
+  public PeriodMath getPeriodMath() {
+    return mPeriods;
+  }
+
+  public DatapointCache getDatapointCache() {
+    return mDatapointCache;
+  }
+
   public void updateTimeSeriesMetaLocking(boolean disableByDefault) {
-    waitForLock();
+    lock();
     Cursor c = mDbh.fetchAllCategories();
+    CategoryDbTable.RowMapper mapper = new CategoryDbTable.RowMapper(c);
     c.moveToFirst();
     for (int i = 0; i < c.getCount(); i++) {
-      CategoryDbTable.Row row = new CategoryDbTable.Row(c);
+      CategoryDbTable.Row row = new CategoryDbTable.Row();
+      mapper.populate(row);
       updateTimeSeriesMeta(row, disableByDefault);
       c.moveToNext();
     }
     c.close();
 
-    // cycle through again, we may have had a series that was dependent on
-    // another series that was created later
-    for (int i = 0; i < mSeries.size(); i++) {
-      setDependents(mSeries.get(i));
-      setDependees(mSeries.get(i));
-    }
+    // done after all the categories are known, since a series may be
+    // dependent on another series that was created later
+    linkDependencies();
 
+    publish();
     unlock();
   }
 
@@ -131,6 +178,7 @@ public class TimeSeriesCollector {
         ts = new TimeSeries(row, mHistory, mSmoothing, mDefaultPainter);
       }
       mSeries.add(ts);
+      mSeriesById.put(Long.valueOf(row.getId()), ts);
       mDatapointCache.addCacheableCategory(row.getId(), mHistory);
     }
 
@@ -138,18 +186,23 @@ public class TimeSeriesCollector {
     setSeriesInterpolator(ts, row.getInterpolation());
 
     if (row.getSynthetic() == true) {
+      mSyntheticDirty.remove(Long.valueOf(row.getId()));
       Formula formula = mFormulaCache.getFormula(Long.valueOf(row.getId()));
       if (formula == null)
         formula = new Formula();
       formula.setFormula(row.getFormula());
       mFormulaCache.setFormula(row.getId(), formula);
+
+      ArrayList<String> names = formula.getDependentNames();
+      if (names == null)
+        names = new ArrayList<String>();
+      mGraph.setCategory(row.getId(), row.getCategoryName(), names);
+    } else {
+      mGraph.setCategory(row.getId(), row.getCategoryName(), null);
     }
 
     if (disable)
       ts.setEnabled(false);
-
-    setDependents(ts);
-    setDependees(ts);
   }
 
   public void updateTimeSeriesData(boolean flushCache) {
@@ -157,7 +210,7 @@ public class TimeSeriesCollector {
   }
 
   public void updateTimeSeriesData(long start, long end, boolean flushCache) {
-    waitForLock();
+    lock();
     for (int i = 0; i < mSeries.size(); i++) {
       TimeSeries ts = mSeries.get(i);
       if (ts != null && ts.isEnabled() == true) {
@@ -169,7 +222,7 @@ public class TimeSeriesCollector {
   }
 
   public void updateTimeSeriesData(long catId, boolean flushCache) {
-    waitForLock();
+    lock();
     updateTimeSeriesData(catId, mQueryStart, mQueryEnd, flushCache);
     unlock();
   }
@@ -184,19 +237,21 @@ public class TimeSeriesCollector {
 
   public void setSmoothing(float smoothing) {
     mSmoothing = smoothing;
-    waitForLock();
+    lock();
     for (int i = 0; i < mSeries.size(); i++) {
       mSeries.get(i).recalcStatsAndBounds(mSmoothing, mHistory);
     }
+    publish();
     unlock();
   }
 
   public void setHistory(int history) {
     mHistory = history;
-    waitForLock();
+    lock();
     for (int i = 0; i < mSeries.size(); i++) {
       mSeries.get(i).recalcStatsAndBounds(mSmoothing, mHistory);
     }
+    publish();
     unlock();
   }
 
@@ -208,23 +263,33 @@ public class TimeSeriesCollector {
     mInterpolators = list;
   }
 
-  private void waitForLock() {
-    while (lock() == false) {
-    }
-  }
-
-  public boolean lock() {
-    try {
-      return mLock.tryLock(1000L, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException e) {
-      return false;
-    }
+  public void lock() {
+    mLock.lock();
   }
 
   public void unlock() {
     mLock.unlock();
   }
 
+  /**
+   * Returns the latest snapshot of the series. This never blocks, and the
+   * snapshot returned stays the same however the collector changes
+   * afterwards; call again for a newer one.
+   */
+  public TimeSeriesSnapshot getSnapshot() {
+    return mSnapshot;
+  }
+
+  // Publishes a snapshot of the series as they are now.
+  private void publish() {
+    mLock.lock();
+    try {
+      mSnapshot = mSnapshot.next(mSeries);
+    } finally {
+      mLock.unlock();
+    }
+  }
+
   public void setAutoAggregation(boolean b) {
     mAutoAggregation = b;
   }
@@ -253,8 +318,10 @@ public class TimeSeriesCollector {
     }
 
     if (tsi != null) {
-      waitForLock();
+      lock();
       ts.setInterpolator(tsi);
+      mSyntheticDirty.clear();
+      publish();
       unlock();
     }
 
@@ -264,7 +331,7 @@ public class TimeSeriesCollector {
   public void clearSeriesLocking() {
     TimeSeries ts;
 
-    waitForLock();
+    lock();
     for (int i = 0; i < mSeries.size(); i++) {
       ts = mSeries.get(i);
       if (ts != null) {
@@ -272,12 +339,16 @@ public class TimeSeriesCollector {
       }
     }
     mSeries.clear();
+    mSeriesById.clear();
+    mGraph.clear();
+    mSyntheticDirty.clear();
+    publish();
     unlock();
   }
 
   public boolean isSeriesEnabled(long catId) {
     boolean b;
-    waitForLock();
+    lock();
     TimeSeries ts = getSeriesByIdNonlocking(catId);
     if (ts == null)
       b = false;
@@ -288,29 +359,31 @@ public class TimeSeriesCollector {
   }
 
   public void setSeriesEnabled(long catId, boolean b) {
-    waitForLock();    
+    lock();    
     TimeSeries ts = getSeriesByIdNonlocking(catId);
     if (ts != null)
       ts.setEnabled(b);
+    publish();
     unlock();
     return;
   }
 
   public void toggleSeriesEnabled(long catId) {
-    waitForLock();
+    lock();
     TimeSeries ts = getSeriesByIdNonlocking(catId);
     
     if (ts.isEnabled())
       ts.setEnabled(false);
     else
       ts.setEnabled(true);
+    publish();
     unlock();
     return;
   }
 
   public int numSeries() {
     int i;
-    waitForLock();
+    lock();
     i = mSeries.size();
     unlock();
     return i;
@@ -328,7 +401,7 @@ public class TimeSeriesCollector {
 
   public CategoryDbTable.Row getSeriesMetaLocking(int i) {
     CategoryDbTable.Row row = null;
-    waitForLock();
+    lock();
     TimeSeries ts = getSeries(i);
     row = new CategoryDbTable.Row(ts.getDbRow());
     unlock();
@@ -337,7 +410,7 @@ public class TimeSeriesCollector {
 
   public long getSeriesIdLocking(int i) {
     long id = -1;
-    waitForLock();
+    lock();
     TimeSeries ts = getSeries(i);
     if (ts != null)
       id = ts.getDbRow().getId();
@@ -346,16 +419,11 @@ public class TimeSeriesCollector {
   }
 
   private TimeSeries getSeriesByIdNonlocking(long catId) {
-    for (int i = 0; i < mSeries.size(); i++) {
-      TimeSeries ts = mSeries.get(i);
-      if (ts != null && ts.getDbRow().getId() == catId)
-        return ts;
-    }
-    return null;
+    return mSeriesById.get(Long.valueOf(catId));
   }
 
   public TimeSeries getSeriesByIdLocking(long catId) {
-    waitForLock();
+    lock();
     TimeSeries ts = getSeriesByIdNonlocking(catId);
     unlock();
     return ts;
@@ -371,7 +439,7 @@ public class TimeSeriesCollector {
   }
 
   public TimeSeries getSeriesByNameLocking(String name) {
-    waitForLock();
+    lock();
     TimeSeries ts = getSeriesByNameNonlocking(name);
     unlock();
     return ts;
@@ -393,7 +461,7 @@ public class TimeSeriesCollector {
 
   public Datapoint getVisibleFirstDatapointLocking() {
     Datapoint first = null;
-    waitForLock();
+    lock();
     for (int i = 0; i < mSeries.size(); i++) {
       TimeSeries ts = mSeries.get(i);
       if (ts != null && ts.isEnabled() == true) {
@@ -410,7 +478,7 @@ public class TimeSeriesCollector {
 
   public Datapoint getVisibleLastDatapointLocking() {
     Datapoint last = null;
-    waitForLock();
+    lock();
     for (int i = 0; i < mSeries.size(); i++) {
       TimeSeries ts = mSeries.get(i);
       if (ts != null && ts.isEnabled() == true) {
@@ -431,7 +499,7 @@ public class TimeSeriesCollector {
   }
 
   public synchronized void gatherLatestDatapointsLocking(long catId, int history) {
-    waitForLock();
+    lock();
     mDatapointCache.populateLatest(catId, history);
     TimeSeries ts = getSeriesByIdNonlocking(catId);
     if (ts == null) {
@@ -440,6 +508,9 @@ public class TimeSeriesCollector {
     }
 
     if (ts.getDbRow().getSynthetic() == false) {
+      DatapointColumns old = null;
+      if (ts.getDependees().size() > 0)
+        old = new DatapointColumns(ts.getColumns());
       ts.clearSeries();
 
       EntryDbTable.Row entry = mDbh.fetchLastCategoryEntry(catId);
@@ -453,80 +524,215 @@ public class TimeSeriesCollector {
           l = mDatapointCache.getLast(catId, history);
         }
 
-        l = aggregateDatapoints(l, ts.getDbRow().getType());
-        ts.setDatapoints(null, l, null, true);
+        DatapointColumns latest = new DatapointColumns(l.size());
+        latest.addAll(l);
+        DatapointColumns aggregated = new DatapointColumns(l.size());
+        int n = aggregateRows(latest, 0, latest.size() - 1, ts.getDbRow()
+            .getType(), aggregated);
+        ts.setColumns(aggregated, 0, n, 0, true);
       }
+
+      if (old != null)
+        markDependeesDirty(ts, changedFrom(old, ts.getColumns()));
     }
 
+    publish();
     unlock();
   }
 
   public synchronized void gatherSeriesLocking(long milliStart, long milliEnd) {
-    waitForLock();
-    gatherSeries(milliStart, milliEnd);
+    gatherSeriesLocking(milliStart, milliEnd, null);
+  }
+
+  public synchronized boolean gatherSeriesLocking(long milliStart,
+      long milliEnd, Cancellable cancel) {
+    lock();
+    boolean done = gatherSeries(milliStart, milliEnd, cancel);
     unlock();
+    return done;
   }
   
   public synchronized void gatherSeries(long milliStart, long milliEnd) {
-    ArrayList<Datapoint> pre, range, post;
-    boolean has_data;
+    gatherSeries(milliStart, milliEnd, null);
+  }
+
+  /**
+   * Collects the datapoints of every series needed for the range. If
+   * <code>cancel</code> is non-null and is cancelled, the collection stops
+   * at the next series boundary: the series already collected are left
+   * aggregated and consistent, the rest (and the synthetic series) keep their
+   * previous contents, and false is returned. The caller is expected to
+   * follow up with another collection. Interrupting the calling thread
+   * abandons the collection in the same way, leaving it interrupted.
+   */
+  public synchronized boolean gatherSeries(long milliStart, long milliEnd,
+      Cancellable cancel) {
     long oldAggregationMs = mAggregationMs;
 
+    // the sources are about to be replaced with (possibly aggregated) ranges
+    mSyntheticDirty.clear();
+
     mQueryStart = milliStart;
     mQueryEnd = milliEnd;
 
     setCollectionTimes(milliStart, milliEnd);
+    HashSet<Long> needed = neededSeries();
+    ArrayList<TimeSeries> gather = new ArrayList<TimeSeries>();
     for (int i = 0; i < mSeries.size(); i++) {
-      has_data = false;
-
       TimeSeries ts = mSeries.get(i);
       if (ts == null || ts.getDbRow().getSynthetic())
         continue;
+      if (needed.contains(Long.valueOf(ts.getDbRow().getId())) == false)
+        continue;
+
+      gather.add(ts);
+    }
 
-      if (ts.isEnabled() == false) {
-        boolean skip = true;
-        for (int j = 0; j < ts.getDependees().size(); j++) {
-          if (ts.getDependees().get(j).isEnabled() == true) {
-            skip = false;
-            break;
-          }
+    // fetch whatever's missing for all the series at once
+    long[] catIds = new long[gather.size()];
+    for (int i = 0; i < gather.size(); i++)
+      catIds[i] = gather.get(i).getDbRow().getId();
+    if (cancelled(cancel)) {
+      mAggregationMs = oldAggregationMs;
+      return false;
+    }
+    mDatapointCache.populateRanges(catIds, mCollectionStart, mCollectionEnd,
+        mAggregationMs);
+
+    // with the cache populated, each series only reads its own part of it,
+    // so they can be filled in concurrently
+    final boolean[] collected = new boolean[gather.size()];
+    ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < gather.size(); i++) {
+      final TimeSeries ts = gather.get(i);
+      final int index = i;
+      final Cancellable c = cancel;
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          if (cancelled(c))
+            return null;
+          collectFromCache(ts);
+          collected[index] = true;
+          return null;
         }
-        if (skip == true)
-          continue;
+      });
+    }
+    runCollection(tasks);
+
+    if (cancelled(cancel)) {
+      ArrayList<TimeSeries> done = new ArrayList<TimeSeries>();
+      for (int i = 0; i < gather.size(); i++) {
+        if (collected[i] == true && gather.get(i).isEnabled() == true)
+          done.add(gather.get(i));
       }
+      abandonGather(done);
+      mAggregationMs = oldAggregationMs;
+      publish();
+      return false;
+    }
+
+    generateSynthetics(needed);
+    if (Thread.currentThread().isInterrupted()) {
+      abandonGather(getAllEnabledSeries());
+      mAggregationMs = oldAggregationMs;
+      publish();
+      return false;
+    }
+    aggregateAll(getAllEnabledSeries());
+
+    mAggregationMs = oldAggregationMs;
+    publish();
 
-      mDatapointCache.populateRange(ts.getDbRow().getId(), mCollectionStart,
-          mCollectionEnd, mAggregationMs);
+    return true;
+  }
+
+  /**
+   * Sets whether gatherSeries() fills in and aggregates the series on the
+   * worker threads (the default), or one after another on the calling
+   * thread.
+   */
+  public void setParallelCollection(boolean b) {
+    mParallelCollection = b;
+  }
+
+  public boolean getParallelCollection() {
+    return mParallelCollection;
+  }
+
+  // Replaces the datapoints of ts with those in the cache for the collection
+  // range, if there are any.
+  private void collectFromCache(TimeSeries ts) {
+    ArrayList<Datapoint> pre, range, post;
+    boolean has_data = false;
+    long catId = ts.getDbRow().getId();
 
-      pre = mDatapointCache.getDataBefore(ts.getDbRow().getId(), mHistory,
-          mCollectionStart);
-      if (pre != null && pre.size() > 0)
-        has_data = true;
+    pre = mDatapointCache.getDataBefore(catId, mHistory, mCollectionStart);
+    if (pre != null && pre.size() > 0)
+      has_data = true;
 
-      range = mDatapointCache.getDataInRange(ts.getDbRow().getId(),
-          mCollectionStart, mCollectionEnd);
-      if (range != null && range.size() > 0)
-        has_data = true;
+    range = mDatapointCache.getDataInRange(catId, mCollectionStart,
+        mCollectionEnd);
+    if (range != null && range.size() > 0)
+      has_data = true;
 
-      post = mDatapointCache.getDataAfter(ts.getDbRow().getId(), 1,
-          mCollectionEnd);
-      if (post != null && range.size() > 0)
-        has_data = true;
+    post = mDatapointCache.getDataAfter(catId, 1, mCollectionEnd);
+    if (post != null && range.size() > 0)
+      has_data = true;
 
-      if (has_data == true)
-        ts.setDatapoints(pre, range, post, true);
+    if (has_data == true)
+      ts.setDatapoints(pre, range, post, true);
+  }
+
+  // Aggregates the series collected before a gather was cancelled or
+  // interrupted, so they're consistent. An interrupted thread can't wait on
+  // the workers, so then it's done on this one.
+  private void abandonGather(ArrayList<TimeSeries> done) {
+    if (Thread.currentThread().isInterrupted() == false) {
+      aggregateAll(done);
+      return;
     }
+    for (int i = 0; i < done.size(); i++) {
+      aggregateDatapoints(done.get(i));
+    }
+  }
 
-    generateSynthetics();
-    
-    ArrayList<TimeSeries> enabledSeries = getAllEnabledSeries();
-    for (int i = 0; i < enabledSeries.size(); i++) {
-      aggregateDatapoints(enabledSeries.get(i));
+  private void aggregateAll(ArrayList<TimeSeries> series) {
+    ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < series.size(); i++) {
+      final TimeSeries ts = series.get(i);
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          aggregateDatapoints(ts);
+          return null;
+        }
+      });
     }
+    runCollection(tasks);
+  }
 
-    mAggregationMs = oldAggregationMs;
+  // Runs the per-series collection tasks, in parallel unless that's been
+  // turned off.
+  private void runCollection(ArrayList<Callable<Void>> tasks) {
+    if (mParallelCollection == true) {
+      runAll(tasks);
+      return;
+    }
+    for (int i = 0; i < tasks.size(); i++) {
+      try {
+        tasks.get(i).call();
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
 
-    return;
+  // An interrupted gather is abandoned as a cancelled one is.
+  private static boolean cancelled(Cancellable cancel) {
+    if (Thread.currentThread().isInterrupted())
+      return true;
+    return cancel != null && cancel.isCancelled();
   }
 
   public Datapoint getLastDatapoint(long catId) {
@@ -560,149 +766,570 @@ public class TimeSeriesCollector {
 
     mDbh.updateCategoryTrend(catId, trendStr, newTrend);
 
-    if (ts.getDependees() != null && ts.getDependees().size() > 0) {
-      for (int i = 0; i < ts.getDependees().size(); i++) {
-        TimeSeries dependee = ts.getDependees().get(i);
+    // the synthetic series depending on this one, directly or through other
+    // synthetic series, in an order in which their sources come first
+    HashSet<Long> affected = affectedSynthetics(catId);
+    ArrayList<long[]> levels = mGraph.getLevels();
+    for (int i = 0; i < levels.size() && affected.size() > 0; i++) {
+      long[] level = levels.get(i);
+      for (int j = 0; j < level.length; j++) {
+        Long id = Long.valueOf(level[j]);
+        if (affected.remove(id) == false)
+          continue;
 
-        for (int j = 0; j < dependee.getDependents().size(); j++) {
-          TimeSeries tmp = dependee.getDependents().get(j);
-          if (tmp != null)
-            gatherLatestDatapointsLocking(tmp.getDbRow().getId(), mHistory);
-        }
+        TimeSeries dependee = getSeriesByIdNonlocking(level[j]);
+        if (dependee != null)
+          updateSyntheticTrend(dependee);
+      }
+    }
+    publish();
+  }
 
-        Formula formula = mFormulaCache.getFormula(dependee.getDbRow().getId());
-        ArrayList<Datapoint> calculated = formula.apply(dependee
-            .getDependents());
-        dependee.setDatapoints(null, calculated, null, true);
+  private void updateSyntheticTrend(TimeSeries dependee) {
+    Long id = Long.valueOf(dependee.getDbRow().getId());
+    Long dirty = mSyntheticDirty.get(id);
+    Formula formula = mFormulaCache.getFormula(id);
+    if (dirty == null) {
+      for (int j = 0; j < dependee.getDependents().size(); j++) {
+        TimeSeries tmp = dependee.getDependents().get(j);
+        if (tmp != null)
+          gatherLatestDatapointsLocking(tmp.getDbRow().getId(), mHistory);
+      }
 
-        lastTrend = dependee.getTrendStats().mTrendPrev;
-        newTrend = dependee.getTrendStats().mTrend;
-        stdDev = dependee.getValueStats().mStdDev;
+      ArrayList<Datapoint> calculated = formula.apply(dependee
+          .getDependents());
+      dependee.setDatapoints(null, calculated, null, true);
+      markDependeesDirty(dependee, Long.MIN_VALUE);
+    } else if (dirty.longValue() != Long.MAX_VALUE) {
+      // only the sources that changed have been gathered again, and only
+      // the part of the series that depends on the changes is recomputed
+      ArrayList<Datapoint> calculated = formula.apply(dependee
+          .getDependents(), dirty.longValue());
+      dependee.spliceDatapoints(dirty.longValue(), calculated);
+
+      // which in turn changes anything calculated from this series from the
+      // datapoint before the splice on
+      long from = Long.MIN_VALUE;
+      if (dirty.longValue() != Long.MIN_VALUE) {
+        DatapointColumns columns = dependee.getColumns();
+        int before = columns.indexOfFloor(dirty.longValue() - 1);
+        if (before >= 0)
+          from = columns.mMillis[before];
+      }
+      markDependeesDirty(dependee, from);
+    }
+    mSyntheticDirty.put(id, Long.valueOf(Long.MAX_VALUE));
+
+    float lastTrend = dependee.getTrendStats().mTrendPrev;
+    float newTrend = dependee.getTrendStats().mTrend;
+    float stdDev = dependee.getValueStats().mStdDev;
 
-        state = Number.getTrendState(lastTrend, newTrend, dependee.getDbRow()
-            .getGoal(), mSensitivity, stdDev);
-        trendStr = Number.mapTrendStateToString(state);
+    TrendState state = Number.getTrendState(lastTrend, newTrend, dependee
+        .getDbRow().getGoal(), mSensitivity, stdDev);
+    String trendStr = Number.mapTrendStateToString(state);
 
-        mDbh.updateCategoryTrend(dependee.getDbRow().getId(), trendStr,
-            newTrend);
+    mDbh.updateCategoryTrend(id.longValue(), trendStr, newTrend);
+  }
+
+  // Returns the ids of the synthetic series that need updating when series
+  // catId changes: those that depend on it, and the synthetic sources of any
+  // of them that haven't been calculated yet (and so will be calculated from
+  // scratch.)
+  private HashSet<Long> affectedSynthetics(long catId) {
+    HashSet<Long> affected = new HashSet<Long>();
+    ArrayList<Long> downstream = new ArrayList<Long>();
+    ArrayList<Long> upstream = new ArrayList<Long>();
+    addIds(downstream, mGraph.getDependees(catId));
+
+    while (downstream.size() > 0 || upstream.size() > 0) {
+      boolean down = downstream.size() > 0;
+      Long id = down ? downstream.remove(downstream.size() - 1) : upstream
+          .remove(upstream.size() - 1);
+      if (affected.add(id) == false)
+        continue;
+
+      if (down)
+        addIds(downstream, mGraph.getDependees(id.longValue()));
+      if (mSyntheticDirty.get(id) == null) {
+        long[] sources = mGraph.getDependents(id.longValue());
+        for (int i = 0; i < sources.length; i++) {
+          if (mGraph.isSynthetic(sources[i]))
+            upstream.add(Long.valueOf(sources[i]));
+        }
       }
     }
+    return affected;
   }
 
-  private void generateSynthetics() {
+  // Returns the ids of the enabled series, and of everything they're
+  // calculated from, directly or through other synthetic series.
+  private HashSet<Long> neededSeries() {
+    HashSet<Long> needed = new HashSet<Long>();
+    ArrayList<Long> work = new ArrayList<Long>();
     for (int i = 0; i < mSeries.size(); i++) {
-      TimeSeries synth = mSeries.get(i);
-      if (synth == null || synth.getDbRow().getSynthetic() == false
-          || synth.isEnabled() == false)
-        continue;
+      TimeSeries ts = mSeries.get(i);
+      if (ts != null && ts.isEnabled())
+        work.add(Long.valueOf(ts.getDbRow().getId()));
+    }
+
+    while (work.size() > 0) {
+      Long id = work.remove(work.size() - 1);
+      if (needed.add(id))
+        addIds(work, mGraph.getDependents(id.longValue()));
+    }
+    return needed;
+  }
+
+  private static void addIds(ArrayList<Long> list, long[] ids) {
+    for (int i = 0; i < ids.length; i++) {
+      list.add(Long.valueOf(ids[i]));
+    }
+  }
+
+  // Records that the synthetic series depending on ts need to be recomputed
+  // from the timestamp from, if they aren't already from earlier.
+  private void markDependeesDirty(TimeSeries ts, long from) {
+    if (from == Long.MAX_VALUE)
+      return;
 
-      generateSynthetic(synth);
+    for (int i = 0; i < ts.getDependees().size(); i++) {
+      Long id = Long.valueOf(ts.getDependees().get(i).getDbRow().getId());
+      Long dirty = mSyntheticDirty.get(id);
+      if (dirty != null && from < dirty.longValue())
+        mSyntheticDirty.put(id, Long.valueOf(from));
     }
   }
 
-  private void generateSynthetic(TimeSeries synth) {
-    Formula formula = mFormulaCache.getFormula(synth.getDbRow().getId());
+  // Returns the timestamp from which a formula using a series whose
+  // datapoints were old, and are now cur, needs to be recomputed: that of the
+  // datapoint before the first difference, since the values in between are
+  // interpolated from it. Long.MIN_VALUE means all of it, Long.MAX_VALUE
+  // none. Datapoints that have just dropped off the front of the latest
+  // history, rather than changed, aren't counted as differences.
+  private static long changedFrom(DatapointColumns old, DatapointColumns cur) {
+    if (old.size() == 0 || cur.size() == 0)
+      return old.size() == cur.size() ? Long.MAX_VALUE : Long.MIN_VALUE;
+    if (cur.mMillis[0] < old.mMillis[0])
+      return Long.MIN_VALUE;
+
+    int i = old.indexOfCeiling(cur.mMillis[0]);
+    int j = 0;
+    if (i < 0)
+      return Long.MIN_VALUE;
+
+    while (i < old.size() && j < cur.size() && old.mMillis[i] == cur.mMillis[j]
+        && old.mValue[i] == cur.mValue[j]
+        && old.mNEntries[i] == cur.mNEntries[j]) {
+      i++;
+      j++;
+    }
+    if (i == old.size() && j == cur.size())
+      return Long.MAX_VALUE;
+    if (j == 0)
+      return Long.MIN_VALUE;
+    return cur.mMillis[j - 1];
+  }
 
+  // A synthetic series whose stored values are out of date, and what's needed
+  // to bring them up to date.
+  private static class Refresh {
+    public TimeSeries mSynth;
+    public Formula mFormula;
+    public long mHash;
+    // the watermark of the stored values; those after it are recalculated
+    public long mAfter;
+    public ArrayList<TimeSeries> mSources;
+    public DatapointColumns mResult;
+  }
+
+  // Generates the needed synthetic series a level at a time, so that any
+  // synthetic series they're calculated from are already up to date. Each is
+  // read from the values stored for it, once those are brought up to date.
+  private void generateSynthetics(HashSet<Long> needed) {
+    ArrayList<long[]> levels = mGraph.getLevels();
+    for (int i = 0; i < levels.size(); i++) {
+      long[] ids = levels.get(i);
+      ArrayList<TimeSeries> level = new ArrayList<TimeSeries>(ids.length);
+      for (int j = 0; j < ids.length; j++) {
+        TimeSeries synth = getSeriesByIdNonlocking(ids[j]);
+        if (synth != null && needed.contains(Long.valueOf(ids[j])))
+          level.add(synth);
+      }
+
+      refreshSynthetics(level);
+      if (Thread.currentThread().isInterrupted())
+        return;
+      for (int j = 0; j < level.size(); j++) {
+        loadSynthetic(level.get(j));
+      }
+    }
+  }
+
+  // Recalculates whatever is out of date in the stored values of the series
+  // in level. The series within a level are independent, so their formulas
+  // are evaluated in parallel, but the database is only used from this
+  // thread, and no transaction is held while they are. Instead the stale
+  // values are claimed before their sources are read, so that any change to
+  // the sources after that lowers the watermark they're written with.
+  private void refreshSynthetics(ArrayList<TimeSeries> level) {
+    if (level.size() == 0)
+      return;
+
+    long[] ids = new long[level.size()];
+    for (int i = 0; i < level.size(); i++) {
+      ids[i] = level.get(i).getDbRow().getId();
+    }
+    HashMap<Long, SyntheticStateDbTable.Row> states = new HashMap<Long, SyntheticStateDbTable.Row>();
+    ArrayList<SyntheticStateDbTable.Row> rows = mDbh.fetchSyntheticStates(ids);
+    for (int i = 0; i < rows.size(); i++) {
+      states.put(Long.valueOf(rows.get(i).getCategoryId()), rows.get(i));
+    }
+
+    final ArrayList<Refresh> stale = new ArrayList<Refresh>();
+    mDbh.beginTransaction();
+    try {
+      for (int i = 0; i < level.size(); i++) {
+        Refresh r = prepareRefresh(level.get(i), states.get(Long
+            .valueOf(ids[i])));
+        if (r != null)
+          stale.add(r);
+      }
+      mDbh.setTransactionSuccessful();
+    } finally {
+      mDbh.endTransaction();
+    }
+
+    ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < stale.size(); i++) {
+      final Refresh r = stale.get(i);
+      r.mSources = new ArrayList<TimeSeries>();
+      for (int j = 0; j < r.mSynth.getDependents().size(); j++) {
+        r.mSources.add(loadStored(r.mSynth.getDependents().get(j), r.mAfter,
+            r.mFormula.getLookback()));
+      }
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          long from = Long.MIN_VALUE;
+          if (r.mAfter != SyntheticStateDbTable.VALID_NONE)
+            from = r.mAfter + 1;
+          r.mResult = r.mFormula.applyColumns(r.mSources, from);
+          return null;
+        }
+      });
+    }
+    runAll(tasks);
+    // the results are incomplete; the claims are left for the next refresh
+    // to recalculate from scratch
+    if (Thread.currentThread().isInterrupted())
+      return;
+
+    // each in its own short transaction; any lost to another writer are left
+    // for the next gather
+    for (int i = 0; i < stale.size(); i++) {
+      Refresh r = stale.get(i);
+      DatapointColumns result = r.mResult;
+      if (result == null)
+        result = new DatapointColumns(0);
+      mDbh.replaceSyntheticValues(r.mSynth.getDbRow().getId(), r.mHash,
+          r.mAfter, result.mMillis, result.mValue, result.size());
+    }
+  }
+
+  // Returns what's needed to recalculate the stored values of synth, whose
+  // state is as given, or null if they're current or have changed since the
+  // state was read. Those returned are claimed for recalculation.
+  private Refresh prepareRefresh(TimeSeries synth,
+      SyntheticStateDbTable.Row state) {
+    long id = synth.getDbRow().getId();
+    Formula formula = mFormulaCache.getFormula(id);
+    if (formula == null)
+      return null;
+
+    Refresh r = new Refresh();
+    r.mSynth = synth;
+    r.mFormula = formula;
+    r.mHash = formulaHash(synth);
+    r.mAfter = SyntheticStateDbTable.VALID_NONE;
+    if (state != null && state.getFormulaHash() == r.mHash)
+      r.mAfter = state.getValidTo();
+    if (r.mAfter == SyntheticStateDbTable.VALID_ALL)
+      return null;
+    if (mDbh.claimSyntheticValues(id, state) == false)
+      return null;
+    return r;
+  }
+
+  // Identifies what the stored values of synth are calculated from, other
+  // than the datapoints themselves: its formula, and which categories its
+  // sources are and how they're interpolated.
+  private static long formulaHash(TimeSeries synth) {
+    long hash = String.valueOf(synth.getDbRow().getFormula()).hashCode();
+    for (int i = 0; i < synth.getDependents().size(); i++) {
+      CategoryDbTable.Row row = synth.getDependents().get(i).getDbRow();
+      hash = hash * 31 + row.getId();
+      hash = hash * 31 + String.valueOf(row.getInterpolation()).hashCode();
+    }
+    if (hash == SyntheticStateDbTable.HASH_PENDING)
+      hash++;
+    return hash;
+  }
+
+  // Returns a copy of ts holding what's stored of it -- its entries, or its
+  // stored values if it's synthetic -- from as far back as a formula with
+  // the given lookback needs to be recalculated after the timestamp after.
+  private TimeSeries loadStored(TimeSeries ts, long after, int lookback) {
+    long catId = ts.getDbRow().getId();
+    boolean synthetic = ts.getDbRow().getSynthetic();
+    Cursor c;
+
+    long start = Long.MIN_VALUE;
+    if (after != SyntheticStateDbTable.VALID_NONE) {
+      if (synthetic)
+        c = mDbh.fetchSyntheticValuesBefore(catId, after + 1, lookback + 1);
+      else
+        c = mDbh.fetchCategoryEntriesBefore(catId, after + 1, lookback + 1);
+      if (c.getCount() > 0) {
+        c.moveToLast();
+        start = c.getLong(c.getColumnIndexOrThrow(EntryDbTable.KEY_TIMESTAMP));
+      }
+      c.close();
+    }
+
+    ArrayList<Datapoint> datapoints = new ArrayList<Datapoint>();
+    if (synthetic) {
+      c = mDbh.fetchSyntheticValuesRange(catId, start, Long.MAX_VALUE);
+      int timestampIdx = c.getColumnIndexOrThrow(SyntheticDbTable.KEY_TIMESTAMP);
+      int valueIdx = c.getColumnIndexOrThrow(SyntheticDbTable.KEY_VALUE);
+      c.moveToFirst();
+      for (int i = 0; i < c.getCount(); i++) {
+        datapoints.add(new Datapoint(c.getLong(timestampIdx), c
+            .getFloat(valueIdx), catId, -1, 1));
+        c.moveToNext();
+      }
+    } else {
+      c = mDbh.fetchCategoryEntriesRange(catId, start, Long.MAX_VALUE);
+      EntryDbTable.RowMapper mapper = new EntryDbTable.RowMapper(c);
+      EntryDbTable.Row entry = new EntryDbTable.Row();
+      c.moveToFirst();
+      for (int i = 0; i < c.getCount(); i++) {
+        mapper.populate(entry);
+        datapoints.add(new Datapoint(entry.getTimestamp(), entry.getValue(),
+            catId, entry.getId(), entry.getNEntries()));
+        c.moveToNext();
+      }
+    }
+    c.close();
+
+    TimeSeries copy = new TimeSeries(ts.getDbRow(), mHistory, mSmoothing, ts
+        .getPainter());
+    copy.setInterpolator(ts.getInterpolator());
+    copy.setDatapoints(null, datapoints, null, false);
+    return copy;
+  }
+
+  // Reads the stored values of synth over the span gathered of its sources,
+  // split, as the sources are, into those before, within and after the
+  // visible range.
+  private void loadSynthetic(TimeSeries synth) {
+    long id = synth.getDbRow().getId();
     long ms;
+    long firstMs = Long.MAX_VALUE;
+    long lastMs = Long.MIN_VALUE;
     long firstVisibleMs = Long.MAX_VALUE;
     long lastVisibleMs = Long.MIN_VALUE;
 
     for (int j = 0; j < synth.getDependents().size(); j++) {
       TimeSeries ts = synth.getDependents().get(j);
-      List<Datapoint> range = ts.getVisible();
+      DatapointColumns columns = ts.getColumns();
+      if (columns.size() > 0) {
+        firstMs = Math.min(firstMs, columns.mMillis[0]);
+        lastMs = Math.max(lastMs, columns.mMillis[columns.size() - 1]);
+      }
 
-      if (range != null) {
-        ms = range.get(0).mMillis;
+      int first = ts.getVisibleFirstIdx();
+      int last = ts.getVisibleLastIdx();
+      if (first >= 0 && first <= last && last < columns.size()) {
+        ms = columns.mMillis[first];
         if (ms < firstVisibleMs)
           firstVisibleMs = ms;
-        ms = range.get(range.size() - 1).mMillis;
+        ms = columns.mMillis[last];
         if (ms > lastVisibleMs)
           lastVisibleMs = ms;
       }
     }
 
-    ArrayList<Datapoint> calculated = formula.apply(synth.getDependents());
-    ArrayList<Datapoint> pre = new ArrayList<Datapoint>();
-    ArrayList<Datapoint> visible = new ArrayList<Datapoint>();
-    ArrayList<Datapoint> post = new ArrayList<Datapoint>();
+    // the values come back in time order, so each section is contiguous
+    DatapointColumns values = new DatapointColumns();
+    int nPre = 0;
+    int nVisible = 0;
+    if (firstMs <= lastMs) {
+      Cursor c = mDbh.fetchSyntheticValuesRange(id, firstMs, lastMs);
+      int timestampIdx = c.getColumnIndexOrThrow(SyntheticDbTable.KEY_TIMESTAMP);
+      int valueIdx = c.getColumnIndexOrThrow(SyntheticDbTable.KEY_VALUE);
+      values.ensureCapacity(c.getCount());
+      c.moveToFirst();
+      for (int j = 0; j < c.getCount(); j++) {
+        ms = c.getLong(timestampIdx);
+        int i = values.add(ms, c.getFloat(valueIdx), id, -1, 1);
+        values.mSynthetic[i] = true;
+        if (ms < firstVisibleMs)
+          nPre++;
+        else if (ms <= lastVisibleMs)
+          nVisible++;
+        c.moveToNext();
+      }
+      c.close();
+    }
 
-    for (int j = 0; j < calculated.size(); j++) {
-      Datapoint d = calculated.get(j);
-      d.mCatId = synth.getDbRow().getId();
-      d.mSynthetic = true;
-      if (d.mMillis < firstVisibleMs)
-        pre.add(d);
-      else if (d.mMillis <= lastVisibleMs)
-        visible.add(d);
-      else
-        post.add(d);
+    aggregateSections(synth, values, nPre, nVisible, values.size() - nPre
+        - nVisible);
+  }
+
+  // Runs the tasks on the worker threads, or on this one if there's no more
+  // than one of either.
+  private void runAll(ArrayList<Callable<Void>> tasks) {
+    if (tasks.size() == 0)
+      return;
+    if (tasks.size() == 1 || workerCount() == 1) {
+      for (int i = 0; i < tasks.size(); i++) {
+        try {
+          tasks.get(i).call();
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return;
     }
 
-    pre = aggregateDatapoints(pre, synth.getDbRow().getType());
-    visible = aggregateDatapoints(visible, synth.getDbRow().getType());
-    post = aggregateDatapoints(post, synth.getDbRow().getType());
+    ExecutorService workers = getWorkers();
+    ArrayList<Future<Void>> results = new ArrayList<Future<Void>>(tasks
+        .size());
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        results.add(workers.submit(tasks.get(i)));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        results.get(i).get();
+      }
+    } catch (InterruptedException e) {
+      // leave it for the caller to abandon what it was doing
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      // whatever's left once one fails or this is interrupted isn't needed
+      for (int i = 0; i < results.size(); i++) {
+        results.get(i).cancel(true);
+      }
+    }
+  }
 
-    synth.setDatapoints(pre, visible, post, true);
+  private static int workerCount() {
+    return Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime()
+        .availableProcessors()));
   }
 
-  private void aggregateDatapoints(TimeSeries ts) {
-    ArrayList<Datapoint> pre;
-    ArrayList<Datapoint> range;
-    ArrayList<Datapoint> post;
-
-    pre = aggregateDatapoints(ts.getVisiblePre(), ts.getDbRow().getType());
-    range = aggregateDatapoints(ts.getVisible(), ts.getDbRow().getType());
-    post = aggregateDatapoints(ts.getVisiblePost(), ts.getDbRow().getType());
-    ts.setDatapoints(pre, range, post, true);
-    
-    return;
+  private static synchronized ExecutorService getWorkers() {
+    if (sWorkers == null) {
+      int n = workerCount();
+      ThreadPoolExecutor workers = new ThreadPoolExecutor(n, n,
+          WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "collector");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      workers.allowCoreThreadTimeOut(true);
+      sWorkers = workers;
+    }
+    return sWorkers;
   }
 
-  private ArrayList<Datapoint> aggregateDatapoints(List<Datapoint> list,
-      String type) {
-    Datapoint accumulator = null;
-    Datapoint d = null;
+  private void aggregateDatapoints(TimeSeries ts) {
+    DatapointColumns columns = ts.getColumns();
+    int nPre = sectionSize(ts.getVisiblePreFirstIdx(), ts
+        .getVisiblePreLastIdx(), columns);
+    int nRange = sectionSize(ts.getVisibleFirstIdx(), ts.getVisibleLastIdx(),
+        columns);
+    int nPost = sectionSize(ts.getVisiblePostFirstIdx(), ts
+        .getVisiblePostLastIdx(), columns);
+    aggregateSections(ts, columns, nPre, nRange, nPost);
+  }
 
-    ArrayList<Datapoint> newList = new ArrayList<Datapoint>();
+  private static int sectionSize(int first, int last, DatapointColumns columns) {
+    if (first < 0 || first > last || last >= columns.size())
+      return 0;
+    return last - first + 1;
+  }
 
-    if (list == null)
-      return newList;
-    
-    if (mAggregationMs == 0) {
-      newList.addAll(list);
-      return newList;
-    }
+  // Replaces the datapoints of ts with the rows of columns, the first nPre
+  // before the visible range, the next nRange in it and the nPost after it,
+  // each section aggregated by the current aggregation period.
+  private void aggregateSections(TimeSeries ts, DatapointColumns columns,
+      int nPre, int nRange, int nPost) {
+    String type = ts.getDbRow().getType();
+    DatapointColumns aggregated = new DatapointColumns(nPre + nRange + nPost);
+
+    int aggPre = aggregateRows(columns, 0, nPre - 1, type, aggregated);
+    int aggRange = aggregateRows(columns, nPre, nPre + nRange - 1, type,
+        aggregated);
+    int aggPost = aggregateRows(columns, nPre + nRange, nPre + nRange + nPost
+        - 1, type, aggregated);
+    ts.setColumns(aggregated, aggPre, aggRange, aggPost, true);
+  }
 
-    for (int i = 0; i < list.size(); i++) {
-      d = list.get(i);
+  // Appends the rows [first, last] of src to dst, combining those in the same
+  // aggregation period into one, and returns the number of rows appended.
+  private int aggregateRows(DatapointColumns src, int first, int last,
+      String type, DatapointColumns dst) {
+    if (first < 0 || last < first)
+      return 0;
 
-      if (i == 0) {
-        accumulator = new Datapoint(d);
-        continue;
+    int before = dst.size();
+    if (mAggregationMs == 0) {
+      for (int i = first; i <= last; i++) {
+        dst.add(src, i);
       }
+      return dst.size() - before;
+    }
 
-      if (inSameAggregationPeriod(accumulator, d) == false) {
-        newList.add(accumulator);
-        accumulator = new Datapoint(d);
-        accumulator.mNEntries = 1;
-      } else {
-        if (type.equals(CategoryDbTable.KEY_TYPE_SUM)) {
-          accumulator.mValue.y += d.mValue.y;
-          accumulator.mNEntries++;
-        } else if (type.equals(CategoryDbTable.KEY_TYPE_AVERAGE)) {
-          if (accumulator.mNEntries + d.mNEntries != 0) {
-            accumulator.mNEntries++;
-            float oldMean = accumulator.mValue.y;
-            accumulator.mValue.y += ((d.mValue.y - oldMean) / accumulator.mNEntries);
-          }
+    boolean sum = type.equals(CategoryDbTable.KEY_TYPE_SUM);
+    boolean average = type.equals(CategoryDbTable.KEY_TYPE_AVERAGE);
+    long periodStart = 0;
+    long periodEnd = 0;
+    int acc = -1;
+
+    // the bounds of the accumulator's period are found once, rather than for
+    // every datapoint compared against it
+    Period p = DateUtil.mapLongToPeriod(mAggregationMs);
+    for (int i = first; i <= last; i++) {
+      long ms = src.mMillis[i];
+      if (acc < 0 || ms < periodStart || ms >= periodEnd) {
+        acc = dst.add(src, i);
+        // the first row keeps its entries
+        if (i > first)
+          dst.mNEntries[acc] = 1;
+        periodStart = mPeriods.periodStart(ms, p);
+        periodEnd = mPeriods.nextPeriodStart(ms, p);
+      } else if (sum) {
+        dst.mValue[acc] += src.mValue[i];
+        dst.mNEntries[acc]++;
+      } else if (average) {
+        if (dst.mNEntries[acc] + src.mNEntries[i] != 0) {
+          dst.mNEntries[acc]++;
+          float oldMean = dst.mValue[acc];
+          dst.mValue[acc] += ((src.mValue[i] - oldMean) / dst.mNEntries[acc]);
         }
       }
     }
 
-    if (accumulator != null)
-      newList.add(accumulator);
-
-    return newList;
+    return dst.size() - before;
   }
 
   private void setCollectionTimes(long milliStart, long milliEnd) {
@@ -735,19 +1362,8 @@ public class TimeSeriesCollector {
     if (mAggregationMs != 0) {
       Period p = DateUtil.mapLongToPeriod(mAggregationMs);
 
-      mCal1.setTimeInMillis(milliStart);
-      DateUtil.setToPeriodStart(mCal1, p);
-      milliStart = mCal1.getTimeInMillis();
-
-      mCal2.setTimeInMillis(milliEnd);
-      DateUtil.setToPeriodStart(mCal2, p);
-
-      int step = 1;
-      if (p == Period.QUARTER)
-        step = 3;
-      mCal2.add(DateUtil.mapLongToCal(mAggregationMs), step);
-
-      milliEnd = mCal2.getTimeInMillis();
+      milliStart = mPeriods.periodStart(milliStart, p);
+      milliEnd = mPeriods.nextPeriodStart(milliEnd, p);
     }
 
     mCollectionStart = milliStart;
@@ -756,53 +1372,38 @@ public class TimeSeriesCollector {
     return;
   }
 
-  private boolean inSameAggregationPeriod(Datapoint d1, Datapoint d2) {
-    if (d1 == null || d2 == null)
-      return false;
-
-    mCal1.setTimeInMillis(d1.mMillis);
-    mCal2.setTimeInMillis(d2.mMillis);
-    return DateUtil.inSamePeriod(mCal1, mCal2, mAggregationMs);
-  }
-
-  private void setDependents(TimeSeries synth) {
-    if (synth.getDbRow().getSynthetic() == false)
-      return;
-
-    Formula formula = mFormulaCache.getFormula(synth.getDbRow().getId());
-    ArrayList<String> names = formula.getDependentNames();
-    if (names == null)
+  // Brings the dependents and dependees of each series, and the dependents
+  // recorded in the database, up to date with the dependency graph, if it's
+  // changed.
+  private void linkDependencies() {
+    int version = mGraph.getVersion();
+    if (version == mGraphVersion)
       return;
 
-    synth.getDependents().clear();
     for (int i = 0; i < mSeries.size(); i++) {
       TimeSeries ts = mSeries.get(i);
-      if (ts == null || ts == synth)
+      if (ts == null)
         continue;
 
-      if (names.contains(ts.getDbRow().getCategoryName()))
-        synth.addDependent(ts);
-    }
+      long id = ts.getDbRow().getId();
+      ts.getDependents().clear();
+      ts.getDependees().clear();
+      linkIds(ts.getDependents(), mGraph.getDependents(id));
+      linkIds(ts.getDependees(), mGraph.getDependees(id));
 
-    return;
+      // so that changes to the sources invalidate the stored values
+      if (ts.getDbRow().getSynthetic())
+        mDbh.setSyntheticDependents(id, mGraph.getDependents(id));
+    }
+    mGraphVersion = version;
+    mSyntheticDirty.clear();
   }
 
-  private void setDependees(TimeSeries ts) {
-    ts.getDependees().clear();
-    for (int i = 0; i < mSeries.size(); i++) {
-      TimeSeries dependee = getSeries(i);
-      if (ts == null || dependee == null || ts == dependee)
-        continue;
-
-      if (dependee.getDbRow().getSynthetic() == true) {
-        Formula formula = mFormulaCache.getFormula(dependee.getDbRow().getId());
-        ArrayList<String> names = formula.getDependentNames();
-
-        if (names != null && names.contains(ts.getDbRow().getCategoryName()))
-          ts.addDependee(dependee);
-      }
+  private void linkIds(ArrayList<TimeSeries> list, long[] ids) {
+    for (int i = 0; i < ids.length; i++) {
+      TimeSeries ts = getSeriesByIdNonlocking(ids[i]);
+      if (ts != null)
+        list.add(ts);
     }
-
-    return;
   }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.redgeek.android.eventrend.primitives;
+
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A copy of every series in a TimeSeriesCollector as of one point in time,
+ * for drawing from without holding the collector's lock. The collector
+ * publishes a new snapshot whenever it changes its series, and the copies in
+ * it are never touched by the collector again, so a snapshot's datapoints and
+ * stats don't change once it's been published.
+ *
+ * <p>
+ * Only the series that have changed since the previous snapshot are copied;
+ * the rest are shared with it. The copies are meant for a single reader (the
+ * UI thread): drawing a series still writes its screen coordinates and
+ * decimated rows into the copy.
+ *
+ * @author barclay
+ *
+ */
+public final class TimeSeriesSnapshot {
+  public static final TimeSeriesSnapshot EMPTY = new TimeSeriesSnapshot(0,
+      new Entry[0]);
+
+  // A copy of a series, along with what it was copied from, so that the next
+  // snapshot can tell whether it's still current.
+  private static final class Entry {
+    final TimeSeries mSource;
+    final int mVersion;
+    final CategoryDbTable.Row mRow;
+    final TimeSeriesInterpolator mInterpolator;
+    final boolean mEnabled;
+    final TimeSeries mCopy;
+
+    Entry(TimeSeries source) {
+      mSource = source;
+      mVersion = source.getVersion();
+      mRow = source.getDbRow();
+      mInterpolator = source.getInterpolator();
+      mEnabled = source.isEnabled();
+      mCopy = new TimeSeries(source);
+    }
+
+    boolean isCurrent(TimeSeries source) {
+      return mSource == source && mVersion == source.getVersion()
+          && mRow == source.getDbRow()
+          && mInterpolator == source.getInterpolator()
+          && mEnabled == source.isEnabled();
+    }
+  }
+
+  private final int mVersion;
+  private final Entry[] mEntries;
+  private final ArrayList<TimeSeries> mSeries;
+  private final ArrayList<TimeSeries> mEnabled;
+  private final HashMap<Long, TimeSeries> mById;
+
+  private TimeSeriesSnapshot(int version, Entry[] entries) {
+    mVersion = version;
+    mEntries = entries;
+    mSeries = new ArrayList<TimeSeries>(entries.length);
+    mEnabled = new ArrayList<TimeSeries>();
+    mById = new HashMap<Long, TimeSeries>();
+    for (int i = 0; i < entries.length; i++) {
+      TimeSeries ts = entries[i].mCopy;
+      mSeries.add(ts);
+      if (ts.isEnabled() == true)
+        mEnabled.add(ts);
+      mById.put(Long.valueOf(ts.getDbRow().getId()), ts);
+    }
+  }
+
+  /**
+   * Returns the snapshot following this one, of <code>series</code>. Series
+   * unchanged since this snapshot was taken aren't copied again, and if none
+   * of them have changed this snapshot itself is returned. The caller must
+   * keep <code>series</code> from being modified while this runs.
+   */
+  TimeSeriesSnapshot next(ArrayList<TimeSeries> series) {
+    HashMap<TimeSeries, Entry> previous = new HashMap<TimeSeries, Entry>();
+    for (int i = 0; i < mEntries.length; i++) {
+      previous.put(mEntries[i].mSource, mEntries[i]);
+    }
+
+    boolean changed = series.size() != mEntries.length;
+    Entry[] entries = new Entry[series.size()];
+    for (int i = 0; i < entries.length; i++) {
+      TimeSeries ts = series.get(i);
+      Entry e = previous.get(ts);
+      if (e == null || e.isCurrent(ts) == false)
+        e = new Entry(ts);
+      if (i >= mEntries.length || e != mEntries[i])
+        changed = true;
+      entries[i] = e;
+    }
+
+    if (changed == false)
+      return this;
+    return new TimeSeriesSnapshot(mVersion + 1, entries);
+  }
+
+  /**
+   * Returns a number that's incremented each time a changed snapshot is
+   * published.
+   */
+  public int getVersion() {
+    return mVersion;
+  }
+
+  public int numSeries() {
+    return mSeries.size();
+  }
+
+  public TimeSeries getSeries(int i) {
+    if (i < 0 || i >= mSeries.size())
+      return null;
+    return mSeries.get(i);
+  }
+
+  public TimeSeries getSeriesById(long catId) {
+    return mById.get(Long.valueOf(catId));
+  }
+
+  public boolean isSeriesEnabled(long catId) {
+    TimeSeries ts = getSeriesById(catId);
+    return ts != null && ts.isEnabled();
+  }
+
+  /**
+   * Returns every series, in the collector's order. The list must not be
+   * modified.
+   */
+  public ArrayList<TimeSeries> getAllSeries() {
+    return mSeries;
+  }
+
+  /**
+   * Returns the enabled series, in the collector's order. The list must not
+   * be modified.
+   */
+  public ArrayList<TimeSeries> getAllEnabledSeries() {
+    return mEnabled;
+  }
+}
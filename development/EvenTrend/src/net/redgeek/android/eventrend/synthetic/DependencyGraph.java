@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.synthetic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * The dependencies between categories given by the formulas of the synthetic
+ * ones, keyed by category id. Each category is registered with its name and,
+ * if it's synthetic, the names of the series its formula refers to. The edges
+ * and the evaluation order are only rebuilt, on the next query, after a
+ * category is added or removed, or its name or formula changes.
+ *
+ * <p>
+ * The synthetic categories are ordered in levels: those in level 0 only
+ * depend on regular categories, and those in level n on categories in levels
+ * below n, so the categories within a level can be evaluated independently of
+ * each other. A synthetic category that depends on itself, directly or
+ * through other synthetic categories, can't be evaluated; it's reported by
+ * isCyclic() and left out of the levels, along with any that depend on it.
+ *
+ * @author barclay
+ *
+ */
+public class DependencyGraph {
+  private static final long[] EMPTY = new long[0];
+
+  private static class Node {
+    public long mId;
+    public String mName;
+    // the series names in the formula, or null if the category isn't
+    // synthetic
+    public ArrayList<String> mDependentNames;
+
+    public long[] mDependents = EMPTY;
+    public long[] mDependees = EMPTY;
+    public boolean mCyclic;
+
+    // scratch space for rebuild()
+    public ArrayList<Node> mIn = new ArrayList<Node>();
+    public ArrayList<Node> mOut = new ArrayList<Node>();
+    public int mPending;
+  }
+
+  private LinkedHashMap<Long, Node> mNodes;
+  private ArrayList<long[]> mLevels;
+  private boolean mStale;
+  private int mVersion;
+
+  public DependencyGraph() {
+    mNodes = new LinkedHashMap<Long, Node>();
+    mLevels = new ArrayList<long[]>();
+  }
+
+  /**
+   * Adds or updates a category. <code>dependentNames</code> are the names of
+   * the series in its formula if it's synthetic, or null otherwise.
+   *
+   * @return true if this changed the graph.
+   */
+  public boolean setCategory(long id, String name,
+      ArrayList<String> dependentNames) {
+    Long key = Long.valueOf(id);
+    Node n = mNodes.get(key);
+    if (n != null && equals(n.mName, name)
+        && equals(n.mDependentNames, dependentNames))
+      return false;
+
+    if (n == null) {
+      n = new Node();
+      n.mId = id;
+      mNodes.put(key, n);
+    }
+    n.mName = name;
+    n.mDependentNames = null;
+    if (dependentNames != null)
+      n.mDependentNames = new ArrayList<String>(dependentNames);
+    mStale = true;
+    return true;
+  }
+
+  public void removeCategory(long id) {
+    if (mNodes.remove(Long.valueOf(id)) != null)
+      mStale = true;
+  }
+
+  public void clear() {
+    mNodes.clear();
+    mStale = true;
+  }
+
+  /**
+   * Returns a number that changes whenever the edges are rebuilt, so callers
+   * can tell whether anything they've derived from them is out of date.
+   */
+  public int getVersion() {
+    rebuild();
+    return mVersion;
+  }
+
+  public boolean isSynthetic(long id) {
+    Node n = mNodes.get(Long.valueOf(id));
+    return n != null && n.mDependentNames != null;
+  }
+
+  public boolean isCyclic(long id) {
+    rebuild();
+    Node n = mNodes.get(Long.valueOf(id));
+    return n != null && n.mCyclic;
+  }
+
+  /**
+   * Returns the ids of the categories the formula of category <code>id</code>
+   * refers to. The array must not be modified.
+   */
+  public long[] getDependents(long id) {
+    rebuild();
+    Node n = mNodes.get(Long.valueOf(id));
+    return n == null ? EMPTY : n.mDependents;
+  }
+
+  /**
+   * Returns the ids of the synthetic categories whose formulas refer to
+   * category <code>id</code>. The array must not be modified.
+   */
+  public long[] getDependees(long id) {
+    rebuild();
+    Node n = mNodes.get(Long.valueOf(id));
+    return n == null ? EMPTY : n.mDependees;
+  }
+
+  /**
+   * Returns the ids of the synthetic categories that can be evaluated,
+   * grouped into levels in evaluation order. Neither the list nor the arrays
+   * must be modified.
+   */
+  public ArrayList<long[]> getLevels() {
+    rebuild();
+    return mLevels;
+  }
+
+  private void rebuild() {
+    if (mStale == false)
+      return;
+
+    // as in the formulas themselves, series are matched by name, and a name
+    // may match more than one category
+    HashMap<String, ArrayList<Node>> byName = new HashMap<String, ArrayList<Node>>();
+    for (Node n : mNodes.values()) {
+      n.mIn.clear();
+      n.mOut.clear();
+      n.mCyclic = false;
+      ArrayList<Node> named = byName.get(n.mName);
+      if (named == null) {
+        named = new ArrayList<Node>();
+        byName.put(n.mName, named);
+      }
+      named.add(n);
+    }
+
+    for (Node n : mNodes.values()) {
+      if (n.mDependentNames == null)
+        continue;
+      for (int i = 0; i < n.mDependentNames.size(); i++) {
+        ArrayList<Node> named = byName.get(n.mDependentNames.get(i));
+        for (int j = 0; named != null && j < named.size(); j++) {
+          Node d = named.get(j);
+          if (d == n)
+            n.mCyclic = true;
+          else if (n.mIn.contains(d) == false) {
+            n.mIn.add(d);
+            d.mOut.add(n);
+          }
+        }
+      }
+    }
+
+    // Kahn's algorithm, a level at a time. Only synthetic dependents hold a
+    // category back.
+    ArrayList<Node> ready = new ArrayList<Node>();
+    for (Node n : mNodes.values()) {
+      n.mDependents = toIds(n.mIn);
+      n.mDependees = toIds(n.mOut);
+      if (n.mDependentNames == null)
+        continue;
+
+      n.mPending = 0;
+      for (int i = 0; i < n.mIn.size(); i++) {
+        if (n.mIn.get(i).mDependentNames != null)
+          n.mPending++;
+      }
+      if (n.mPending == 0 && n.mCyclic == false)
+        ready.add(n);
+    }
+
+    mLevels = new ArrayList<long[]>();
+    while (ready.size() > 0) {
+      mLevels.add(toIds(ready));
+
+      ArrayList<Node> next = new ArrayList<Node>();
+      for (int i = 0; i < ready.size(); i++) {
+        ArrayList<Node> out = ready.get(i).mOut;
+        for (int j = 0; j < out.size(); j++) {
+          Node d = out.get(j);
+          d.mPending--;
+          if (d.mPending == 0 && d.mCyclic == false)
+            next.add(d);
+        }
+      }
+      ready = next;
+    }
+
+    // anything synthetic that wasn't reached is in, or depends on, a cycle
+    for (Node n : mNodes.values()) {
+      if (n.mDependentNames != null && n.mPending != 0)
+        n.mCyclic = true;
+      n.mIn.clear();
+      n.mOut.clear();
+    }
+    mStale = false;
+    mVersion++;
+  }
+
+  private static long[] toIds(ArrayList<Node> nodes) {
+    if (nodes.size() == 0)
+      return EMPTY;
+    long[] ids = new long[nodes.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = nodes.get(i).mId;
+    }
+    return ids;
+  }
+
+  private static boolean equals(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
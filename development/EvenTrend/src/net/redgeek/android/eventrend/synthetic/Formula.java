@@ -19,24 +19,24 @@ package net.redgeek.android.eventrend.synthetic;
 import java.util.ArrayList;
 
 import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
-import net.redgeek.android.eventrend.synthetic.AST.BinaryOperation;
-import net.redgeek.android.eventrend.synthetic.AST.GroupOperand;
-import net.redgeek.android.eventrend.synthetic.AST.Operand;
-import net.redgeek.android.eventrend.synthetic.AST.Operation;
-import net.redgeek.android.eventrend.synthetic.AST.UnaryOperation;
-import net.redgeek.android.eventrend.util.DateUtil;
 
 /**
  * A representation of formulas for generating synthetic time series. Note that
  * the operations are pretty basic, so I'm not using whatever the java
  * equivalent to [f]lex/{bison|yacc} is.
  * 
+ * <p>
+ * The formula is parsed and compiled to a FormulaProgram when it's set, so
+ * applying it to a set of series doesn't revisit the tree.
+ * 
  * @author barclay
  * 
  */
 public class Formula {
   private AST mAST;
+  private FormulaProgram mProgram;
 
   public Formula() {
     mAST = new AST();
@@ -44,10 +44,12 @@ public class Formula {
 
   public Formula(String input) {
     mAST = new AST(input);
+    compile();
   }
 
   public void setFormula(String input) {
     mAST.generate(input);
+    compile();
   }
 
   public boolean isValid() {
@@ -67,215 +69,66 @@ public class Formula {
     return mAST.getDependentNames();
   }
 
-  public ArrayList<Datapoint> apply(ArrayList<TimeSeries> sources) {
-    OperandInstance result;
-    Operation root = mAST.getRoot();
-    if (root == null || mAST.isValid() == false)
-      return null;
-
-    // Duplicate all the timeseries so we don't overwrite the original value
-    ArrayList<TimeSeries> list = new ArrayList<TimeSeries>();
-    for (int i = 0; i < sources.size(); i++) {
-      list.add(new TimeSeries(sources.get(i)));
-    }
-
-    result = applyOp(list, mAST.getRoot());
-    if (result.mType == Tokenizer.TokenID.SERIES) {
-      return result.mTimeSeries.getDatapoints();
-    }
-    return null;
+  /**
+   * Returns the number of datapoints each source needs before the last one at
+   * or before <code>fromMs</code> for {@link #apply(ArrayList, long)}, beyond
+   * which the rest of the source can be left out.
+   */
+  public int getLookback() {
+    if (mProgram == null)
+      return 0;
+    return mProgram.getLookback();
   }
 
-  public static class OperandInstance {
-    public Tokenizer.TokenID mType;
-    public Float mFloat;
-    public Long mLong;
-    public TimeSeries mTimeSeries;
-    public DateUtil.Period mPeriod;
-    public boolean mTimestamp;
-
-    public OperandInstance() {
-    }
-  }
-
-  private OperandInstance makeInstance(ArrayList<TimeSeries> sources,
-      AST.Operand operand) {
-    OperandInstance instance = new OperandInstance();
-
-    if (operand.getClass().equals(AST.FloatOperand.class)) {
-      instance.mType = Tokenizer.TokenID.FLOAT_VALUE;
-      instance.mFloat = (Float) operand.getValue();
-    } else if (operand.getClass().equals(AST.LongOperand.class)) {
-      instance.mType = Tokenizer.TokenID.LONG_VALUE;
-      instance.mFloat = (Float) operand.getValue();
-    } else if (operand.getClass().equals(AST.UnitsOperand.class)) {
-      instance.mType = Tokenizer.TokenID.PERIOD_CONSTANT;
-      instance.mPeriod = (DateUtil.Period) operand.getValue();
-    } else if (operand.getClass().equals(AST.DeltaOperand.class)) {
-      instance.mType = Tokenizer.TokenID.DELTA;
-      if (((String) operand.getValue()).equals(Tokenizer.TIMESTAMP)) {
-        instance.mTimestamp = true;
-      } else {
-        instance.mTimestamp = false;
-      }
-    } else if (operand.getClass().equals(AST.TimeSeriesOperand.class)) {
-      TimeSeries ts = null;
-      instance.mType = Tokenizer.TokenID.SERIES;
-      String tsName = (String) operand.getValue();
-      for (int i = 0; i < sources.size(); i++) {
-        ts = sources.get(i);
-        if (tsName.equals(ts.getDbRow().getCategoryName()))
-          break;
-      }
-      instance.mTimeSeries = ts;
-    }
-
-    return instance;
-  }
-
-  private OperandInstance executeTimeseriesOp(OperandInstance left,
-      AST.Opcode opcode, OperandInstance right) {
-    if (left.mType == Tokenizer.TokenID.SERIES
-        && right.mType == Tokenizer.TokenID.SERIES) {
-      left.mTimeSeries.timeseriesOp(right.mTimeSeries, opcode);
-      return left;
-    }
-
-    if (left.mType == Tokenizer.TokenID.SERIES) {
-      if (right.mType == Tokenizer.TokenID.FLOAT_VALUE)
-        left.mTimeSeries.floatOp(right.mFloat, opcode, false);
-      else if (right.mType == Tokenizer.TokenID.LONG_VALUE)
-        left.mTimeSeries.longOp(right.mLong, opcode, false);
-      else if (right.mType == Tokenizer.TokenID.DELTA) {
-        if (right.mTimestamp == true)
-          left.mTimeSeries.previousTimestamp();
-        else
-          left.mTimeSeries.previousValue();
-      } else if (right.mType == Tokenizer.TokenID.PERIOD_CONSTANT) {
-        Long l = new Long(DateUtil.mapPeriodToLong(right.mPeriod));
-        left.mTimeSeries.longOp(l, opcode, false);
-      }
-      return left;
-    }
-
-    if (right.mType == Tokenizer.TokenID.SERIES) {
-      if (left.mType == Tokenizer.TokenID.FLOAT_VALUE)
-        right.mTimeSeries.floatOp(right.mFloat, opcode, true);
-      else if (left.mType == Tokenizer.TokenID.LONG_VALUE)
-        right.mTimeSeries.longOp(right.mLong, opcode, true);
-      else if (left.mType == Tokenizer.TokenID.PERIOD_CONSTANT) {
-        Long l = new Long(DateUtil.mapPeriodToLong(left.mPeriod));
-        right.mTimeSeries.longOp(l, opcode, true);
-      }
-      return right;
-    }
-
-    return null;
+  /**
+   * Evaluates the formula against <code>sources</code>, which are looked up by
+   * category name. The sources are not modified.
+   * 
+   * @return The resulting datapoints, or null if the formula is invalid or
+   *         doesn't produce a series.
+   */
+  public ArrayList<Datapoint> apply(ArrayList<TimeSeries> sources) {
+    return apply(sources, Long.MIN_VALUE);
   }
 
-  private OperandInstance executeFloatOp(OperandInstance left,
-      AST.Opcode opcode, OperandInstance right) {
-    if (right.mType == Tokenizer.TokenID.LONG_VALUE
-        || right.mType == Tokenizer.TokenID.PERIOD_CONSTANT) {
-      Long l;
-      if (right.mType == Tokenizer.TokenID.PERIOD_CONSTANT)
-        l = new Long(DateUtil.mapPeriodToLong(right.mPeriod));
-      else
-        l = new Long(right.mLong);
+  /**
+   * Evaluates the formula as {@link #apply(ArrayList)} does, but only returns
+   * the datapoints at or after <code>fromMs</code>, reading just enough of the
+   * sources to calculate them. This is used to recompute the part of a
+   * synthetic series affected by a new entry.
+   */
+  public ArrayList<Datapoint> apply(ArrayList<TimeSeries> sources, long fromMs) {
+    DatapointColumns result = applyColumns(sources, fromMs);
+    if (result == null)
+      return null;
 
-      if (opcode == AST.Opcode.PLUS)
-        left.mFloat += l;
-      else if (opcode == AST.Opcode.MINUS)
-        left.mFloat -= l;
-      else if (opcode == AST.Opcode.MULTIPLY)
-        left.mFloat *= l;
-      else if (opcode == AST.Opcode.DIVIDE) {
-        if (l != 0)
-          left.mFloat /= l;
-      }
+    ArrayList<Datapoint> datapoints = new ArrayList<Datapoint>(result.size());
+    for (int i = 0; i < result.size(); i++) {
+      datapoints.add(result.toDatapoint(i));
     }
-
-    return left;
+    return datapoints;
   }
 
-  private OperandInstance executeLongOp(OperandInstance left,
-      AST.Opcode opcode, OperandInstance right) {
-    if (right.mType == Tokenizer.TokenID.LONG_VALUE
-        || right.mType == Tokenizer.TokenID.PERIOD_CONSTANT) {
-      Long l;
-      if (right.mType == Tokenizer.TokenID.PERIOD_CONSTANT)
-        l = new Long(DateUtil.mapPeriodToLong(right.mPeriod));
-      else
-        l = new Long(right.mLong);
-
-      if (opcode == AST.Opcode.PLUS)
-        left.mLong += l;
-      else if (opcode == AST.Opcode.MINUS)
-        left.mLong -= l;
-      else if (opcode == AST.Opcode.MULTIPLY)
-        left.mLong *= l;
-      else if (opcode == AST.Opcode.DIVIDE) {
-        if (l != 0)
-          left.mLong /= l;
-      }
-    } else if (right.mType == Tokenizer.TokenID.FLOAT_VALUE) {
-      if (opcode == AST.Opcode.PLUS)
-        left.mFloat = left.mLong + right.mFloat;
-      else if (opcode == AST.Opcode.MINUS)
-        left.mFloat = left.mLong - right.mFloat;
-      else if (opcode == AST.Opcode.MULTIPLY)
-        left.mFloat = left.mLong * right.mFloat;
-      else if (opcode == AST.Opcode.DIVIDE) {
-        if (right.mFloat != 0)
-          left.mFloat = left.mLong / right.mFloat;
-      }
-    }
-
-    return left;
+  /**
+   * As {@link #apply(ArrayList)}, returning the result in columnar form.
+   */
+  public DatapointColumns applyColumns(ArrayList<TimeSeries> sources) {
+    return applyColumns(sources, Long.MIN_VALUE);
   }
 
-  private OperandInstance executeOp(OperandInstance left, AST.Opcode opcode,
-      OperandInstance right) {
-    OperandInstance result = null;
-    if (left.mType == Tokenizer.TokenID.SERIES
-        || right.mType == Tokenizer.TokenID.SERIES) {
-      result = executeTimeseriesOp(left, opcode, right);
-    } else if (left.mType == Tokenizer.TokenID.FLOAT_VALUE) {
-      result = executeFloatOp(left, opcode, right);
-    } else if (left.mType == Tokenizer.TokenID.LONG_VALUE) {
-      result = executeLongOp(left, opcode, right);
-    }
-
-    return result;
+  /**
+   * As {@link #apply(ArrayList, long)}, returning the result in columnar form.
+   */
+  public DatapointColumns applyColumns(ArrayList<TimeSeries> sources,
+      long fromMs) {
+    if (mProgram == null || mAST.isValid() == false)
+      return null;
+    return mProgram.evaluate(sources, fromMs);
   }
 
-  private OperandInstance applyOp(ArrayList<TimeSeries> sources, Operation op) {
-    GroupOperand group;
-    AST.Opcode oc = op.getOpcode();
-    OperandInstance l, r, result = null;
-
-    if (oc == AST.Opcode.GROUPING) {
-      group = ((UnaryOperation<GroupOperand>) op).getOperand();
-      result = applyOp(sources, group.getValue());
-    } else if (oc == AST.Opcode.PLUS || oc == AST.Opcode.MINUS
-        || oc == AST.Opcode.MULTIPLY || oc == AST.Opcode.DIVIDE
-        || oc == AST.Opcode.DELTA) {
-      Operand left = (Operand) ((BinaryOperation) op).getOperandLeft();
-      Operand right = (Operand) ((BinaryOperation) op).getOperandRight();
-
-      if (left.getClass().equals(GroupOperand.class)) {
-        l = applyOp(sources, (Operation) left.getValue());
-      } else
-        l = makeInstance(sources, left);
-
-      if (right.getClass().equals(GroupOperand.class)) {
-        r = applyOp(sources, (Operation) right.getValue());
-      } else
-        r = makeInstance(sources, right);
-
-      result = executeOp(l, oc, r);
-    }
-
-    return result;
+  private void compile() {
+    mProgram = null;
+    if (mAST.isValid())
+      mProgram = FormulaProgram.compile(mAST.getRoot());
   }
 }
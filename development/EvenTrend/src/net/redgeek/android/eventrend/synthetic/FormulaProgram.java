@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.synthetic;
+
+import java.util.ArrayList;
+
+import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.synthetic.AST.BinaryOperation;
+import net.redgeek.android.eventrend.synthetic.AST.Operand;
+import net.redgeek.android.eventrend.synthetic.AST.Operation;
+import net.redgeek.android.eventrend.synthetic.AST.UnaryOperation;
+import net.redgeek.android.eventrend.util.DateUtil;
+
+/**
+ * A Formula's AST compiled to a postfix program, so that evaluating it is a
+ * loop over a flat instruction array rather than a walk of the tree.
+ *
+ * <p>
+ * Operands that don't involve a series are folded into constants at compile
+ * time. At evaluation, the series operands are read straight from the columns
+ * of the source TimeSeries, which are never modified or copied; each operation
+ * writes its result to new arrays. Combining two series is a single
+ * TimeSeries.merge() of their timestamp arrays.
+ *
+ * <p>
+ * The result is the same as applying the TimeSeries operations to copies of
+ * the sources, one operation at a time: intermediate results are interpolated
+ * with the interpolator of their left-most series.
+ *
+ * @author barclay
+ *
+ */
+final class FormulaProgram {
+  // Instructions. Series operations pop their operands and push the result;
+  // scalar operands are inline in mConstants.
+  private static final int PUSH_SERIES = 0;
+  private static final int SERIES_OP_SERIES = 1;
+  private static final int SERIES_OP_SCALAR = 2;
+  private static final int SCALAR_OP_SERIES = 3;
+  private static final int PREVIOUS_VALUE = 4;
+  private static final int PREVIOUS_TIMESTAMP = 5;
+
+  private static final int PLUS = 0;
+  private static final int MINUS = 1;
+  private static final int MULTIPLY = 2;
+  private static final int DIVIDE = 3;
+  private static final AST.Opcode[] OPCODES = { AST.Opcode.PLUS,
+      AST.Opcode.MINUS, AST.Opcode.MULTIPLY, AST.Opcode.DIVIDE };
+
+  private int[] mCode = new int[16];
+  private int[] mArgs = new int[16];
+  private float[] mConstants = new float[16];
+  private int mLength;
+  private int mMaxDepth;
+  // the number of PREVIOUS_* instructions, each of which needs one more row
+  // before the start of a window to be evaluated correctly
+  private int mLookback;
+  private ArrayList<String> mNames = new ArrayList<String>();
+
+  private FormulaProgram() {
+  }
+
+  /**
+   * Compiles the tree rooted at <code>root</code>. Returns null if the formula
+   * doesn't involve any series, since it wouldn't produce one.
+   */
+  public static FormulaProgram compile(Operation root) {
+    if (root == null)
+      return null;
+
+    FormulaProgram program = new FormulaProgram();
+    Value v = program.compileOperation(root, 0);
+    if (v == null || v.mSeries == false)
+      return null;
+    return program;
+  }
+
+  /**
+   * Evaluates the program against <code>sources</code>, which are matched to
+   * the formula's series by category name. A series that isn't present is
+   * treated as having no datapoints.
+   *
+   * @return The resulting datapoints, with the category id of the left-most
+   *         series. Only the timestamp, value, category id, entry id and number
+   *         of entries of each row are set.
+   */
+  public DatapointColumns evaluate(ArrayList<TimeSeries> sources) {
+    return evaluate(sources, Long.MIN_VALUE);
+  }
+
+  /**
+   * Returns the number of datapoints before the last one at or before a
+   * starting timestamp that each source needs for
+   * {@link #evaluate(ArrayList, long)} to be correct from that timestamp.
+   */
+  public int getLookback() {
+    return mLookback;
+  }
+
+  /**
+   * As {@link #evaluate(ArrayList)}, but only returns the rows at or after
+   * <code>fromMs</code>. Only as much of each source as is needed to compute
+   * those rows is read: the datapoints from <code>fromMs</code> on, the one
+   * before for interpolation, and one more for each previous value or
+   * timestamp operation. The rows returned are identical to the corresponding
+   * ones of a full evaluation.
+   */
+  public DatapointColumns evaluate(ArrayList<TimeSeries> sources, long fromMs) {
+    Series[] stack = new Series[mMaxDepth];
+    Series[] bound = bind(sources, fromMs);
+    int sp = 0;
+
+    for (int pc = 0; pc < mLength; pc++) {
+      switch (mCode[pc]) {
+        case PUSH_SERIES:
+          stack[sp++] = bound[mArgs[pc]];
+          break;
+        case SERIES_OP_SERIES:
+          sp--;
+          stack[sp - 1] = merge(stack[sp - 1], stack[sp], mArgs[pc]);
+          break;
+        case SERIES_OP_SCALAR:
+          stack[sp - 1] = scalarOp(stack[sp - 1], mConstants[pc], mArgs[pc],
+              false);
+          break;
+        case SCALAR_OP_SERIES:
+          stack[sp - 1] = scalarOp(stack[sp - 1], mConstants[pc], mArgs[pc],
+              true);
+          break;
+        case PREVIOUS_VALUE:
+          stack[sp - 1] = previous(stack[sp - 1], false);
+          break;
+        case PREVIOUS_TIMESTAMP:
+          stack[sp - 1] = previous(stack[sp - 1], true);
+          break;
+        default:
+          break;
+      }
+    }
+
+    return stack[0].toColumns(fromMs);
+  }
+
+  // ***** Compilation ***** //
+
+  // The result of compiling an operand: either a series, which has been
+  // pushed, or a constant.
+  private static class Value {
+    public boolean mSeries;
+    public boolean mLong;
+    public long mLongValue;
+    public float mFloatValue;
+    public boolean mDelta;
+    public boolean mTimestamp;
+
+    public float floatValue() {
+      return mLong ? (float) mLongValue : mFloatValue;
+    }
+  }
+
+  private Value compileOperation(Operation op, int depth) {
+    AST.Opcode oc = op.getOpcode();
+    if (oc == AST.Opcode.GROUPING) {
+      return compileOperand((Operand<?>) ((UnaryOperation<?>) op).getOperand(), depth);
+    }
+
+    BinaryOperation<?, ?> binop = (BinaryOperation<?, ?>) op;
+    Value l = compileOperand((Operand<?>) binop.getOperandLeft(), depth);
+    if (l == null)
+      return null;
+    Value r = compileOperand((Operand<?>) binop.getOperandRight(),
+        l.mSeries ? depth + 1 : depth);
+    if (r == null)
+      return null;
+
+    if (r.mDelta) {
+      if (l.mSeries == false)
+        return null;
+      emit(r.mTimestamp ? PREVIOUS_TIMESTAMP : PREVIOUS_VALUE, 0, 0);
+      mLookback++;
+      return l;
+    }
+
+    int arith = arithmetic(oc);
+    if (arith < 0)
+      return null;
+
+    if (l.mSeries && r.mSeries) {
+      emit(SERIES_OP_SERIES, arith, 0);
+      return l;
+    } else if (l.mSeries) {
+      emit(SERIES_OP_SCALAR, arith, r.floatValue());
+      return l;
+    } else if (r.mSeries) {
+      emit(SCALAR_OP_SERIES, arith, l.floatValue());
+      return r;
+    }
+    return fold(l, arith, r);
+  }
+
+  private Value compileOperand(Operand<?> operand, int depth) {
+    Value v = new Value();
+    if (operand instanceof AST.GroupOperand) {
+      Operation sub = ((AST.GroupOperand) operand).getValue();
+      return sub == null ? null : compileOperation(sub, depth);
+    } else if (operand instanceof AST.TimeSeriesOperand) {
+      String name = ((AST.TimeSeriesOperand) operand).getValue();
+      int index = mNames.indexOf(name);
+      if (index < 0) {
+        index = mNames.size();
+        mNames.add(name);
+      }
+      emit(PUSH_SERIES, index, 0);
+      if (depth + 1 > mMaxDepth)
+        mMaxDepth = depth + 1;
+      v.mSeries = true;
+    } else if (operand instanceof AST.FloatOperand) {
+      v.mFloatValue = ((AST.FloatOperand) operand).getValue().floatValue();
+    } else if (operand instanceof AST.LongOperand) {
+      v.mLong = true;
+      v.mLongValue = ((AST.LongOperand) operand).getValue().longValue();
+    } else if (operand instanceof AST.UnitsOperand) {
+      v.mLong = true;
+      v.mLongValue = DateUtil.mapPeriodToLong(((AST.UnitsOperand) operand)
+          .getValue());
+    } else if (operand instanceof AST.DeltaOperand) {
+      v.mDelta = true;
+      v.mTimestamp = Tokenizer.TIMESTAMP.equals(((AST.DeltaOperand) operand)
+          .getValue());
+    } else {
+      return null;
+    }
+    return v;
+  }
+
+  // Constant folding. Two longs stay a long, with integer division; anything
+  // else is a float. Division by zero leaves the left operand unchanged, as
+  // it does for series.
+  private static Value fold(Value l, int arith, Value r) {
+    Value v = new Value();
+    if (l.mDelta || r.mDelta)
+      return null;
+
+    if (l.mLong && r.mLong) {
+      v.mLong = true;
+      long a = l.mLongValue, b = r.mLongValue;
+      if (arith == PLUS)
+        v.mLongValue = a + b;
+      else if (arith == MINUS)
+        v.mLongValue = a - b;
+      else if (arith == MULTIPLY)
+        v.mLongValue = a * b;
+      else
+        v.mLongValue = b != 0 ? a / b : a;
+      return v;
+    }
+
+    float a = l.floatValue(), b = r.floatValue();
+    if (arith == PLUS)
+      v.mFloatValue = a + b;
+    else if (arith == MINUS)
+      v.mFloatValue = a - b;
+    else if (arith == MULTIPLY)
+      v.mFloatValue = a * b;
+    else
+      v.mFloatValue = b != 0 ? a / b : a;
+    return v;
+  }
+
+  private static int arithmetic(AST.Opcode oc) {
+    if (oc == AST.Opcode.PLUS)
+      return PLUS;
+    else if (oc == AST.Opcode.MINUS)
+      return MINUS;
+    else if (oc == AST.Opcode.MULTIPLY)
+      return MULTIPLY;
+    else if (oc == AST.Opcode.DIVIDE)
+      return DIVIDE;
+    return -1;
+  }
+
+  private void emit(int code, int arg, float constant) {
+    if (mLength == mCode.length) {
+      int[] newCode = new int[mLength * 2];
+      int[] newArgs = new int[mLength * 2];
+      float[] newConstants = new float[mLength * 2];
+      System.arraycopy(mCode, 0, newCode, 0, mLength);
+      System.arraycopy(mArgs, 0, newArgs, 0, mLength);
+      System.arraycopy(mConstants, 0, newConstants, 0, mLength);
+      mCode = newCode;
+      mArgs = newArgs;
+      mConstants = newConstants;
+    }
+    mCode[mLength] = code;
+    mArgs[mLength] = arg;
+    mConstants[mLength] = constant;
+    mLength++;
+  }
+
+  // ***** Evaluation ***** //
+
+  // A series on the evaluation stack: either a view of a source's columns
+  // (mSource != null) from row mOffset on, which must not be modified, or a
+  // computed result. The per-row metadata of a view is taken from the source;
+  // computed rows have the category id mCatId, no entry id, and one entry.
+  private static class Series {
+    public long[] mMillis;
+    public float[] mValue;
+    public int mSize;
+    public long mCatId;
+    public DatapointColumns mSource;
+    public int mOffset;
+    public TimeSeriesInterpolator mInterpolator;
+
+    public Series(int capacity, long catId, TimeSeriesInterpolator interpolator) {
+      mMillis = new long[capacity];
+      mValue = new float[capacity];
+      mCatId = catId;
+      mInterpolator = interpolator;
+    }
+
+    public Series(DatapointColumns source, int offset, long catId,
+        TimeSeriesInterpolator interpolator) {
+      mSize = source.size() - offset;
+      if (offset == 0) {
+        mMillis = source.mMillis;
+        mValue = source.mValue;
+      } else {
+        mMillis = new long[mSize];
+        mValue = new float[mSize];
+        System.arraycopy(source.mMillis, offset, mMillis, 0, mSize);
+        System.arraycopy(source.mValue, offset, mValue, 0, mSize);
+      }
+      mCatId = catId;
+      mSource = source;
+      mOffset = offset;
+      mInterpolator = interpolator;
+    }
+
+    // A computed copy of the values, keeping the source's rows.
+    public Series(Series s) {
+      mMillis = s.mMillis;
+      mValue = new float[s.mSize];
+      System.arraycopy(s.mValue, 0, mValue, 0, s.mSize);
+      mSize = s.mSize;
+      mCatId = s.mCatId;
+      mSource = s.mSource;
+      mOffset = s.mOffset;
+      mInterpolator = s.mInterpolator;
+    }
+
+    public DatapointColumns toColumns(long fromMs) {
+      int first = 0;
+      while (first < mSize && mMillis[first] < fromMs)
+        first++;
+
+      DatapointColumns out = new DatapointColumns(mSize - first);
+      for (int i = first; i < mSize; i++) {
+        int row = mOffset + i;
+        if (mSource != null)
+          out.add(mMillis[i], mValue[i], mSource.mCatId[row],
+              mSource.mEntryId[row], mSource.mNEntries[row]);
+        else
+          out.add(mMillis[i], mValue[i], mCatId, -1, 1);
+      }
+      return out;
+    }
+  }
+
+  // Each source is bound from mLookback rows before the last one at or before
+  // fromMs. An operation on series that are each correct from some row on is
+  // correct from the latest of those rows, which is still at or before fromMs,
+  // and each previous operation only loses one row of that margin.
+  private Series[] bind(ArrayList<TimeSeries> sources, long fromMs) {
+    Series[] bound = new Series[mNames.size()];
+    for (int i = 0; i < bound.length; i++) {
+      String name = mNames.get(i);
+      for (int j = 0; sources != null && j < sources.size(); j++) {
+        TimeSeries ts = sources.get(j);
+        if (ts != null && name.equals(ts.getDbRow().getCategoryName())) {
+          DatapointColumns columns = ts.getColumns();
+          int offset = 0;
+          if (fromMs != Long.MIN_VALUE)
+            offset = Math.max(0, columns.indexOfFloor(fromMs) - mLookback);
+          bound[i] = new Series(columns, offset, ts.getDbRow().getId(), ts
+              .getInterpolator());
+          break;
+        }
+      }
+      if (bound[i] == null)
+        bound[i] = new Series(0, 0, null);
+    }
+    return bound;
+  }
+
+  private static Series scalarOp(Series s, float f, int arith, boolean pre) {
+    if (Float.isNaN(f) || Float.isInfinite(f))
+      return s;
+
+    Series out = new Series(s);
+    float[] value = out.mValue;
+    for (int i = 0; i < out.mSize; i++) {
+      if (pre == false) {
+        if (arith == PLUS)
+          value[i] += f;
+        else if (arith == MINUS)
+          value[i] -= f;
+        else if (arith == MULTIPLY)
+          value[i] *= f;
+        else if (f != 0)
+          value[i] /= f;
+      } else {
+        if (arith == PLUS)
+          value[i] = f + value[i];
+        else if (arith == MINUS)
+          value[i] = f - value[i];
+        else if (arith == MULTIPLY)
+          value[i] = f * value[i];
+        else if (value[i] != 0)
+          value[i] = f / value[i];
+      }
+    }
+    return out;
+  }
+
+  private static Series previous(Series s, boolean timestamp) {
+    Series out = new Series(s);
+    long[] millis = out.mMillis;
+    float[] value = out.mValue;
+    for (int i = out.mSize - 1; i > 0; i--) {
+      if (timestamp)
+        value[i] = millis[i] - millis[i - 1];
+      else
+        value[i] = value[i] - value[i - 1];
+    }
+    if (timestamp && out.mSize > 0)
+      value[0] = 0;
+    return out;
+  }
+
+  // See TimeSeries.merge().
+  private static Series merge(Series a, Series b, int arith) {
+    Series out = new Series(a.mSize + b.mSize, a.mCatId, a.mInterpolator);
+    out.mSize = TimeSeries.merge(a.mMillis, a.mValue, a.mSize,
+        a.mInterpolator, b.mMillis, b.mValue, b.mSize, b.mInterpolator,
+        OPCODES[arith], out.mMillis, out.mValue);
+    return out;
+  }
+}
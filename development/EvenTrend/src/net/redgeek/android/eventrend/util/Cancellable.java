@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.util;
+
+/**
+ * A unit of work that can be asked to stop early. Cancellation is
+ * cooperative: cancel() only sets a flag, which the work checks at points
+ * where it's safe to stop.
+ *
+ * @author barclay
+ * @see TaskQueue
+ */
+public interface Cancellable {
+  /**
+   * Requests that the work stop as soon as it safely can. May be called from
+   * any thread, and more than once.
+   */
+  void cancel();
+
+  boolean isCancelled();
+
+  /**
+   * A Cancellable that's just the flag, for handing to the work that checks
+   * it.
+   */
+  public static class Flag implements Cancellable {
+    private volatile boolean mCancelled = false;
+
+    public void cancel() {
+      mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return mCancelled;
+    }
+  }
+}
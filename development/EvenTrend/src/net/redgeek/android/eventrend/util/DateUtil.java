@@ -1102,13 +1102,13 @@ public final class DateUtil {
         int month = c.get(Calendar.MONTH);
         if (month >= 9)
           c.set(Calendar.MONTH, 9);
-        else if (month >= 9)
+        else if (month >= 6)
           c.set(Calendar.MONTH, 6);
-        else if (month >= 9)
+        else if (month >= 3)
           c.set(Calendar.MONTH, 3);
         else
           c.set(Calendar.MONTH, 0);
-        c.set(Calendar.DAY_OF_MONTH, 0);
+        c.set(Calendar.DAY_OF_MONTH, 1);
         c.set(Calendar.HOUR_OF_DAY, 0);
         c.set(Calendar.MINUTE, 0);
         c.set(Calendar.SECOND, 0);
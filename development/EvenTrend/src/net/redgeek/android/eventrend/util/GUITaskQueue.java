@@ -4,6 +4,9 @@
 
 package net.redgeek.android.eventrend.util;
 
+import java.util.concurrent.CancellationException;
+
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
 import android.os.Handler;
 import android.os.Message;
 
@@ -35,6 +38,10 @@ public class GUITaskQueue {
     mTaskQ.stop();
   }
 
+  public TaskQueue getTaskQueue() {
+    return mTaskQ;
+  }
+
   public void addTask(GUITask task) {
     mTaskQ.addTask(new GUITaskAdapter(task));
   }
@@ -53,7 +60,43 @@ public class GUITaskQueue {
     }
   }
 
-  private static class GUITaskWithProgress implements GUITask {
+  /**
+   * Adds a task to run after the others of <code>owner</code>, as
+   * TaskQueue.addTask(Object, Priority, Runnable) does. If the returned
+   * handle is used to cancel the task before it starts, the GUITask's
+   * onFailure() is called with a CancellationException.
+   */
+  public TaskQueue.Task addTask(Object owner, Priority priority,
+      ProgressIndicator progressIndicator, GUITask task) {
+    if (progressIndicator != null)
+      task = new GUITaskWithProgress(task, progressIndicator);
+    return mTaskQ.addTask(owner, priority, new GUITaskAdapter(task));
+  }
+
+  /**
+   * Adds a task that supersedes any earlier one added this way by
+   * <code>owner</code>, as TaskQueue.addLatestTask() does. A running task is
+   * only cancelled if the GUITask is Cancellable; either way, its
+   * afterExecute() or onFailure() is still called. The progress indicator of
+   * a task dropped before it ran is left showing for the task that replaced
+   * it, so such tasks should share an indicator.
+   */
+  public TaskQueue.Task addLatestTask(Object owner, Priority priority,
+      ProgressIndicator progressIndicator, GUITask task) {
+    if (progressIndicator != null)
+      task = new GUITaskWithProgress(task, progressIndicator);
+    return mTaskQ.addLatestTask(owner, priority, new GUITaskAdapter(task));
+  }
+
+  public int getCoalescedCount() {
+    return mTaskQ.getCoalescedCount();
+  }
+
+  public int getCancelledCount() {
+    return mTaskQ.getCancelledCount();
+  }
+
+  private static class GUITaskWithProgress implements GUITask, Cancellable {
     private GUITask mDelegate;
     private ProgressIndicator mProgressIndicator;
 
@@ -76,6 +119,17 @@ public class GUITaskQueue {
       mProgressIndicator.hideProgressIndicator();
       mDelegate.afterExecute();
     }
+
+    public void cancel() {
+      if (mDelegate instanceof Cancellable)
+        ((Cancellable) mDelegate).cancel();
+    }
+
+    public boolean isCancelled() {
+      if (mDelegate instanceof Cancellable)
+        return ((Cancellable) mDelegate).isCancelled();
+      return false;
+    }
   };
 
   private static class GUITaskWithSomething {
@@ -121,14 +175,23 @@ public class GUITaskQueue {
     }
   }
 
-  private class GUITaskAdapter implements Runnable {
+  private class GUITaskAdapter implements Runnable, Cancellable {
     private GUITask mTask;
+    // guarded by this; exactly one of run() and cancel() reports the outcome
+    // of a task cancelled around the time it's started
+    private boolean mStarted;
+    private boolean mCancelled;
 
     GUITaskAdapter(GUITask _task) {
       mTask = _task;
     }
 
     public void run() {
+      synchronized (this) {
+        if (mCancelled)
+          return;
+        mStarted = true;
+      }
       try {
         mTask.executeNonGuiTask();
         postMessage(HANDLE_AFTER_EXECUTE, mTask);
@@ -136,5 +199,27 @@ public class GUITaskQueue {
         postException(mTask, t);
       }
     }
+
+    public void cancel() {
+      boolean started;
+      synchronized (this) {
+        if (mCancelled)
+          return;
+        started = mStarted;
+        mCancelled = true;
+      }
+      if (mTask instanceof Cancellable)
+        ((Cancellable) mTask).cancel();
+      if (started == false)
+        postException(mTask, new CancellationException());
+    }
+
+    public synchronized boolean isCancelled() {
+      if (mCancelled && mStarted == false)
+        return true;
+      if (mTask instanceof Cancellable)
+        return ((Cancellable) mTask).isCancelled();
+      return false;
+    }
   }
 }
\ No newline at end of file
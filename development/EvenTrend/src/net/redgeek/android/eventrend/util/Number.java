@@ -16,11 +16,6 @@
 
 package net.redgeek.android.eventrend.util;
 
-import java.util.ArrayList;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
 import net.redgeek.android.eventrend.db.CategoryDbTable;
 
 /**
@@ -448,21 +443,26 @@ public class Number {
 
   /**
    * Class for keeping track of the Standard Deviation over the last X values.
+   * The values are kept in a ring buffer along with their running sum and sum
+   * of squares, so both updating and querying are constant time. Not thread
+   * safe; see SynchronizedWindowedStdDev.
    * 
    * @author barclay
    */
   public static class WindowedStdDev {
-    private Lock mLock;
-    private ArrayList<Float> mValues;
+    private float[] mValues;
     private int mHistory;
+    private int mNValues = 0;
+    private int mNext = 0;
+    private double mSum = 0.0;
+    private double mSumSqr = 0.0;
 
     /**
      * Sole constructor. Initializes all stats to 0.
      */
     public WindowedStdDev(int history) {
-      mHistory = history;
-      mValues = new ArrayList<Float>(mHistory);
-      mLock = new ReentrantLock();
+      mHistory = history < 0 ? 0 : history;
+      mValues = new float[mHistory];
     }
 
     /**
@@ -473,35 +473,24 @@ public class Number {
      *          source.
      */
     public WindowedStdDev(WindowedStdDev source) {
-      mLock = new ReentrantLock();
-      source.waitForLock();
-      mHistory = source.mHistory;
-      mValues = new ArrayList<Float>(mHistory);
-      for (int i = 0; i < source.mValues.size(); i++) {
-        try {
-          mValues.add(new Float(source.mValues.get(i)));          
-        } catch(IndexOutOfBoundsException e) {
-          break;
-        }
-      }
-      source.unlock();
-    }
-
-    public void waitForLock() {
-      while (lock() == false) {
+      synchronized (source) {
+        mHistory = source.mHistory;
+        mValues = new float[mHistory];
+        System.arraycopy(source.mValues, 0, mValues, 0, mHistory);
+        mNValues = source.mNValues;
+        mNext = source.mNext;
+        mSum = source.mSum;
+        mSumSqr = source.mSumSqr;
       }
     }
 
-    public boolean lock() {
-      try {
-        return mLock.tryLock(250L, TimeUnit.MILLISECONDS);
-      } catch (InterruptedException e) {
-        return false;
-      }
-    }
-
-    public void unlock() {
-      mLock.unlock();
+    /**
+     * Return the number of values the standard deviation is calculated over.
+     * 
+     * @return The window size.
+     */
+    public int getHistory() {
+      return mHistory;
     }
 
     /**
@@ -511,50 +500,81 @@ public class Number {
      *          The value to update the statistics with.
      */
     public void update(float val) {
-      waitForLock();
-      mValues.add(new Float(val));
-      if (mValues.size() > mHistory) {
-        try {
-          mValues.remove(0);
-        } catch(IndexOutOfBoundsException e) {
-          // nothing
-        }
+      if (mHistory < 1)
+        return;
+
+      if (mNValues == mHistory) {
+        float old = mValues[mNext];
+        mSum -= old;
+        mSumSqr -= (double) old * old;
+      } else {
+        mNValues++;
+      }
+
+      mValues[mNext] = val;
+      mSum += val;
+      mSumSqr += (double) val * val;
+
+      mNext++;
+      if (mNext == mHistory) {
+        mNext = 0;
+        resync();
       }
-      unlock();
       return;
     }
 
     /**
      * Fetch current Standard Deviation.
      * 
-     * @param val
-     *          The value to update the statistics with.
+     * @return The population standard deviation of the values in the window,
+     *         or NaN if there are none.
      */
     public float getStandardDev() {
-      float mean = 0.0f;
-      float meanSqr = 0.0f;
-      float variance = 0.0f;
-      float delta = 0.0f;
-      float val = 0.0f;
-
-      waitForLock();
-
-      int nValues = mValues.size();
-      for (int i = 0; i < nValues; i++) {
-        try {
-          val = mValues.get(i);
-          delta = val - mean;
-          mean = mean + delta / (i + 1);
-          meanSqr = meanSqr + delta * (val - mean);
-        } catch(IndexOutOfBoundsException e) {
-          break;
-        }
-      }
-      unlock();
-      
-      variance = meanSqr / nValues;
+      if (mNValues == 0)
+        return Float.NaN;
+
+      double mean = mSum / mNValues;
+      double variance = mSumSqr / mNValues - mean * mean;
+      if (variance < 0.0)
+        variance = 0.0;
       return (float) Math.sqrt(variance);
     }
+
+    // Recomputes the sums from scratch once per pass through the buffer, so
+    // that rounding error from the subtractions can't accumulate.
+    private void resync() {
+      mSum = 0.0;
+      mSumSqr = 0.0;
+      for (int i = 0; i < mNValues; i++) {
+        mSum += mValues[i];
+        mSumSqr += (double) mValues[i] * mValues[i];
+      }
+    }
+  }
+
+  /**
+   * A WindowedStdDev that may be shared between threads.
+   * 
+   * @author barclay
+   */
+  public static class SynchronizedWindowedStdDev extends WindowedStdDev {
+    public SynchronizedWindowedStdDev(int history) {
+      super(history);
+    }
+
+    public SynchronizedWindowedStdDev(WindowedStdDev source) {
+      super(source);
+    }
+
+    @Override
+    public synchronized void update(float val) {
+      super.update(val);
+    }
+
+    @Override
+    public synchronized float getStandardDev() {
+      return super.getStandardDev();
+    }
   }
 
   /**
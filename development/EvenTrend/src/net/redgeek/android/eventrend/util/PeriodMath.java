@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.util;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import net.redgeek.android.eventrend.util.DateUtil.Period;
+
+/**
+ * Calendar period boundaries computed arithmetically from milliseconds since
+ * epoch, in place of setting the fields of a Calendar. The periods are the
+ * same as those of DateUtil.setToPeriodStart(): weeks start on the given first
+ * day of the week, and quarters on January, April, July and October.
+ *
+ * <p>
+ * Local wall-clock time is found by adding the time zone's offset at the
+ * instant, so daylight saving time is taken into account, and the civil date
+ * is worked out from the day number, with no limit on the year. A period
+ * whose local start doesn't exist, because a daylight saving transition
+ * skipped it, starts at the first instant after the gap, as with a lenient
+ * Calendar.
+ *
+ * <p>
+ * Instances are immutable, hold no scratch state and don't allocate, so one
+ * can be shared between threads.
+ *
+ * @author barclay
+ */
+public final class PeriodMath {
+  // 1970-01-01 was a Thursday
+  private static final int EPOCH_DAY_OF_WEEK = Calendar.THURSDAY;
+
+  private final TimeZone mZone;
+  private final int mRawOffset;
+  private final int mFirstDayOfWeek;
+
+  /**
+   * Uses the default time zone and the default locale's first day of the
+   * week, as Calendar.getInstance() would.
+   */
+  public PeriodMath() {
+    this(TimeZone.getDefault(), Calendar.getInstance().getFirstDayOfWeek());
+  }
+
+  /**
+   * @param zone
+   *          The time zone to find local time in. It's copied, so later
+   *          changes to it have no effect.
+   * @param firstDayOfWeek
+   *          The day weeks start on, Calendar.SUNDAY through
+   *          Calendar.SATURDAY.
+   */
+  public PeriodMath(TimeZone zone, int firstDayOfWeek) {
+    mZone = (TimeZone) zone.clone();
+    mRawOffset = mZone.getRawOffset();
+    mFirstDayOfWeek = firstDayOfWeek;
+  }
+
+  public TimeZone getTimeZone() {
+    return (TimeZone) mZone.clone();
+  }
+
+  public int getFirstDayOfWeek() {
+    return mFirstDayOfWeek;
+  }
+
+  /**
+   * Returns the start of the period containing <code>millis</code>.
+   */
+  public long periodStart(long millis, Period p) {
+    long local = millis + mZone.getOffset(millis);
+    long localStart = localPeriodStart(local, p);
+
+    // Usually there's no transition between the start and millis, and the
+    // local time elapsed since the start is the real time elapsed.
+    long start = millis - (local - localStart);
+    if (mZone.getOffset(start) + start == localStart)
+      return start;
+    return toUtc(localStart);
+  }
+
+  /**
+   * Returns the start of the period following the one containing
+   * <code>millis</code>, which is also the end of that period.
+   */
+  public long nextPeriodStart(long millis, Period p) {
+    return addPeriods(millis, p, 1);
+  }
+
+  /**
+   * Returns the start of the period <code>n</code> periods after the one
+   * containing <code>millis</code>, or before it if <code>n</code> is
+   * negative.
+   */
+  public long addPeriods(long millis, Period p, int n) {
+    switch (p) {
+      case MINUTE:
+      case HOUR:
+        // as Calendar.add() does for fields smaller than a day
+        return periodStart(millis, p) + n * DateUtil.mapPeriodToLong(p);
+      case AMPM:
+      case DAY:
+      case WEEK:
+        long local = millis + mZone.getOffset(millis);
+        return toUtc(localPeriodStart(local, p) + n
+            * DateUtil.mapPeriodToLong(p));
+      default:
+        int months = monthsOf(p);
+        long d = floorDiv(millis + mZone.getOffset(millis), DateUtil.DAY_MS);
+        long index = monthIndex(d);
+        index = index - floorMod(index, months) + (long) n * months;
+        return toUtc(daysFromCivil(floorDiv(index, 12),
+            (int) floorMod(index, 12) + 1, 1)
+            * DateUtil.DAY_MS);
+    }
+  }
+
+  public boolean inSamePeriod(long millis1, long millis2, Period p) {
+    return periodStart(millis1, p) == periodStart(millis2, p);
+  }
+
+  // The local start of the period containing local time local.
+  private long localPeriodStart(long local, Period p) {
+    long days;
+    switch (p) {
+      case MINUTE:
+        return local - floorMod(local, DateUtil.MINUTE_MS);
+      case HOUR:
+        return local - floorMod(local, DateUtil.HOUR_MS);
+      case AMPM:
+        return local - floorMod(local, DateUtil.AMPM_MS);
+      case DAY:
+        return local - floorMod(local, DateUtil.DAY_MS);
+      case WEEK:
+        days = floorDiv(local, DateUtil.DAY_MS);
+        days -= floorMod(days + EPOCH_DAY_OF_WEEK - mFirstDayOfWeek, 7);
+        return days * DateUtil.DAY_MS;
+      default:
+        int months = monthsOf(p);
+        long index = monthIndex(floorDiv(local, DateUtil.DAY_MS));
+        index -= floorMod(index, months);
+        days = daysFromCivil(floorDiv(index, 12), (int) floorMod(index, 12) + 1,
+            1);
+        return days * DateUtil.DAY_MS;
+    }
+  }
+
+  // The instant at which the local clock reads local.
+  private long toUtc(long local) {
+    int before = mZone.getOffset(local - mRawOffset - DateUtil.DAY_MS);
+    int after = mZone.getOffset(local - mRawOffset + DateUtil.DAY_MS);
+    if (before == after)
+      return local - before;
+
+    // There's a transition within a day or so. If local falls in a gap it's
+    // valid with neither offset, and is moved forward past it by treating it
+    // as being in the earlier offset; if it's repeated, it's valid with both,
+    // and the earlier instant is used.
+    long utc1 = local - before;
+    long utc2 = local - after;
+    boolean valid1 = mZone.getOffset(utc1) == before;
+    boolean valid2 = mZone.getOffset(utc2) == after;
+    if (valid1 && valid2)
+      return Math.min(utc1, utc2);
+    if (valid2)
+      return utc2;
+    return utc1;
+  }
+
+  private static int monthsOf(Period p) {
+    if (p == Period.YEAR)
+      return 12;
+    if (p == Period.QUARTER)
+      return 3;
+    return 1;
+  }
+
+  // Months since year 0, for the civil date of day number days.
+  private static long monthIndex(long days) {
+    // Howard Hinnant's civil_from_days, shifted so that years start in
+    // March and the leap day falls at the end of the year.
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    long year = yoe + era * 400;
+    long month = mp < 10 ? mp + 3 : mp - 9;
+    if (month <= 2)
+      year++;
+    return year * 12 + month - 1;
+  }
+
+  /**
+   * Returns the day number, counting from 1970-01-01, of the given date in
+   * the proleptic Gregorian calendar. Months are from 1 to 12.
+   */
+  public static long daysFromCivil(long year, int month, int day) {
+    if (month <= 2)
+      year--;
+    long era = floorDiv(year, 400);
+    long yoe = year - era * 400;
+    long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    if ((x % y != 0) && ((x ^ y) < 0))
+      q--;
+    return q;
+  }
+
+  private static long floorMod(long x, long y) {
+    return x - floorDiv(x, y) * y;
+  }
+}
@@ -4,71 +4,504 @@
 
 package net.redgeek.android.eventrend.util;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import android.util.Log;
 
+/**
+ * A fixed pool of worker threads running tasks in priority order. Each task
+ * belongs to an owner, typically the view or activity that added it, and the
+ * tasks of one owner run one at a time in the order they were added; tasks
+ * of different owners may run concurrently, so a long import doesn't hold up
+ * the category list. Tasks added without an owner share a single lane, and
+ * so run one at a time, as everything did before there was more than one
+ * worker.
+ *
+ * <p>
+ * A lane waits for a worker at the priority of its next task. At most all
+ * but one of the workers will run BACKGROUND or BULK tasks at once, so
+ * there's always one free for INTERACTIVE work.
+ *
+ * @author barclay
+ */
 public class TaskQueue {
   private static final String TAG = "TaskQueue";
 
-  private LinkedList<Runnable> mTasks;
-  private Thread mThread;
-  private boolean mRunning;
-  private Runnable mInternalRunnable;
+  public static final int DEFAULT_WORKERS = 3;
+
+  public enum Priority {
+    /** Something the user is waiting to see. */
+    INTERACTIVE,
+    /** Something the user asked for, but isn't watching. */
+    BACKGROUND,
+    /** Long running work such as imports and exports. */
+    BULK
+  }
+
+  // The lane used by tasks added without an owner.
+  private static final Object DEFAULT_OWNER = new Object();
+
+  private static final int PENDING = 0;
+  private static final int RUNNING = 1;
+  private static final int DONE = 2;
+  private static final int CANCELLED = 3;
+
+  /**
+   * A handle on a task that's been added to the queue.
+   */
+  public static final class Task implements Cancellable {
+    private final TaskQueue mQueue;
+    private final Lane mLane;
+    private final Priority mPriority;
+    private final Runnable mRunnable;
+    // superseded by later latest-wins tasks of the same owner
+    private final boolean mLatest;
+    private final long mQueuedNanos;
+    private int mState; // guarded by mQueue.mLock
+
+    private Task(TaskQueue queue, Lane lane, Priority priority,
+        Runnable runnable, boolean latest) {
+      mQueue = queue;
+      mLane = lane;
+      mPriority = priority;
+      mRunnable = runnable;
+      mLatest = latest;
+      mQueuedNanos = System.nanoTime();
+      mState = PENDING;
+    }
+
+    /**
+     * If the task hasn't started, removes it from the queue. If it's running
+     * and the Runnable is Cancellable, cancels it; otherwise a running task
+     * is left to finish.
+     */
+    public void cancel() {
+      mQueue.cancel(this);
+    }
+
+    public boolean isCancelled() {
+      synchronized (mQueue.mLock) {
+        if (mState == CANCELLED)
+          return true;
+      }
+      if (mRunnable instanceof Cancellable)
+        return ((Cancellable) mRunnable).isCancelled();
+      return false;
+    }
+
+    /**
+     * Returns true once the task has run or been removed from the queue.
+     */
+    public boolean isDone() {
+      synchronized (mQueue.mLock) {
+        return mState == DONE || mState == CANCELLED;
+      }
+    }
+
+    public Priority getPriority() {
+      return mPriority;
+    }
+  }
+
+  // The tasks of one owner. A lane is in mReady, under the priority of its
+  // first task, whenever it has tasks and none of them is running.
+  private static final class Lane {
+    final Object mOwner;
+    final LinkedList<Task> mPending = new LinkedList<Task>();
+    Task mCurrent;
+
+    Lane(Object owner) {
+      mOwner = owner;
+    }
+  }
+
+  private class Worker implements Runnable {
+    private int mGeneration;
+
+    Worker(int generation) {
+      mGeneration = generation;
+    }
 
-  private class InternalRunnable implements Runnable {
     public void run() {
-      internalRun();
+      internalRun(mGeneration);
     }
   }
 
+  private final Object mLock = new Object();
+  private final int mWorkers;
+  private boolean mRunning;
+  // incremented by start(), so workers left over from before a stop() exit
+  private int mGeneration;
+  private HashMap<Object, Lane> mLanes;
+  private LinkedList<Lane>[] mReady;
+  private int mBusyNonInteractive;
+
+  // metrics, guarded by mLock
+  private int mDepth;
+  private int mMaxDepth;
+  private int[] mDepthByPriority;
+  private int[] mRunCount;
+  private long[] mWaitNanos;
+  private long[] mMaxWaitNanos;
+  private long[] mRunNanos;
+  private int mCoalesced;
+  private int mCancelled;
+
   public TaskQueue() {
-    mTasks = new LinkedList<Runnable>();
-    mInternalRunnable = new InternalRunnable();
+    this(DEFAULT_WORKERS);
+  }
+
+  public TaskQueue(int workers) {
+    if (workers < 1)
+      throw new IllegalArgumentException("workers must be at least 1");
+    mWorkers = workers;
+    mLanes = new HashMap<Object, Lane>();
+
+    int n = Priority.values().length;
+    mReady = newReadyLists(n);
+    mDepthByPriority = new int[n];
+    mRunCount = new int[n];
+    mWaitNanos = new long[n];
+    mMaxWaitNanos = new long[n];
+    mRunNanos = new long[n];
+  }
+
+  // There's no creating an array of LinkedList<Lane> directly; the cast is
+  // safe as every element is set to one here.
+  @SuppressWarnings("unchecked")
+  private static LinkedList<Lane>[] newReadyLists(int n) {
+    LinkedList<Lane>[] lists = (LinkedList<Lane>[]) new LinkedList<?>[n];
+    for (int i = 0; i < n; i++) {
+      lists[i] = new LinkedList<Lane>();
+    }
+    return lists;
   }
 
   public void start() {
-    if (!mRunning) {
-      mThread = new Thread(mInternalRunnable);
-      mThread.setDaemon(true);
+    synchronized (mLock) {
+      if (mRunning)
+        return;
       mRunning = true;
-      mThread.start();
+      mGeneration++;
+      for (int i = 0; i < mWorkers; i++) {
+        Thread t = new Thread(new Worker(mGeneration), TAG + "-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
     }
   }
 
+  /**
+   * Stops the workers once they finish what they're running. Tasks still
+   * waiting stay queued until the next start().
+   */
   public void stop() {
-    mRunning = false;
+    synchronized (mLock) {
+      mRunning = false;
+      mLock.notifyAll();
+    }
+  }
+
+  public int getWorkerCount() {
+    return mWorkers;
   }
 
-  public void addTask(Runnable task) {
-    synchronized (mTasks) {
-      mTasks.addFirst(task);
-      mTasks.notify(); // notify any waiting threads
+  /**
+   * Adds a task to the lane shared by all tasks without an owner, at
+   * INTERACTIVE priority.
+   */
+  public Task addTask(Runnable task) {
+    return addTask(null, Priority.INTERACTIVE, task);
+  }
+
+  /**
+   * Adds a task to run after any others of the same <code>owner</code>. A
+   * null owner is the shared default lane.
+   */
+  public Task addTask(Object owner, Priority priority, Runnable task) {
+    synchronized (mLock) {
+      return enqueue(lane(owner), priority, task, false);
     }
   }
 
-  private Runnable getNextTask() {
-    synchronized (mTasks) {
-      if (mTasks.isEmpty()) {
+  /**
+   * Adds a task that supersedes any other added with this method by the
+   * same <code>owner</code>: those still waiting to run are dropped, and if
+   * one is running and is Cancellable, it's cancelled. Only the latest task
+   * is certain to run to completion, so this is for work whose result is made
+   * obsolete by the next request, like collecting the data for a viewport
+   * the user has already scrolled away from.
+   */
+  public Task addLatestTask(Object owner, Priority priority, Runnable task) {
+    synchronized (mLock) {
+      Lane lane = lane(owner);
+
+      Iterator<Task> it = lane.mPending.iterator();
+      while (it.hasNext()) {
+        Task pending = it.next();
+        if (pending.mLatest == true) {
+          boolean head = pending == lane.mPending.getFirst();
+          it.remove();
+          dequeued(lane, pending, head);
+          pending.mState = CANCELLED;
+          mCoalesced++;
+        }
+      }
+      // dropping the last of its tasks may have retired an idle lane
+      lane = lane(owner);
+
+      Task current = lane.mCurrent;
+      if (current != null && current.mLatest == true
+          && current.mRunnable instanceof Cancellable) {
+        Cancellable running = (Cancellable) current.mRunnable;
+        if (running.isCancelled() == false) {
+          running.cancel();
+          // wrappers are Cancellable whether or not what they wrap is
+          if (running.isCancelled() == true)
+            mCancelled++;
+        }
+      }
+
+      return enqueue(lane, priority, task, true);
+    }
+  }
+
+  /**
+   * Returns the number of tasks waiting to run.
+   */
+  public int getQueueDepth() {
+    synchronized (mLock) {
+      return mDepth;
+    }
+  }
+
+  public int getQueueDepth(Priority p) {
+    synchronized (mLock) {
+      return mDepthByPriority[p.ordinal()];
+    }
+  }
+
+  /**
+   * Returns the most tasks that have been waiting to run at once.
+   */
+  public int getMaxQueueDepth() {
+    synchronized (mLock) {
+      return mMaxDepth;
+    }
+  }
+
+  /**
+   * Returns the number of tasks of priority <code>p</code> that have been
+   * started.
+   */
+  public int getTasksRun(Priority p) {
+    synchronized (mLock) {
+      return mRunCount[p.ordinal()];
+    }
+  }
+
+  /**
+   * Returns the mean time tasks of priority <code>p</code> waited between
+   * being added and starting, in milliseconds.
+   */
+  public float getMeanWaitMs(Priority p) {
+    synchronized (mLock) {
+      int i = p.ordinal();
+      if (mRunCount[i] == 0)
+        return 0.0f;
+      return mWaitNanos[i] / 1000000.0f / mRunCount[i];
+    }
+  }
+
+  public float getMaxWaitMs(Priority p) {
+    synchronized (mLock) {
+      return mMaxWaitNanos[p.ordinal()] / 1000000.0f;
+    }
+  }
+
+  /**
+   * Returns the mean time tasks of priority <code>p</code> took to run, in
+   * milliseconds.
+   */
+  public float getMeanRunMs(Priority p) {
+    synchronized (mLock) {
+      int i = p.ordinal();
+      if (mRunCount[i] == 0)
+        return 0.0f;
+      return mRunNanos[i] / 1000000.0f / mRunCount[i];
+    }
+  }
+
+  /**
+   * Returns the number of latest-wins tasks dropped before they ran because
+   * a later one was added.
+   */
+  public int getCoalescedCount() {
+    synchronized (mLock) {
+      return mCoalesced;
+    }
+  }
+
+  /**
+   * Returns the number of tasks cancelled, whether before they ran or while
+   * running.
+   */
+  public int getCancelledCount() {
+    synchronized (mLock) {
+      return mCancelled;
+    }
+  }
+
+  private Lane lane(Object owner) {
+    if (owner == null)
+      owner = DEFAULT_OWNER;
+    Lane lane = mLanes.get(owner);
+    if (lane == null) {
+      lane = new Lane(owner);
+      mLanes.put(owner, lane);
+    }
+    return lane;
+  }
+
+  private Task enqueue(Lane lane, Priority priority, Runnable runnable,
+      boolean latest) {
+    Task task = new Task(this, lane, priority, runnable, latest);
+    lane.mPending.addLast(task);
+    if (lane.mCurrent == null && lane.mPending.size() == 1)
+      mReady[priority.ordinal()].addLast(lane);
+
+    mDepth++;
+    mDepthByPriority[priority.ordinal()]++;
+    mMaxDepth = Math.max(mMaxDepth, mDepth);
+    mLock.notifyAll();
+    return task;
+  }
+
+  // Accounts for task having been taken out of lane's pending list; head is
+  // whether it was the first.
+  private void dequeued(Lane lane, Task task, boolean head) {
+    mDepth--;
+    mDepthByPriority[task.mPriority.ordinal()]--;
+    if (lane.mCurrent != null)
+      return;
+
+    if (head == true) {
+      mReady[task.mPriority.ordinal()].remove(lane);
+      if (lane.mPending.isEmpty() == false)
+        mReady[lane.mPending.getFirst().mPriority.ordinal()].addLast(lane);
+    }
+    if (lane.mPending.isEmpty())
+      mLanes.remove(lane.mOwner);
+  }
+
+  private void cancel(Task task) {
+    Cancellable running = null;
+    synchronized (mLock) {
+      if (task.mState == PENDING) {
+        Lane lane = task.mLane;
+        boolean head = task == lane.mPending.getFirst();
+        lane.mPending.remove(task);
+        dequeued(lane, task, head);
+        task.mState = CANCELLED;
+        mCancelled++;
+        mLock.notifyAll();
+        // let the task know it won't be run
+        if (task.mRunnable instanceof Cancellable)
+          running = (Cancellable) task.mRunnable;
+      } else if (task.mState == RUNNING
+          && task.mRunnable instanceof Cancellable) {
+        running = (Cancellable) task.mRunnable;
+        if (running.isCancelled() == false) {
+          running.cancel();
+          if (running.isCancelled() == true)
+            mCancelled++;
+        }
+        return;
+      }
+    }
+    if (running != null)
+      running.cancel();
+  }
+
+  // The lane whose first task should be run next, taking it off mReady, or
+  // null if there's nothing a worker may run.
+  private Lane nextLane() {
+    for (int i = 0; i < mReady.length; i++) {
+      if (mReady[i].isEmpty())
+        continue;
+      if (i != Priority.INTERACTIVE.ordinal() && mWorkers > 1
+          && mBusyNonInteractive >= mWorkers - 1)
+        return null;
+      return mReady[i].removeFirst();
+    }
+    return null;
+  }
+
+  private Task getNextTask(int generation) {
+    synchronized (mLock) {
+      while (mRunning && generation == mGeneration) {
+        Lane lane = nextLane();
+        if (lane != null) {
+          Task task = lane.mPending.removeFirst();
+          int p = task.mPriority.ordinal();
+          lane.mCurrent = task;
+          task.mState = RUNNING;
+          mDepth--;
+          mDepthByPriority[p]--;
+          if (task.mPriority != Priority.INTERACTIVE)
+            mBusyNonInteractive++;
+
+          long wait = System.nanoTime() - task.mQueuedNanos;
+          mRunCount[p]++;
+          mWaitNanos[p] += wait;
+          mMaxWaitNanos[p] = Math.max(mMaxWaitNanos[p], wait);
+          return task;
+        }
+
         try {
-          mTasks.wait();
+          mLock.wait();
         } catch (InterruptedException e) {
           Log.e(TAG, "Task interrupted", e);
           stop();
         }
       }
-      return mTasks.removeLast();
+      return null;
+    }
+  }
+
+  private void finished(Task task, long runNanos) {
+    synchronized (mLock) {
+      Lane lane = task.mLane;
+      lane.mCurrent = null;
+      if (task.mState == RUNNING)
+        task.mState = DONE;
+      if (task.mPriority != Priority.INTERACTIVE)
+        mBusyNonInteractive--;
+      mRunNanos[task.mPriority.ordinal()] += runNanos;
+
+      if (lane.mPending.isEmpty())
+        mLanes.remove(lane.mOwner);
+      else
+        mReady[lane.mPending.getFirst().mPriority.ordinal()].addLast(lane);
+      mLock.notifyAll();
     }
   }
 
-  private void internalRun() {
-    while (mRunning) {
-      Runnable task = getNextTask();
+  private void internalRun(int generation) {
+    while (true) {
+      Task task = getNextTask(generation);
+      if (task == null)
+        return;
+
+      long start = System.nanoTime();
       try {
-        task.run();
+        task.mRunnable.run();
       } catch (Throwable t) {
         Log.e(TAG, "Task threw an exception", t);
       }
+      finished(task, System.nanoTime() - start);
     }
   }
-}
\ No newline at end of file
+}
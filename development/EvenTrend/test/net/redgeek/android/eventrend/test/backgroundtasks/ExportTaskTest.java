@@ -16,9 +16,118 @@
 
 package net.redgeek.android.eventrend.test.backgroundtasks;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
 import junit.framework.TestCase;
+import net.redgeek.android.eventrend.backgroundtasks.ExportTask;
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
+import net.redgeek.android.eventrend.test.common.DbTestReader;
+import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
 
 public class ExportTaskTest extends TestCase {
-  public void testFoo() {
+  private static final int N_ENTRIES = 600;
+
+  private String makeFilePath(String filename) {
+    String sep = System.getProperty("file.separator");
+    String path = System.getProperty("user.dir");
+    String[] subdir = new String[] { "test", "net", "redgeek", "android",
+        "eventrend", "test", "common", "dbtestdata" };
+
+    for (int i = 0; i < subdir.length; i++) {
+      path += sep + subdir[i];
+    }
+    path += sep + filename;
+    return path;
+  }
+
+  // two_tables.xml has a synthetic category 1 and a single entry for category
+  // 2; add category 2 and enough entries for several progress updates.
+  private MockEvenTrendDbAdapter newDbh() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("two_tables.xml"));
+
+    CategoryDbTable.Row cat = dbh.fetchCategory(1);
+    cat.setCategoryName("Two");
+    cat.setSynthetic(false);
+    assertEquals(2, dbh.createCategory(cat));
+
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    entry.setCategoryId(2);
+    entry.setNEntries(1);
+    for (int i = 0; i < N_ENTRIES; i++) {
+      entry.setTimestamp(2000 + i);
+      entry.setValue(i);
+      dbh.createEntry(entry);
+    }
+    return dbh;
+  }
+
+  private static class Progress implements EvenTrendDbAdapter.ExportListener {
+    public ArrayList<Integer> mWritten = new ArrayList<Integer>();
+    public int mTotal;
+
+    public void onExportProgress(int rowsWritten, int rowsTotal) {
+      mWritten.add(Integer.valueOf(rowsWritten));
+      mTotal = rowsTotal;
+    }
+  }
+
+  public void testExportToFile() throws IOException {
+    File dir = new File(System.getProperty("java.io.tmpdir"), "eventrend-"
+        + System.nanoTime());
+    File file = new File(dir, "export.csv");
+
+    Progress progress = new Progress();
+    ExportTask task = new ExportTask(newDbh());
+    task.setDirectory(dir.getPath());
+    task.setFilename(file.getPath());
+    task.setToFile(true);
+    task.setListener(progress);
+    task.doExport();
+
+    ArrayList<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null)
+        lines.add(line);
+    } finally {
+      in.close();
+      file.delete();
+      dir.delete();
+    }
+
+    // header + fixture entry + added entries + synthetic category
+    int rows = 1 + N_ENTRIES + 1;
+    assertEquals(1 + rows, lines.size());
+    assertTrue(lines.get(0).startsWith(CategoryDbTable.KEY_GROUP_NAME));
+    assertTrue(lines.get(0).endsWith(EntryDbTable.KEY_N_ENTRIES));
+    assertTrue(lines.get(1).endsWith(",1000,4.0,5"));
+    assertTrue(lines.get(rows).indexOf("series") != -1);
+
+    assertEquals(rows, progress.mTotal);
+    assertEquals(3, progress.mWritten.size());
+    assertEquals(EvenTrendDbAdapter.EXPORT_PROGRESS_INTERVAL, progress.mWritten
+        .get(0).intValue());
+    assertEquals(2 * EvenTrendDbAdapter.EXPORT_PROGRESS_INTERVAL,
+        progress.mWritten.get(1).intValue());
+    assertEquals(rows, progress.mWritten.get(2).intValue());
+  }
+
+  public void testExportToMail() throws IOException {
+    MockEvenTrendDbAdapter dbh = newDbh();
+    ExportTask task = new ExportTask(dbh);
+    task.setToFile(false);
+    task.doExport();
+
+    assertEquals(dbh.flattenDB(), task.mBody);
+    assertEquals(1 + 1 + N_ENTRIES + 1, task.mBody.split("\n").length);
   }
 }
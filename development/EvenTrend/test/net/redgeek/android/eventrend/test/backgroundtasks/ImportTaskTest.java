@@ -16,9 +16,122 @@
 
 package net.redgeek.android.eventrend.test.backgroundtasks;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
 import junit.framework.TestCase;
+import net.redgeek.android.eventrend.backgroundtasks.ImportTask;
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.test.common.DbTestReader;
+import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
+import android.database.Cursor;
 
 public class ImportTaskTest extends TestCase {
-  public void testFoo() {
+  private static final int N_ENTRIES = 600;
+
+  private File mFile;
+
+  private String makeFilePath(String filename) {
+    String sep = System.getProperty("file.separator");
+    String path = System.getProperty("user.dir");
+    String[] subdir = new String[] { "test", "net", "redgeek", "android",
+        "eventrend", "test", "common", "dbtestdata" };
+
+    for (int i = 0; i < subdir.length; i++) {
+      path += sep + subdir[i];
+    }
+    path += sep + filename;
+    return path;
+  }
+
+  private MockEvenTrendDbAdapter newDbh() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("two_tables.xml"));
+    return dbh;
+  }
+
+  // Exports a database of a regular category with N_ENTRIES + 1 entries and
+  // the fixture's synthetic category.
+  @Override
+  protected void setUp() throws IOException {
+    MockEvenTrendDbAdapter dbh = newDbh();
+    CategoryDbTable.Row cat = dbh.fetchCategory(1);
+    cat.setCategoryName("Two");
+    cat.setSynthetic(false);
+    dbh.createCategory(cat);
+
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    entry.setCategoryId(2);
+    entry.setNEntries(1);
+    for (int i = 0; i < N_ENTRIES; i++) {
+      entry.setTimestamp(2000 + i);
+      entry.setValue(i);
+      dbh.createEntry(entry);
+    }
+
+    mFile = File.createTempFile("eventrend", ".csv");
+    Writer out = new FileWriter(mFile);
+    dbh.exportDB(out, null);
+    out.close();
+  }
+
+  @Override
+  protected void tearDown() {
+    mFile.delete();
+  }
+
+  public void testImport() throws IOException {
+    MockEvenTrendDbAdapter dbh = newDbh();
+    ImportTask task = new ImportTask(dbh, mFile.getPath(), 20);
+    task.setBatchSize(100);
+    task.doImport();
+
+    int rows = 1 + N_ENTRIES + 1;
+    assertEquals(rows, task.mNumRecords);
+    assertEquals(rows, task.mNumRecordsDone);
+
+    // a transaction per full batch, plus one for the remainder
+    assertEquals(rows / 100 + 1, dbh.getTransactionCount());
+    assertEquals(0, dbh.getTransactionDepth());
+
+    CategoryDbTable.Row two = dbh.fetchCategory("Two");
+    assertNotNull(two);
+    assertFalse(two.getSynthetic());
+    CategoryDbTable.Row synthetic = dbh.fetchCategory("CategoryName");
+    assertNotNull(synthetic);
+    assertTrue(synthetic.getSynthetic());
+    assertEquals("(series \"one\" + series \"two\")", synthetic.getFormula());
+
+    Cursor c = dbh.fetchAllEntries();
+    assertEquals(1 + N_ENTRIES, c.getCount());
+    c.close();
+    c = dbh.fetchCategoryEntries(two.getId());
+    assertEquals(1 + N_ENTRIES, c.getCount());
+    c.close();
+    c = dbh.fetchCategoryEntries(synthetic.getId());
+    assertEquals(0, c.getCount());
+    c.close();
+
+    EntryDbTable.Row last = dbh.fetchLastCategoryEntry(two.getId());
+    assertEquals(2000L + N_ENTRIES - 1, last.getTimestamp());
+    assertEquals((float) N_ENTRIES - 1, last.getValue());
+  }
+
+  public void testReimportReplaces() throws IOException {
+    MockEvenTrendDbAdapter dbh = newDbh();
+    ImportTask task = new ImportTask(dbh, mFile.getPath(), 20);
+    task.doImport();
+    task.doImport();
+
+    Cursor c = dbh.fetchAllEntries();
+    assertEquals(1 + N_ENTRIES, c.getCount());
+    c.close();
+    c = dbh.fetchAllCategories();
+    assertEquals(2, c.getCount());
+    c.close();
   }
 }
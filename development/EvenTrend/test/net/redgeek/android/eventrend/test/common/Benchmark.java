@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.common;
+
+import java.util.ArrayList;
+
+import junit.framework.Assert;
+import android.os.Debug;
+
+// Minimal timing harness for the *Benchmark classes. They aren't test cases,
+// so they're never run along with the unittests; run them explicitly with
+// main(), naming the benchmarks to run, and compare the reported numbers.
+// Each one times the old way of doing something against the new one, and
+// can use the asserts to check that both give the same answer.
+public abstract class Benchmark extends Assert {
+  public interface Body {
+    public void run();
+  }
+
+  public static class Result {
+    public String mName;
+    public int mIterations;
+    public long mNanos;
+    public int mAllocs;
+
+    public double nanosPerOp() {
+      return (double) mNanos / mIterations;
+    }
+
+    @Override
+    public String toString() {
+      String allocs = mAllocs < 0 ? "n/a" : Integer.toString(mAllocs
+          / mIterations);
+      return String.format("%-40s %12.0f ns/op  %8s allocs/op", mName,
+          nanosPerOp(), allocs);
+    }
+  }
+
+  public static class Comparison {
+    public Result mBefore;
+    public Result mAfter;
+
+    public double speedup() {
+      return mBefore.nanosPerOp() / mAfter.nanosPerOp();
+    }
+
+    @Override
+    public String toString() {
+      return mBefore + "\n" + mAfter + "\n"
+          + String.format("%-40s %12.2fx faster", mAfter.mName, speedup());
+    }
+  }
+
+  private ArrayList<Comparison> mComparisons = new ArrayList<Comparison>();
+
+  // Builds whatever the comparisons run on.
+  protected void setUp() {
+  }
+
+  // Times each of the comparisons, recording them with compare().
+  protected abstract void runComparisons();
+
+  /**
+   * Sets up the benchmark and runs its comparisons, returning them.
+   */
+  public final ArrayList<Comparison> run() {
+    mComparisons.clear();
+    setUp();
+    runComparisons();
+    return mComparisons;
+  }
+
+  protected final void compare(Result before, Result after) {
+    Comparison c = new Comparison();
+    c.mBefore = before;
+    c.mAfter = after;
+    mComparisons.add(c);
+  }
+
+  public static Result run(String name, int warmup, int iterations, Body body) {
+    Result r = new Result();
+    r.mName = name;
+    r.mIterations = iterations;
+
+    for (int i = 0; i < warmup; i++) {
+      body.run();
+    }
+
+    boolean counting = startAllocCounting();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      body.run();
+    }
+    r.mNanos = System.nanoTime() - start;
+    r.mAllocs = counting ? stopAllocCounting() : -1;
+    return r;
+  }
+
+  /**
+   * Runs the benchmarks named by the fully qualified class names in
+   * <code>args</code>, writing their comparisons to stdout.
+   */
+  public static void main(String[] args) throws Exception {
+    for (int i = 0; i < args.length; i++) {
+      Benchmark b = (Benchmark) Class.forName(args[i]).newInstance();
+      ArrayList<Comparison> comparisons = b.run();
+      for (int j = 0; j < comparisons.size(); j++) {
+        System.out.println(comparisons.get(j));
+      }
+    }
+  }
+
+  // Allocation counts are only available on a device or emulator.
+  private static boolean startAllocCounting() {
+    try {
+      Debug.resetGlobalAllocCount();
+      Debug.startAllocCounting();
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static int stopAllocCounting() {
+    Debug.stopAllocCounting();
+    return Debug.getGlobalAllocCount();
+  }
+}
@@ -16,8 +16,10 @@
 
 package net.redgeek.android.eventrend.test.common;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.TreeMap;
@@ -25,7 +27,11 @@ import java.util.TreeMap;
 import net.redgeek.android.eventrend.db.CategoryDbTable;
 import net.redgeek.android.eventrend.db.EntryDbTable;
 import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
+import net.redgeek.android.eventrend.db.SyntheticDbTable;
+import net.redgeek.android.eventrend.db.SyntheticStateDbTable;
+import net.redgeek.android.eventrend.importing.CSV;
 import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.PeriodMath;
 import net.redgeek.android.eventrend.util.DateUtil.Period;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -37,6 +43,12 @@ import android.test.mock.MockContext;
 public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
   private HashMap<String, ArrayList<HashMap<String, String>>> mTables;
   private HashMap<String, HashMap<Integer, String>> mColumnMap;
+  private int mQueries;
+  private int mTransactions;
+  private int mTransactionDepth;
+  private HashMap<Long, long[]> mSyntheticDependents;
+  private HashMap<Long, SyntheticStateDbTable.Row> mSyntheticState;
+  private int mSyntheticWrites;
   
   public MockEvenTrendDbAdapter() {
     initialize();
@@ -49,6 +61,8 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
   private void initialize() {
     mTables = new HashMap<String, ArrayList<HashMap<String, String>>>();
     mColumnMap = new HashMap<String, HashMap<Integer, String>>(); 
+    mSyntheticDependents = new HashMap<Long, long[]>();
+    mSyntheticState = new HashMap<Long, SyntheticStateDbTable.Row>();
   }
 
   public void setColumnMap(String table, HashMap<Integer, String> columnMap) {
@@ -66,9 +80,43 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     rows.add(row);
   }
   
+  // Transactions aren't rolled back, only counted.
+  public void beginTransaction() {
+    if (mTransactionDepth++ == 0)
+      mTransactions++;
+  }
+
+  public void setTransactionSuccessful() {
+  }
+
+  public void endTransaction() {
+    mTransactionDepth--;
+  }
+
+  public int getTransactionCount() {
+    return mTransactions;
+  }
+
+  public int getTransactionDepth() {
+    return mTransactionDepth;
+  }
+
+  // number of entry range queries, for checking the caching and batching
+  public int getRangeQueryCount() {
+    return mQueries;
+  }
+
+  // number of calls to replaceSyntheticValues(), for checking that stored
+  // values are only recalculated when they're out of date
+  public int getSyntheticWriteCount() {
+    return mSyntheticWrites;
+  }
+
   public void close() {
     mTables.clear();
     mColumnMap.clear();
+    mSyntheticDependents.clear();
+    mSyntheticState.clear();
   }
 
   public long createCategory(CategoryDbTable.Row category) {
@@ -98,11 +146,15 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     max++;
     entry.setId(max);
     rows.add(entryRowToHashMap(entry));
+    entryChanged(entry.getCategoryId(), entry.getTimestamp());
     return max;
   }
 
   public boolean deleteAllCategories() {
     ArrayList<HashMap<String, String>> rows = mTables.get(CategoryDbTable.TABLE_NAME);
+    mSyntheticDependents.clear();
+    mSyntheticState.clear();
+    mTables.remove(SyntheticDbTable.TABLE_NAME);
     if (rows == null)
       return false;
     rows.clear();
@@ -111,6 +163,8 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
 
   public boolean deleteAllEntries() {
     ArrayList<HashMap<String, String>> rows = mTables.get(EntryDbTable.TABLE_NAME);
+    mSyntheticState.clear();
+    mTables.remove(SyntheticDbTable.TABLE_NAME);
     if (rows == null)
       return false;
     rows.clear();
@@ -119,6 +173,10 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
 
   public boolean deleteCategory(long rowId) {
     ArrayList<HashMap<String, String>> rows = mTables.get(CategoryDbTable.TABLE_NAME);
+    invalidateSynthetics(rowId, SyntheticStateDbTable.VALID_NONE);
+    mSyntheticDependents.remove(Long.valueOf(rowId));
+    mSyntheticState.remove(Long.valueOf(rowId));
+    removeSyntheticValues(rowId, SyntheticStateDbTable.VALID_NONE);
     
     for (int i = 0; i < rows.size(); i++) {
       long id = Long.parseLong(rows.get(i).get(CategoryDbTable.KEY_ROWID));
@@ -133,6 +191,7 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
   public boolean deleteCategoryEntries(long catId) {
     ArrayList<HashMap<String, String>> rows = mTables.get(EntryDbTable.TABLE_NAME);
     boolean removed = false;
+    invalidateSynthetics(catId, SyntheticStateDbTable.VALID_NONE);
     for (int i = 0; i < rows.size(); i++) {
       long id = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_CATEGORY_ID));
       if (id == catId) {
@@ -149,7 +208,8 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     for (int i = 0; i < rows.size(); i++) {
       long id = Long.parseLong(rows.get(i).get(CategoryDbTable.KEY_ROWID));
       if (id == rowId) {
-        rows.remove(i);
+        EntryDbTable.Row old = hashMapToEntryRow(rows.remove(i));
+        entryChanged(old.getCategoryId(), old.getTimestamp());
         return true;
       }
     }
@@ -291,6 +351,7 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     TreeMap<Long, HashMap<String, String>> ordered = new TreeMap<Long, HashMap<String, String>>();
     HashMap<String, String> row;
     
+    mQueries++;
     for (int i = 0; i < rows.size(); i++) {
       long id = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_CATEGORY_ID));
       if (id == catId) {
@@ -313,22 +374,47 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     return c;
   }
 
-  // TODO:  abstract out the date calculation part of this and the real 
-  // DB adapter
+  public Cursor fetchCategoriesEntriesRanges(long[] catIds,
+      long[] milliStarts, long[] milliEnds) {
+    HashMap<Integer, String> colMap = mColumnMap.get(EntryDbTable.TABLE_NAME);
+    ArrayList<HashMap<String, String>> rows = mTables.get(EntryDbTable.TABLE_NAME);
+    ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>();
+    TreeMap<Long, TreeMap<Long, HashMap<String, String>>> ordered = new TreeMap<Long, TreeMap<Long, HashMap<String, String>>>();
+    
+    mQueries++;
+    for (int i = 0; i < rows.size(); i++) {
+      long id = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_TIMESTAMP));
+      for (int j = 0; j < catIds.length; j++) {
+        if (id == catIds[j] && time >= milliStarts[j] && time <= milliEnds[j]) {
+          TreeMap<Long, HashMap<String, String>> cat = ordered.get(new Long(id));
+          if (cat == null) {
+            cat = new TreeMap<Long, HashMap<String, String>>();
+            ordered.put(new Long(id), cat);
+          }
+          cat.put(new Long(time), rows.get(i));
+          break;
+        }
+      }
+    }
+
+    Iterator<TreeMap<Long, HashMap<String, String>>> iterator = ordered.values().iterator();
+    while (iterator.hasNext()) {
+      result.addAll(iterator.next().values());
+    }
+
+    MockCursor c = new MockCursor();
+    c.setColumnMap(colMap);
+    c.setQueryResults(result);
+    return c;
+  }
+
   public EntryDbTable.Row fetchCategoryEntryInPeriod(long catId, long period,
       long date_ms) {
-    Calendar cal = Calendar.getInstance();
-    cal.setTimeInMillis(date_ms);
-
+    PeriodMath periods = new PeriodMath();
     Period p = DateUtil.mapLongToPeriod(period);
-    DateUtil.setToPeriodStart(cal, p);
-    long min = cal.getTimeInMillis();
-
-    int step = 1;
-    if (p == Period.QUARTER)
-      step = 3;
-    cal.add(DateUtil.mapLongToCal(period), step);
-    long max = cal.getTimeInMillis();
+    long min = periods.periodStart(date_ms, p);
+    long max = periods.nextPeriodStart(date_ms, p);
 
     ArrayList<HashMap<String, String>> rows = mTables.get(EntryDbTable.TABLE_NAME);
     TreeMap<Long, HashMap<String, String>> ordered = new TreeMap<Long, HashMap<String, String>>();
@@ -534,11 +620,45 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     return c;
   }
 
-  // TODO: abstract out the non-db stuff from this method in the sql adapter,
-  // so it can actually be tests
   public String flattenDB() {
-    // TODO Auto-generated method stub
-    return null;
+    StringWriter out = new StringWriter();
+    try {
+      exportDB(out, null);
+    } catch (IOException e) {
+      // can't happen with a StringWriter
+    }
+    return out.toString();
+  }
+
+  // Same output format as the sql adapter, with entries in table order.
+  public int exportDB(Writer out, ExportListener listener) throws IOException {
+    ArrayList<HashMap<String, String>> entries = mTables.get(EntryDbTable.TABLE_NAME);
+    ArrayList<HashMap<String, String>> categories = mTables.get(CategoryDbTable.TABLE_NAME);
+    ArrayList<String> lines = new ArrayList<String>();
+
+    for (int i = 0; entries != null && i < entries.size(); i++) {
+      EntryDbTable.Row er = hashMapToEntryRow(entries.get(i));
+      CategoryDbTable.Row cr = fetchCategory(er.getCategoryId());
+      if (cr != null)
+        lines.add(CSV.joinCSV(cr) + "," + CSV.joinCSV(er));
+    }
+    for (int i = 0; categories != null && i < categories.size(); i++) {
+      CategoryDbTable.Row cr = hashMapToCategoryRow(categories.get(i));
+      if (cr.getSynthetic())
+        lines.add(CSV.joinCSV(cr) + "," + CSV.joinCSV(new EntryDbTable.Row()));
+    }
+
+    out.write(CSV.joinCSV(CategoryDbTable.EXPORTABLE) + ","
+        + CSV.joinCSV(EntryDbTable.EXPORTABLE) + "\n");
+    for (int i = 0; i < lines.size(); i++) {
+      out.write(lines.get(i) + "\n");
+      if (listener != null && (i + 1) % EXPORT_PROGRESS_INTERVAL == 0)
+        listener.onExportProgress(i + 1, lines.size());
+    }
+    out.flush();
+    if (listener != null && lines.size() % EXPORT_PROGRESS_INTERVAL != 0)
+      listener.onExportProgress(lines.size(), lines.size());
+    return lines.size();
   }
 
   public EvenTrendDbAdapter open() throws SQLException {
@@ -616,8 +736,10 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
       long id = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_ROWID));
       if (id == entry.getId()) {
         HashMap<String, String> map = entryRowToHashMap(entry);
-        rows.remove(i);
+        EntryDbTable.Row old = hashMapToEntryRow(rows.remove(i));
         rows.add(i, map);
+        entryChanged(old.getCategoryId(), old.getTimestamp());
+        entryChanged(entry.getCategoryId(), entry.getTimestamp());
         return true;
       }
     }
@@ -625,6 +747,205 @@ public class MockEvenTrendDbAdapter implements EvenTrendDbAdapter {
     return false;
   }
   
+  public Cursor fetchCategoryEntriesBefore(long catId, long milliEnd,
+      int items) {
+    HashMap<Integer, String> colMap = mColumnMap.get(EntryDbTable.TABLE_NAME);
+    ArrayList<HashMap<String, String>> rows = mTables.get(EntryDbTable.TABLE_NAME);
+    ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>();
+    TreeMap<Long, HashMap<String, String>> ordered = new TreeMap<Long, HashMap<String, String>>(java.util.Collections.reverseOrder());
+    
+    for (int i = 0; i < rows.size(); i++) {
+      long id = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_TIMESTAMP));
+      if (id == catId && time <= milliEnd)
+        ordered.put(new Long(time), rows.get(i));
+    }
+
+    Iterator<Long> iterator = ordered.keySet().iterator();
+    while (iterator.hasNext() && result.size() < items) {
+      result.add(ordered.get(iterator.next()));
+    }
+    
+    MockCursor c = new MockCursor();
+    c.setColumnMap(colMap);
+    c.setQueryResults(result);
+    return c;
+  }
+
+  public void setSyntheticDependents(long catId, long[] dependentIds) {
+    mSyntheticDependents.put(Long.valueOf(catId), dependentIds.clone());
+  }
+
+  public SyntheticStateDbTable.Row fetchSyntheticState(long catId) {
+    SyntheticStateDbTable.Row row = mSyntheticState.get(Long.valueOf(catId));
+    if (row == null)
+      return null;
+    return new SyntheticStateDbTable.Row(row);
+  }
+
+  public ArrayList<SyntheticStateDbTable.Row> fetchSyntheticStates(
+      long[] catIds) {
+    ArrayList<SyntheticStateDbTable.Row> states = new ArrayList<SyntheticStateDbTable.Row>();
+    for (int i = 0; i < catIds.length; i++) {
+      SyntheticStateDbTable.Row row = fetchSyntheticState(catIds[i]);
+      if (row != null)
+        states.add(row);
+    }
+    return states;
+  }
+
+  public boolean claimSyntheticValues(long catId,
+      SyntheticStateDbTable.Row seen) {
+    SyntheticStateDbTable.Row state = mSyntheticState.get(Long.valueOf(catId));
+    if (SyntheticStateDbTable.sameState(state, seen) == false)
+      return false;
+    state = new SyntheticStateDbTable.Row();
+    state.setCategoryId(catId);
+    state.setFormulaHash(SyntheticStateDbTable.HASH_PENDING);
+    state.setValidTo(SyntheticStateDbTable.VALID_ALL);
+    mSyntheticState.put(Long.valueOf(catId), state);
+    return true;
+  }
+
+  public Cursor fetchSyntheticValuesRange(long catId, long milliStart,
+      long milliEnd) {
+    ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>();
+    ArrayList<HashMap<String, String>> rows = syntheticValues();
+    for (int i = 0; i < rows.size(); i++) {
+      long id = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_TIMESTAMP));
+      if (id == catId && time >= milliStart && time <= milliEnd)
+        result.add(rows.get(i));
+    }
+    return syntheticCursor(result);
+  }
+
+  public Cursor fetchSyntheticValuesBefore(long catId, long milliEnd,
+      int items) {
+    ArrayList<HashMap<String, String>> result = new ArrayList<HashMap<String, String>>();
+    ArrayList<HashMap<String, String>> rows = syntheticValues();
+    for (int i = rows.size() - 1; i >= 0 && result.size() < items; i--) {
+      long id = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_TIMESTAMP));
+      if (id == catId && time <= milliEnd)
+        result.add(rows.get(i));
+    }
+    return syntheticCursor(result);
+  }
+
+  public boolean replaceSyntheticValues(long catId, long formulaHash,
+      long milliAfter, long[] millis, float[] values, int count) {
+    SyntheticStateDbTable.Row state = mSyntheticState.get(Long.valueOf(catId));
+    if (state == null
+        || state.getFormulaHash() != SyntheticStateDbTable.HASH_PENDING)
+      return false;
+    mSyntheticWrites++;
+    removeSyntheticValues(catId, milliAfter);
+    ArrayList<HashMap<String, String>> rows = syntheticValues();
+    for (int i = 0; i < count; i++) {
+      HashMap<String, String> map = new HashMap<String, String>();
+      map.put(SyntheticDbTable.KEY_ROWID, Integer.toString(rows.size() + 1));
+      map.put(SyntheticDbTable.KEY_CATEGORY_ID, Long.toString(catId));
+      map.put(SyntheticDbTable.KEY_TIMESTAMP, Long.toString(millis[i]));
+      map.put(SyntheticDbTable.KEY_VALUE, Float.toString(values[i]));
+      rows.add(map);
+    }
+
+    // the watermark is left where anything changing since the claim put it
+    state.setFormulaHash(formulaHash);
+
+    if (milliAfter == SyntheticStateDbTable.VALID_NONE)
+      invalidateSynthetics(catId, milliAfter);
+    else
+      invalidateSynthetics(catId, previousSyntheticTimestamp(catId, milliAfter));
+    return true;
+  }
+
+  // As the sql adapter: an entry changing invalidates whatever is calculated
+  // from its category after the previous entry, and so on downstream.
+  private void entryChanged(long catId, long millis) {
+    long previous = SyntheticStateDbTable.VALID_NONE;
+    ArrayList<HashMap<String, String>> rows = mTables.get(EntryDbTable.TABLE_NAME);
+    for (int i = 0; rows != null && i < rows.size(); i++) {
+      long id = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(EntryDbTable.KEY_TIMESTAMP));
+      if (id == catId && time < millis && time > previous)
+        previous = time;
+    }
+    invalidateSynthetics(catId, previous);
+  }
+
+  private void invalidateSynthetics(long catId, long milliValid) {
+    Iterator<Long> iterator = mSyntheticDependents.keySet().iterator();
+    ArrayList<Long> dependees = new ArrayList<Long>();
+    while (iterator.hasNext()) {
+      Long id = iterator.next();
+      long[] dependents = mSyntheticDependents.get(id);
+      for (int i = 0; i < dependents.length; i++) {
+        if (dependents[i] == catId)
+          dependees.add(id);
+      }
+    }
+
+    for (int i = 0; i < dependees.size(); i++) {
+      SyntheticStateDbTable.Row state = mSyntheticState.get(dependees.get(i));
+      if (state == null || state.getValidTo() <= milliValid)
+        continue;
+      state.setValidTo(milliValid);
+
+      long id = dependees.get(i).longValue();
+      if (milliValid == SyntheticStateDbTable.VALID_NONE)
+        invalidateSynthetics(id, milliValid);
+      else
+        invalidateSynthetics(id, previousSyntheticTimestamp(id, milliValid));
+    }
+  }
+
+  private long previousSyntheticTimestamp(long catId, long millis) {
+    long previous = SyntheticStateDbTable.VALID_NONE;
+    ArrayList<HashMap<String, String>> rows = syntheticValues();
+    for (int i = 0; i < rows.size(); i++) {
+      long id = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_TIMESTAMP));
+      if (id == catId && time <= millis && time > previous)
+        previous = time;
+    }
+    return previous;
+  }
+
+  private void removeSyntheticValues(long catId, long milliAfter) {
+    ArrayList<HashMap<String, String>> rows = syntheticValues();
+    for (int i = rows.size() - 1; i >= 0; i--) {
+      long id = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_CATEGORY_ID));
+      long time = Long.parseLong(rows.get(i).get(SyntheticDbTable.KEY_TIMESTAMP));
+      if (id == catId && (milliAfter == SyntheticStateDbTable.VALID_NONE
+          || time > milliAfter))
+        rows.remove(i);
+    }
+  }
+
+  // Stored values are kept in timestamp order within each category, since
+  // they're only ever appended after the last one kept.
+  private ArrayList<HashMap<String, String>> syntheticValues() {
+    ArrayList<HashMap<String, String>> rows = mTables.get(SyntheticDbTable.TABLE_NAME);
+    if (rows == null) {
+      rows = new ArrayList<HashMap<String, String>>();
+      mTables.put(SyntheticDbTable.TABLE_NAME, rows);
+    }
+    return rows;
+  }
+
+  private MockCursor syntheticCursor(ArrayList<HashMap<String, String>> rows) {
+    HashMap<Integer, String> colMap = new HashMap<Integer, String>();
+    for (int i = 0; i < SyntheticDbTable.KEY_ALL.length; i++) {
+      colMap.put(Integer.valueOf(i), SyntheticDbTable.KEY_ALL[i]);
+    }
+    MockCursor c = new MockCursor();
+    c.setColumnMap(colMap);
+    c.setQueryResults(rows);
+    return c;
+  }
+
   public HashMap<String, String> categoryRowToHashMap(CategoryDbTable.Row row) {
     HashMap<String, String> map = new HashMap<String, String>();
     map.put(CategoryDbTable.KEY_ROWID, Long.toString(row.getId()));
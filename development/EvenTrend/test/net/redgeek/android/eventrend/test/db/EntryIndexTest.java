@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.db;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.db.EvenTrendDbAdapter;
+import net.redgeek.android.eventrend.db.SyntheticStateDbTable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+// These need a real SQLite, so have to be run on a device or emulator. Off
+// device (against the stub android.jar) they fail, saying so, rather than
+// passing without having checked anything.
+public class EntryIndexTest extends TestCase {
+  private static final int N_CATEGORIES = 100;
+  private static final int N_ROWS = 1000000;
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+  private static final long INTERVAL = 15 * 60 * 1000;
+
+  private SQLiteDatabase mDb;
+
+  @Override
+  protected void setUp() {
+    try {
+      mDb = SQLiteDatabase.create(null);
+    } catch (RuntimeException e) {
+      mDb = null;
+    }
+    if (mDb == null)
+      fail("no SQLite available; run on a device or emulator");
+  }
+
+  @Override
+  protected void tearDown() {
+    if (mDb != null)
+      mDb.close();
+  }
+
+  public void testUpgradeKeepsData() {
+    // version 3 schema
+    mDb.execSQL(CategoryDbTable.TABLE_CREATE);
+    mDb.execSQL(EntryDbTable.TABLE_CREATE);
+    populate(1000);
+    assertFalse(hasIndex());
+
+    assertFalse(EvenTrendDbAdapter.SqlAdapter.upgrade(mDb, 2, 4));
+    assertTrue(EvenTrendDbAdapter.SqlAdapter.upgrade(mDb, 3, 4));
+    assertTrue(hasIndex());
+    assertEquals(1000, count("SELECT count(*) FROM " + EntryDbTable.TABLE_NAME));
+
+    // version 5 adds the synthetic tables, which start out empty
+    assertTrue(EvenTrendDbAdapter.SqlAdapter.upgrade(mDb, 4, 5));
+    assertEquals(0, count("SELECT count(*) FROM "
+        + SyntheticStateDbTable.TABLE_NAME));
+  }
+
+  public void testQueriesUseIndex() {
+    mDb.execSQL(CategoryDbTable.TABLE_CREATE);
+    mDb.execSQL(EntryDbTable.TABLE_CREATE);
+    mDb.execSQL(EntryDbTable.INDEX_CREATE);
+    populate(N_ROWS);
+    mDb.execSQL("ANALYZE");
+
+    long catId = N_CATEGORIES / 2;
+    long start = START + (N_ROWS / N_CATEGORIES / 2) * INTERVAL;
+    long end = start + 7 * 24 * 4 * INTERVAL;
+
+    // fetchCategoryEntriesRange
+    assertUsesIndex("SELECT DISTINCT * FROM " + EntryDbTable.TABLE_NAME
+        + " WHERE " + EntryDbTable.KEY_CATEGORY_ID + " = " + catId + " AND "
+        + EntryDbTable.KEY_TIMESTAMP + " >= " + start + " AND "
+        + EntryDbTable.KEY_TIMESTAMP + " <= " + end + " ORDER BY "
+        + EntryDbTable.KEY_TIMESTAMP + " ASC");
+    // fetchCategoryEntryInPeriod
+    assertUsesIndex("SELECT * FROM " + EntryDbTable.TABLE_NAME + " WHERE "
+        + EntryDbTable.KEY_CATEGORY_ID + " = " + catId + " AND "
+        + EntryDbTable.KEY_TIMESTAMP + " >= " + start + " AND "
+        + EntryDbTable.KEY_TIMESTAMP + " < " + end + " ORDER BY "
+        + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT 1");
+    // fetchLastCategoryEntry, fetchRecentCategoryEntries
+    assertUsesIndex("SELECT * FROM " + EntryDbTable.TABLE_NAME + " WHERE "
+        + EntryDbTable.KEY_CATEGORY_ID + " = " + catId + " ORDER BY "
+        + EntryDbTable.KEY_TIMESTAMP + " DESC LIMIT 20");
+
+    assertEquals(7 * 24 * 4 + 1, count("SELECT count(*) FROM "
+        + EntryDbTable.TABLE_NAME + " WHERE " + EntryDbTable.KEY_CATEGORY_ID
+        + " = " + catId + " AND " + EntryDbTable.KEY_TIMESTAMP + " >= "
+        + start + " AND " + EntryDbTable.KEY_TIMESTAMP + " <= " + end));
+  }
+
+  // Rows are spread round-robin across the categories, every INTERVAL.
+  private void populate(int nRows) {
+    SQLiteStatement insert = mDb.compileStatement("INSERT INTO "
+        + EntryDbTable.TABLE_NAME + " (" + EntryDbTable.KEY_CATEGORY_ID + ", "
+        + EntryDbTable.KEY_TIMESTAMP + ", " + EntryDbTable.KEY_VALUE + ", "
+        + EntryDbTable.KEY_N_ENTRIES + ") VALUES (?, ?, ?, 1)");
+    mDb.beginTransaction();
+    try {
+      for (int i = 0; i < nRows; i++) {
+        insert.bindLong(1, i % N_CATEGORIES);
+        insert.bindLong(2, START + (i / N_CATEGORIES) * INTERVAL);
+        insert.bindDouble(3, i % 13);
+        insert.executeInsert();
+      }
+      mDb.setTransactionSuccessful();
+    } finally {
+      mDb.endTransaction();
+      insert.close();
+    }
+  }
+
+  private boolean hasIndex() {
+    return count("SELECT count(*) FROM sqlite_master WHERE type = 'index' "
+        + "AND name = '" + EntryDbTable.INDEX_NAME + "'") == 1;
+  }
+
+  private long count(String sql) {
+    SQLiteStatement s = mDb.compileStatement(sql);
+    long n = s.simpleQueryForLong();
+    s.close();
+    return n;
+  }
+
+  private void assertUsesIndex(String sql) {
+    String plan = "";
+    Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+    c.moveToFirst();
+    for (int i = 0; i < c.getCount(); i++) {
+      for (int j = 0; j < c.getColumnCount(); j++)
+        plan += c.getString(j) + " ";
+      c.moveToNext();
+    }
+    c.close();
+    assertTrue(plan, plan.indexOf(EntryDbTable.INDEX_NAME) >= 0);
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.test.common.Benchmark;
+import net.redgeek.android.eventrend.test.common.DbTestReader;
+import net.redgeek.android.eventrend.test.common.MockCursor;
+import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
+import android.database.Cursor;
+
+// Compares populateFromCursor(), which looks up every column by name for every
+// row, against a RowMapper, which looks them up once per cursor. The rows are
+// the two_tables.xml fixture scaled up to 100,000 entries and 1,000
+// categories.
+public class RowMapperBenchmark extends Benchmark {
+  private static final int N_ENTRIES = 100000;
+  private static final int N_CATEGORIES = 1000;
+
+  private WindowCursor mEntries;
+  private WindowCursor mCategories;
+
+  private String makeFilePath(String filename) {
+    String sep = System.getProperty("file.separator");
+    String path = System.getProperty("user.dir");
+    String[] subdir = new String[] { "test", "net", "redgeek", "android",
+        "eventrend", "test", "common", "dbtestdata" };
+
+    for (int i = 0; i < subdir.length; i++) {
+      path += sep + subdir[i];
+    }
+    path += sep + filename;
+    return path;
+  }
+
+  @Override
+  protected void setUp() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("two_tables.xml"));
+
+    mEntries = scale(dbh.fetchAllEntries(), N_ENTRIES, EntryDbTable.KEY_ROWID,
+        EntryDbTable.KEY_TIMESTAMP);
+    mCategories = scale(dbh.fetchAllCategories(), N_CATEGORIES,
+        CategoryDbTable.KEY_ROWID, CategoryDbTable.KEY_RANK);
+  }
+
+  @Override
+  protected void runComparisons() {
+    entries();
+    categories();
+  }
+
+  private void entries() {
+    final EntryDbTable.Row row = new EntryDbTable.Row();
+    Benchmark.Result before = Benchmark.run("entries: populateFromCursor", 2,
+        10, new Benchmark.Body() {
+          public void run() {
+            mEntries.moveToFirst();
+            for (int i = 0; i < mEntries.getCount(); i++) {
+              row.populateFromCursor(mEntries);
+              mEntries.moveToNext();
+            }
+          }
+        });
+    Benchmark.Result after = Benchmark.run("entries: RowMapper", 2, 10,
+        new Benchmark.Body() {
+          public void run() {
+            EntryDbTable.RowMapper mapper = new EntryDbTable.RowMapper(mEntries);
+            mEntries.moveToFirst();
+            for (int i = 0; i < mEntries.getCount(); i++) {
+              mapper.populate(row);
+              mEntries.moveToNext();
+            }
+          }
+        });
+    compare(before, after);
+    assertEquals(N_ENTRIES, row.getId());
+  }
+
+  private void categories() {
+    final CategoryDbTable.Row row = new CategoryDbTable.Row();
+    Benchmark.Result before = Benchmark.run("categories: populateFromCursor",
+        2, 20, new Benchmark.Body() {
+          public void run() {
+            mCategories.moveToFirst();
+            for (int i = 0; i < mCategories.getCount(); i++) {
+              row.populateFromCursor(mCategories);
+              mCategories.moveToNext();
+            }
+          }
+        });
+    Benchmark.Result after = Benchmark.run("categories: RowMapper", 2, 20,
+        new Benchmark.Body() {
+          public void run() {
+            CategoryDbTable.RowMapper mapper = new CategoryDbTable.RowMapper(
+                mCategories);
+            mCategories.moveToFirst();
+            for (int i = 0; i < mCategories.getCount(); i++) {
+              mapper.populate(row);
+              mCategories.moveToNext();
+            }
+          }
+        });
+    compare(before, after);
+    assertEquals(N_CATEGORIES, row.getId());
+    assertEquals("CategoryName", row.getCategoryName());
+  }
+
+  // Repeats the first row of the cursor n times, numbering the id and order
+  // columns 1..n.
+  private WindowCursor scale(Cursor c, int n, String idColumn,
+      String orderColumn) {
+    c.moveToFirst();
+    // DbTestReader doesn't number the columns from 0, so find them by probing.
+    HashMap<String, String> first = new HashMap<String, String>();
+    for (int i = 0; first.size() < c.getColumnCount(); i++) {
+      String name = c.getColumnName(i);
+      if (name != null)
+        first.put(name, c.getString(i));
+    }
+    String[] names = first.keySet().toArray(new String[first.size()]);
+    ArrayList<HashMap<String, String>> rows = new ArrayList<HashMap<String, String>>();
+    for (int i = 1; i <= n; i++) {
+      HashMap<String, String> row = new HashMap<String, String>(first);
+      row.put(idColumn, Integer.toString(i));
+      row.put(orderColumn, Integer.toString(i));
+      rows.add(row);
+    }
+    c.close();
+
+    HashMap<Integer, String> colMap = new HashMap<Integer, String>();
+    for (int j = 0; j < names.length; j++)
+      colMap.put(Integer.valueOf(j), names[j]);
+    return new WindowCursor(colMap, rows);
+  }
+
+  // Stands in for SQLiteCursor: the values are already decoded, as they are
+  // in a CursorWindow, and column lookups are a case-insensitive scan of the
+  // column names, as in AbstractCursor. MockCursor parses every value from a
+  // string, which would swamp what's being measured.
+  private static class WindowCursor extends MockCursor {
+    private String[] mNames;
+    private String[][] mStrings;
+    private double[][] mNumbers;
+
+    public WindowCursor(HashMap<Integer, String> colMap,
+        ArrayList<HashMap<String, String>> rows) {
+      setColumnMap(colMap);
+      setQueryResults(rows);
+      mNames = getColumnNames();
+      mStrings = new String[rows.size()][mNames.length];
+      mNumbers = new double[rows.size()][mNames.length];
+      for (int i = 0; i < rows.size(); i++) {
+        for (int j = 0; j < mNames.length; j++) {
+          mStrings[i][j] = rows.get(i).get(mNames[j]);
+          try {
+            mNumbers[i][j] = Double.parseDouble(mStrings[i][j]);
+          } catch (RuntimeException e) {
+            // null or non-numeric
+            mNumbers[i][j] = 0;
+          }
+        }
+      }
+    }
+
+    @Override
+    public int getColumnIndex(String name) {
+      int period = name.lastIndexOf('.');
+      if (period != -1)
+        name = name.substring(period + 1);
+      for (int i = 0; i < mNames.length; i++) {
+        if (mNames[i].equalsIgnoreCase(name))
+          return i;
+      }
+      return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String name) {
+      int i = getColumnIndex(name);
+      if (i < 0)
+        throw new IllegalArgumentException("column '" + name
+            + "' does not exist");
+      return i;
+    }
+
+    @Override
+    public String getString(int column) {
+      return mStrings[getPosition()][column];
+    }
+
+    @Override
+    public long getLong(int column) {
+      return (long) mNumbers[getPosition()][column];
+    }
+
+    @Override
+    public int getInt(int column) {
+      return (int) mNumbers[getPosition()][column];
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return (float) mNumbers[getPosition()][column];
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.graph;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.Decimation;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+
+public class DecimationTest extends TestCase {
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+
+  private TimeSeries newTimeSeries() {
+    MockTimeSeriesPainter painter = new MockTimeSeriesPainter();
+    CategoryDbTable.Row row = new CategoryDbTable.Row();
+    return new TimeSeries(row, 2, 0.5f, painter);
+  }
+
+  // n datapoints at random intervals of up to maxGap, the first nPre of them
+  // before the visible range and the last nPost after it.
+  private TimeSeries newRandomSeries(int nPre, int nRange, int nPost,
+      long maxGap, long seed) {
+    Random random = new Random(seed);
+    ArrayList<Datapoint> pre = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> range = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> post = new ArrayList<Datapoint>();
+    long ms = START;
+    for (int i = 0; i < nPre + nRange + nPost; i++) {
+      ms += 1 + (long) (random.nextDouble() * maxGap);
+      Datapoint d = new Datapoint(ms, random.nextFloat() * 100.0f, 1, i, 1);
+      if (i < nPre)
+        pre.add(d);
+      else if (i < nPre + nRange)
+        range.add(d);
+      else
+        post.add(d);
+    }
+
+    TimeSeries ts = newTimeSeries();
+    ts.setDatapoints(pre, range, post, true);
+    return ts;
+  }
+
+  public void testDecimateKeepsExtremes() {
+    TimeSeries ts = newRandomSeries(0, 10000, 0, 1000, 1);
+    DatapointColumns c = ts.getColumns();
+    long bucketMs = 8192;
+
+    int[] rows = Decimation.decimate(c, bucketMs);
+    assertTrue(rows.length < c.size());
+    assertTrue(rows.length <= 4 * (c.mMillis[c.size() - 1] / bucketMs
+        - c.mMillis[0] / bucketMs + 1));
+    assertEquals(0, rows[0]);
+    assertEquals(c.size() - 1, rows[rows.length - 1]);
+    for (int k = 1; k < rows.length; k++) {
+      assertTrue(rows[k - 1] < rows[k]);
+    }
+
+    // every bucket's first, last, min and max are among the rows kept
+    int k = 0;
+    int i = 0;
+    while (i < c.size()) {
+      long bucket = c.mMillis[i] / bucketMs;
+      int min = i;
+      int max = i;
+      int j = i;
+      for (; j < c.size() && c.mMillis[j] / bucketMs == bucket; j++) {
+        if (c.mValue[j] < c.mValue[min])
+          min = j;
+        if (c.mValue[j] > c.mValue[max])
+          max = j;
+      }
+
+      assertEquals(i, rows[k]);
+      float keptMin = Float.MAX_VALUE;
+      float keptMax = -Float.MAX_VALUE;
+      for (; k < rows.length && rows[k] < j; k++) {
+        keptMin = Math.min(keptMin, c.mValue[rows[k]]);
+        keptMax = Math.max(keptMax, c.mValue[rows[k]]);
+      }
+      assertEquals(c.mValue[min], keptMin);
+      assertEquals(c.mValue[max], keptMax);
+      assertEquals(j - 1, rows[k - 1]);
+      i = j;
+    }
+    assertEquals(rows.length, k);
+  }
+
+  public void testSelect() {
+    TimeSeries ts = newRandomSeries(500, 5000, 500, 1000, 2);
+    Decimation d = ts.getDecimation();
+
+    d.select(ts, 10000.0f);
+    int[] rows = d.getRows();
+    int n = d.size();
+    assertTrue(n > 0);
+    assertTrue(n < 5002);
+    assertEquals(ts.getVisiblePreLastIdx(), rows[0]);
+    assertEquals(ts.getVisiblePostFirstIdx(), rows[n - 1]);
+    boolean first = false;
+    boolean last = false;
+    for (int k = 0; k < n; k++) {
+      if (k > 0)
+        assertTrue(rows[k - 1] < rows[k]);
+      if (rows[k] == ts.getVisibleFirstIdx())
+        first = true;
+      if (rows[k] == ts.getVisibleLastIdx())
+        last = true;
+    }
+    assertTrue(first);
+    assertTrue(last);
+
+    // zoomed in past a millisecond per pixel, nothing is dropped
+    d.select(ts, 0.5f);
+    assertEquals(ts.getVisiblePostFirstIdx() - ts.getVisiblePreLastIdx() + 1,
+        d.size());
+    for (int k = 0; k < d.size(); k++) {
+      assertEquals(ts.getVisiblePreLastIdx() + k, d.getRows()[k]);
+    }
+  }
+
+  public void testSelectEmpty() {
+    TimeSeries ts = newTimeSeries();
+    Decimation d = ts.getDecimation();
+    d.select(ts, 1000.0f);
+    assertEquals(0, d.size());
+
+    ts = newRandomSeries(0, 3, 0, 1000, 3);
+    d = ts.getDecimation();
+    d.select(ts, 1000000.0f);
+    assertEquals(3, d.size());
+  }
+
+  public void testPanningReusesBuckets() {
+    // the same datapoints, with the visible range moved along by a third
+    TimeSeries ts1 = newRandomSeries(1000, 3000, 3000, 1000, 4);
+    TimeSeries ts2 = newRandomSeries(2000, 3000, 2000, 1000, 4);
+    Decimation d1 = ts1.getDecimation();
+    Decimation d2 = ts2.getDecimation();
+    d1.select(ts1, 5000.0f);
+    d2.select(ts2, 5000.0f);
+
+    // apart from near the ends, the same rows are kept in the overlap
+    int lo = ts2.getVisibleFirstIdx() + 10;
+    int hi = ts1.getVisibleLastIdx() - 10;
+    ArrayList<Integer> rows1 = new ArrayList<Integer>();
+    ArrayList<Integer> rows2 = new ArrayList<Integer>();
+    for (int k = 0; k < d1.size(); k++) {
+      if (d1.getRows()[k] >= lo && d1.getRows()[k] <= hi)
+        rows1.add(d1.getRows()[k]);
+    }
+    for (int k = 0; k < d2.size(); k++) {
+      if (d2.getRows()[k] >= lo && d2.getRows()[k] <= hi)
+        rows2.add(d2.getRows()[k]);
+    }
+    assertTrue(rows1.size() > 0);
+    assertEquals(rows1, rows2);
+  }
+
+  public void testInvalidatedBySeriesChange() {
+    TimeSeries ts = newRandomSeries(0, 2000, 0, 1000, 5);
+    Decimation d = ts.getDecimation();
+    d.select(ts, 100000.0f);
+    int before = d.size();
+    int version = ts.getVersion();
+
+    // fewer datapoints, and the buckets for the old ones must not be reused
+    ArrayList<Datapoint> range = new ArrayList<Datapoint>();
+    for (int i = 0; i < 100; i++) {
+      range.add(new Datapoint(START + i * 1000, (float) i, 1, i, 1));
+    }
+    ts.setDatapoints(null, range, null, true);
+    assertTrue(version != ts.getVersion());
+    d.select(ts, 100000.0f);
+    assertTrue(before > d.size());
+
+    int[] expected = Decimation.decimate(ts.getColumns(), 65536);
+    assertEquals(expected.length, d.size());
+    for (int k = 0; k < expected.length; k++) {
+      assertEquals(expected[k], d.getRows()[k]);
+    }
+  }
+}
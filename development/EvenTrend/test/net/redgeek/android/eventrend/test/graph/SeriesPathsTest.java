@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.graph;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.SeriesPaths;
+import net.redgeek.android.eventrend.graph.Transformation;
+import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.primitives.Tuple;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+
+public class SeriesPathsTest extends TestCase {
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+  private static final long HOUR = 3600000L;
+
+  private TimeSeries newSeries() {
+    ArrayList<Datapoint> range = new ArrayList<Datapoint>();
+    for (int i = 0; i < 48; i++) {
+      range.add(new Datapoint(START + i * HOUR, (float) (i % 5), 1, i, 1));
+    }
+    TimeSeries ts = new TimeSeries(new CategoryDbTable.Row(), 2, 0.5f,
+        new MockTimeSeriesPainter());
+    ts.setInterpolator(new LinearInterpolator());
+    ts.setDatapoints(null, range, null, true);
+    return ts;
+  }
+
+  private Transformation newTransform(long start, long end, float minY,
+      float maxY) {
+    Transformation t = new Transformation(300.0f, 200.0f);
+    t.setVirtualSize(new Tuple(start, minY), new Tuple(end, maxY));
+    return t;
+  }
+
+  public void testPanReusesPaths() {
+    TimeSeries ts = newSeries();
+    SeriesPaths paths = ts.getPaths();
+
+    // nothing built yet
+    Transformation t = newTransform(START, START + 24 * HOUR, 0, 4);
+    assertFalse(paths.prepare(ts, t));
+    assertEquals(0.0f, paths.getOffsetX());
+    assertTrue(paths.prepare(ts, t));
+    assertEquals(0.0f, paths.getOffsetX());
+
+    // panned by six hours: the same scale, so the paths are moved instead
+    Transformation panned = newTransform(START + 6 * HOUR, START + 30 * HOUR,
+        0, 4);
+    assertTrue(paths.prepare(ts, panned));
+    assertEquals(-75.0f, paths.getOffsetX(), 1.0f);
+    // the offset is always from where the paths were built
+    panned = newTransform(START - 12 * HOUR, START + 12 * HOUR, 0, 4);
+    assertTrue(paths.prepare(ts, panned));
+    assertEquals(150.0f, paths.getOffsetX(), 1.0f);
+  }
+
+  public void testRebuiltOnChange() {
+    TimeSeries ts = newSeries();
+    SeriesPaths paths = ts.getPaths();
+    Transformation t = newTransform(START, START + 24 * HOUR, 0, 4);
+    assertFalse(paths.prepare(ts, t));
+    paths.setValueBuilt(2.0f);
+    paths.setTrendBuilt();
+    assertTrue(paths.isValueBuilt(2.0f));
+    assertFalse(paths.isValueBuilt(3.0f));
+
+    // zoomed
+    assertFalse(paths.prepare(ts, newTransform(START, START + 12 * HOUR, 0, 4)));
+    assertFalse(paths.isValueBuilt(2.0f));
+    assertFalse(paths.isTrendBuilt());
+    assertEquals(0.0f, paths.getOffsetX());
+
+    // the y range changed
+    t = newTransform(START, START + 12 * HOUR, 0, 8);
+    assertFalse(paths.prepare(ts, t));
+    assertTrue(paths.prepare(ts, t));
+
+    // the data changed
+    ts.plusPost(new Float(1.0f));
+    assertFalse(paths.prepare(ts, t));
+    assertTrue(paths.prepare(ts, t));
+
+    paths.invalidate();
+    assertFalse(paths.prepare(ts, t));
+  }
+}
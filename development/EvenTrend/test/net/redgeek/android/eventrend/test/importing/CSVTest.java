@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.importing;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.importing.CSV;
+
+public class CSVTest extends TestCase {
+  private static final String[] LINES = { "", "a", "a,b,c", "a,,c", ",,",
+      "a,b,", "\"quoted\",b", "\"with, comma\",b", "a,\"q\"", "\"\",x",
+      "\"unterminated,b", "1.0,2,#4499cc,(series \"one\" + series \"two\")" };
+
+  public void testLineTokenizerMatchesGetNextLine() {
+    CSV.LineTokenizer tokenizer = new CSV.LineTokenizer();
+    for (int i = 0; i < LINES.length; i++) {
+      ArrayList<String> expected = CSV.getNextLine(LINES[i]);
+      assertEquals(LINES[i], expected.size(), tokenizer.split(LINES[i]));
+      for (int j = 0; j < expected.size(); j++) {
+        assertEquals(LINES[i], expected.get(j), tokenizer.get(j));
+      }
+      assertNull(tokenizer.get(expected.size()));
+    }
+  }
+
+  public void testLineTokenizerReuse() {
+    CSV.LineTokenizer tokenizer = new CSV.LineTokenizer();
+    String wide = "0";
+    for (int i = 1; i < 40; i++)
+      wide += "," + i;
+
+    assertEquals(40, tokenizer.split(wide));
+    assertEquals("39", tokenizer.get(39));
+    assertEquals(2, tokenizer.split("x,y"));
+    assertEquals(2, tokenizer.count());
+    assertEquals("y", tokenizer.get(1));
+    assertNull(tokenizer.get(2));
+  }
+}
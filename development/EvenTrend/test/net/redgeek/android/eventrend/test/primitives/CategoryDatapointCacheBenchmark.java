@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.primitives;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.redgeek.android.eventrend.primitives.CategoryDatapointCache;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.test.common.Benchmark;
+import net.redgeek.android.eventrend.util.DateUtil;
+
+// Compares the array-backed CategoryDatapointCache against the TreeMap it
+// replaced (reproduced below as TreeMapCache). One year of hourly datapoints,
+// loaded in month-sized ranges as DatapointCache does when the graph is
+// panned, then queried the way the graph and trend calculations do.
+public class CategoryDatapointCacheBenchmark extends Benchmark {
+  private static final int N_POINTS = 365 * 24;
+  private static final int N_CHUNKS = 12;
+  private static final long INTERVAL = DateUtil.HOUR_MS;
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+
+  private ArrayList<ArrayList<Datapoint>> mChunks;
+  private long[] mLookups;
+
+  @Override
+  protected void setUp() {
+    // chunks in the order they'd be loaded: the most recent first, then
+    // working backwards
+    mChunks = new ArrayList<ArrayList<Datapoint>>();
+    int perChunk = N_POINTS / N_CHUNKS;
+    for (int c = N_CHUNKS - 1; c >= 0; c--) {
+      ArrayList<Datapoint> chunk = new ArrayList<Datapoint>(perChunk);
+      for (int i = c * perChunk; i < (c + 1) * perChunk; i++)
+        chunk.add(new Datapoint(START + i * INTERVAL, i % 13, 1, i, 1));
+      mChunks.add(chunk);
+    }
+
+    mLookups = new long[1000];
+    for (int i = 0; i < mLookups.length; i++) {
+      mLookups[i] = START + ((long) i * 7919 % N_POINTS) * INTERVAL
+          + INTERVAL / 2;
+    }
+  }
+
+  @Override
+  protected void runComparisons() {
+    load();
+    range();
+    beforeAfter();
+    last();
+  }
+
+  private void load() {
+    Benchmark.Result before = Benchmark.run("load: TreeMap", 3, 20,
+        new Benchmark.Body() {
+          public void run() {
+            loadTreeMap();
+          }
+        });
+    Benchmark.Result after = Benchmark.run("load: sorted arrays", 3, 20,
+        new Benchmark.Body() {
+          public void run() {
+            loadArrays();
+          }
+        });
+    compare(before, after);
+  }
+
+  private void range() {
+    final TreeMapCache tree = loadTreeMap();
+    final CategoryDatapointCache arrays = loadArrays();
+    final long week = 7 * DateUtil.DAY_MS;
+
+    Benchmark.Result before = Benchmark.run("range: TreeMap", 3, 20,
+        new Benchmark.Body() {
+          public void run() {
+            for (int i = 0; i < mLookups.length; i++)
+              tree.getDataInRange(mLookups[i], mLookups[i] + week);
+          }
+        });
+    Benchmark.Result after = Benchmark.run("range: sorted arrays", 3, 20,
+        new Benchmark.Body() {
+          public void run() {
+            for (int i = 0; i < mLookups.length; i++)
+              arrays.getDataInRange(mLookups[i], mLookups[i] + week);
+          }
+        });
+    compare(before, after);
+    assertEquals(tree.getDataInRange(mLookups[0], mLookups[0] + week),
+        arrays.getDataInRange(mLookups[0], mLookups[0] + week));
+  }
+
+  private void beforeAfter() {
+    final TreeMapCache tree = loadTreeMap();
+    final CategoryDatapointCache arrays = loadArrays();
+
+    Benchmark.Result before = Benchmark.run("before/after: TreeMap", 1, 3,
+        new Benchmark.Body() {
+          public void run() {
+            for (int i = 0; i < mLookups.length; i++) {
+              tree.getDataBefore(20, mLookups[i]);
+              tree.getDataAfter(20, mLookups[i]);
+            }
+          }
+        });
+    Benchmark.Result after = Benchmark.run("before/after: sorted arrays", 3,
+        20, new Benchmark.Body() {
+          public void run() {
+            for (int i = 0; i < mLookups.length; i++) {
+              arrays.getDataBefore(20, mLookups[i]);
+              arrays.getDataAfter(20, mLookups[i]);
+            }
+          }
+        });
+    compare(before, after);
+    assertEquals(tree.getDataBefore(20, mLookups[0]), arrays.getDataBefore(
+        20, mLookups[0]));
+    assertEquals(tree.getDataAfter(20, mLookups[0]), arrays.getDataAfter(20,
+        mLookups[0]));
+  }
+
+  private void last() {
+    final TreeMapCache tree = loadTreeMap();
+    final CategoryDatapointCache arrays = loadArrays();
+
+    Benchmark.Result before = Benchmark.run("last: TreeMap", 1, 20,
+        new Benchmark.Body() {
+          public void run() {
+            tree.getLast(20);
+          }
+        });
+    Benchmark.Result after = Benchmark.run("last: sorted arrays", 3, 20,
+        new Benchmark.Body() {
+          public void run() {
+            arrays.getLast(20);
+          }
+        });
+    compare(before, after);
+    assertEquals(tree.getLast(20), arrays.getLast(20));
+  }
+
+  private TreeMapCache loadTreeMap() {
+    TreeMapCache cache = new TreeMapCache();
+    for (int c = 0; c < mChunks.size(); c++) {
+      ArrayList<Datapoint> chunk = mChunks.get(c);
+      for (int i = 0; i < chunk.size(); i++)
+        cache.addDatapoint(chunk.get(i));
+    }
+    return cache;
+  }
+
+  private CategoryDatapointCache loadArrays() {
+    CategoryDatapointCache cache = new CategoryDatapointCache(1, 20);
+    for (int c = 0; c < mChunks.size(); c++)
+      cache.addDatapoints(mChunks.get(c));
+    return cache;
+  }
+
+  // The previous CategoryDatapointCache storage and queries.
+  private static class TreeMapCache {
+    private TreeMap<Long, Datapoint> mCache = new TreeMap<Long, Datapoint>();
+
+    public Datapoint addDatapoint(Datapoint d) {
+      return mCache.put(d.mMillis, d);
+    }
+
+    public ArrayList<Datapoint> getDataInRange(long msStart, long msEnd) {
+      ArrayList<Datapoint> range = new ArrayList<Datapoint>();
+      SortedMap<Long, Datapoint> map = mCache.subMap(Long.valueOf(msStart),
+          Long.valueOf(msEnd + 1));
+      Iterator<Datapoint> iterator = map.values().iterator();
+      while (iterator.hasNext())
+        range.add(iterator.next());
+      return range;
+    }
+
+    public ArrayList<Datapoint> getDataBefore(int number, long ms) {
+      ArrayList<Datapoint> pre = new ArrayList<Datapoint>();
+      SortedMap<Long, Datapoint> range = mCache.headMap(Long.valueOf(ms));
+      SortedMap<Long, Datapoint> reverse = new TreeMap<Long, Datapoint>(
+          Collections.reverseOrder());
+      reverse.putAll(range);
+      Iterator<Datapoint> iterator = reverse.values().iterator();
+      for (int i = 0; i < number && iterator.hasNext(); i++)
+        pre.add(0, iterator.next());
+      return pre;
+    }
+
+    public ArrayList<Datapoint> getDataAfter(int number, long ms) {
+      ArrayList<Datapoint> post = new ArrayList<Datapoint>();
+      SortedMap<Long, Datapoint> range = mCache.tailMap(Long.valueOf(ms) + 1);
+      Iterator<Datapoint> iterator = range.values().iterator();
+      for (int i = 0; i < number && iterator.hasNext(); i++)
+        post.add(iterator.next());
+      return post;
+    }
+
+    public ArrayList<Datapoint> getLast(int number) {
+      ArrayList<Datapoint> last = new ArrayList<Datapoint>();
+      SortedMap<Long, Datapoint> reverse = new TreeMap<Long, Datapoint>(
+          Collections.reverseOrder());
+      reverse.putAll(mCache);
+      Iterator<Datapoint> iterator = reverse.values().iterator();
+      for (int i = 0; i < number && iterator.hasNext(); i++)
+        last.add(0, iterator.next());
+      return last;
+    }
+  }
+}
@@ -26,6 +26,16 @@ import junit.framework.TestCase;
 // Note that several tests use equality comparison on float, which could be 
 // dangerous in general, but should be safe for such small predefined values.
 public class CategoryDatapointCacheTest extends TestCase {
+  // The cache keeps the datapoints column-wise and returns new Datapoints, so
+  // they're compared by what they hold rather than by identity.
+  private void assertSameDatapoint(Datapoint expected, Datapoint actual) {
+    assertEquals(expected.mMillis, actual.mMillis);
+    assertEquals(expected.mValue.y, actual.mValue.y);
+    assertEquals(expected.mCatId, actual.mCatId);
+    assertEquals(expected.mEntryId, actual.mEntryId);
+    assertEquals(expected.mNEntries, actual.mNEntries);
+  }
+
   public void testConstructors() {
     CategoryDatapointCache cache = new CategoryDatapointCache(1, 10);
     assertEquals(1, cache.getCategoryId());
@@ -74,19 +84,19 @@ public class CategoryDatapointCacheTest extends TestCase {
 
     out = cache.getDataInRange(99, 101);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     out = cache.getDataInRange(100, 150);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     out = cache.getDataInRange(50, 100);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     out = cache.getDataInRange(100, 100);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     Datapoint d2 = new Datapoint(50L, 2.0f, 3, 4, 5);
     cache.addDatapoint(d2);
@@ -95,13 +105,13 @@ public class CategoryDatapointCacheTest extends TestCase {
 
     out = cache.getDataInRange(51, 149);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     out = cache.getDataInRange(50, 150);
     assertEquals(3, out.size());
-    assertSame(d, out.get(1));
-    assertNotSame(d, out.get(0));
-    assertNotSame(d, out.get(2));
+    assertSameDatapoint(d, out.get(1));
+    assertFalse(d.mMillis == out.get(0).mMillis);
+    assertFalse(d.mMillis == out.get(2).mMillis);
     assertEquals(50L, out.get(0).mMillis);
     assertEquals(100L, out.get(1).mMillis);
     assertEquals(150L, out.get(2).mMillis);
@@ -123,13 +133,13 @@ public class CategoryDatapointCacheTest extends TestCase {
     assertEquals(0, out.size());
     out = cache.getDataBefore(1, 101);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     out = cache.getDataAfter(1, 100);
     assertEquals(0, out.size());
     out = cache.getDataAfter(1, 99);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     Datapoint d2 = new Datapoint(50L, 2.0f, 3, 4, 5);
     cache.addDatapoint(d2);
@@ -148,18 +158,18 @@ public class CategoryDatapointCacheTest extends TestCase {
 
     out = cache.getDataBefore(10, 151);
     assertEquals(3, out.size());
-    assertSame(d, out.get(1));
-    assertNotSame(d, out.get(0));
-    assertNotSame(d, out.get(2));
+    assertSameDatapoint(d, out.get(1));
+    assertFalse(d.mMillis == out.get(0).mMillis);
+    assertFalse(d.mMillis == out.get(2).mMillis);
     assertEquals(50L, out.get(0).mMillis);
     assertEquals(100L, out.get(1).mMillis);
     assertEquals(150L, out.get(2).mMillis);
 
     out = cache.getDataAfter(10, 49);
     assertEquals(3, out.size());
-    assertSame(d, out.get(1));
-    assertNotSame(d, out.get(0));
-    assertNotSame(d, out.get(2));
+    assertSameDatapoint(d, out.get(1));
+    assertFalse(d.mMillis == out.get(0).mMillis);
+    assertFalse(d.mMillis == out.get(2).mMillis);
     assertEquals(50L, out.get(0).mMillis);
     assertEquals(100L, out.get(1).mMillis);
     assertEquals(150L, out.get(2).mMillis);
@@ -179,7 +189,7 @@ public class CategoryDatapointCacheTest extends TestCase {
 
     out = cache.getLast(1);
     assertEquals(1, out.size());
-    assertSame(d, out.get(0));
+    assertSameDatapoint(d, out.get(0));
 
     Datapoint d2 = new Datapoint(50L, 2.0f, 3, 4, 5);
     cache.addDatapoint(d2);
@@ -188,29 +198,153 @@ public class CategoryDatapointCacheTest extends TestCase {
 
     out = cache.getLast(1);
     assertEquals(1, out.size());
-    assertNotSame(d, out.get(0));
+    assertFalse(d.mMillis == out.get(0).mMillis);
 
     out = cache.getLast(2);
     assertEquals(2, out.size());
-    assertSame(d, out.get(0));
-    assertNotSame(d, out.get(1));
+    assertSameDatapoint(d, out.get(0));
+    assertFalse(d.mMillis == out.get(1).mMillis);
 
     out = cache.getLast(3);
     assertEquals(3, out.size());
-    assertNotSame(d, out.get(0));
-    assertSame(d, out.get(1));
-    assertNotSame(d, out.get(2));
+    assertFalse(d.mMillis == out.get(0).mMillis);
+    assertSameDatapoint(d, out.get(1));
+    assertFalse(d.mMillis == out.get(2).mMillis);
 
     out = cache.getLast(4);
     assertEquals(3, out.size());
-    assertNotSame(d, out.get(0));
-    assertSame(d, out.get(1));
-    assertNotSame(d, out.get(2));
+    assertFalse(d.mMillis == out.get(0).mMillis);
+    assertSameDatapoint(d, out.get(1));
+    assertFalse(d.mMillis == out.get(2).mMillis);
     assertEquals(50L, out.get(0).mMillis);
     assertEquals(100L, out.get(1).mMillis);
     assertEquals(150L, out.get(2).mMillis);
   }
 
+  public void testAddDatapoints() {
+    CategoryDatapointCache cache = new CategoryDatapointCache(3, 10);
+    ArrayList<Datapoint> in = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> out;
+
+    // append to empty
+    for (int i = 10; i < 20; i++)
+      in.add(new Datapoint(i * 10L, i, 3, i, 1));
+    cache.addDatapoints(in);
+    assertTrue(cache.isValid());
+    assertEquals(10, cache.size());
+    assertEquals(100L, cache.getStart());
+    assertEquals(190L, cache.getEnd());
+
+    // append after, and prepend before, enough to force growth
+    in.clear();
+    for (int i = 20; i < 100; i++)
+      in.add(new Datapoint(i * 10L, i, 3, i, 1));
+    cache.addDatapoints(in);
+    in.clear();
+    for (int i = 0; i < 10; i++)
+      in.add(new Datapoint(i * 10L, i, 3, i, 1));
+    cache.addDatapoints(in);
+    assertEquals(100, cache.size());
+    assertEquals(0L, cache.getStart());
+    assertEquals(990L, cache.getEnd());
+
+    out = cache.getDataInRange(0L, 990L);
+    assertEquals(100, out.size());
+    for (int i = 0; i < 100; i++)
+      assertEquals(i * 10L, out.get(i).mMillis);
+    assertSameDatapoint(in.get(0), out.get(0));
+
+    // overlapping and unordered falls back to individual adds
+    Datapoint replace = new Datapoint(500L, 1.0f, 3, 1000, 1);
+    in.clear();
+    in.add(new Datapoint(1005L, 1.0f, 3, 1001, 1));
+    in.add(replace);
+    in.add(new Datapoint(505L, 1.0f, 3, 1002, 1));
+    cache.addDatapoints(in);
+    assertEquals(102, cache.size());
+    assertEquals(1005L, cache.getEnd());
+    out = cache.getDataInRange(500L, 510L);
+    assertEquals(3, out.size());
+    assertSameDatapoint(replace, out.get(0));
+    assertEquals(505L, out.get(1).mMillis);
+    assertEquals(510L, out.get(2).mMillis);
+
+    cache.addDatapoints(null);
+    cache.addDatapoints(new ArrayList<Datapoint>());
+    assertEquals(102, cache.size());
+  }
+
+  public void testInsertOrder() {
+    CategoryDatapointCache cache = new CategoryDatapointCache(3, 10);
+
+    // alternate ends and the middle to exercise shifting both ways and growth
+    for (int i = 0; i < 50; i++) {
+      cache.addDatapoint(new Datapoint(1000L + i * 10L, 1.0f, 3, i, 1));
+      cache.addDatapoint(new Datapoint(1000L - (i + 1) * 10L, 1.0f, 3, i, 1));
+      cache.addDatapoint(new Datapoint(1000L + i * 10L + 5L, 1.0f, 3, i, 1));
+    }
+    assertEquals(150, cache.size());
+
+    ArrayList<Datapoint> out = cache.getDataInRange(Long.MIN_VALUE,
+        Long.MAX_VALUE);
+    assertEquals(150, out.size());
+    for (int i = 1; i < out.size(); i++)
+      assertTrue(out.get(i - 1).mMillis < out.get(i).mMillis);
+
+    out = cache.getLast(3);
+    assertEquals(3, out.size());
+    assertEquals(1490L, out.get(1).mMillis);
+    assertEquals(1495L, out.get(2).mMillis);
+
+    out = cache.getDataBefore(2, 1000L);
+    assertEquals(2, out.size());
+    assertEquals(980L, out.get(0).mMillis);
+    assertEquals(990L, out.get(1).mMillis);
+
+    out = cache.getDataAfter(2, 1000L);
+    assertEquals(2, out.size());
+    assertEquals(1005L, out.get(0).mMillis);
+    assertEquals(1010L, out.get(1).mMillis);
+  }
+
+  public void testTrim() {
+    CategoryDatapointCache cache = new CategoryDatapointCache(3, 10);
+    ArrayList<Datapoint> in = new ArrayList<Datapoint>();
+    ArrayList<Datapoint> out;
+
+    assertEquals(0, cache.trimBefore(100L));
+    for (int i = 0; i < 100; i++)
+      in.add(new Datapoint(i * 10L, i, 3, i, 1));
+    cache.addDatapoints(in);
+    cache.updateStart(-5L);
+    cache.updateEnd(1000L);
+
+    assertEquals(0, cache.trimBefore(-5L));
+    assertEquals(0, cache.trimAfter(1000L));
+
+    assertEquals(20, cache.trimBefore(195L));
+    assertEquals(195L, cache.getStart());
+    assertEquals(70, cache.trimAfter(295L));
+    assertEquals(295L, cache.getEnd());
+    assertEquals(10, cache.size());
+
+    out = cache.getDataInRange(0L, 1000L);
+    assertEquals(10, out.size());
+    assertSameDatapoint(in.get(20), out.get(0));
+    assertSameDatapoint(in.get(29), out.get(9));
+
+    // the freed space at the ends is still usable
+    cache.addDatapoint(new Datapoint(0L, 1.0f, 3, 1, 1));
+    cache.addDatapoint(new Datapoint(990L, 1.0f, 3, 1, 1));
+    assertEquals(12, cache.size());
+    assertEquals(0L, cache.getStart());
+    assertEquals(990L, cache.getEnd());
+
+    assertEquals(12, cache.trimAfter(-1L));
+    assertFalse(cache.isValid());
+    assertEquals(0, cache.size());
+  }
+
   public void testUpdate() {
     Datapoint in = new Datapoint(100L, 2.0f, 3, 4, 5);
     Datapoint update = new Datapoint(101L, 2.0f, 3, 4, 5);
@@ -227,6 +361,13 @@ public class CategoryDatapointCacheTest extends TestCase {
     out = cache.updateDatapoint(update);
     assertNotNull(out);
     assertEquals(4, out.mEntryId);
+    assertSameDatapoint(update, cache.getLast(1).get(0));
+
+    // what's returned is a copy, so changing it doesn't change the cache
+    out = cache.getLast(1).get(0);
+    out.mValue.y = 10.0f;
+    update.mValue.y = 10.0f;
+    assertEquals(2.0f, cache.getLast(1).get(0).mValue.y);
   }
 
   public void testClear() {
@@ -16,11 +16,157 @@
 
 package net.redgeek.android.eventrend.test.primitives;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 import junit.framework.TestCase;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointCache;
+import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
 
 // Need test to check for cache holes
 public class DatapointCacheTest extends TestCase {
+  // 100 entries for each of categories 1 and 2, one per second
+  private MockEvenTrendDbAdapter newDbh() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    HashMap<Integer, String> colMap = new HashMap<Integer, String>();
+    for (int i = 0; i < EntryDbTable.KEY_ALL.length; i++)
+      colMap.put(Integer.valueOf(i), EntryDbTable.KEY_ALL[i]);
+    dbh.setColumnMap(EntryDbTable.TABLE_NAME, colMap);
+
+    int id = 1;
+    for (int cat = 1; cat <= 2; cat++) {
+      for (int i = 0; i < 100; i++) {
+        HashMap<String, String> row = new HashMap<String, String>();
+        row.put(EntryDbTable.KEY_ROWID, Integer.toString(id++));
+        row.put(EntryDbTable.KEY_CATEGORY_ID, Integer.toString(cat));
+        row.put(EntryDbTable.KEY_TIMESTAMP, Long.toString(i * 1000L));
+        row.put(EntryDbTable.KEY_VALUE, Float.toString(i));
+        row.put(EntryDbTable.KEY_N_ENTRIES, "1");
+        dbh.addContent(EntryDbTable.TABLE_NAME, row);
+      }
+    }
+    return dbh;
+  }
+
   public void testConstructors() {
-    // TODO
+    DatapointCache cache = new DatapointCache(newDbh());
+    assertEquals(DatapointCache.DEFAULT_MEMORY_BUDGET, cache.getMemoryBudget());
+    assertEquals(0, cache.getCachedDatapoints());
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+    assertEquals(0, cache.getEvictions());
+  }
+
+  public void testMemoryBudget() {
+    ArrayList<Datapoint> out;
+    DatapointCache cache = new DatapointCache(newDbh());
+    cache.addCacheableCategory(1, 5);
+    cache.addCacheableCategory(2, 5);
+    cache.setMemoryBudget(150 * DatapointCache.BYTES_PER_DATAPOINT);
+
+    // note that populateRange() widens the request by half before and a
+    // quarter after when not aggregating
+    cache.populateRange(1, 0, 99000, 0);
+    assertEquals(100, cache.getCachedDatapoints());
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    cache.populateRange(1, 40000, 59000, 0);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // over budget: category 1 is trimmed to its last request, [30500, 63750]
+    cache.populateRange(2, 0, 99000, 0);
+    assertEquals(2, cache.getMisses());
+    assertEquals(67, cache.getEvictions());
+    assertEquals(133, cache.getCachedDatapoints());
+    assertTrue(cache.isCategoryCacheValid(1));
+    assertEquals(30500L, cache.getCategoryCacheStart(1));
+    assertEquals(63750L, cache.getCategoryCacheEnd(1));
+    assertEquals(20, cache.getDataInRange(1, 40000, 59000).size());
+    out = cache.getDataBefore(1, 5, 40000);
+    assertEquals(5, out.size());
+    assertEquals(35000L, out.get(0).mMillis);
+    assertEquals(100, cache.getDataInRange(2, 0, 99000).size());
+
+    // reloading the trimmed data leaves no room for category 2, the least
+    // recently used, but category 1 must be intact and contiguous
+    cache.populateRange(1, 0, 99000, 0);
+    assertEquals(3, cache.getMisses());
+    assertEquals(167, cache.getEvictions());
+    assertEquals(100, cache.getCachedDatapoints());
+    assertFalse(cache.isCategoryCacheValid(2));
+    out = cache.getDataInRange(1, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1);
+    assertEquals(100, out.size());
+    for (int i = 0; i < out.size(); i++)
+      assertEquals(i * 1000L, out.get(i).mMillis);
+
+    cache.resetCounters();
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+    assertEquals(0, cache.getEvictions());
+  }
+
+  public void testUnlimited() {
+    DatapointCache cache = new DatapointCache(newDbh());
+    cache.addCacheableCategory(1, 5);
+    cache.addCacheableCategory(2, 5);
+    cache.setMemoryBudget(0);
+
+    cache.populateRange(1, 0, 99000, 0);
+    cache.populateRange(2, 0, 99000, 0);
+    assertEquals(200, cache.getCachedDatapoints());
+    assertEquals(0, cache.getEvictions());
+
+    cache.setMemoryBudget(100 * DatapointCache.BYTES_PER_DATAPOINT);
+    assertEquals(100, cache.getEvictions());
+    assertFalse(cache.isCategoryCacheValid(1));
+    assertTrue(cache.isCategoryCacheValid(2));
+  }
+
+  public void testPopulateRanges() {
+    ArrayList<Datapoint> out;
+    MockEvenTrendDbAdapter dbh = newDbh();
+    DatapointCache cache = new DatapointCache(dbh);
+    cache.addCacheableCategory(1, 5);
+    cache.addCacheableCategory(2, 5);
+    cache.addCacheableCategory(3, 5);
+
+    // widened to [30500, 63750]; category 3 has no data
+    cache.populateRanges(new long[] { 2, 1, 3 }, 40000, 59000, 0);
+    assertEquals(1, dbh.getRangeQueryCount());
+    assertEquals(3, cache.getMisses());
+    assertEquals(66, cache.getCachedDatapoints());
+    for (int cat = 1; cat <= 2; cat++) {
+      assertEquals(30500L, cache.getCategoryCacheStart(cat));
+      assertEquals(63750L, cache.getCategoryCacheEnd(cat));
+      out = cache.getDataInRange(cat, 0, 99000);
+      assertEquals(33, out.size());
+      assertEquals(31000L, out.get(0).mMillis);
+      assertEquals(cat, out.get(0).mCatId);
+    }
+    assertFalse(cache.isCategoryCacheValid(3));
+    assertEquals(0, cache.getDataInRange(3, 0, 99000).size());
+
+    // extends both categories both ways: four ranges, still one query
+    cache.populateRanges(new long[] { 1, 2, 1 }, 10000, 89000, 0);
+    assertEquals(2, dbh.getRangeQueryCount());
+    assertEquals(-29500L, cache.getCategoryCacheStart(1));
+    assertEquals(108750L, cache.getCategoryCacheEnd(2));
+    for (int cat = 1; cat <= 2; cat++) {
+      out = cache.getDataInRange(cat, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1);
+      assertEquals(100, out.size());
+      for (int i = 0; i < out.size(); i++) {
+        assertEquals(i * 1000L, out.get(i).mMillis);
+        assertEquals(cat, out.get(i).mCatId);
+      }
+    }
+
+    // all cached
+    cache.populateRanges(new long[] { 1, 2 }, 40000, 59000, 0);
+    assertEquals(2, dbh.getRangeQueryCount());
+    assertEquals(2, cache.getHits());
   }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.primitives;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
+
+// Note that several tests use equality comparison on float, which could be
+// dangerous in general, but should be safe for such small predefined values.
+public class DatapointColumnsTest extends TestCase {
+  public void testAddAndGrow() {
+    DatapointColumns c = new DatapointColumns(1);
+    assertEquals(0, c.size());
+
+    for (int i = 0; i < 100; i++) {
+      c.add(i * 10L, i * 1.5f, 1, i, 1);
+    }
+    assertEquals(100, c.size());
+    assertEquals(990L, c.mMillis[99]);
+    assertEquals(148.5f, c.mValue[99]);
+    assertEquals(99L, c.mEntryId[99]);
+
+    c.clear();
+    assertEquals(0, c.size());
+  }
+
+  public void testDatapointRoundTrip() {
+    DatapointColumns c = new DatapointColumns();
+    Datapoint d = new Datapoint(100L, 2.0f, 3, 4, 5);
+    d.mTrend.set(d.mValue.x, 1.0f);
+    d.mStdDev = 0.5f;
+    d.mSynthetic = true;
+    d.mValueScreen.set(10.0f, 20.0f);
+    d.mTrendScreen.set(10.0f, 30.0f);
+    c.add(d);
+
+    Datapoint out = c.toDatapoint(0);
+    assertNotSame(d, out);
+    assertEquals(d, out);
+    assertEquals(5, out.mNEntries);
+    assertEquals(0.5f, out.mStdDev);
+    assertEquals(20.0f, out.mValueScreen.y);
+    assertEquals(30.0f, out.mTrendScreen.y);
+
+    DatapointColumns copy = new DatapointColumns(c);
+    assertEquals(1, copy.size());
+    assertNotSame(c.mMillis, copy.mMillis);
+    assertEquals(d, copy.toDatapoint(0));
+  }
+
+  public void testTruncateAndSetIds() {
+    DatapointColumns c = new DatapointColumns();
+    for (int i = 0; i < 10; i++) {
+      c.add(i * 10L, i * 1.5f, 1, i, 1);
+    }
+    c.mTrend[2] = 7.0f;
+
+    c.truncate(12);
+    assertEquals(10, c.size());
+    c.truncate(3);
+    assertEquals(3, c.size());
+    assertEquals(20L, c.mMillis[2]);
+
+    Datapoint d = new Datapoint(500L, 9.0f, 4, 40, 2);
+    d.mSynthetic = true;
+    c.setIds(2, d);
+    assertEquals(4L, c.mCatId[2]);
+    assertEquals(40L, c.mEntryId[2]);
+    assertTrue(c.mSynthetic[2]);
+    // the rest of the row is left alone
+    assertEquals(20L, c.mMillis[2]);
+    assertEquals(3.0f, c.mValue[2]);
+    assertEquals(7.0f, c.mTrend[2]);
+    assertEquals(1, c.mNEntries[2]);
+  }
+
+  public void testSearch() {
+    DatapointColumns c = new DatapointColumns();
+    assertEquals(-1, c.indexOfFloor(100L));
+    assertEquals(-1, c.indexOfCeiling(100L));
+
+    c.add(100L, 1.0f, 1, 1, 1);
+    c.add(200L, 2.0f, 1, 2, 1);
+    c.add(300L, 3.0f, 1, 3, 1);
+
+    assertEquals(-1, c.indexOfFloor(99L));
+    assertEquals(0, c.indexOfFloor(100L));
+    assertEquals(0, c.indexOfFloor(199L));
+    assertEquals(1, c.indexOfFloor(200L));
+    assertEquals(2, c.indexOfFloor(1000L));
+
+    assertEquals(0, c.indexOfCeiling(0L));
+    assertEquals(0, c.indexOfCeiling(100L));
+    assertEquals(1, c.indexOfCeiling(101L));
+    assertEquals(2, c.indexOfCeiling(300L));
+    assertEquals(-1, c.indexOfCeiling(301L));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.primitives;
+
+import java.util.ArrayList;
+
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.test.common.Benchmark;
+import net.redgeek.android.eventrend.test.common.DbTestReader;
+import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+import net.redgeek.android.eventrend.util.DateUtil;
+
+// Compares collecting every series one after another with collecting them on
+// the collector's worker threads. 24 categories with an entry every four
+// hours for three months, all enabled, gathered a month at a time with daily
+// aggregation, which is roughly what the graph asks for when showing
+// everything.
+public class GatherSeriesBenchmark extends Benchmark {
+  private static final int N_CATEGORIES = 24;
+  private static final int N_POINTS = 90 * 6;
+  private static final long INTERVAL = 4 * DateUtil.HOUR_MS;
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+  private static final long RANGE = 30 * DateUtil.DAY_MS;
+
+  private MockEvenTrendDbAdapter mDbh;
+
+  @Override
+  protected void setUp() {
+    // the file sets up the tables, and its three categories are joined by
+    // the ones added below
+    mDbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(mDbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    for (int i = 0; i < N_CATEGORIES; i++) {
+      CategoryDbTable.Row row = new CategoryDbTable.Row();
+      row.setCategoryName("cat " + i);
+      row.setGroupName("GroupName");
+      row.setType(i % 2 == 0 ? CategoryDbTable.KEY_TYPE_SUM
+          : CategoryDbTable.KEY_TYPE_AVERAGE);
+      row.setColor("#4499cc");
+      row.setPeriodMs(0);
+      row.setTrendState("trend_unknown");
+      row.setInterpolation("Linear");
+      long id = mDbh.createCategory(row);
+
+      for (int j = 0; j < N_POINTS; j++) {
+        EntryDbTable.Row entry = new EntryDbTable.Row();
+        entry.setCategoryId(id);
+        entry.setTimestamp(START + j * INTERVAL);
+        entry.setValue((float) (100.0 + 10.0 * Math.sin((i + j) / 24.0)));
+        entry.setNEntries(1);
+        mDbh.createEntry(entry);
+      }
+    }
+  }
+
+  private String makeFilePath(String filename) {
+    String sep = System.getProperty("file.separator");
+    String path = System.getProperty("user.dir");
+    String[] subdir = new String[] { "test", "net", "redgeek", "android",
+        "eventrend", "test", "primitives", "dbtestdata" };
+    for (int i = 0; i < subdir.length; i++) {
+      path += sep + subdir[i];
+    }
+    return path + sep + filename;
+  }
+
+  private TimeSeriesCollector newTSC(boolean parallel) {
+    ArrayList<TimeSeriesInterpolator> interpolators = new ArrayList<TimeSeriesInterpolator>();
+    interpolators.add(new LinearInterpolator());
+
+    TimeSeriesCollector tsc = new TimeSeriesCollector(mDbh,
+        new MockTimeSeriesPainter());
+    tsc.setHistory(20);
+    tsc.setSmoothing(0.1f);
+    tsc.setSensitivity(1.0f);
+    tsc.setInterpolators(interpolators);
+    tsc.setParallelCollection(parallel);
+    tsc.setAggregationMs(DateUtil.DAY_MS);
+    tsc.updateTimeSeriesMetaLocking(true);
+    ArrayList<TimeSeries> all = tsc.getAllSeries();
+    for (int i = 0; i < all.size(); i++) {
+      tsc.setSeriesEnabled(all.get(i).getDbRow().getId(), true);
+    }
+    return tsc;
+  }
+
+  // Pans backwards a month at a time, as when scrolling through the graph.
+  private Benchmark.Body pan(final TimeSeriesCollector tsc) {
+    return new Benchmark.Body() {
+      public void run() {
+        for (int m = 2; m >= 0; m--) {
+          long start = START + m * RANGE;
+          tsc.gatherSeriesLocking(start, start + RANGE);
+        }
+      }
+    };
+  }
+
+  @Override
+  protected void runComparisons() {
+    gatherSeries();
+  }
+
+  private void gatherSeries() {
+    Benchmark.Result before = Benchmark.run("gatherSeries: serial", 2, 10,
+        pan(newTSC(false)));
+    Benchmark.Result after = Benchmark.run("gatherSeries: parallel", 2, 10,
+        pan(newTSC(true)));
+    compare(before, after);
+  }
+}
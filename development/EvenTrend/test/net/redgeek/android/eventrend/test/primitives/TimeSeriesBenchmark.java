@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.primitives;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.test.common.Benchmark;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.Number;
+
+// Compares the columnar TimeSeries against the equivalent operations on a
+// list of Datapoint objects, which is how TimeSeries used to store them.
+// Three years of datapoints every 15 minutes.
+public class TimeSeriesBenchmark extends Benchmark {
+  private static final int N_POINTS = 3 * 365 * 24 * 4;
+  private static final long INTERVAL = 15 * DateUtil.MINUTE_MS;
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+
+  private ArrayList<Datapoint> mPoints;
+  private TimeSeries mSeries;
+  private long[] mLookups;
+
+  @Override
+  protected void setUp() {
+    mPoints = new ArrayList<Datapoint>(N_POINTS);
+    for (int i = 0; i < N_POINTS; i++) {
+      float value = (float) (100.0 + 10.0 * Math.sin(i / 96.0) + (i % 7));
+      mPoints.add(new Datapoint(START + i * INTERVAL, value, 1, i, 1));
+    }
+
+    CategoryDbTable.Row row = new CategoryDbTable.Row();
+    mSeries = new TimeSeries(row, 20, 0.1f, new MockTimeSeriesPainter());
+    mSeries.setInterpolator(new LinearInterpolator());
+    mSeries.setDatapoints(null, mPoints, null, true);
+
+    mLookups = new long[1000];
+    for (int i = 0; i < mLookups.length; i++) {
+      mLookups[i] = START + ((long) i * 7919 % N_POINTS) * INTERVAL
+          + INTERVAL / 3;
+    }
+  }
+
+  @Override
+  protected void runComparisons() {
+    copy();
+    calcStats();
+    interpolate();
+    seriesOp();
+    append();
+  }
+
+  private void copy() {
+    Benchmark.Result before = Benchmark.run("copy: Datapoint list", 2, 10,
+        new Benchmark.Body() {
+          public void run() {
+            ArrayList<Datapoint> copy = new ArrayList<Datapoint>();
+            for (int i = 0; i < mPoints.size(); i++) {
+              copy.add(new Datapoint(mPoints.get(i)));
+            }
+          }
+        });
+    Benchmark.Result after = Benchmark.run("copy: columns", 2, 10,
+        new Benchmark.Body() {
+          public void run() {
+            new TimeSeries(mSeries);
+          }
+        });
+    compare(before, after);
+  }
+
+  private void calcStats() {
+    Benchmark.Result before = Benchmark.run("stats: Datapoint list", 2, 10,
+        new Benchmark.Body() {
+          public void run() {
+            Number.Trend trend = new Number.Trend(0.1f);
+            Number.WindowedStdDev window = new Number.WindowedStdDev(20);
+            Number.RunningStats stats = new Number.RunningStats();
+            for (int i = 0; i < mPoints.size(); i++) {
+              Datapoint d = mPoints.get(i);
+              stats.update(d.mValue.y, d.mNEntries);
+              trend.update(d.mValue.y);
+              window.update(d.mValue.y);
+              d.mStdDev = window.getStandardDev();
+              d.mTrend.x = d.mValue.x;
+              d.mTrend.y = trend.mTrend;
+            }
+          }
+        });
+    final TimeSeries copy = new TimeSeries(mSeries);
+    Benchmark.Result after = Benchmark.run("stats: columns", 2, 10,
+        new Benchmark.Body() {
+          public void run() {
+            copy.recalcStatsAndBounds(0.1f, 20);
+          }
+        });
+    compare(before, after);
+  }
+
+  private void interpolate() {
+    final LinearInterpolator interpolator = new LinearInterpolator();
+    Benchmark.Result before = Benchmark.run("interpolate: Datapoint list", 2,
+        20, new Benchmark.Body() {
+          public void run() {
+            for (int i = 0; i < mLookups.length; i++) {
+              int hi = floor(mPoints, mLookups[i]) + 1;
+              Datapoint d1 = mPoints.get(hi - 1);
+              Datapoint d2 = mPoints.get(hi);
+              interpolator.interpolateY(d1.mValue, d2.mValue, mLookups[i]);
+            }
+          }
+        });
+    final TimeSeries copy = new TimeSeries(mSeries);
+    Benchmark.Result after = Benchmark.run("interpolate: columns", 2, 20,
+        new Benchmark.Body() {
+          public void run() {
+            for (int i = 0; i < mLookups.length; i++) {
+              copy.interpolateValue(mLookups[i]);
+            }
+          }
+        });
+    compare(before, after);
+  }
+
+  private void seriesOp() {
+    final TimeSeries other = new TimeSeries(mSeries);
+    other.plusPost(new Float(1.0f));
+    // The previous implementation: a TreeMap union of the timestamps, then a
+    // binary search into each series for every one of them.
+    Benchmark.Result before = Benchmark.run("timeseriesOp: TreeMap union", 1,
+        3, new Benchmark.Body() {
+          public void run() {
+            TreeMap<Long, Boolean> timestamps = new TreeMap<Long, Boolean>();
+            for (int i = 0; i < mPoints.size(); i++)
+              timestamps.put(new Long(mPoints.get(i).mMillis), true);
+            for (int i = 0; i < mPoints.size(); i++)
+              timestamps.put(new Long(mPoints.get(i).mMillis), true);
+            ArrayList<Datapoint> result = new ArrayList<Datapoint>();
+            Iterator<Long> iterator = timestamps.keySet().iterator();
+            while (iterator.hasNext()) {
+              Long ms = iterator.next();
+              Float f1 = mSeries.interpolateValue(ms);
+              Float f2 = other.interpolateValue(ms);
+              if (f1 == null || f2 == null)
+                continue;
+              result.add(new Datapoint(ms, f1 + f2, 1, -1, 1));
+            }
+          }
+        });
+    Benchmark.Result after = Benchmark.run("timeseriesOp: merge", 1, 3,
+        new Benchmark.Body() {
+          public void run() {
+            TimeSeries copy = new TimeSeries(mSeries);
+            copy.timeseriesPlus(other);
+          }
+        });
+    compare(before, after);
+  }
+
+  private void append() {
+    final ArrayList<Datapoint> appended = new ArrayList<Datapoint>(mPoints);
+    appended.add(new Datapoint(START + N_POINTS * INTERVAL, 100.0f, 1,
+        N_POINTS, 1));
+
+    final TimeSeries full = new TimeSeries(mSeries);
+    Benchmark.Result before = Benchmark.run("append: full recalc", 1, 5,
+        new Benchmark.Body() {
+          public void run() {
+            full.clearSeries();
+            full.setDatapoints(null, appended, null, true);
+          }
+        });
+    final TimeSeries incremental = new TimeSeries(mSeries);
+    Benchmark.Result after = Benchmark.run("append: incremental", 1, 5,
+        new Benchmark.Body() {
+          public void run() {
+            incremental.setDatapoints(null, mPoints, null, true);
+            incremental.setDatapoints(null, appended, null, true);
+          }
+        });
+    compare(before, after);
+  }
+
+  private static int floor(ArrayList<Datapoint> list, long ms) {
+    int lo = 0;
+    int hi = list.size() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (list.get(mid).mMillis <= ms)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi;
+  }
+}
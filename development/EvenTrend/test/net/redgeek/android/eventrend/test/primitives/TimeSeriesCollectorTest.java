@@ -19,16 +19,24 @@ package net.redgeek.android.eventrend.test.primitives;
 import junit.framework.TestCase;
 
 import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.db.EntryDbTable;
+import net.redgeek.android.eventrend.db.SyntheticStateDbTable;
 import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
 import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
 import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.synthetic.Formula;
 import net.redgeek.android.eventrend.test.common.DbTestReader;
 import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
 import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+import net.redgeek.android.eventrend.util.Cancellable;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import android.database.Cursor;
+
 // TODO: add tests that use aggregation
 public class TimeSeriesCollectorTest extends TestCase {
   private TimeSeriesCollector newTSC(MockEvenTrendDbAdapter dbh) {
@@ -498,6 +506,154 @@ public class TimeSeriesCollectorTest extends TestCase {
     // TODO: need more tests here, short on coverage
   }
   
+  // Cancelled after it's been checked <code>checks</code> times.
+  private static class CancelAfter extends Cancellable.Flag {
+    private int mChecks;
+
+    CancelAfter(int checks) {
+      mChecks = checks;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      if (mChecks-- <= 0)
+        cancel();
+      return super.isCancelled();
+    }
+  }
+
+  public void testGatherSeriesCancelled() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    TimeSeriesCollector tsc = newTSC(dbh);
+    // the checks below count on the series being collected in order
+    tsc.setParallelCollection(false);
+
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.setSeriesEnabled(1, true);
+    tsc.setSeriesEnabled(2, true);
+    tsc.setSeriesEnabled(3, true);
+    assertTrue(tsc.gatherSeriesLocking(500, 6000, new CancelAfter(100)));
+    assertEquals(5, tsc.getSeriesByIdLocking(1).getDatapoints().size());
+
+    // cancelled before anything is fetched
+    assertFalse(tsc.gatherSeriesLocking(900, 1100, new CancelAfter(0)));
+    assertEquals(5, tsc.getSeriesByIdLocking(1).getDatapoints().size());
+    assertEquals(5, tsc.getSeriesByIdLocking(2).getDatapoints().size());
+    assertEquals(5, tsc.getSeriesByIdLocking(3).getDatapoints().size());
+
+    // cancelled after the first series
+    assertFalse(tsc.gatherSeriesLocking(900, 1100, new CancelAfter(2)));
+    assertEquals(2, tsc.getSeriesByIdLocking(1).getDatapoints().size());
+    assertEquals(5, tsc.getSeriesByIdLocking(2).getDatapoints().size());
+    assertEquals(5, tsc.getSeriesByIdLocking(3).getDatapoints().size());
+
+    // and the next collection brings everything up to date
+    assertTrue(tsc.gatherSeriesLocking(900, 1100, null));
+    assertEquals(2, tsc.getSeriesByIdLocking(1).getDatapoints().size());
+    assertEquals(2, tsc.getSeriesByIdLocking(2).getDatapoints().size());
+    assertEquals(2, tsc.getSeriesByIdLocking(3).getDatapoints().size());
+  }
+
+  // Interrupting the gathering thread abandons the gather as cancelling it
+  // does, and leaves the thread interrupted.
+  public void testGatherSeriesInterrupted() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    TimeSeriesCollector tsc = newTSC(dbh);
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.setSeriesEnabled(1, true);
+    tsc.setSeriesEnabled(2, true);
+    assertTrue(tsc.gatherSeriesLocking(500, 6000, null));
+
+    Thread.currentThread().interrupt();
+    boolean done = tsc.gatherSeriesLocking(900, 1100, null);
+    assertTrue(Thread.interrupted());
+    assertFalse(done);
+    assertEquals(5, tsc.getSeriesByIdLocking(1).getDatapoints().size());
+    assertEquals(5, tsc.getSeriesByIdLocking(2).getDatapoints().size());
+
+    assertTrue(tsc.gatherSeriesLocking(900, 1100, null));
+    assertEquals(2, tsc.getSeriesByIdLocking(1).getDatapoints().size());
+    assertEquals(2, tsc.getSeriesByIdLocking(2).getDatapoints().size());
+  }
+
+  // Adds n categories, each with entries at different intervals, plus a
+  // synthetic one calculated from the first two.
+  private static void addCategories(MockEvenTrendDbAdapter dbh, int n) {
+    long[] ids = new long[n];
+    for (int i = 0; i < n; i++) {
+      CategoryDbTable.Row row = new CategoryDbTable.Row();
+      row.setCategoryName("many " + i);
+      row.setGroupName("GroupName");
+      row.setType(i % 2 == 0 ? CategoryDbTable.KEY_TYPE_SUM
+          : CategoryDbTable.KEY_TYPE_AVERAGE);
+      row.setColor("#4499cc");
+      row.setPeriodMs(0);
+      row.setTrendState("trend_unknown");
+      row.setInterpolation("Linear");
+      ids[i] = dbh.createCategory(row);
+
+      for (int j = 0; j < 40; j++) {
+        EntryDbTable.Row entry = new EntryDbTable.Row();
+        entry.setCategoryId(ids[i]);
+        entry.setTimestamp(100 + j * (50 + i * 10));
+        entry.setValue((float) ((i + j) % 7));
+        entry.setNEntries(1);
+        dbh.createEntry(entry);
+      }
+    }
+    dbh.createCategory(syntheticCategory("many sum",
+        "(series \"many 0\" + series \"many 1\")"));
+  }
+
+  // Collecting the series concurrently gives the same results as collecting
+  // them one at a time.
+  public void testGatherSeriesParallel() {
+    TimeSeriesCollector[] tscs = new TimeSeriesCollector[2];
+    for (int k = 0; k < tscs.length; k++) {
+      MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+      DbTestReader reader = new DbTestReader(dbh);
+      reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+      addCategories(dbh, 24);
+
+      tscs[k] = newTSC(dbh);
+      tscs[k].setParallelCollection(k == 1);
+      tscs[k].updateTimeSeriesMetaLocking(true);
+      ArrayList<TimeSeries> all = tscs[k].getAllSeries();
+      for (int i = 0; i < all.size(); i++) {
+        tscs[k].setSeriesEnabled(all.get(i).getDbRow().getId(), true);
+      }
+      tscs[k].setAggregationMs(200);
+      tscs[k].gatherSeriesLocking(300, 1500);
+    }
+    assertFalse(tscs[0].getParallelCollection());
+    assertTrue(tscs[1].getParallelCollection());
+
+    ArrayList<TimeSeries> serial = tscs[0].getAllSeries();
+    ArrayList<TimeSeries> parallel = tscs[1].getAllSeries();
+    assertEquals(28, serial.size());
+    assertEquals(serial.size(), parallel.size());
+    int nonEmpty = 0;
+    for (int i = 0; i < serial.size(); i++) {
+      ArrayList<Datapoint> e = serial.get(i).getDatapoints();
+      ArrayList<Datapoint> a = parallel.get(i).getDatapoints();
+      assertEquals(serial.get(i).getDbRow().getId(), parallel.get(i)
+          .getDbRow().getId());
+      assertEquals(e.size(), a.size());
+      if (e.size() > 0)
+        nonEmpty++;
+      for (int j = 0; j < e.size(); j++) {
+        assertEquals(e.get(j).mMillis, a.get(j).mMillis);
+        assertEquals(e.get(j).mValue.y, a.get(j).mValue.y);
+        assertEquals(e.get(j).mTrend.y, a.get(j).mTrend.y);
+      }
+    }
+    assertEquals(28, nonEmpty);
+  }
+
   public void testUpdateCategoryTrend() {
     TimeSeriesCollector tsc;
 
@@ -555,6 +711,254 @@ public class TimeSeriesCollectorTest extends TestCase {
     // TODO: need more tests here, short on coverage
   }
 
+  // Adding entries only recomputes the tail of the synthetic series, which
+  // must come out the same as calculating it from scratch.
+  public void testUpdateCategoryTrendIncremental() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    TimeSeriesCollector tsc = newTSC(dbh);
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.updateCategoryTrend(1);
+
+    Formula formula = new Formula("(series \"cat 1\" + series \"cat 2\")");
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    for (int i = 0; i < 10; i++) {
+      long catId = 1 + (i % 2);
+      entry.setCategoryId(catId);
+      entry.setTimestamp(5500 + i * 700);
+      entry.setValue(i * 3.0f + catId);
+      entry.setNEntries(1);
+      dbh.createEntry(entry);
+      tsc.updateCategoryTrend(catId);
+
+      ArrayList<TimeSeries> sources = new ArrayList<TimeSeries>();
+      sources.add(tsc.getSeriesByIdLocking(1));
+      sources.add(tsc.getSeriesByIdLocking(2));
+      TimeSeries expected = new TimeSeries(tsc.getSeriesByIdLocking(3));
+      expected.setDatapoints(null, formula.apply(sources), null, true);
+
+      ArrayList<Datapoint> e = expected.getDatapoints();
+      ArrayList<Datapoint> a = tsc.getSeriesByIdLocking(3).getDatapoints();
+      assertEquals(e.size(), a.size());
+      for (int j = 0; j < e.size(); j++) {
+        assertEquals(e.get(j).mMillis, a.get(j).mMillis);
+        assertEquals(e.get(j).mValue.y, a.get(j).mValue.y);
+        assertEquals(e.get(j).mTrend.y, a.get(j).mTrend.y);
+      }
+      assertEquals(expected.getTrendStats().mTrend, dbh.fetchCategory(3)
+          .getLastTrend());
+    }
+  }
+
+  private static CategoryDbTable.Row syntheticCategory(String name,
+      String formula) {
+    CategoryDbTable.Row row = new CategoryDbTable.Row();
+    row.setCategoryName(name);
+    row.setGroupName("GroupName");
+    row.setType(CategoryDbTable.KEY_TYPE_AVERAGE);
+    row.setColor("#4499cc");
+    row.setPeriodMs(1000);
+    row.setTrendState("trend_unknown");
+    row.setInterpolation("Linear");
+    row.setSynthetic(true);
+    row.setFormula(formula);
+    return row;
+  }
+
+  // Synthetic series calculated from other synthetic series are evaluated
+  // after them, regardless of the order the categories are in.
+  public void testSyntheticOfSynthetic() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    long outer = dbh.createCategory(syntheticCategory("outer",
+        "(series \"inner\" * 2)"));
+    long inner = dbh.createCategory(syntheticCategory("inner",
+        "(series \"cat 3\" + 1)"));
+    long cyclic = dbh.createCategory(syntheticCategory("cyclic",
+        "(series \"cyclic\" + series \"cat 1\")"));
+    // evaluated alongside cat 3
+    long diff = dbh.createCategory(syntheticCategory("diff",
+        "(series \"cat 2\" - series \"cat 1\")"));
+
+    TimeSeriesCollector tsc = newTSC(dbh);
+    tsc.updateTimeSeriesMetaLocking(true);
+    // only the outermost is enabled, everything it's calculated from should
+    // be gathered as well
+    tsc.setSeriesEnabled(outer, true);
+    tsc.setSeriesEnabled(cyclic, true);
+    tsc.setSeriesEnabled(diff, true);
+    tsc.gatherSeriesLocking(500, 6000);
+
+    ArrayList<Datapoint> one = tsc.getSeriesByIdLocking(1).getDatapoints();
+    ArrayList<Datapoint> two = tsc.getSeriesByIdLocking(2).getDatapoints();
+    ArrayList<Datapoint> result = tsc.getSeriesByIdLocking(outer)
+        .getDatapoints();
+    assertEquals(5, one.size());
+    assertEquals(5, result.size());
+    for (int i = 0; i < result.size(); i++) {
+      assertEquals(one.get(i).mMillis, result.get(i).mMillis);
+      float expected = (one.get(i).mValue.y + two.get(i).mValue.y + 1) * 2;
+      assertEquals(expected, result.get(i).mValue.y);
+    }
+    assertEquals(5, tsc.getSeriesByIdLocking(inner).getDatapoints().size());
+    ArrayList<Datapoint> d = tsc.getSeriesByIdLocking(diff).getDatapoints();
+    assertEquals(5, d.size());
+    for (int i = 0; i < d.size(); i++) {
+      assertEquals(two.get(i).mValue.y - one.get(i).mValue.y, d.get(i).mValue.y);
+    }
+    assertEquals(0, tsc.getSeriesByIdLocking(cyclic).getDatapoints().size());
+
+    // and likewise when updating the trends
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    entry.setCategoryId(1);
+    entry.setTimestamp(5500);
+    entry.setValue(100.0f);
+    entry.setNEntries(1);
+    dbh.createEntry(entry);
+    tsc.updateCategoryTrend(1);
+
+    result = tsc.getSeriesByIdLocking(outer).getDatapoints();
+    Datapoint last = result.get(result.size() - 1);
+    assertEquals(5500, last.mMillis);
+    // cat 2 has nothing to interpolate from after 5000, so counts as 0
+    assertEquals((100.0f + 0.0f + 1) * 2, last.mValue.y);
+    assertEquals(tsc.getSeriesByIdLocking(outer).getTrendStats().mTrend, dbh
+        .fetchCategory(outer).getLastTrend());
+  }
+
+  // Synthetic series are read from their stored values, which are only
+  // recalculated, from the change on, when something they depend on changes.
+  public void testSyntheticStored() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    long outer = dbh.createCategory(syntheticCategory("outer",
+        "(series \"cat 3\" * 2)"));
+    TimeSeriesCollector tsc = newTSC(dbh);
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.setSeriesEnabled(outer, true);
+
+    tsc.gatherSeriesLocking(500, 10000);
+    assertEquals(2, dbh.getSyntheticWriteCount());
+    assertEquals(SyntheticStateDbTable.VALID_ALL, dbh.fetchSyntheticState(3)
+        .getValidTo());
+    assertSyntheticCurrent(tsc, "(series \"cat 1\" + series \"cat 2\")", outer);
+
+    tsc.gatherSeriesLocking(500, 10000);
+    assertEquals(2, dbh.getSyntheticWriteCount());
+
+    // a new entry invalidates everything after the entry before it, and the
+    // same downstream
+    EntryDbTable.Row entry = new EntryDbTable.Row();
+    entry.setCategoryId(1);
+    entry.setTimestamp(3500);
+    entry.setValue(5.0f);
+    entry.setNEntries(1);
+    dbh.createEntry(entry);
+    assertEquals(3000, dbh.fetchSyntheticState(3).getValidTo());
+    assertEquals(3000, dbh.fetchSyntheticState(outer).getValidTo());
+    tsc.getDatapointCache().clearCache();
+    tsc.gatherSeriesLocking(500, 10000);
+    assertEquals(4, dbh.getSyntheticWriteCount());
+    assertEquals(SyntheticStateDbTable.VALID_ALL, dbh.fetchSyntheticState(3)
+        .getValidTo());
+    assertSyntheticCurrent(tsc, "(series \"cat 1\" + series \"cat 2\")", outer);
+
+    // moving an entry invalidates from the earlier of where it was and is
+    entry.setTimestamp(1500);
+    dbh.updateEntry(entry);
+    assertEquals(1000, dbh.fetchSyntheticState(3).getValidTo());
+    tsc.getDatapointCache().clearCache();
+    tsc.gatherSeriesLocking(500, 10000);
+    assertSyntheticCurrent(tsc, "(series \"cat 1\" + series \"cat 2\")", outer);
+
+    dbh.deleteEntry(entry.getId());
+    assertEquals(1000, dbh.fetchSyntheticState(3).getValidTo());
+    tsc.getDatapointCache().clearCache();
+    tsc.gatherSeriesLocking(500, 10000);
+    assertSyntheticCurrent(tsc, "(series \"cat 1\" + series \"cat 2\")", outer);
+    assertEquals(5, tsc.getSeriesByIdLocking(3).getDatapoints().size());
+
+    // a new formula recalculates all of it
+    CategoryDbTable.Row row = dbh.fetchCategory(3);
+    row.setFormula("(series \"cat 2\" - series \"cat 1\")");
+    dbh.updateCategory(row);
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.setSeriesEnabled(outer, true);
+    int writes = dbh.getSyntheticWriteCount();
+    tsc.gatherSeriesLocking(500, 10000);
+    assertEquals(writes + 2, dbh.getSyntheticWriteCount());
+    assertSyntheticCurrent(tsc, "(series \"cat 2\" - series \"cat 1\")", outer);
+  }
+
+  // An entry changing while the sources of a synthetic series are being read
+  // leaves the values written for it current only up to the change.
+  public void testSyntheticChangedWhileRefreshing() {
+    final EntryDbTable.Row entry = new EntryDbTable.Row();
+    entry.setCategoryId(1);
+    entry.setTimestamp(3500);
+    entry.setValue(5.0f);
+    entry.setNEntries(1);
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter() {
+      private boolean mChanged = false;
+
+      public Cursor fetchCategoryEntriesRange(long catId, long milliStart,
+          long milliEnd) {
+        Cursor c = super.fetchCategoryEntriesRange(catId, milliStart,
+            milliEnd);
+        SyntheticStateDbTable.Row state = fetchSyntheticState(3);
+        if (mChanged == false && state != null
+            && state.getFormulaHash() == SyntheticStateDbTable.HASH_PENDING) {
+          mChanged = true;
+          createEntry(entry);
+        }
+        return c;
+      }
+    };
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+    long outer = dbh.createCategory(syntheticCategory("outer",
+        "(series \"cat 3\" * 2)"));
+    TimeSeriesCollector tsc = newTSC(dbh);
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.setSeriesEnabled(outer, true);
+
+    tsc.gatherSeriesLocking(500, 10000);
+    assertEquals(2, dbh.getSyntheticWriteCount());
+    assertEquals(3000, dbh.fetchSyntheticState(3).getValidTo());
+
+    // recalculating cat 3 from there invalidates outer in turn
+    tsc.getDatapointCache().clearCache();
+    tsc.gatherSeriesLocking(500, 10000);
+    assertEquals(4, dbh.getSyntheticWriteCount());
+    assertEquals(SyntheticStateDbTable.VALID_ALL, dbh.fetchSyntheticState(3)
+        .getValidTo());
+    assertSyntheticCurrent(tsc, "(series \"cat 1\" + series \"cat 2\")",
+        outer);
+  }
+
+  // Checks that cat 3, calculated with formula, and outer, twice cat 3, are
+  // what calculating them from the gathered sources gives.
+  private void assertSyntheticCurrent(TimeSeriesCollector tsc, String formula,
+      long outer) {
+    ArrayList<TimeSeries> sources = new ArrayList<TimeSeries>();
+    sources.add(tsc.getSeriesByIdLocking(1));
+    sources.add(tsc.getSeriesByIdLocking(2));
+    ArrayList<Datapoint> e = new Formula(formula).apply(sources);
+    ArrayList<Datapoint> a = tsc.getSeriesByIdLocking(3).getDatapoints();
+    ArrayList<Datapoint> o = tsc.getSeriesByIdLocking(outer).getDatapoints();
+    assertEquals(e.size(), a.size());
+    assertEquals(e.size(), o.size());
+    for (int i = 0; i < e.size(); i++) {
+      assertEquals(e.get(i).mMillis, a.get(i).mMillis);
+      assertEquals(e.get(i).mValue.y, a.get(i).mValue.y);
+      assertEquals(e.get(i).mMillis, o.get(i).mMillis);
+      assertEquals(e.get(i).mValue.y * 2, o.get(i).mValue.y);
+    }
+  }
+
   public void testLocking() {
     // TODO
   }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.primitives;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.primitives.TimeSeriesCollector;
+import net.redgeek.android.eventrend.primitives.TimeSeriesSnapshot;
+import net.redgeek.android.eventrend.test.common.DbTestReader;
+import net.redgeek.android.eventrend.test.common.MockEvenTrendDbAdapter;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+
+public class TimeSeriesSnapshotTest extends TestCase {
+  private String makeFilePath(String filename) {
+    String sep = System.getProperty("file.separator");
+    String path = System.getProperty("user.dir");
+    String[] subdir = new String[] { "test", "net", "redgeek", "android",
+        "eventrend", "test", "primitives", "dbtestdata" };
+    for (int i = 0; i < subdir.length; i++) {
+      path += sep + subdir[i];
+    }
+    return path + sep + filename;
+  }
+
+  private TimeSeriesCollector newTSC() {
+    MockEvenTrendDbAdapter dbh = new MockEvenTrendDbAdapter();
+    DbTestReader reader = new DbTestReader(dbh);
+    reader.populateFromFile(makeFilePath("tsc_3cats_5entries.xml"));
+
+    ArrayList<TimeSeriesInterpolator> interpolators = new ArrayList<TimeSeriesInterpolator>();
+    interpolators.add(new LinearInterpolator());
+    TimeSeriesCollector tsc = new TimeSeriesCollector(dbh,
+        new MockTimeSeriesPainter());
+    tsc.setHistory(20);
+    tsc.setSmoothing(0.1f);
+    tsc.setInterpolators(interpolators);
+    return tsc;
+  }
+
+  public void testPublished() {
+    TimeSeriesCollector tsc = newTSC();
+    TimeSeriesSnapshot empty = tsc.getSnapshot();
+    assertNotNull(empty);
+    assertEquals(0, empty.numSeries());
+
+    tsc.updateTimeSeriesMetaLocking(true);
+    TimeSeriesSnapshot meta = tsc.getSnapshot();
+    assertEquals(3, meta.numSeries());
+    assertEquals(0, meta.getAllEnabledSeries().size());
+    assertTrue(meta.getVersion() > empty.getVersion());
+
+    tsc.setSeriesEnabled(1, true);
+    tsc.setSeriesEnabled(2, true);
+    TimeSeriesSnapshot enabled = tsc.getSnapshot();
+    assertEquals(2, enabled.getAllEnabledSeries().size());
+    assertTrue(enabled.isSeriesEnabled(1));
+    assertFalse(enabled.isSeriesEnabled(3));
+    // the earlier snapshot is unaffected
+    assertFalse(meta.isSeriesEnabled(1));
+    // series that didn't change are shared rather than copied again
+    assertSame(meta.getSeriesById(3), enabled.getSeriesById(3));
+
+    tsc.gatherSeriesLocking(500, 6000);
+    TimeSeriesSnapshot gathered = tsc.getSnapshot();
+    assertEquals(5, gathered.getSeriesById(1).getDatapoints().size());
+    assertEquals(5, gathered.getSeriesById(2).getDatapoints().size());
+    assertEquals(0, enabled.getSeriesById(1).getDatapoints().size());
+    // copies, not the collector's own series
+    assertNotSame(tsc.getSeriesByIdLocking(1), gathered.getSeriesById(1));
+    assertSame(enabled.getSeriesById(3), gathered.getSeriesById(3));
+
+    // nothing changed, so nothing new is published
+    tsc.setSeriesEnabled(1, true);
+    assertSame(gathered, tsc.getSnapshot());
+
+    tsc.gatherSeriesLocking(900, 1100);
+    assertEquals(2, tsc.getSnapshot().getSeriesById(1).getDatapoints().size());
+    assertEquals(5, gathered.getSeriesById(1).getDatapoints().size());
+
+    tsc.clearSeriesLocking();
+    assertEquals(0, tsc.getSnapshot().numSeries());
+    assertEquals(3, gathered.numSeries());
+  }
+
+  public void testNotBlockedByCollector() throws InterruptedException {
+    final TimeSeriesCollector tsc = newTSC();
+    tsc.updateTimeSeriesMetaLocking(true);
+    tsc.setSeriesEnabled(1, true);
+    tsc.gatherSeriesLocking(500, 6000);
+
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread holder = new Thread() {
+      public void run() {
+        tsc.lock();
+        locked.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+        tsc.unlock();
+      }
+    };
+    holder.start();
+    assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+    // readable while another thread holds the collector
+    TimeSeries ts = tsc.getSnapshot().getSeriesById(1);
+    assertEquals(5, ts.getDatapoints().size());
+    release.countDown();
+    holder.join(5000);
+  }
+}
@@ -20,12 +20,20 @@ import junit.framework.TestCase;
 
 import net.redgeek.android.eventrend.db.CategoryDbTable;
 import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.StepEarlyInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.StepLateInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.StepMidInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.TimeSeriesInterpolator;
 import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.DatapointColumns;
 import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.synthetic.AST;
 import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
 import net.redgeek.android.eventrend.util.DateUtil;
 
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
 
 // Note that several tests use equality comparison on float, which could be 
 // dangerous in general, but should be safe for such small predefined values.
@@ -106,8 +114,8 @@ public class TimeSeriesTest extends TestCase {
     assertNull(ts.getFirstVisible());
     assertNull(ts.getLastVisible());
     assertNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d1, ts.getLastPreVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d1, ts.getLastPreVisible());
 
     // (d1, d2) (null) (null)
     lpre.clear();
@@ -124,9 +132,9 @@ public class TimeSeriesTest extends TestCase {
     assertNull(ts.getFirstVisible());
     assertNull(ts.getLastVisible());
     assertNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d2, ts.getLastPreVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d2, ts.getLastPreVisible());
 
     // (d1) (d2) (null)
     lpre.clear();
@@ -145,10 +153,10 @@ public class TimeSeriesTest extends TestCase {
     assertNotNull(ts.getFirstVisible());
     assertNotNull(ts.getLastVisible());
     assertNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d1, ts.getLastPreVisible());
-    assertSame(d2, ts.getFirstVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d1, ts.getLastPreVisible());
+    assertSameRow(d2, ts.getFirstVisible());
 
     // (null) (d1, d2) (null)
     lrange.clear();
@@ -165,10 +173,10 @@ public class TimeSeriesTest extends TestCase {
     assertNotNull(ts.getFirstVisible());
     assertNotNull(ts.getLastVisible());
     assertNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d1, ts.getFirstVisible());
-    assertSame(d2, ts.getLastVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d1, ts.getFirstVisible());
+    assertSameRow(d2, ts.getLastVisible());
 
     // (null) (d1, d2, d3) (null)
     lrange.clear();
@@ -186,11 +194,11 @@ public class TimeSeriesTest extends TestCase {
     assertNotNull(ts.getFirstVisible());
     assertNotNull(ts.getLastVisible());
     assertNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d3, ts.getDatapoints().get(2));
-    assertSame(d1, ts.getFirstVisible());
-    assertSame(d3, ts.getLastVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d3, ts.getDatapoints().get(2));
+    assertSameRow(d1, ts.getFirstVisible());
+    assertSameRow(d3, ts.getLastVisible());
 
     // (null) (d1) (d2)
     lrange.clear();
@@ -209,11 +217,11 @@ public class TimeSeriesTest extends TestCase {
     assertNotNull(ts.getFirstVisible());
     assertNotNull(ts.getLastVisible());
     assertNotNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d1, ts.getFirstVisible());
-    assertSame(d1, ts.getLastVisible());
-    assertSame(d2, ts.getFirstPostVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d1, ts.getFirstVisible());
+    assertSameRow(d1, ts.getLastVisible());
+    assertSameRow(d2, ts.getFirstPostVisible());
 
     // (null) (null) (d1, d2)
     lpost.clear();
@@ -230,9 +238,9 @@ public class TimeSeriesTest extends TestCase {
     assertNull(ts.getFirstVisible());
     assertNull(ts.getLastVisible());
     assertNotNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d1, ts.getFirstPostVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d1, ts.getFirstPostVisible());
 
     // (d1) (d2) (d3)
     lpre.clear();
@@ -254,13 +262,13 @@ public class TimeSeriesTest extends TestCase {
     assertNotNull(ts.getFirstVisible());
     assertNotNull(ts.getLastVisible());
     assertNotNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d2, ts.getDatapoints().get(1));
-    assertSame(d3, ts.getDatapoints().get(2));
-    assertSame(d1, ts.getLastPreVisible());
-    assertSame(d2, ts.getFirstVisible());
-    assertSame(d2, ts.getLastVisible());
-    assertSame(d3, ts.getFirstPostVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d2, ts.getDatapoints().get(1));
+    assertSameRow(d3, ts.getDatapoints().get(2));
+    assertSameRow(d1, ts.getLastPreVisible());
+    assertSameRow(d2, ts.getFirstVisible());
+    assertSameRow(d2, ts.getLastVisible());
+    assertSameRow(d3, ts.getFirstPostVisible());
 
     // (null) (d1, d3, d2) (null)
     // Note that timeseries don't enforce ordering!
@@ -279,11 +287,11 @@ public class TimeSeriesTest extends TestCase {
     assertNotNull(ts.getFirstVisible());
     assertNotNull(ts.getLastVisible());
     assertNull(ts.getFirstPostVisible());
-    assertSame(d1, ts.getDatapoints().get(0));
-    assertSame(d3, ts.getDatapoints().get(1));
-    assertSame(d2, ts.getDatapoints().get(2));
-    assertSame(d1, ts.getFirstVisible());
-    assertSame(d2, ts.getLastVisible());
+    assertSameRow(d1, ts.getDatapoints().get(0));
+    assertSameRow(d3, ts.getDatapoints().get(1));
+    assertSameRow(d2, ts.getDatapoints().get(2));
+    assertSameRow(d1, ts.getFirstVisible());
+    assertSameRow(d2, ts.getLastVisible());
   }
 
   public void testFindNeighbor() {
@@ -303,18 +311,18 @@ public class TimeSeriesTest extends TestCase {
     assertNull(result);
     result = ts.findPostNeighbor(0);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
 
     result = ts.findPreNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
 
     result = ts.findPreNeighbor(110);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(110);
     assertNull(result);
 
@@ -326,32 +334,32 @@ public class TimeSeriesTest extends TestCase {
     assertNull(result);
     result = ts.findPostNeighbor(0);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
 
     result = ts.findPreNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
 
     result = ts.findPreNeighbor(125);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(125);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
 
     result = ts.findPreNeighbor(150);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPostNeighbor(150);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
 
     result = ts.findPreNeighbor(200);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPostNeighbor(200);
     assertNull(result);
 
@@ -365,56 +373,56 @@ public class TimeSeriesTest extends TestCase {
     assertNull(result);
     result = ts.findPreNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPreNeighbor(101);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPreNeighbor(149);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPreNeighbor(150);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPreNeighbor(151);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPreNeighbor(249);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPreNeighbor(250);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
     result = ts.findPreNeighbor(251);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
 
     result = ts.findPostNeighbor(0);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(99);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(101);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPostNeighbor(149);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPostNeighbor(150);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPostNeighbor(151);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
     result = ts.findPostNeighbor(249);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
     result = ts.findPostNeighbor(250);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
     result = ts.findPostNeighbor(251);
     assertNull(result);
 
@@ -432,32 +440,32 @@ public class TimeSeriesTest extends TestCase {
     assertNull(result);
     result = ts.findPostNeighbor(99);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
 
     result = ts.findPreNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
     result = ts.findPostNeighbor(100);
     assertNotNull(result);
-    assertSame(d1, result);
+    assertSameRow(d1, result);
 
     result = ts.findPreNeighbor(101);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
     result = ts.findPostNeighbor(101);
     assertNotNull(result);
-    assertSame(d2, result);
+    assertSameRow(d2, result);
 
     result = ts.findPreNeighbor(102);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
     result = ts.findPostNeighbor(102);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
 
     result = ts.findPreNeighbor(103);
     assertNotNull(result);
-    assertSame(d3, result);
+    assertSameRow(d3, result);
     result = ts.findPostNeighbor(103);
     assertNull(result);
   }
@@ -1012,6 +1020,229 @@ public class TimeSeriesTest extends TestCase {
     assertEquals(y[3], ts2.getDatapoints().get(3).mValue.y);
   }
 
+  // timeseriesOp() walks both series in step; check it against looking up
+  // each timestamp of the union with interpolateValue(), including duplicate
+  // timestamps, step interpolators, and values missing from either end.
+  public void testTimeSeriesOpMerge() {
+    TimeSeriesInterpolator[] interpolators = new TimeSeriesInterpolator[] {
+        new LinearInterpolator(), new StepEarlyInterpolator(),
+        new StepMidInterpolator(), new StepLateInterpolator() };
+    AST.Opcode[] ops = new AST.Opcode[] { AST.Opcode.PLUS, AST.Opcode.MINUS,
+        AST.Opcode.MULTIPLY, AST.Opcode.DIVIDE };
+    Random random = new Random(42);
+
+    for (int trial = 0; trial < 50; trial++) {
+      ArrayList<Datapoint> l1 = mergeSource(random);
+      ArrayList<Datapoint> l2 = mergeSource(random);
+      TimeSeriesInterpolator i1 = interpolators[trial % interpolators.length];
+      TimeSeriesInterpolator i2 = interpolators[random
+          .nextInt(interpolators.length)];
+
+      for (int k = 0; k < ops.length; k++) {
+        TimeSeries ts1 = newDefaultTimeSeries();
+        TimeSeries ts2 = newDefaultTimeSeries();
+        ts1.setInterpolator(i1);
+        ts2.setInterpolator(i2);
+        ts1.setDatapoints(null, l1, null, true);
+        ts2.setDatapoints(null, l2, null, true);
+
+        ArrayList<Float> expected = new ArrayList<Float>();
+        ArrayList<Long> expectedMillis = new ArrayList<Long>();
+        TreeSet<Long> union = new TreeSet<Long>();
+        for (int i = 0; i < l1.size(); i++)
+          union.add(l1.get(i).mMillis);
+        for (int i = 0; i < l2.size(); i++)
+          union.add(l2.get(i).mMillis);
+        for (Long ms : union) {
+          Float f1 = ts1.interpolateValue(ms);
+          Float f2 = ts2.interpolateValue(ms);
+          if (ops[k] == AST.Opcode.PLUS || ops[k] == AST.Opcode.MINUS) {
+            if (f1 == null)
+              f1 = new Float(0.0f);
+            if (f2 == null)
+              f2 = new Float(0.0f);
+          }
+          if (f1 == null || f1.isNaN() || f1.isInfinite())
+            continue;
+          if (f2 == null || f2.isNaN() || f2.isInfinite())
+            continue;
+          if (ops[k] == AST.Opcode.DIVIDE && f2 == 0)
+            continue;
+          float y = f1;
+          if (ops[k] == AST.Opcode.PLUS)
+            y += f2;
+          else if (ops[k] == AST.Opcode.MINUS)
+            y -= f2;
+          else if (ops[k] == AST.Opcode.MULTIPLY)
+            y *= f2;
+          else
+            y /= f2;
+          expectedMillis.add(ms);
+          expected.add(y);
+        }
+
+        ts1.timeseriesOp(ts2, ops[k]);
+        ArrayList<Datapoint> actual = ts1.getDatapoints();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expectedMillis.get(i).longValue(), actual.get(i).mMillis);
+          assertEquals(expected.get(i).floatValue(), actual.get(i).mValue.y);
+        }
+      }
+    }
+  }
+
+  private ArrayList<Datapoint> mergeSource(Random random) {
+    ArrayList<Datapoint> list = new ArrayList<Datapoint>();
+    int n = random.nextInt(12);
+    long ms = 100L * random.nextInt(5);
+    for (int i = 0; i < n; i++) {
+      // a zero step leaves a duplicate timestamp, zero values exercise the
+      // division by zero case
+      ms += 50L * random.nextInt(3);
+      list.add(new Datapoint(ms, (float) random.nextInt(5), 1, i, 1));
+    }
+    return list;
+  }
+
+  private ArrayList<Datapoint> incrementalSource(int n, int changedIdx) {
+    ArrayList<Datapoint> list = new ArrayList<Datapoint>();
+    for (int i = 0; i < n; i++) {
+      float y = (float) ((i * 37) % 11);
+      if (i == changedIdx)
+        y += 5.0f;
+      list.add(new Datapoint(1000L + i * 100L, y, 1, i, 1 + (i % 3)));
+    }
+    return list;
+  }
+
+  // The series copies the datapoints it's given, so they're compared by what
+  // they hold rather than by identity.
+  private void assertSameRow(Datapoint expected, Datapoint actual) {
+    assertNotNull(actual);
+    assertEquals(expected.mMillis, actual.mMillis);
+    assertEquals(expected.mValue.y, actual.mValue.y);
+    assertEquals(expected.mEntryId, actual.mEntryId);
+    assertEquals(expected.mNEntries, actual.mNEntries);
+  }
+
+  private void assertSameStats(TimeSeries expected, TimeSeries actual) {
+    ArrayList<Datapoint> e = expected.getDatapoints();
+    ArrayList<Datapoint> a = actual.getDatapoints();
+    assertEquals(e.size(), a.size());
+    for (int i = 0; i < e.size(); i++) {
+      assertEquals(e.get(i).mTrend.y, a.get(i).mTrend.y);
+      assertEquals(e.get(i).mStdDev, a.get(i).mStdDev);
+    }
+    assertEquals(expected.getTrendStats().mTrend, actual.getTrendStats().mTrend);
+    assertEquals(expected.getTrendStats().mTrendPrev,
+        actual.getTrendStats().mTrendPrev);
+    assertEquals(expected.getValueStats().mMean, actual.getValueStats().mMean);
+    assertEquals(expected.getValueStats().mStdDev,
+        actual.getValueStats().mStdDev);
+    assertEquals(expected.getTimestampStats().mMean,
+        actual.getTimestampStats().mMean);
+    assertEquals(expected.getVisibleNumEntries(),
+        actual.getVisibleNumEntries());
+    assertEquals(expected.getVisibleValueMin(), actual.getVisibleValueMin());
+    assertEquals(expected.getVisibleValueMax(), actual.getVisibleValueMax());
+    assertEquals(expected.getVisibleTimestampMin(),
+        actual.getVisibleTimestampMin());
+    assertEquals(expected.getVisibleTimestampMax(),
+        actual.getVisibleTimestampMax());
+  }
+
+  public void testIncrementalStats() {
+    TimeSeries full, incremental;
+    ArrayList<Datapoint> all = incrementalSource(300, -1);
+
+    // appending
+    full = newDefaultTimeSeries();
+    full.setDatapoints(null, incrementalSource(300, -1), null, true);
+    incremental = newDefaultTimeSeries();
+    incremental.setDatapoints(null,
+        new ArrayList<Datapoint>(all.subList(0, 128)), null, true);
+    incremental.setDatapoints(null, all, null, true);
+    assertSameStats(full, incremental);
+
+    // setting the same datapoints again doesn't change anything
+    incremental.setDatapoints(null, incrementalSource(300, -1), null, true);
+    assertSameStats(full, incremental);
+
+    // an edit in the middle
+    full = newDefaultTimeSeries();
+    full.setDatapoints(null, incrementalSource(300, 150), null, true);
+    incremental.setDatapoints(null, incrementalSource(300, 150), null, true);
+    assertSameStats(full, incremental);
+
+    // a change in visibility
+    ArrayList<Datapoint> pre = new ArrayList<Datapoint>(all.subList(0, 100));
+    ArrayList<Datapoint> range = new ArrayList<Datapoint>(all.subList(100,
+        250));
+    ArrayList<Datapoint> post = new ArrayList<Datapoint>(all.subList(250,
+        300));
+    full = newDefaultTimeSeries();
+    full.setDatapoints(pre, range, post, true);
+    incremental.setDatapoints(pre, range, post, true);
+    assertSameStats(full, incremental);
+
+    // prepending
+    all = incrementalSource(300, -1);
+    full = newDefaultTimeSeries();
+    full.setDatapoints(null, all, null, true);
+    incremental = newDefaultTimeSeries();
+    incremental.setDatapoints(null,
+        new ArrayList<Datapoint>(all.subList(50, 300)), null, true);
+    incremental.setDatapoints(null, all, null, true);
+    assertSameStats(full, incremental);
+
+    // clearing the series starts over
+    incremental.clearSeries();
+    incremental.setDatapoints(null, all, null, true);
+    assertSameStats(full, incremental);
+
+    // rows that are unchanged as far as the stats go still take the ids of
+    // the datapoints passed in
+    all = incrementalSource(300, -1);
+    all.get(10).mEntryId = 1000;
+    incremental.setDatapoints(null, all, null, true);
+    assertSameStats(full, incremental);
+    assertEquals(1000, incremental.getDatapoints().get(10).mEntryId);
+  }
+
+  public void testSetColumns() {
+    TimeSeries full, incremental;
+    ArrayList<Datapoint> all = incrementalSource(300, 150);
+
+    full = newDefaultTimeSeries();
+    full.setDatapoints(new ArrayList<Datapoint>(all.subList(0, 100)),
+        new ArrayList<Datapoint>(all.subList(100, 250)),
+        new ArrayList<Datapoint>(all.subList(250, 300)), true);
+
+    // replacing the columns keeps the stats of the unchanged rows
+    incremental = newDefaultTimeSeries();
+    incremental.setDatapoints(null, incrementalSource(300, -1), null, true);
+    DatapointColumns columns = new DatapointColumns();
+    columns.addAll(all);
+    incremental.setColumns(columns, 100, 150, 50, true);
+    assertSameStats(full, incremental);
+    assertSame(columns, incremental.getColumns());
+    assertEquals(100, incremental.getVisibleFirstIdx());
+    assertEquals(249, incremental.getVisibleLastIdx());
+    assertEquals(250, incremental.getVisiblePostFirstIdx());
+
+    // passing the series' own columns recalculates from scratch, and single
+    // rows are then read without building the whole list
+    incremental.setColumns(incremental.getColumns(), 100, 150, 50, true);
+    assertSameRow(full.getFirstVisible(), incremental.getFirstVisible());
+    assertSameRow(full.getLastVisible(), incremental.getLastVisible());
+    assertSameRow(full.findPreNeighbor(all.get(120).mMillis), incremental
+        .findPreNeighbor(all.get(120).mMillis));
+    assertEquals(full.getFirstVisible().mTrend.y, incremental
+        .getFirstVisible().mTrend.y);
+    assertSameStats(full, incremental);
+  }
+
   // These will be tested in Number.* unittests:
   // testCalcStatsAndBounds()
   // testRecalcStatsAndBounds()
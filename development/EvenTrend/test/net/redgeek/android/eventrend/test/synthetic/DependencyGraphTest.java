@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.synthetic;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.synthetic.DependencyGraph;
+
+public class DependencyGraphTest extends TestCase {
+  private static ArrayList<String> names(String... names) {
+    ArrayList<String> list = new ArrayList<String>();
+    for (int i = 0; i < names.length; i++) {
+      list.add(names[i]);
+    }
+    return list;
+  }
+
+  private static void assertIds(long[] expected, long[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], actual[i]);
+    }
+  }
+
+  public void testEdges() {
+    DependencyGraph g = new DependencyGraph();
+    g.setCategory(1, "a", null);
+    g.setCategory(2, "b", null);
+    g.setCategory(3, "sum", names("a", "b"));
+    // names are matched against all categories, not just earlier ones
+    g.setCategory(4, "twice", names("sum", "c", "sum"));
+    g.setCategory(5, "c", null);
+
+    assertIds(new long[] {}, g.getDependents(1));
+    assertIds(new long[] { 3 }, g.getDependees(1));
+    assertIds(new long[] { 1, 2 }, g.getDependents(3));
+    assertIds(new long[] { 4 }, g.getDependees(3));
+    assertIds(new long[] { 3, 5 }, g.getDependents(4));
+    assertIds(new long[] {}, g.getDependees(4));
+    assertIds(new long[] {}, g.getDependents(99));
+
+    assertTrue(g.isSynthetic(3));
+    assertFalse(g.isSynthetic(1));
+    assertFalse(g.isSynthetic(99));
+  }
+
+  public void testLevels() {
+    DependencyGraph g = new DependencyGraph();
+    // added in the reverse of evaluation order
+    g.setCategory(6, "top", names("left", "right"));
+    g.setCategory(5, "right", names("base", "x"));
+    g.setCategory(4, "left", names("base"));
+    g.setCategory(3, "base", names("x", "y"));
+    g.setCategory(2, "other", names("y"));
+    g.setCategory(1, "x", null);
+    g.setCategory(0, "y", null);
+
+    ArrayList<long[]> levels = g.getLevels();
+    assertEquals(3, levels.size());
+    assertIds(new long[] { 3, 2 }, levels.get(0));
+    assertIds(new long[] { 5, 4 }, levels.get(1));
+    assertIds(new long[] { 6 }, levels.get(2));
+    assertFalse(g.isCyclic(6));
+  }
+
+  public void testCycles() {
+    DependencyGraph g = new DependencyGraph();
+    g.setCategory(1, "x", null);
+    g.setCategory(2, "self", names("self", "x"));
+    g.setCategory(3, "ping", names("pong"));
+    g.setCategory(4, "pong", names("ping", "x"));
+    g.setCategory(5, "downstream", names("pong"));
+    g.setCategory(6, "fine", names("x"));
+    g.setCategory(7, "uses self", names("self"));
+
+    assertTrue(g.isCyclic(2));
+    assertTrue(g.isCyclic(3));
+    assertTrue(g.isCyclic(4));
+    assertTrue(g.isCyclic(5));
+    assertTrue(g.isCyclic(7));
+    assertFalse(g.isCyclic(6));
+    assertFalse(g.isCyclic(1));
+
+    ArrayList<long[]> levels = g.getLevels();
+    assertEquals(1, levels.size());
+    assertIds(new long[] { 6 }, levels.get(0));
+
+    // breaking the cycle
+    g.setCategory(4, "pong", names("x"));
+    assertFalse(g.isCyclic(3));
+    assertFalse(g.isCyclic(5));
+    levels = g.getLevels();
+    assertEquals(2, levels.size());
+    assertIds(new long[] { 4, 6 }, levels.get(0));
+    assertIds(new long[] { 3, 5 }, levels.get(1));
+    assertTrue(g.isCyclic(2));
+    assertTrue(g.isCyclic(7));
+  }
+
+  public void testRebuildOnlyOnChange() {
+    DependencyGraph g = new DependencyGraph();
+    g.setCategory(1, "a", null);
+    g.setCategory(2, "b", names("a"));
+    int version = g.getVersion();
+
+    assertFalse(g.setCategory(1, "a", null));
+    assertFalse(g.setCategory(2, "b", names("a")));
+    assertEquals(version, g.getVersion());
+
+    // renaming a category changes what formulas refer to it
+    assertTrue(g.setCategory(1, "renamed", null));
+    assertTrue(g.getVersion() != version);
+    assertIds(new long[] {}, g.getDependents(2));
+
+    version = g.getVersion();
+    g.removeCategory(2);
+    assertTrue(g.getVersion() != version);
+    assertIds(new long[] {}, g.getDependees(1));
+    assertEquals(0, g.getLevels().size());
+
+    g.clear();
+    assertIds(new long[] {}, g.getDependees(1));
+    assertFalse(g.isSynthetic(2));
+  }
+}
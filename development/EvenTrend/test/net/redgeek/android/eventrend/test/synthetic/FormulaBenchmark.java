@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.synthetic;
+
+import java.util.ArrayList;
+
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.synthetic.Formula;
+import net.redgeek.android.eventrend.test.common.Benchmark;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+import net.redgeek.android.eventrend.util.DateUtil;
+
+// Compares the compiled Formula against evaluating the same formula the way
+// the tree-walking evaluator did: copying every source series, then applying
+// TimeSeries.timeseriesOp() one operation at a time. The sources have 50,000
+// datapoints each, at staggered timestamps so that every operation has to
+// interpolate.
+public class FormulaBenchmark extends Benchmark {
+  private static final int N_POINTS = 50000;
+  private static final long INTERVAL = 15 * DateUtil.MINUTE_MS;
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+
+  private ArrayList<TimeSeries> mSources;
+
+  @Override
+  protected void setUp() {
+    mSources = new ArrayList<TimeSeries>();
+    for (int s = 0; s < 10; s++) {
+      CategoryDbTable.Row row = new CategoryDbTable.Row();
+      row.setId(s + 1);
+      row.setCategoryName("s" + s);
+      TimeSeries ts = new TimeSeries(row, 20, 0.1f,
+          new MockTimeSeriesPainter());
+      ts.setInterpolator(new LinearInterpolator());
+
+      ArrayList<Datapoint> points = new ArrayList<Datapoint>(N_POINTS);
+      long offset = s * INTERVAL / 10;
+      for (int i = 0; i < N_POINTS; i++) {
+        float value = (float) (100.0 + 10.0 * Math.sin((i + s) / 96.0));
+        points.add(new Datapoint(START + offset + i * INTERVAL, value, s + 1,
+            i, 1));
+      }
+      ts.setDatapoints(null, points, null, true);
+      mSources.add(ts);
+    }
+  }
+
+  // series "s0" + (series "s1" + (... + series "sn-1"))
+  private static String sum(int operands) {
+    String formula = "series \"s" + (operands - 1) + "\"";
+    for (int s = operands - 2; s >= 0; s--) {
+      formula = "(series \"s" + s + "\" + " + formula + ")";
+    }
+    return formula;
+  }
+
+  private void compareOperands(final int operands, int iterations) {
+    final Formula formula = new Formula(sum(operands));
+    assertTrue(formula.isValid());
+
+    Benchmark.Result before = Benchmark.run(operands
+        + " operands: copy + timeseriesOp", 1, iterations,
+        new Benchmark.Body() {
+          public void run() {
+            ArrayList<TimeSeries> copies = new ArrayList<TimeSeries>();
+            for (int s = 0; s < operands; s++) {
+              copies.add(new TimeSeries(mSources.get(s)));
+            }
+            TimeSeries result = copies.get(operands - 1);
+            for (int s = operands - 2; s >= 0; s--) {
+              copies.get(s).timeseriesPlus(result);
+              result = copies.get(s);
+            }
+            result.getDatapoints();
+          }
+        });
+    Benchmark.Result after = Benchmark.run(operands + " operands: compiled",
+        1, iterations, new Benchmark.Body() {
+          public void run() {
+            formula.apply(mSources);
+          }
+        });
+    compare(before, after);
+  }
+
+  @Override
+  protected void runComparisons() {
+    twoOperands();
+    fiveOperands();
+    tenOperands();
+  }
+
+  private void twoOperands() {
+    compareOperands(2, 10);
+  }
+
+  private void fiveOperands() {
+    compareOperands(5, 5);
+  }
+
+  private void tenOperands() {
+    compareOperands(10, 3);
+  }
+}
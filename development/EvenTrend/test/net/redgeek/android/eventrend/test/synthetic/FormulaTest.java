@@ -16,11 +16,203 @@
 
 package net.redgeek.android.eventrend.test.synthetic;
 
+import java.util.ArrayList;
+
 import junit.framework.TestCase;
+import net.redgeek.android.eventrend.db.CategoryDbTable;
+import net.redgeek.android.eventrend.graph.plugins.LinearInterpolator;
+import net.redgeek.android.eventrend.graph.plugins.StepLateInterpolator;
+import net.redgeek.android.eventrend.primitives.Datapoint;
+import net.redgeek.android.eventrend.primitives.TimeSeries;
+import net.redgeek.android.eventrend.synthetic.AST;
+import net.redgeek.android.eventrend.synthetic.Formula;
+import net.redgeek.android.eventrend.test.common.MockTimeSeriesPainter;
+import net.redgeek.android.eventrend.util.DateUtil;
 
+// The expected results are built by applying the TimeSeries operations to
+// copies of the sources one at a time, which is how formulas used to be
+// evaluated.
 public class FormulaTest extends TestCase {
-  public void test() {
-    // TODO: implement
+  private TimeSeries mOne;
+  private TimeSeries mTwo;
+  private TimeSeries mThree;
+  private ArrayList<TimeSeries> mSources;
+
+  private static TimeSeries newSeries(long id, String name, long start,
+      long step, float[] values) {
+    CategoryDbTable.Row row = new CategoryDbTable.Row();
+    row.setId(id);
+    row.setCategoryName(name);
+    TimeSeries ts = new TimeSeries(row, 20, 0.1f, new MockTimeSeriesPainter());
+    ts.setInterpolator(new LinearInterpolator());
+
+    ArrayList<Datapoint> points = new ArrayList<Datapoint>();
+    for (int i = 0; i < values.length; i++) {
+      points.add(new Datapoint(start + i * step, values[i], id, 100 * id + i,
+          i + 1));
+    }
+    ts.setDatapoints(null, points, null, true);
+    return ts;
   }
-}
 
+  @Override
+  protected void setUp() {
+    mOne = newSeries(1, "one", 1000, 1000, new float[] { 1, 2, 0, 4, 5, 6 });
+    mTwo = newSeries(2, "two", 1500, 2000, new float[] { 10, 20, 30 });
+    mThree = newSeries(3, "three", 0, 4000, new float[] { 3, 0, 7 });
+    mThree.setInterpolator(new StepLateInterpolator());
+
+    mSources = new ArrayList<TimeSeries>();
+    mSources.add(mThree);
+    mSources.add(mTwo);
+    mSources.add(mOne);
+  }
+
+  private static TimeSeries op(TimeSeries left, AST.Opcode op,
+      TimeSeries right) {
+    TimeSeries result = new TimeSeries(left);
+    result.timeseriesOp(right, op);
+    return result;
+  }
+
+  private static void assertSameDatapoints(ArrayList<Datapoint> expected,
+      ArrayList<Datapoint> actual) {
+    assertNotNull(actual);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Datapoint e = expected.get(i);
+      Datapoint a = actual.get(i);
+      assertEquals(e.mMillis, a.mMillis);
+      assertEquals(e.mValue.y, a.mValue.y);
+      assertEquals(e.mCatId, a.mCatId);
+      assertEquals(e.mEntryId, a.mEntryId);
+      assertEquals(e.mNEntries, a.mNEntries);
+    }
+  }
+
+  public void testInvalid() {
+    Formula f = new Formula("(series \"one\" + )");
+    assertFalse(f.isValid());
+    assertNull(f.apply(mSources));
+
+    // valid, but doesn't produce a series
+    f = new Formula("(4 * hour)");
+    assertTrue(f.isValid());
+    assertNull(f.apply(mSources));
+  }
+
+  public void testSeriesOps() {
+    AST.Opcode[] ops = { AST.Opcode.PLUS, AST.Opcode.MINUS,
+        AST.Opcode.MULTIPLY, AST.Opcode.DIVIDE };
+    String[] symbols = { "+", "-", "*", "/" };
+
+    for (int i = 0; i < ops.length; i++) {
+      Formula f = new Formula("(series \"one\" " + symbols[i]
+          + " series \"two\")");
+      assertSameDatapoints(op(mOne, ops[i], mTwo).getDatapoints(), f
+          .apply(mSources));
+
+      // step interpolation leaves gaps, which are 0 for + and - and dropped
+      // for * and /
+      f = new Formula("(series \"three\" " + symbols[i] + " series \"one\")");
+      assertSameDatapoints(op(mThree, ops[i], mOne).getDatapoints(), f
+          .apply(mSources));
+    }
+  }
+
+  public void testNested() {
+    Formula f = new Formula("((series \"one\" * series \"two\") "
+        + "+ (series \"three\" - series \"two\"))");
+    TimeSeries expected = op(op(mOne, AST.Opcode.MULTIPLY, mTwo),
+        AST.Opcode.PLUS, op(mThree, AST.Opcode.MINUS, mTwo));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+  }
+
+  public void testScalarOps() {
+    Formula f = new Formula("(series \"one\" / 2.0)");
+    TimeSeries expected = new TimeSeries(mOne);
+    expected.dividePost(new Float(2.0f));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+
+    f = new Formula("(series \"one\" * day)");
+    expected = new TimeSeries(mOne);
+    expected.multiplyPost(new Long(DateUtil.DAY_MS));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+
+    // constant on the left
+    f = new Formula("(12 / series \"one\")");
+    expected = new TimeSeries(mOne);
+    expected.dividePre(new Float(12.0f));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+
+    // folded at compile time: 3 / 2 is integer division
+    f = new Formula("(series \"one\" - (3 / 2))");
+    expected = new TimeSeries(mOne);
+    expected.minusPost(new Float(1.0f));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+  }
+
+  public void testPrevious() {
+    Formula f = new Formula("(series \"one\" - (series \"one\" previous timestamp))");
+    TimeSeries delta = new TimeSeries(mOne);
+    delta.previousTimestamp();
+    TimeSeries expected = op(mOne, AST.Opcode.MINUS, delta);
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+
+    f = new Formula("((series \"two\" previous value) / hour)");
+    expected = new TimeSeries(mTwo);
+    expected.previousValue();
+    expected.dividePost(new Long(DateUtil.HOUR_MS));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+  }
+
+  public void testSourcesUnchanged() {
+    ArrayList<Datapoint> before = new TimeSeries(mOne).getDatapoints();
+    Formula f = new Formula("((series \"one\" previous value) * series \"one\")");
+    assertNotNull(f.apply(mSources));
+    assertSameDatapoints(before, mOne.getDatapoints());
+  }
+
+  public void testMissingSeries() {
+    Formula f = new Formula("(series \"one\" + series \"missing\")");
+    TimeSeries empty = newSeries(9, "missing", 0, 1, new float[0]);
+    assertSameDatapoints(op(mOne, AST.Opcode.PLUS, empty).getDatapoints(), f
+        .apply(mSources));
+
+    f = new Formula("(series \"one\" * series \"missing\")");
+    assertEquals(0, f.apply(mSources).size());
+  }
+
+  public void testSetFormula() {
+    Formula f = new Formula("(series \"one\" + 1)");
+    f.setFormula("(series \"two\" + 1)");
+    TimeSeries expected = new TimeSeries(mTwo);
+    expected.plusPost(new Float(1.0f));
+    assertSameDatapoints(expected.getDatapoints(), f.apply(mSources));
+  }
+
+  // Evaluating from a timestamp gives the same rows as the tail of a full
+  // evaluation, at every possible starting point.
+  public void testApplyFrom() {
+    String[] formulas = {
+        "(series \"one\" + series \"two\")",
+        "(series \"three\" * series \"one\")",
+        "((series \"one\" * series \"two\") + (series \"three\" - series \"two\"))",
+        "(series \"one\" - (series \"one\" previous timestamp))",
+        "((series \"one\" previous value) - (series \"two\" previous timestamp))",
+        "(12 / (series \"three\" previous value))" };
+
+    for (int i = 0; i < formulas.length; i++) {
+      Formula f = new Formula(formulas[i]);
+      ArrayList<Datapoint> full = f.apply(mSources);
+      for (long from = -500; from <= 13000; from += 250) {
+        ArrayList<Datapoint> expected = new ArrayList<Datapoint>();
+        for (int j = 0; j < full.size(); j++) {
+          if (full.get(j).mMillis >= from)
+            expected.add(full.get(j));
+        }
+        assertSameDatapoints(expected, f.apply(mSources, from));
+      }
+    }
+  }
+}
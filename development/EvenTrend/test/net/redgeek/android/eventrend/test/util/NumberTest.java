@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.util;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.util.Number;
+
+public class NumberTest extends TestCase {
+  // straightforward two-pass population std dev of the last n values
+  private float referenceStdDev(float[] values, int end, int history) {
+    int start = Math.max(0, end - history);
+    int n = end - start;
+    double mean = 0.0;
+    for (int i = start; i < end; i++)
+      mean += values[i];
+    mean /= n;
+    double var = 0.0;
+    for (int i = start; i < end; i++)
+      var += (values[i] - mean) * (values[i] - mean);
+    return (float) Math.sqrt(var / n);
+  }
+
+  public void testWindowedStdDev() {
+    Number.WindowedStdDev sd = new Number.WindowedStdDev(5);
+    assertEquals(5, sd.getHistory());
+    assertTrue(Float.isNaN(sd.getStandardDev()));
+
+    sd.update(2.0f);
+    assertEquals(0.0f, sd.getStandardDev());
+    sd.update(4.0f);
+    assertEquals(1.0f, sd.getStandardDev());
+    sd.update(4.0f);
+    sd.update(4.0f);
+    sd.update(5.0f);
+    sd.update(5.0f);
+    sd.update(7.0f);
+    sd.update(9.0f);
+    // window is now 4, 5, 5, 7, 9
+    assertEquals(referenceStdDev(new float[] { 4, 5, 5, 7, 9 }, 5, 5), sd
+        .getStandardDev(), 0.00001f);
+
+    Number.WindowedStdDev copy = new Number.WindowedStdDev(sd);
+    assertEquals(sd.getStandardDev(), copy.getStandardDev());
+    copy.update(100.0f);
+    assertFalse(sd.getStandardDev() == copy.getStandardDev());
+
+    Number.WindowedStdDev empty = new Number.WindowedStdDev(0);
+    empty.update(1.0f);
+    assertTrue(Float.isNaN(empty.getStandardDev()));
+  }
+
+  public void testWindowedStdDevMatchesReference() {
+    float[] values = new float[1000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (float) (180.0 + Math.sin(i / 10.0) + (i % 13) * 0.1);
+    }
+
+    Number.WindowedStdDev sd = new Number.WindowedStdDev(20);
+    Number.WindowedStdDev sync = new Number.SynchronizedWindowedStdDev(20);
+    for (int i = 0; i < values.length; i++) {
+      sd.update(values[i]);
+      sync.update(values[i]);
+      float expected = referenceStdDev(values, i + 1, 20);
+      assertEquals(expected, sd.getStandardDev(), 0.0005f);
+      assertEquals(sd.getStandardDev(), sync.getStandardDev());
+    }
+  }
+
+  public void testSynchronizedWindowedStdDevShared() throws Exception {
+    final Number.WindowedStdDev sd = new Number.SynchronizedWindowedStdDev(7);
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int offset = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 100000; j++) {
+              sd.update((j + offset) % 10);
+              sd.getStandardDev();
+            }
+          } catch (Throwable t) {
+            failure[0] = t;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++)
+      threads[i].join();
+    assertNull(failure[0]);
+
+    // lost updates to the count or position would leave the window short or
+    // misaligned, so it wouldn't hold exactly the next 7 values
+    float[] values = { 1, 2, 4, 8, 16, 32, 64 };
+    for (int i = 0; i < values.length; i++)
+      sd.update(values[i]);
+    assertEquals(referenceStdDev(values, 7, 7), sd.getStandardDev(), 0.0001f);
+    Number.WindowedStdDev copy = new Number.WindowedStdDev(sd);
+    assertEquals(sd.getStandardDev(), copy.getStandardDev());
+  }
+}
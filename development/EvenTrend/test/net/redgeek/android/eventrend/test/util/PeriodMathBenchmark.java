@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.util;
+
+import java.util.Calendar;
+
+import net.redgeek.android.eventrend.test.common.Benchmark;
+import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.PeriodMath;
+import net.redgeek.android.eventrend.util.DateUtil.Period;
+
+// Compares PeriodMath against the Calendar based DateUtil routines it replaced
+// in TimeSeriesCollector and UpdateRecentDataTask. A year of timestamps every
+// 15 minutes.
+public class PeriodMathBenchmark extends Benchmark {
+  private static final int N_POINTS = 365 * 24 * 4;
+  private static final long INTERVAL = 15 * DateUtil.MINUTE_MS;
+  private static final long START = 1230768000000L; // 2009-01-01 UTC
+  private static final Period[] PERIODS = { Period.DAY, Period.WEEK,
+      Period.MONTH, Period.QUARTER, Period.YEAR };
+
+  private long[] mMillis;
+  private int mCount;
+
+  @Override
+  protected void setUp() {
+    mMillis = new long[N_POINTS];
+    for (int i = 0; i < N_POINTS; i++) {
+      mMillis[i] = START + i * INTERVAL;
+    }
+  }
+
+  @Override
+  protected void runComparisons() {
+    aggregation();
+    boundaries();
+  }
+
+  // How TimeSeriesCollector.aggregateDatapoints() used to compare each
+  // datapoint with the first of the period being accumulated.
+  private void aggregation() {
+    final Calendar cal1 = Calendar.getInstance();
+    final Calendar cal2 = Calendar.getInstance();
+    Benchmark.Result before = Benchmark.run("aggregation: Calendar", 2, 5,
+        new Benchmark.Body() {
+          public void run() {
+            mCount = 0;
+            for (int p = 0; p < PERIODS.length; p++) {
+              long aggregationMs = DateUtil.mapPeriodToLong(PERIODS[p]);
+              long first = mMillis[0];
+              for (int i = 1; i < mMillis.length; i++) {
+                cal1.setTimeInMillis(first);
+                cal2.setTimeInMillis(mMillis[i]);
+                if (DateUtil.inSamePeriod(cal1, cal2, aggregationMs) == false) {
+                  first = mMillis[i];
+                  mCount++;
+                }
+              }
+            }
+          }
+        });
+    final PeriodMath periods = new PeriodMath();
+    Benchmark.Result after = Benchmark.run("aggregation: PeriodMath", 2, 5,
+        new Benchmark.Body() {
+          public void run() {
+            mCount = 0;
+            for (int p = 0; p < PERIODS.length; p++) {
+              long end = periods.nextPeriodStart(mMillis[0], PERIODS[p]);
+              for (int i = 1; i < mMillis.length; i++) {
+                if (mMillis[i] >= end) {
+                  end = periods.nextPeriodStart(mMillis[i], PERIODS[p]);
+                  mCount++;
+                }
+              }
+            }
+          }
+        });
+    compare(before, after);
+  }
+
+  // Finding the start and end of the period around every timestamp, as
+  // DatapointCache and fetchCategoryEntryInPeriod() do.
+  private void boundaries() {
+    final Calendar cal = Calendar.getInstance();
+    Benchmark.Result before = Benchmark.run("boundaries: Calendar", 2, 5,
+        new Benchmark.Body() {
+          public void run() {
+            for (int p = 0; p < PERIODS.length; p++) {
+              int field = DateUtil.mapLongToCal(DateUtil
+                  .mapPeriodToLong(PERIODS[p]));
+              int step = PERIODS[p] == Period.QUARTER ? 3 : 1;
+              for (int i = 0; i < mMillis.length; i++) {
+                cal.setTimeInMillis(mMillis[i]);
+                DateUtil.setToPeriodStart(cal, PERIODS[p]);
+                cal.getTimeInMillis();
+                cal.add(field, step);
+                cal.getTimeInMillis();
+              }
+            }
+          }
+        });
+    final PeriodMath periods = new PeriodMath();
+    Benchmark.Result after = Benchmark.run("boundaries: PeriodMath", 2, 5,
+        new Benchmark.Body() {
+          public void run() {
+            for (int p = 0; p < PERIODS.length; p++) {
+              for (int i = 0; i < mMillis.length; i++) {
+                periods.periodStart(mMillis[i], PERIODS[p]);
+                periods.nextPeriodStart(mMillis[i], PERIODS[p]);
+              }
+            }
+          }
+        });
+    compare(before, after);
+  }
+}
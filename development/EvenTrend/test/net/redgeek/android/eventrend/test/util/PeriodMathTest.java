@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.util;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.util.DateUtil;
+import net.redgeek.android.eventrend.util.PeriodMath;
+import net.redgeek.android.eventrend.util.DateUtil.Period;
+
+public class PeriodMathTest extends TestCase {
+  private static final String[] ZONES = { "UTC", "America/Los_Angeles",
+      "Europe/London", "America/Sao_Paulo", "Australia/Lord_Howe",
+      "Asia/Kolkata", "Pacific/Apia", };
+
+  private static final long START = -2208988800000L; // 1900-01-01 UTC
+  private static final long END = 7258118400000L; // 2200-01-01 UTC
+
+  // The period start the way a lenient Calendar finds it, field by field.
+  private static long calendarStart(Calendar c, long millis, Period p) {
+    c.setTimeInMillis(millis);
+    switch (p) {
+      case YEAR:
+        c.set(Calendar.MONTH, 0);
+        c.set(Calendar.DAY_OF_MONTH, 1);
+        break;
+      case QUARTER:
+        c.set(Calendar.MONTH, c.get(Calendar.MONTH) / 3 * 3);
+        c.set(Calendar.DAY_OF_MONTH, 1);
+        break;
+      case MONTH:
+        c.set(Calendar.DAY_OF_MONTH, 1);
+        break;
+      case WEEK:
+        int back = (c.get(Calendar.DAY_OF_WEEK) - c.getFirstDayOfWeek() + 7) % 7;
+        c.add(Calendar.DAY_OF_MONTH, -back);
+        break;
+      default:
+        break;
+    }
+    switch (p) {
+      case MINUTE:
+        break;
+      case HOUR:
+        c.set(Calendar.MINUTE, 0);
+        break;
+      case AMPM:
+        c.set(Calendar.HOUR_OF_DAY, c.get(Calendar.HOUR_OF_DAY) / 12 * 12);
+        c.set(Calendar.MINUTE, 0);
+        break;
+      default:
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        break;
+    }
+    c.set(Calendar.SECOND, 0);
+    c.set(Calendar.MILLISECOND, 0);
+    return c.getTimeInMillis();
+  }
+
+  private void checkZone(String id, int firstDayOfWeek) {
+    TimeZone zone = TimeZone.getTimeZone(id);
+    PeriodMath math = new PeriodMath(zone, firstDayOfWeek);
+    Calendar c = Calendar.getInstance(zone);
+    c.setFirstDayOfWeek(firstDayOfWeek);
+
+    Random random = new Random(id.hashCode());
+    for (int i = 0; i < 5000; i++) {
+      long millis = START + (long) (random.nextDouble() * (END - START));
+      for (Period p : Period.values()) {
+        long start = math.periodStart(millis, p);
+        long expected = calendarStart(c, millis, p);
+        // A transition can make the local start of a sub-day period ambiguous
+        // or skipped, which Calendar and PeriodMath resolve differently; all
+        // that matters is that millis is in the period found.
+        if (start != expected
+            && (p == Period.MINUTE || p == Period.HOUR || p == Period.AMPM)
+            && start <= millis && millis < math.nextPeriodStart(millis, p))
+          continue;
+        assertEquals(id + " " + p + " " + millis, expected, start);
+      }
+    }
+  }
+
+  public void testMatchesCalendar() {
+    for (int i = 0; i < ZONES.length; i++) {
+      checkZone(ZONES[i], Calendar.SUNDAY);
+      checkZone(ZONES[i], Calendar.MONDAY);
+    }
+  }
+
+  public void testNextPeriodStart() {
+    PeriodMath math = new PeriodMath(TimeZone.getTimeZone("America/New_York"),
+        Calendar.SUNDAY);
+    Random random = new Random(1);
+    for (int i = 0; i < 5000; i++) {
+      long millis = START + (long) (random.nextDouble() * (END - START));
+      for (Period p : Period.values()) {
+        long start = math.periodStart(millis, p);
+        long next = math.nextPeriodStart(millis, p);
+        assertTrue(start <= millis);
+        assertTrue(millis < next);
+        assertEquals(next, math.periodStart(next, p));
+        assertEquals(next, math.periodStart(next + 1, p));
+        assertEquals(start, math.periodStart(next - 1, p));
+        assertEquals(start, math.addPeriods(next, p, -1));
+      }
+    }
+  }
+
+  public void testDst() {
+    TimeZone zone = TimeZone.getTimeZone("America/Los_Angeles");
+    PeriodMath math = new PeriodMath(zone, Calendar.SUNDAY);
+    Calendar c = Calendar.getInstance(zone);
+
+    // 2009-03-08 is 23 hours long, 2009-11-01 is 25
+    c.clear();
+    c.set(2009, Calendar.MARCH, 8, 12, 0);
+    long start = math.periodStart(c.getTimeInMillis(), Period.DAY);
+    assertEquals(23 * DateUtil.HOUR_MS, math.nextPeriodStart(start,
+        Period.DAY)
+        - start);
+    c.set(2009, Calendar.NOVEMBER, 1, 12, 0);
+    start = math.periodStart(c.getTimeInMillis(), Period.DAY);
+    assertEquals(25 * DateUtil.HOUR_MS, math.nextPeriodStart(start,
+        Period.DAY)
+        - start);
+    assertTrue(math.inSamePeriod(start, start + 24 * DateUtil.HOUR_MS,
+        Period.DAY));
+  }
+
+  public void testQuartersAndYears() {
+    TimeZone zone = TimeZone.getTimeZone("UTC");
+    PeriodMath math = new PeriodMath(zone, Calendar.SUNDAY);
+    Calendar c = Calendar.getInstance(zone);
+    c.clear();
+    c.set(2009, Calendar.AUGUST, 20);
+    long aug = c.getTimeInMillis();
+    c.set(2009, Calendar.JULY, 1);
+    assertEquals(c.getTimeInMillis(), math.periodStart(aug, Period.QUARTER));
+    c.set(2009, Calendar.OCTOBER, 1);
+    assertEquals(c.getTimeInMillis(), math.nextPeriodStart(aug,
+        Period.QUARTER));
+    c.set(2008, Calendar.JANUARY, 1);
+    assertEquals(c.getTimeInMillis(), math.addPeriods(aug, Period.YEAR, -1));
+    assertFalse(math.inSamePeriod(aug, c.getTimeInMillis(), Period.YEAR));
+
+    // well past the range the date map table used to cover
+    c.set(2150, Calendar.FEBRUARY, 14);
+    long later = c.getTimeInMillis();
+    c.set(2150, Calendar.JANUARY, 1);
+    assertEquals(c.getTimeInMillis(), math.periodStart(later, Period.QUARTER));
+    assertEquals(-719468, PeriodMath.daysFromCivil(0, 3, 1));
+    assertEquals(0, PeriodMath.daysFromCivil(1970, 1, 1));
+  }
+
+  public void testMatchesSetToPeriodStart() {
+    String[] zones = { "UTC", "America/Los_Angeles" };
+    for (int z = 0; z < zones.length; z++) {
+      TimeZone zone = TimeZone.getTimeZone(zones[z]);
+      Calendar c = Calendar.getInstance(zone);
+      PeriodMath math = new PeriodMath(zone, c.getFirstDayOfWeek());
+      c.clear();
+      c.set(2009, Calendar.JANUARY, 1, 13, 37);
+      long millis = c.getTimeInMillis();
+      // every day of the year, so every month of every quarter
+      for (int day = 0; day < 365; day++, millis += DateUtil.DAY_MS) {
+        Period[] periods = Period.values();
+        for (int i = 0; i < periods.length; i++) {
+          c.setTimeInMillis(millis);
+          DateUtil.setToPeriodStart(c, periods[i]);
+          assertEquals(zones[z] + " " + periods[i] + " " + day, c
+              .getTimeInMillis(), math.periodStart(millis, periods[i]));
+        }
+      }
+    }
+  }
+}
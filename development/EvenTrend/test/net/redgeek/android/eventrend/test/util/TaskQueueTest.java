@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.redgeek.android.eventrend.util.Cancellable;
+import net.redgeek.android.eventrend.util.TaskQueue;
+import net.redgeek.android.eventrend.util.TaskQueue.Priority;
+
+public class TaskQueueTest extends TestCase {
+  private List<String> mRan;
+
+  // Records its name when run, after waiting for mGo if it has one.
+  private class Task extends Cancellable.Flag implements Runnable {
+    String mName;
+    CountDownLatch mStarted = new CountDownLatch(1);
+    CountDownLatch mGo;
+    boolean mSawCancel;
+
+    Task(String name, CountDownLatch go) {
+      mName = name;
+      mGo = go;
+    }
+
+    public void run() {
+      mStarted.countDown();
+      try {
+        if (mGo != null)
+          mGo.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+      }
+      mSawCancel = isCancelled();
+      mRan.add(mName);
+    }
+  }
+
+  @Override
+  protected void setUp() {
+    mRan = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  // Waits for n tasks to have run.
+  private void waitFor(int n) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (mRan.size() < n && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals(n, mRan.size());
+  }
+
+  public void testUnownedInOrder() throws InterruptedException {
+    TaskQueue q = new TaskQueue();
+    q.start();
+    q.addTask(new Task("a", null));
+    q.addTask(new Task("b", null));
+    q.addTask(new Task("c", null));
+    waitFor(3);
+    q.stop();
+
+    assertEquals("[a, b, c]", mRan.toString());
+    assertEquals(0, q.getCoalescedCount());
+    assertEquals(0, q.getCancelledCount());
+  }
+
+  public void testOwnerLanes() throws InterruptedException {
+    TaskQueue q = new TaskQueue(2);
+    q.start();
+
+    CountDownLatch go = new CountDownLatch(1);
+    Task a1 = new Task("a1", go);
+    Task a2 = new Task("a2", null);
+    q.addTask("a", Priority.INTERACTIVE, a1);
+    q.addTask("a", Priority.INTERACTIVE, a2);
+    q.addTask("b", Priority.INTERACTIVE, new Task("b1", null));
+    assertTrue(a1.mStarted.await(5, TimeUnit.SECONDS));
+
+    // b isn't held up by a, but a's second task waits for its first
+    waitFor(1);
+    assertEquals("b1", mRan.get(0));
+    assertFalse(a2.mStarted.await(50, TimeUnit.MILLISECONDS));
+    go.countDown();
+    waitFor(3);
+    q.stop();
+
+    assertEquals("[b1, a1, a2]", mRan.toString());
+  }
+
+  public void testPriorities() throws InterruptedException {
+    TaskQueue q = new TaskQueue(1);
+    q.start();
+
+    CountDownLatch go = new CountDownLatch(1);
+    Task block = new Task("block", go);
+    q.addTask("block", Priority.INTERACTIVE, block);
+    assertTrue(block.mStarted.await(5, TimeUnit.SECONDS));
+
+    q.addTask("import", Priority.BULK, new Task("bulk", null));
+    q.addTask("graph", Priority.BACKGROUND, new Task("background", null));
+    q.addTask("list", Priority.INTERACTIVE, new Task("interactive", null));
+    assertEquals(3, q.getQueueDepth());
+    assertEquals(1, q.getQueueDepth(Priority.BULK));
+    go.countDown();
+    waitFor(4);
+    q.stop();
+
+    assertEquals("[block, interactive, background, bulk]", mRan.toString());
+    assertEquals(0, q.getQueueDepth());
+    assertEquals(3, q.getMaxQueueDepth());
+    assertEquals(2, q.getTasksRun(Priority.INTERACTIVE));
+    assertEquals(1, q.getTasksRun(Priority.BULK));
+    assertTrue(q.getMeanWaitMs(Priority.BULK) > 0.0f);
+    assertTrue(q.getMaxWaitMs(Priority.BULK) >= q
+        .getMeanWaitMs(Priority.BULK));
+    assertTrue(q.getMeanRunMs(Priority.INTERACTIVE) > 0.0f);
+  }
+
+  public void testWorkerKeptForInteractive() throws InterruptedException {
+    TaskQueue q = new TaskQueue(2);
+    q.start();
+
+    CountDownLatch go = new CountDownLatch(1);
+    Task import1 = new Task("import1", go);
+    Task import2 = new Task("import2", null);
+    q.addTask("import1", Priority.BULK, import1);
+    assertTrue(import1.mStarted.await(5, TimeUnit.SECONDS));
+    q.addTask("import2", Priority.BULK, import2);
+    q.addTask("list", Priority.INTERACTIVE, new Task("list", null));
+
+    // the second worker takes the interactive task, and not the import
+    waitFor(1);
+    assertEquals("list", mRan.get(0));
+    assertFalse(import2.mStarted.await(50, TimeUnit.MILLISECONDS));
+    go.countDown();
+    waitFor(3);
+    q.stop();
+  }
+
+  public void testCancelHandle() throws InterruptedException {
+    TaskQueue q = new TaskQueue(1);
+    q.start();
+
+    CountDownLatch go = new CountDownLatch(1);
+    Task block = new Task("block", go);
+    q.addTask("a", Priority.INTERACTIVE, block);
+    assertTrue(block.mStarted.await(5, TimeUnit.SECONDS));
+
+    Task dropped = new Task("dropped", null);
+    TaskQueue.Task handle = q.addTask("a", Priority.INTERACTIVE, dropped);
+    q.addTask("a", Priority.INTERACTIVE, new Task("kept", null));
+    assertFalse(handle.isDone());
+    handle.cancel();
+    assertTrue(handle.isDone());
+    assertTrue(handle.isCancelled());
+    // the Runnable is told it won't be run
+    assertTrue(dropped.isCancelled());
+    assertEquals(1, q.getQueueDepth());
+
+    go.countDown();
+    waitFor(2);
+    q.stop();
+
+    assertEquals("[block, kept]", mRan.toString());
+    assertEquals(1, q.getCancelledCount());
+  }
+
+  public void testLatestWins() throws InterruptedException {
+    // one worker, so everything else waits for the first task
+    TaskQueue q = new TaskQueue(1);
+    q.start();
+
+    CountDownLatch go = new CountDownLatch(1);
+    Task first = new Task("view1", go);
+    q.addLatestTask("view", Priority.INTERACTIVE, first);
+    assertTrue(first.mStarted.await(5, TimeUnit.SECONDS));
+
+    // first is running; these pile up behind it, and each supersedes the
+    // last, and first itself
+    q.addLatestTask("view", Priority.INTERACTIVE, new Task("view2", null));
+    q.addLatestTask("other", Priority.INTERACTIVE, new Task("other1", null));
+    q.addLatestTask("view", Priority.INTERACTIVE, new Task("view3", null));
+    q.addLatestTask("view", Priority.INTERACTIVE, new Task("view4", null));
+    assertTrue(first.isCancelled());
+    go.countDown();
+    waitFor(3);
+    q.stop();
+
+    assertTrue(first.mSawCancel);
+    assertEquals("[view1, other1, view4]", mRan.toString());
+    assertEquals(2, q.getCoalescedCount());
+    assertEquals(1, q.getCancelledCount());
+  }
+
+  public void testNotCancellable() throws InterruptedException {
+    TaskQueue q = new TaskQueue(1);
+    q.start();
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch go = new CountDownLatch(1);
+    q.addLatestTask("view", Priority.INTERACTIVE, new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          go.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+        mRan.add("plain");
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    q.addLatestTask("view", Priority.INTERACTIVE, new Task("view2", null));
+    go.countDown();
+    waitFor(2);
+    q.stop();
+
+    assertEquals("[plain, view2]", mRan.toString());
+    assertEquals(0, q.getCoalescedCount());
+    assertEquals(0, q.getCancelledCount());
+  }
+}
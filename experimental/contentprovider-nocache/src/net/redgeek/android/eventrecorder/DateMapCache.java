@@ -32,6 +32,7 @@ import java.util.TreeMap;
 
 public class DateMapCache {
   private Calendar mCal;
+  private PeriodMath mPeriods;
   private DateMapCacheEntry[] mSecToEntry;
   private TreeMap<Integer, ArrayList<DateMapCacheEntry>> mYearToEntry;
 
@@ -132,6 +133,7 @@ public class DateMapCache {
 
   public DateMapCache() {
     mCal = Calendar.getInstance();
+    mPeriods = new PeriodMath();
     mYearToEntry = new TreeMap<Integer, ArrayList<DateMapCacheEntry>>();
   }
 
@@ -242,69 +244,22 @@ public class DateMapCache {
     return d;
   }
 
+  // The period boundaries don't need the date map: they're computed
+  // arithmetically for any date, so there's no year limit and no walking
+  // month by month for quarters and years.
   public int secondsOfPeriodStart(int seconds, int period) {
-    int secs;
-    int nPeriods = 0;
-    DateMapCacheEntry entry;
-
-    entry = getEntry(seconds, true);
-    secs = entry.mSeconds;
-
-    if (entry.mSeconds == seconds || period == DateMap.MONTH_SECS)
-      return secs;
-
-    if (period < DateMap.WEEK_SECS) {
-      secs += period * ((seconds - secs) / period);
-    } else if (period == DateMap.WEEK_SECS) {
-      // get the DOW of the first day of the month, and subtract out the
-      // seconds from then until the start of the week from the last month:
-      secs = (int) ((entry.mSeconds) - (DateMap.DAY_SECS * (entry.mDOW - 1)));
-      if (seconds - period >= entry.mSeconds) {
-        // start of week is in the same month,
-        // advance until we get to the week before this one:
-        secs += period * ((seconds - secs) / period);
-      }
-    } else if (period == DateMap.QUARTER_SECS) {
-      while (!(entry.mMonth == 0 || entry.mMonth == 3 || entry.mMonth == 6 || entry.mMonth == 9)) {
-        entry = getEntry(entry.mSeconds - 1, true);
-      }
-      secs = entry.mSeconds;
-    } else { // YEAR_MS / SECOND_MS
-      while (entry.mMonth != 0) {
-        entry = getEntry(entry.mSeconds - 1, true);
-      }
-      secs = entry.mSeconds;
-    }
-
-    return secs;
+    long start = mPeriods.periodStart((long) seconds * DateMap.SECOND_MS,
+        (long) period * DateMap.SECOND_MS);
+    return (int) (start / DateMap.SECOND_MS);
   }
 
   public int secondsOfPeriodEnd(int seconds, int period) {
-    DateMapCacheEntry entry;
-    int secs = secondsOfPeriodStart(seconds, period);
-
-    if (period < DateMap.MONTH_SECS) {
-      secs = secs + period - 1;
-    } else if (period == DateMap.MONTH_SECS) {
-      entry = getEntry(seconds + 1, false);
-      secs = entry.mSeconds - 1;
-    } else if (period == DateMap.QUARTER_SECS) {
-      entry = getEntry(seconds + 1, false);
-      while (!(entry.mMonth == 0 || entry.mMonth == 3 || entry.mMonth == 6 || entry.mMonth == 9)) {
-        entry = getEntry(entry.mSeconds + 1, false);
-      }
-      secs = entry.mSeconds - 1;
-    } else { // YEAR_MS / SECOND_MS
-      entry = getEntry(seconds + 1, false);
-      while (entry.mMonth != 0) {
-        entry = getEntry(entry.mSeconds + 1, false);
-      }
-      secs = entry.mSeconds - 1;
-    }
-
-    return secs;
+    long end = mPeriods.nextPeriodStart((long) seconds * DateMap.SECOND_MS,
+        (long) period * DateMap.SECOND_MS);
+    return (int) (end / DateMap.SECOND_MS) - 1;
   }
 
+
   public int secondsToNextPeriod(int timestamp, int period) {
     return secondsOfPeriodEnd(timestamp, period) - timestamp + 1;
   }
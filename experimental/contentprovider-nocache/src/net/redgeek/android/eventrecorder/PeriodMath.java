@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrecorder;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Calendar period boundaries computed arithmetically from milliseconds since
+ * epoch, in place of a table of month starts or setting the fields of a
+ * Calendar. Periods are given by their nominal length in milliseconds, as in
+ * DateMapCache: days, weeks, months, quarters and years are calendar periods,
+ * with weeks starting on the given first day of the week and quarters on
+ * January, April, July and October. Anything shorter than a day is a fixed
+ * length of local time counted from midnight.
+ *
+ * <p>
+ * Local wall-clock time is found by adding the time zone's offset at the
+ * instant, so daylight saving time is taken into account, and the civil date
+ * is worked out from the day number, with no limit on the year. A period
+ * whose local start doesn't exist, because a daylight saving transition
+ * skipped it, starts at the first instant after the gap, as with a lenient
+ * Calendar.
+ *
+ * <p>
+ * Instances are immutable, hold no scratch state and don't allocate, so one
+ * can be shared between threads.
+ *
+ * @author barclay
+ */
+public final class PeriodMath {
+  private static final long AMPM_MS = 12 * 60 * 60 * 1000;
+  private static final long DAY_MS = AMPM_MS * 2;
+  private static final long WEEK_MS = DAY_MS * 7;
+  private static final long YEAR_MS = WEEK_MS * 52;
+  private static final long QUARTER_MS = WEEK_MS * 13;
+
+  // 1970-01-01 was a Thursday
+  private static final int EPOCH_DAY_OF_WEEK = Calendar.THURSDAY;
+
+  private final TimeZone mZone;
+  private final int mRawOffset;
+  private final int mFirstDayOfWeek;
+
+  /**
+   * Uses the default time zone and the default locale's first day of the
+   * week, as Calendar.getInstance() would.
+   */
+  public PeriodMath() {
+    this(TimeZone.getDefault(), Calendar.getInstance().getFirstDayOfWeek());
+  }
+
+  /**
+   * @param zone
+   *          The time zone to find local time in. It's copied, so later
+   *          changes to it have no effect.
+   * @param firstDayOfWeek
+   *          The day weeks start on, Calendar.SUNDAY through
+   *          Calendar.SATURDAY.
+   */
+  public PeriodMath(TimeZone zone, int firstDayOfWeek) {
+    mZone = (TimeZone) zone.clone();
+    mRawOffset = mZone.getRawOffset();
+    mFirstDayOfWeek = firstDayOfWeek;
+  }
+
+  public TimeZone getTimeZone() {
+    return (TimeZone) mZone.clone();
+  }
+
+  public int getFirstDayOfWeek() {
+    return mFirstDayOfWeek;
+  }
+
+  /**
+   * Returns the start of the period of length <code>periodMs</code>
+   * containing <code>millis</code>.
+   */
+  public long periodStart(long millis, long periodMs) {
+    long local = millis + mZone.getOffset(millis);
+    long localStart = localPeriodStart(local, periodMs);
+
+    // Usually there's no transition between the start and millis, and the
+    // local time elapsed since the start is the real time elapsed.
+    long start = millis - (local - localStart);
+    if (mZone.getOffset(start) + start == localStart)
+      return start;
+    return toUtc(localStart);
+  }
+
+  /**
+   * Returns the start of the period following the one containing
+   * <code>millis</code>, which is also the end of that period.
+   */
+  public long nextPeriodStart(long millis, long periodMs) {
+    if (periodMs < AMPM_MS) {
+      // as Calendar.add() does for minutes and hours
+      return periodStart(millis, periodMs) + periodMs;
+    }
+
+    long local = millis + mZone.getOffset(millis);
+    long localStart = localPeriodStart(local, periodMs);
+    if (periodMs <= WEEK_MS)
+      return toUtc(localStart + periodMs);
+
+    long index = monthIndex(floorDiv(localStart, DAY_MS)) + monthsOf(periodMs);
+    return toUtc(daysFromCivil(floorDiv(index, 12),
+        (int) floorMod(index, 12) + 1, 1)
+        * DAY_MS);
+  }
+
+  // The local start of the period containing local time local.
+  private long localPeriodStart(long local, long periodMs) {
+    long days = floorDiv(local, DAY_MS);
+    if (periodMs <= DAY_MS) {
+      return local - floorMod(local, periodMs);
+    } else if (periodMs == WEEK_MS) {
+      days -= floorMod(days + EPOCH_DAY_OF_WEEK - mFirstDayOfWeek, 7);
+      return days * DAY_MS;
+    }
+
+    int months = monthsOf(periodMs);
+    long index = monthIndex(days);
+    index -= floorMod(index, months);
+    days = daysFromCivil(floorDiv(index, 12), (int) floorMod(index, 12) + 1, 1);
+    return days * DAY_MS;
+  }
+
+  // The instant at which the local clock reads local.
+  private long toUtc(long local) {
+    int before = mZone.getOffset(local - mRawOffset - DAY_MS);
+    int after = mZone.getOffset(local - mRawOffset + DAY_MS);
+    if (before == after)
+      return local - before;
+
+    // There's a transition within a day or so. If local falls in a gap it's
+    // valid with neither offset, and is moved forward past it by treating it
+    // as being in the earlier offset; if it's repeated, it's valid with both,
+    // and the earlier instant is used.
+    long utc1 = local - before;
+    long utc2 = local - after;
+    boolean valid1 = mZone.getOffset(utc1) == before;
+    boolean valid2 = mZone.getOffset(utc2) == after;
+    if (valid1 && valid2)
+      return Math.min(utc1, utc2);
+    if (valid2)
+      return utc2;
+    return utc1;
+  }
+
+  private static int monthsOf(long periodMs) {
+    if (periodMs == YEAR_MS)
+      return 12;
+    if (periodMs == QUARTER_MS)
+      return 3;
+    return 1;
+  }
+
+  // Months since year 0, for the civil date of day number days.
+  private static long monthIndex(long days) {
+    // Howard Hinnant's civil_from_days, shifted so that years start in
+    // March and the leap day falls at the end of the year.
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    long year = yoe + era * 400;
+    long month = mp < 10 ? mp + 3 : mp - 9;
+    if (month <= 2)
+      year++;
+    return year * 12 + month - 1;
+  }
+
+  /**
+   * Returns the day number, counting from 1970-01-01, of the given date in
+   * the proleptic Gregorian calendar. Months are from 1 to 12.
+   */
+  public static long daysFromCivil(long year, int month, int day) {
+    if (month <= 2)
+      year--;
+    long era = floorDiv(year, 400);
+    long yoe = year - era * 400;
+    long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    if ((x % y != 0) && ((x ^ y) < 0))
+      q--;
+    return q;
+  }
+
+  private static long floorMod(long x, long y) {
+    return x - floorDiv(x, y) * y;
+  }
+}
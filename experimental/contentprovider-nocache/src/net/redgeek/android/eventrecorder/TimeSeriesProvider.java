@@ -25,6 +25,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Debug;
 import android.text.TextUtils;
@@ -41,8 +42,11 @@ import net.redgeek.android.eventrend.category.CategoryRow;
 import net.redgeek.android.eventrend.importing.CSV;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -346,7 +350,6 @@ public class TimeSeriesProvider extends ContentProvider {
     mDbHelper = new DatabaseHelper(getContext());
     mLock = new ReentrantLock();
     mDateMap = new DateMapCache();
-    mDateMap.populateCacheLocalToProvider(mDbHelper.getReadableDatabase());
     return true;
   }
   
@@ -570,18 +573,6 @@ public class TimeSeriesProvider extends ContentProvider {
         }
       }
       
-      // fetch the smoothing and history parameters of the resultant timeseries
-      Uri timeseriesParams = ContentUris.withAppendedId(
-          TimeSeries.CONTENT_URI, timeSeriesId);
-      c = query(timeseriesParams, 
-          new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY,
-          TimeSeries.RECORDING_DATAPOINT_ID }, 
-          null, null, null);
-      c.moveToFirst();
-      double smoothing = TimeSeries.getSmoothing(c);
-      int history = TimeSeries.getHistory(c);
-      long recordingDatapointId = TimeSeries.getRecordingDatapointId(c);
-      c.close();
 
       // Store the results
       Datum d;
@@ -600,10 +591,10 @@ public class TimeSeriesProvider extends ContentProvider {
         Datapoint.setValue(values, d.mValue);
         Datapoint.setEntries(values, 1);
 
-        setContentValues(db, values, timeSeriesId, 0, recordingDatapointId,
-            d.mTsStart, d.mValue, 1, smoothing, history);
+        setBaseContentValues(values, d.mTsStart, d.mValue, 1);
         db.insert(Datapoint.TABLE_NAME, null, values);
       }
+      updateStats(db, timeSeriesId, minTime, Integer.MAX_VALUE);
     }
     
     // Now try updating all series that may be dependent on this one:
@@ -658,205 +649,268 @@ public class TimeSeriesProvider extends ContentProvider {
     return;
   }
 
-  private void updateStats(SQLiteDatabase db, long timeSeriesId, int tsStart, 
-      int tsEnd) {
-    ContentValues values = new ContentValues();
-    int oldTsStart;
-    double value;
-    int entries;
-    long id;
-    int newPeriodStart, newPeriodEnd;
-    Uri sumsUri;
-    StringBuilder where = new StringBuilder();
+  /**
+   * Stats over a sliding window of the last <code>size</code> periods, the
+   * current one included. The sums for each period are kept in a ring buffer
+   * so that moving the window on a period is constant time. For the raw stats
+   * every datapoint is a period of its own.
+   */
+  private static class RollingStats {
+    private double[] mValueSums;
+    private double[] mValueSqrSums;
+    private int[] mEntriesSums;
+    private int mHead;
+    private double mWindowValue;
+    private double mWindowValueSqr;
+    private int mWindowEntries;
+
+    public int mPeriods;
+    public int mPeriodStart;
+    public double mValue;
+    public int mEntries;
+    public double mTrend;
+    // the trend as of the end of the previous period
+    public double mLastTrend;
+
+    public RollingStats(int size) {
+      if (size < 1)
+        size = 1;
+      mValueSums = new double[size];
+      mValueSqrSums = new double[size];
+      mEntriesSums = new int[size];
+    }
 
-    Datapoint.setTimeSeriesId(values, timeSeriesId);
-    
-    where.setLength(0);
-    where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-    where.append(Datapoint.TS_START).append(" <= ").append(tsStart);
-    String sortOrder = Datapoint.TS_START + " desc ";
-    String limit = "2";
-    Cursor c = queryDatapointInternal(where.toString(), null, null, sortOrder, limit);
+    public void nextPeriod(int periodStart) {
+      mHead = (mHead + 1) % mValueSums.length;
+      mWindowValue -= mValueSums[mHead];
+      mWindowValueSqr -= mValueSqrSums[mHead];
+      mWindowEntries -= mEntriesSums[mHead];
+      mValueSums[mHead] = 0.0;
+      mValueSqrSums[mHead] = 0.0;
+      mEntriesSums[mHead] = 0;
+
+      mLastTrend = mTrend;
+      mPeriodStart = periodStart;
+      mValue = 0.0;
+      mEntries = 0;
+      mPeriods++;
+    }
 
-    c.moveToFirst();
-    if (c.getCount() == 1) {
-      // have one datapoint, which means it's the first in the series.
-      // Only update it if it's at the current start time, since that's a 
-      // special case.  The rest of the updates will be handled below.
-      int timestamp = Datapoint.getTsStart(c);
-      if (timestamp == tsStart) {      
-        id = Datapoint.getId(c);
-        value = Datapoint.getValue(c);
-        entries = Datapoint.getEntries(c);
-
-        Datapoint.setTrend(values, value / entries);
-        Datapoint.setStdDev(values, 0.0f);
-
-        int length = Datapoint.AGGREGATE_SUFFIX.length;
-        for (int i = 0; i < length; i++) {
-          String suffix = Datapoint.AGGREGATE_SUFFIX[i];
-          Datapoint.setTrend(values, suffix, value / entries);
-          Datapoint.setStdDev(values, suffix, 0.0f);
-        }
-        
-        db.update(Datapoint.TABLE_NAME, values, Datapoint._ID + " = " + id, null);
-      }
-    }    
-    c.close();
+    public void add(double value, double valueSqr, int entries) {
+      mValueSums[mHead] += value;
+      mValueSqrSums[mHead] += valueSqr;
+      mEntriesSums[mHead] += entries;
+      mWindowValue += value;
+      mWindowValueSqr += valueSqr;
+      mWindowEntries += entries;
+      mValue += value;
+      mEntries += entries;
+    }
 
-    // fetch the smoothing parameter of the timeseries
-    Uri smoothingUri = ContentUris.withAppendedId(TimeSeries.CONTENT_URI, timeSeriesId);
-    c = query(smoothingUri, 
+    public void updateTrend(double value, double smoothing) {
+      if (mPeriods > 1)
+        mTrend = calculateTrend(value, mLastTrend, smoothing);
+      else
+        mTrend = value;
+    }
+
+    public double getStdDev() {
+      if (mWindowEntries <= 0)
+        return 0.0;
+      double mean = mWindowValue / mWindowEntries;
+      double variance = (mWindowValueSqr / mWindowEntries) - (mean * mean);
+      return variance > 0.0 ? Math.sqrt(variance) : 0.0;
+    }
+  }
+
+  /**
+   * Recalculates the trend, standard deviation and running sums, raw and
+   * aggregated, of every datapoint of the series with a start time in
+   * [tsStart, tsEnd). This is a single pass over those datapoints in time
+   * order: the state it needs from before tsStart is read up front, with one
+   * query for the raw stats and one per aggregation period, each limited to
+   * the history window, so the cost only depends on the number of datapoints
+   * updated and not on the length of the series.
+   */
+  private void updateStats(SQLiteDatabase db, long timeSeriesId, int tsStart,
+      int tsEnd) {
+    String[] suffixes = Datapoint.AGGREGATE_SUFFIX;
+    int nSuffixes = suffixes.length;
+    StringBuilder sql = new StringBuilder();
+
+    // fetch the smoothing and history parameters of the timeseries
+    Uri timeseriesParams = ContentUris.withAppendedId(TimeSeries.CONTENT_URI,
+        timeSeriesId);
+    Cursor c = query(timeseriesParams, 
         new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY }, 
         null, null, null);
     c.moveToFirst();
     double smoothing = TimeSeries.getSmoothing(c);
     int history = TimeSeries.getHistory(c);
     c.close();
+    if (history < 1)
+      history = 1;
+
+    // the raw stats as of the datapoints just before tsStart, oldest first
+    RollingStats raw = new RollingStats(history);
+    double sumValue = 0.0;
+    double sumValueSqr = 0.0;
+    int sumEntries = 0;
+
+    sql.append("select ").append(Datapoint.TS_START).append(", ");
+    sql.append(Datapoint.VALUE).append(", ");
+    sql.append(Datapoint.ENTRIES).append(", ");
+    sql.append(Datapoint.TREND).append(", ");
+    sql.append(Datapoint.SUM_VALUE).append(", ");
+    sql.append(Datapoint.SUM_VALUE_SQR).append(", ");
+    sql.append(Datapoint.SUM_ENTRIES);
+    sql.append(" from ").append(Datapoint.TABLE_NAME);
+    sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+    sql.append(" and ").append(Datapoint.TS_START).append(" < ").append(tsStart);
+    sql.append(" order by ").append(Datapoint.TS_START).append(" desc, ");
+    sql.append(Datapoint._ID).append(" desc limit ").append(history);
+    c = db.rawQuery(sql.toString(), null);
+    if (c.moveToLast()) {
+      do {
+        double value = c.getDouble(1);
+        int entries = c.getInt(2);
+        raw.nextPeriod(c.getInt(0));
+        raw.add(value, value * value, entries);
+        raw.mTrend = c.getDouble(3);
+        sumValue = c.getDouble(4);
+        sumValueSqr = c.getDouble(5);
+        sumEntries = c.getInt(6);
+      } while (c.moveToPrevious());
+    }
+    c.close();
 
-    // now fetch all the datapoints at or after the start time
-    where.setLength(0);
-    where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-    where.append(Datapoint.TS_START).append(" >= ").append(tsStart).append(" and ");
-    where.append(Datapoint.TS_START).append(" < ").append(tsStart);
-    sortOrder = Datapoint.TS_START + " asc ";
-    c = queryDatapointInternal(where.toString(), null, null, sortOrder, null);
-
-    if (c.getCount() < 1) {
+    // and the aggregated stats as of the periods just before tsStart. The
+    // trend is the one of the last datapoint in each period, which is the
+    // row max() picks the bare column from.
+    RollingStats[] aggregated = new RollingStats[nSuffixes];
+    for (int i = 0; i < nSuffixes; i++) {
+      String suffix = suffixes[i];
+      aggregated[i] = new RollingStats(history);
+
+      sql.setLength(0);
+      sql.append("select ").append(Datapoint.TS_START).append("_").append(suffix).append(", ");
+      sql.append("sum(").append(Datapoint.VALUE).append("), ");
+      sql.append("sum(").append(Datapoint.VALUE).append(" * ").append(Datapoint.VALUE).append("), ");
+      sql.append("sum(").append(Datapoint.ENTRIES).append("), ");
+      sql.append(Datapoint.TREND).append("_").append(suffix).append(", ");
+      sql.append("max(").append(Datapoint.TS_START).append(")");
+      sql.append(" from ").append(Datapoint.TABLE_NAME);
+      sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+      sql.append(" and ").append(Datapoint.TS_START).append(" < ").append(tsStart);
+      sql.append(" group by ").append(Datapoint.TS_START).append("_").append(suffix);
+      sql.append(" order by ").append(Datapoint.TS_START).append("_").append(suffix);
+      sql.append(" desc limit ").append(history);
+      c = db.rawQuery(sql.toString(), null);
+      if (c.moveToLast()) {
+        do {
+          aggregated[i].nextPeriod(c.getInt(0));
+          aggregated[i].add(c.getDouble(1), c.getDouble(2), c.getInt(3));
+          aggregated[i].mTrend = c.getDouble(4);
+        } while (c.moveToPrevious());
+      }
       c.close();
-      return;
     }
 
-    // loops through all datapoints updating stats
-    c.moveToFirst();
-    int count = c.getCount();
-    for (int i = 0; i < count; i++) {
-      id = Datapoint.getIdIdx(c);
-
-      // set the aggregated stats
-      int length = Datapoint.AGGREGATE_SUFFIX.length;
-      for (int j = 0; j < length; j++) {
-        String suffix = Datapoint.AGGREGATE_SUFFIX[j];
-        newPeriodStart = Datapoint.getTsStartIdx(c, suffix);
-        newPeriodEnd = Datapoint.getTsEndIdx(c, suffix);
-        value = Datapoint.getValueIdx(c, suffix);
-        entries = Datapoint.getEntriesIdx(c, suffix);
-
-        // fetch data for the previous entry as aggregated for the period
-        
-        where.setLength(0);
-        where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-        where.append(Datapoint.TS_START).append(" < ").append(newPeriodStart).append(" ");
-        sortOrder = Datapoint.TS_START + " desc ";
-        String groupBy = Datapoint.TS_START + "_" + suffix;
-        limit = "" + history;
-        Cursor c2 = queryDatapointInternal(where.toString(), null, groupBy, sortOrder, limit);
-
-        c2.moveToLast();
-        int oldPeriodStart = Datapoint.getTsStartIdx(c2, suffix);
-        double oldValue = Datapoint.getValueIdx(c2, suffix);
-        double oldValueSum = Datapoint.getSumValueIdx(c2, suffix);
-        double oldValueSumSqr = Datapoint.getSumValueSqrIdx(c2, suffix);
-        int oldEntries = Datapoint.getEntriesIdx(c2, suffix);
-        int oldEntriesSum = Datapoint.getSumEntriesIdx(c2, suffix);
-        double oldTrend = Datapoint.getTrendIdx(c2, suffix);
-        double trend;
-
-        if (newPeriodStart > oldPeriodStart) {
-          // restart the per-period counters
-          trend = calculateTrend(value / entries, oldTrend, smoothing);
-          Datapoint.setTrend(values, suffix, trend);
-        } else {
-          // add to the per-period counters
-          if (c2.getCount() < 2) {
-            // there was a previous entry, but it was in this same period,
-            // so there's no entry before this for the period
-            Datapoint.setTrend(values, suffix, (oldValue + value) / (oldEntries + entries));
-          } else {
-            trend = calculateTrend((oldValue / oldEntries) + (value / entries), oldTrend, smoothing);
-            Datapoint.setTrend(values, suffix, trend);
-          }                
-        }
-          
-        // calculate standard deviation based on history
-        double newValueSum = oldValueSum + value;
-        double newValueSumSqr = oldValueSumSqr + (value * value);
-        int newEntriesSum = oldEntriesSum + entries;
-
-        double firstValueSum = 0.0f;
-        double firstValueSumSqr = 0.0f;
-        int firstEntriesSum = 0;
-        if (c2.getCount() == history) {
-          // only subtract out the initial values if we have a full history
-          // window
-          c2.moveToLast();
-          firstValueSum = Datapoint.getSumValueIdx(c2, suffix);
-          firstValueSumSqr = Datapoint.getSumValueSqrIdx(c2, suffix);
-          firstEntriesSum = Datapoint.getSumEntriesIdx(c2, suffix);
+    // one statement, compiled once, to write back each datapoint
+    sql.setLength(0);
+    sql.append("update ").append(Datapoint.TABLE_NAME).append(" set ");
+    sql.append(Datapoint.TREND).append(" = ?, ");
+    sql.append(Datapoint.STDDEV).append(" = ?, ");
+    sql.append(Datapoint.SUM_VALUE).append(" = ?, ");
+    sql.append(Datapoint.SUM_VALUE_SQR).append(" = ?, ");
+    sql.append(Datapoint.SUM_ENTRIES).append(" = ?");
+    for (int i = 0; i < nSuffixes; i++) {
+      String suffix = suffixes[i];
+      sql.append(", ").append(Datapoint.VALUE).append("_").append(suffix).append(" = ?");
+      sql.append(", ").append(Datapoint.ENTRIES).append("_").append(suffix).append(" = ?");
+      sql.append(", ").append(Datapoint.TREND).append("_").append(suffix).append(" = ?");
+      sql.append(", ").append(Datapoint.STDDEV).append("_").append(suffix).append(" = ?");
+      sql.append(", ").append(Datapoint.SUM_VALUE).append("_").append(suffix).append(" = ?");
+      sql.append(", ").append(Datapoint.SUM_VALUE_SQR).append("_").append(suffix).append(" = ?");
+      sql.append(", ").append(Datapoint.SUM_ENTRIES).append("_").append(suffix).append(" = ?");
+    }
+    sql.append(" where ").append(Datapoint._ID).append(" = ?");
+    int idArg = 6 + (7 * nSuffixes);
+    SQLiteStatement update = db.compileStatement(sql.toString());
+
+    // now walk the datapoints in [tsStart, tsEnd), in order
+    sql.setLength(0);
+    sql.append("select ").append(Datapoint._ID).append(", ");
+    sql.append(Datapoint.TS_START).append(", ");
+    sql.append(Datapoint.VALUE).append(", ");
+    sql.append(Datapoint.ENTRIES);
+    for (int i = 0; i < nSuffixes; i++) {
+      sql.append(", ").append(Datapoint.TS_START).append("_").append(suffixes[i]);
+    }
+    sql.append(" from ").append(Datapoint.TABLE_NAME);
+    sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+    sql.append(" and ").append(Datapoint.TS_START).append(" >= ").append(tsStart);
+    sql.append(" and ").append(Datapoint.TS_START).append(" < ").append(tsEnd);
+    sql.append(" order by ").append(Datapoint.TS_START).append(" asc, ");
+    sql.append(Datapoint._ID).append(" asc");
+    c = db.rawQuery(sql.toString(), null);
+
+    db.beginTransaction();
+    try {
+      while (c.moveToNext()) {
+        double value = c.getDouble(2);
+        int entries = c.getInt(3);
+        double valueSqr = value * value;
+
+        raw.nextPeriod(c.getInt(1));
+        raw.add(value, valueSqr, entries);
+        raw.updateTrend(value / entries, smoothing);
+        sumValue += value;
+        sumValueSqr += valueSqr;
+        sumEntries += entries;
+
+        update.bindDouble(1, raw.mTrend);
+        update.bindDouble(2, raw.getStdDev());
+        update.bindDouble(3, sumValue);
+        update.bindDouble(4, sumValueSqr);
+        update.bindLong(5, sumEntries);
+
+        for (int i = 0; i < nSuffixes; i++) {
+          RollingStats period = aggregated[i];
+          int periodStart = c.getInt(4 + i);
+          if (period.mPeriods == 0 || periodStart != period.mPeriodStart)
+            period.nextPeriod(periodStart);
+          period.add(value, valueSqr, entries);
+          period.updateTrend(period.mValue / period.mEntries, smoothing);
+
+          int arg = 6 + (7 * i);
+          update.bindDouble(arg, period.mValue);
+          update.bindLong(arg + 1, period.mEntries);
+          update.bindDouble(arg + 2, period.mTrend);
+          update.bindDouble(arg + 3, period.getStdDev());
+          update.bindDouble(arg + 4, sumValue);
+          update.bindDouble(arg + 5, sumValueSqr);
+          update.bindLong(arg + 6, sumEntries);
         }
-        double stddev = calculateStdDev(firstValueSumSqr, newValueSumSqr,
-            firstValueSum, newValueSum, firstEntriesSum, newEntriesSum);
-        Datapoint.setStdDev(values, suffix, stddev);
-        c2.close();
+
+        update.bindLong(idArg, c.getLong(0));
+        update.execute();
       }
-      
-      id = db.update(Datapoint.TABLE_NAME, values, Datapoint._ID, 
-          new String[] { "" + id } );      
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      update.close();
+      c.close();
     }
-    c.close();
-
-    return;
-  }
-      
-  private void updateAggregations(SQLiteDatabase db, long timeSeriesId, 
-      int fromTimestamp, double value, int entries) throws Exception {
-    String[] aggregations = Datapoint.AGGREGATE_SUFFIX;
-    String suffix;
-    StringBuilder sql = new StringBuilder();
-    
-    double valSqr = value * value;
 
-    sql.append("update ").append(Datapoint.TABLE_NAME).append(" set ");
-    sql.append(Datapoint.SUM_VALUE).append(" = ");
-    sql.append(Datapoint.SUM_VALUE).append(" + ").append(value).append(", ");
-    sql.append(Datapoint.SUM_VALUE_SQR).append(" = ");
-    sql.append(Datapoint.SUM_VALUE_SQR).append(" + ").append(valSqr).append(", ");
-    sql.append(Datapoint.SUM_ENTRIES).append(" = ");
-    sql.append(Datapoint.SUM_ENTRIES).append(" + ").append(entries).append(" ");
-
-    for (int i = 0; i < aggregations.length; i++) {
-      suffix = Datapoint.AGGREGATE_SUFFIX[i];
-      sql.append(", ").append(Datapoint.VALUE).append("_").append(suffix).append(" = ");
-      sql.append(Datapoint.VALUE).append("_").append(suffix).append(" + ").append(value);
-      sql.append(", ").append(Datapoint.SUM_VALUE_SQR).append("_").append(suffix).append(" = ");
-      sql.append(Datapoint.SUM_VALUE_SQR).append("_").append(suffix).append(" + ").append(valSqr);
-      sql.append(", ").append(Datapoint.SUM_ENTRIES).append("_").append(suffix).append(" = ");
-      sql.append(Datapoint.SUM_ENTRIES).append("_").append(suffix).append(" + ").append(entries);
-    }
-    sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" == ").append(timeSeriesId).append(" and ");
-    sql.append(Datapoint.TS_START).append(" > ").append(fromTimestamp);
-        
-    db.rawQuery(sql.toString(), null);
     return;
   }
 
-  private double calculateTrend(double newValue, double oldTrend, double smoothing) {
+  private static double calculateTrend(double newValue, double oldTrend, double smoothing) {
     // T(n) = T(n-1) + (smoothing * (V(n) - T(n-1)))
     return oldTrend + (smoothing * (newValue - oldTrend));
   }
   
-  private double calculateStdDev(double firstSumSqr, double lastSumSqr,
-      double firstValueSum, double lastValueSum, int firstEntriesSum, 
-      int lastEntriesSum) {
-    double sumSqr = lastSumSqr - firstSumSqr;
-    double sumValue = lastValueSum - firstValueSum;
-    double entriesSum = lastEntriesSum - firstEntriesSum;
-    double mean = sumValue / entriesSum;
-    
-    double stddev = Math.sqrt((sumSqr / entriesSum) - (mean * mean));
-    return stddev;
-  }
-    
   private void setBaseContentValues(ContentValues values, int timestamp, double value,
       int entries) {
     int period, periodStart, periodEnd;
@@ -890,181 +944,6 @@ public class TimeSeriesProvider extends ContentProvider {
     return;
   }
   
-  private void setRawContentValuesStats(Cursor c, ContentValues values,
-      long timeSeriesId, double value, int entries, double smoothing, int history) {
-    // these are in reverse chronological order
-    c.moveToFirst();
-
-    // update the non-aggregated stats
-    double oldValue = Datapoint.getValueIdx(c, null);
-    double oldValueSum = Datapoint.getSumValueIdx(c, null);
-    double oldValueSumSqr = Datapoint.getSumValueSqrIdx(c, null);
-    int oldEntries = Datapoint.getEntriesIdx(c, null);
-    int oldEntriesSum = Datapoint.getSumEntriesIdx(c, null);
-    double oldTrend = Datapoint.getTrendIdx(c, null);
-
-    double newValueSum = oldValueSum + value;
-    double newValueSumSqr = oldValueSumSqr + (value * value);
-    int newEntriesSum = oldEntriesSum + entries;
-
-    double trend = calculateTrend(value / entries, oldTrend, smoothing);
-    Datapoint.setTrend(values, trend);
-    Datapoint.setSumEntries(values, newEntriesSum);
-    Datapoint.setSumValue(values, newValueSum);
-    Datapoint.setSumValueSqr(values, newValueSumSqr);
-
-    double firstValueSum = 0.0f;
-    double firstValueSumSqr = 0.0f;
-    int firstEntriesSum = 0;
-    if (c.getCount() == history) {
-      // only subtract out the initial values if we have a full history window
-      c.moveToLast();
-      firstValueSum = Datapoint.getSumValueIdx(c, null);
-      firstValueSumSqr = Datapoint.getSumValueSqrIdx(c, null);
-      firstEntriesSum = Datapoint.getSumEntriesIdx(c, null);
-    }
-    double stddev = calculateStdDev(firstValueSumSqr, newValueSumSqr,
-        firstValueSum, newValueSum, firstEntriesSum, newEntriesSum);
-    Datapoint.setStdDev(values, stddev);
-
-    return;
-  }
-
-  private Cursor getPreviousDatapoints(SQLiteDatabase db, long timeSeriesId, 
-      long recordingDatapointId, long additionalIgnoreId, int timestamp, int history) {
-    StringBuilder where = new StringBuilder();
-
-    where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-    where.append(Datapoint.TS_START).append(" < ").append(timestamp).append(" and ");
-    where.append(Datapoint._ID).append(" != ").append(recordingDatapointId).append(" and ");
-    where.append(Datapoint._ID).append(" != ").append(additionalIgnoreId).append(" ");
-    String sortOrder = Datapoint.TS_START + " desc ";
-    String groupBy = Datapoint.TS_START;
-    String limit = "" + history;
-    return queryDatapointInternal(where.toString(), null, groupBy, sortOrder, limit);
-  }
-
-  private void setAggregatedContentValuesStats(ContentValues values,
-      long timeSeriesId, long recordingDatapointId, int timestamp, 
-      int lastTimestamp, double value, int entries, 
-      double smoothing, int history) {
-    double oldValue, oldValueSum, oldValueSumSqr;
-    int oldEntries, oldEntriesSum;
-    double newTrend, oldTrend;
-    double newValueSum, newValueSumSqr;
-    int newEntriesSum;
-    int period, oldPeriodStart, newPeriodStart, oldPeriodEnd, newPeriodEnd;
-    double firstValueSum, firstValueSumSqr;
-    double stddev;
-    int firstEntriesSum;
-    long id;
-    Uri sumsUri;
-    Cursor c;
-    StringBuilder where = new StringBuilder();
-
-    // update the aggregated stats, skip index 0 (no aggregation)
-    int length = TimeSeries.AGGREGATION_PERIOD_TIMES.length;
-    for (int i = 1; i < length; i++) {
-      String suffix = Datapoint.AGGREGATE_SUFFIX[i-1];
-      period = TimeSeries.AGGREGATION_PERIOD_TIMES[i];
-      newPeriodStart = mDateMap.secondsOfPeriodStart(timestamp, period);
-      newPeriodEnd = mDateMap.secondsOfPeriodEnd(newPeriodStart, period);
-      oldPeriodStart = mDateMap.secondsOfPeriodStart(lastTimestamp, period);
-
-      // fetch data for the previous entry as aggregated for the period
-      where.setLength(0);
-      where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-      where.append(Datapoint._ID).append(" != ").append(recordingDatapointId).append(" ");
-      String groupBy = Datapoint.TS_START + "_" + suffix + " ";
-      String sortOrder = Datapoint.TS_START + " desc ";
-      String limit = "" + history;
-      c = queryDatapointInternal(where.toString(), null, groupBy, sortOrder, limit);      
-      
-      c.moveToFirst();
-      oldValue = Datapoint.getValueIdx(c, suffix);
-      oldValueSum = Datapoint.getSumValueIdx(c, suffix);
-      oldValueSumSqr = Datapoint.getSumValueSqrIdx(c, suffix);
-      oldEntries = Datapoint.getEntriesIdx(c, suffix);
-      oldEntriesSum = Datapoint.getSumEntriesIdx(c, suffix);
-      oldTrend = Datapoint.getTrendIdx(c, suffix);
-
-      Datapoint.setTsStart(values, suffix, newPeriodStart);
-      Datapoint.setTsEnd(values, suffix, newPeriodEnd);
-      if (newPeriodStart > oldPeriodStart) {
-        // restart the per-period counters
-        Datapoint.setValue(values, suffix, value);
-        Datapoint.setEntries(values, suffix, entries);
-        newTrend = calculateTrend(value / entries, oldTrend, smoothing);
-        Datapoint.setTrend(values, suffix, newTrend);
-      } else {
-        // add to the per-period counters
-        if (c.getCount() < 2) {
-          // there was a previous entry, but it was in this same period,
-          // so there's no entry before this for the period
-          Datapoint.setTrend(values, suffix, (oldValue + value) / (oldEntries + entries));
-        } else {
-          newTrend = calculateTrend((oldValue / oldEntries) + (value / entries), oldTrend, smoothing);
-          Datapoint.setTrend(values, suffix, newTrend);
-        }                
-        Datapoint.setValue(values, suffix, oldValue + value);
-        Datapoint.setEntries(values, suffix, oldEntries + entries);
-      }
-        
-      // calculate standard deviation based on history
-      newValueSum = oldValueSum + value;
-      newValueSumSqr = oldValueSumSqr + (value * value);
-      newEntriesSum = oldEntriesSum + entries;
-
-      Datapoint.setSumEntries(values, suffix, newEntriesSum);
-      Datapoint.setSumValue(values, suffix, newValueSum);
-      Datapoint.setSumValueSqr(values, suffix, newValueSumSqr);
-
-      firstValueSum = 0.0f;
-      firstValueSumSqr = 0.0f;
-      firstEntriesSum = 0;
-      if (c.getCount() == history) {
-        // only subtract out the initial values if we have a full history
-        // window
-        c.moveToLast();
-        firstValueSum = Datapoint.getSumValueIdx(c, suffix);
-        firstValueSumSqr = Datapoint.getSumValueSqrIdx(c, suffix);
-        firstEntriesSum = Datapoint.getSumEntriesIdx(c, suffix);
-      }
-      stddev = calculateStdDev(firstValueSumSqr, newValueSumSqr,
-          firstValueSum, newValueSum, firstEntriesSum, newEntriesSum);
-      Datapoint.setStdDev(values, suffix, stddev);
-      c.close();
-    }
-
-    return;
-  }
-
-  private void setContentValues(SQLiteDatabase db, ContentValues values,
-      long timeSeriesId, long recordingDatapointId, long additionalIgnoreId,
-      int tsStart, double value, int entries, double smoothing, int history) {
-    Cursor c = getPreviousDatapoints(db, timeSeriesId, additionalIgnoreId, 
-        recordingDatapointId, tsStart, history);
-    if (c.getCount() < 1) {
-      // no earlier entries for this timestamp
-      c.close();
-      setBaseContentValues(values, tsStart, value, entries);
-    }
-    else {
-      // there exists an entry before this entry, chronologically
-      // update the raw, un-aggregated stats:
-      setRawContentValuesStats(c, values, timeSeriesId, value, 
-          entries, smoothing, history);
-
-      c.moveToFirst();
-      int oldTsStart = Datapoint.getTsStart(c);
-      c.close();            
-
-      // update the aggregated stats
-      setAggregatedContentValuesStats(values, timeSeriesId, recordingDatapointId,
-          tsStart, oldTsStart, value, entries, smoothing, history);
-    }
-  }
-
   @Override
   public Uri insert(Uri uri, ContentValues values) {
     Uri outputUri = null;
@@ -1113,21 +992,8 @@ public class TimeSeriesProvider extends ContentProvider {
 
           Datapoint.setTimeSeriesId(values, timeSeriesId);
           
-          // first fetch the smoothing and history parameters of the timeseries
-          Uri timeseriesParams = ContentUris.withAppendedId(
-              TimeSeries.CONTENT_URI, timeSeriesId);
-          Cursor c = query(timeseriesParams, 
-              new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY,
-              TimeSeries.RECORDING_DATAPOINT_ID }, 
-              null, null, null);
-          c.moveToFirst();
-          double smoothing = TimeSeries.getSmoothing(c);
-          int history = TimeSeries.getHistory(c);
-          long recordingDatapointId = TimeSeries.getRecordingDatapointId(c);
-          c.close();
 
-          setContentValues(db, values, timeSeriesId, 0, recordingDatapointId,
-              tsStart, value, entries, smoothing, history);
+          setBaseContentValues(values, tsStart, value, entries);
           
           id = db.insert(Datapoint.TABLE_NAME, null, values);
           if (id == -1) {
@@ -1138,8 +1004,7 @@ public class TimeSeriesProvider extends ContentProvider {
                 .appendPath("datapoints").appendPath(""+id).build();
           }
           
-          // TODO: update for new schema
-          updateAggregations(db, timeSeriesId, tsStart, value, entries);
+          updateStats(db, timeSeriesId, tsStart, Integer.MAX_VALUE);
           updateFormulaData(db, timeSeriesId, tsStart, null);
 
           db.setTransactionSuccessful();
@@ -1162,53 +1027,87 @@ public class TimeSeriesProvider extends ContentProvider {
     return outputUri;
   }
   
-//  @Override
-//  public int bulkInsert(Uri uri, ContentValues[] values) {
-//    Uri outputUri = null;
-//    long id;
-//    int nInserts = 0;
-//    int period, oldPeriodStart, newPeriodStart, oldPeriodEnd, newPeriodEnd;
-//    SQLiteDatabase db = mDbHelper.getWritableDatabase();
-//    
-//    switch (sURIMatcher.match(uri)) {
-//      case TIMESERIES_DATAPOINTS:
-//        LockUtil.waitForLock(mLock);
-//
-//        try {
-//          nInserts = values.length;
-//          for (int i = 0; i < nInserts; i++) {
-//            id = db.insert(Datapoint.TABLE_NAME, null, values[i]);
-//          }
-//        
-//          Uri allSeries = TimeSeries.CONTENT_URI;
-//          Cursor c = query(allSeries, null, null, null, null);
-//          if (c.moveToFirst()) {
-//            int count = c.getCount();
-//            for (int i = 0; i < count; i++) {
-//              long tsId = TimeSeries.getId(c);
-//              updateStats(db, tsId, 0, Integer.MAX_VALUE);
-//              updateFormulaData(db, tsId, 0, null);
-//              c.moveToNext();
-//            }
-//          }
-//          if (c != null)
-//            c.close();
-//        } catch (Exception e) {
-//          Log.v(TAG, e.getMessage());
-//        } finally {
-//          LockUtil.unlock(mLock);
-//        }
-//
-//        break;
-//      default:
-//        throw new IllegalArgumentException("insert: Unknown URI " + uri);
-//    }      
-//    
-//    if (outputUri != null)
-//      getContext().getContentResolver().notifyChange(outputUri, null);
-//    
-//    return nInserts;
-//  }
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] values) {
+    if (sURIMatcher.match(uri) != TIMESERIES_DATAPOINTS)
+      return super.bulkInsert(uri, values);
+    if (values == null || values.length < 1)
+      return 0;
+
+    for (int i = 0; i < values.length; i++) {
+      Long timeSeriesId = values[i].getAsLong(Datapoint.TIMESERIES_ID);
+      if (timeSeriesId == null || timeSeriesId < 1
+          || values[i].getAsInteger(Datapoint.TS_START) == null) {
+        throw new IllegalArgumentException("bulkInsert: Invalid URI " + uri);
+      }
+    }
+
+    // Insert in time order, so the first datapoint seen for a series is its
+    // earliest, and the stats and formulas of each series only have to be
+    // recalculated once, from there.
+    ContentValues[] sorted = values.clone();
+    Arrays.sort(sorted, new Comparator<ContentValues>() {
+      public int compare(ContentValues a, ContentValues b) {
+        int aStart = a.getAsInteger(Datapoint.TS_START);
+        int bStart = b.getAsInteger(Datapoint.TS_START);
+        return aStart < bStart ? -1 : (aStart == bStart ? 0 : 1);
+      }
+    });
+
+    HashMap<Long, Integer> earliest = new HashMap<Long, Integer>();
+    int nInserts = 0;
+    SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+    LockUtil.waitForLock(mLock);
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < sorted.length; i++) {
+        ContentValues datapoint = new ContentValues(sorted[i]);
+        Long timeSeriesId = datapoint.getAsLong(Datapoint.TIMESERIES_ID);
+        int tsStart = datapoint.getAsInteger(Datapoint.TS_START);
+        double value = datapoint.getAsDouble(Datapoint.VALUE);
+        int entries = datapoint.getAsInteger(Datapoint.ENTRIES);
+
+        setBaseContentValues(datapoint, tsStart, value, entries);
+        if (db.insert(Datapoint.TABLE_NAME, null, datapoint) == -1)
+          throw new Exception("bulkInsert: couldn't insert datapoint");
+
+        if (earliest.containsKey(timeSeriesId) == false)
+          earliest.put(timeSeriesId, Integer.valueOf(tsStart));
+        nInserts++;
+      }
+
+      Iterator<Long> iterator = earliest.keySet().iterator();
+      while (iterator.hasNext()) {
+        Long timeSeriesId = iterator.next();
+        int tsStart = earliest.get(timeSeriesId).intValue();
+        updateStats(db, timeSeriesId, tsStart, Integer.MAX_VALUE);
+        updateFormulaData(db, timeSeriesId, tsStart, null);
+      }
+
+      db.setTransactionSuccessful();
+    } catch (Exception e) {
+      Log.v(TAG, e.getMessage());
+      nInserts = 0;
+    } finally {
+      db.endTransaction();
+      LockUtil.unlock(mLock);
+    }
+
+    // A batch can hold datapoints for several series, so every series that
+    // got one is notified, not just the one in the request's URI.
+    if (nInserts > 0) {
+      Iterator<Long> iterator = earliest.keySet().iterator();
+      while (iterator.hasNext()) {
+        Uri seriesUri = ContentUris.withAppendedId(
+            TimeSeriesData.TimeSeries.CONTENT_URI, iterator.next()).buildUpon()
+            .appendPath("datapoints").build();
+        getContext().getContentResolver().notifyChange(seriesUri, null);
+      }
+    }
+
+    return nInserts;
+  }
 
   // TODO: move constant strings to defined values
   private HashMap<String, String> fetchProjectionMap(String aggregation) {
@@ -1501,28 +1400,13 @@ public class TimeSeriesProvider extends ContentProvider {
           if (values.containsKey(Datapoint.ENTRIES))
             newEntries = values.getAsInteger(Datapoint.ENTRIES);
           
-          // fetch the smoothing and history parameters of the timeseries
-          Uri timeseriesParams = ContentUris.withAppendedId(
-              TimeSeries.CONTENT_URI, tsId);
-          c = query(timeseriesParams, 
-              new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY,
-              TimeSeries.RECORDING_DATAPOINT_ID }, 
-              null, null, null);
-          c.moveToFirst();
-          double smoothing = TimeSeries.getSmoothing(c);
-          int history = TimeSeries.getHistory(c);
-          long recordingDatapointId = TimeSeries.getRecordingDatapointId(c);
-          c.close();
 
-          setContentValues(db, values, tsId, dpId, recordingDatapointId, 
-              newStart, newValue, newEntries, smoothing, history);
+          setBaseContentValues(values, newStart, newValue, newEntries);
 
           count = db.update(Datapoint.TABLE_NAME, values, Datapoint._ID + "=" + datapointId
               + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
               whereArgs);
                     
-          updateAggregations(db, tsId, oldStart, -oldValue, -oldEntries);
-          updateAggregations(db, tsId, newStart, newValue, newEntries);      
           updateStats(db, tsId, oldStart < newStart ? oldStart : newStart, 
               Integer.MAX_VALUE);
           updateFormulaData(db, tsId, oldStart < newStart ? oldStart : newStart, null);
@@ -1613,7 +1497,6 @@ public class TimeSeriesProvider extends ContentProvider {
               + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
               whereArgs);
                     
-          updateAggregations(db, tsId, oldStart, -oldValue, -oldEntries);
           updateStats(db, tsId, oldStart, Integer.MAX_VALUE);
           updateFormulaData(db, tsId, oldStart, null);
 
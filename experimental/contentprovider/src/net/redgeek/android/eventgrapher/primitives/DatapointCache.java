@@ -118,7 +118,7 @@ public class DatapointCache {
     Builder builder = ContentUris.withAppendedId(
         TimeSeriesData.TimeSeries.CONTENT_URI, catId).buildUpon()
         .appendPath("recent").appendPath(""+nItems);
-    if (TextUtils.isEmpty(aggregation))
+    if (TextUtils.isEmpty(aggregation) == false)
       builder.appendPath(aggregation);
     
     Uri uri = builder.build();
@@ -274,7 +274,7 @@ public class DatapointCache {
     Builder builder = ContentUris.withAppendedId(
         TimeSeriesData.TimeSeries.CONTENT_URI, catId).buildUpon()
         .appendPath("range").appendPath(""+start).appendPath(""+end);
-    if (TextUtils.isEmpty(aggregation))
+    if (TextUtils.isEmpty(aggregation) == false)
       builder.appendPath(aggregation);
     
     Uri uri = builder.build();
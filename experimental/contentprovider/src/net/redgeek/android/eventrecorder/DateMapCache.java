@@ -29,6 +29,7 @@ import android.net.Uri;
 
 public class DateMapCache {
   private Calendar mCal;
+  private PeriodMath mPeriods;
   private DateMapCacheEntry[] mSecToEntry;
   private TreeMap<Integer, ArrayList<DateMapCacheEntry>> mYearToEntry;
   
@@ -71,6 +72,7 @@ public class DateMapCache {
   
   public DateMapCache() {
     mCal = Calendar.getInstance();
+    mPeriods = new PeriodMath();
     mYearToEntry = new TreeMap<Integer, ArrayList<DateMapCacheEntry>>();
   }
   
@@ -175,73 +177,22 @@ public class DateMapCache {
     return d;
   }
   
+  // The period boundaries don't need the date map: they're computed
+  // arithmetically for any date, so there's no year limit and no walking
+  // month by month for quarters and years.
   public int secondsOfPeriodStart(int seconds, int period) {
-    int secs;
-    int nPeriods = 0;
-    DateMapCacheEntry entry;
-
-    entry = getEntry(seconds, true);
-    secs = entry.mSeconds;
-    
-    if (entry.mSeconds == seconds || period == (MONTH_MS / SECOND_MS))
-      return secs;
-
-    if (period < (WEEK_MS / SECOND_MS)) {
-      secs += period * ((seconds - secs) / period);
-    }
-    else if (period == (WEEK_MS / SECOND_MS)) {
-      // get the DOW of the first day of the month, and subtract out the 
-      // seconds from then until the start of the week from the last month:
-      secs = (int) ((entry.mSeconds) - ((DAY_MS / SECOND_MS) * (entry.mDOW - 1)));
-      if (seconds - period >= entry.mSeconds) {
-        // start of week is in the same month,
-        // advance until we get to the week before this one:
-        secs += period * ((seconds - secs) / period);
-      }
-    }
-    else if (period == (QUARTER_MS / SECOND_MS)) {
-      while (!(entry.mMonth == 0 || entry.mMonth == 3 
-          || entry.mMonth == 6 || entry.mMonth == 9)) {
-        entry = getEntry(entry.mSeconds - 1, true);        
-      }
-      secs = entry.mSeconds;
-    }
-    else { // YEAR_MS / SECOND_MS
-      while (entry.mMonth != 0) {
-        entry = getEntry(entry.mSeconds - 1, true);        
-      }
-      secs = entry.mSeconds;
-    }
-
-    return secs;
+    long start = mPeriods.periodStart((long) seconds * SECOND_MS,
+        (long) period * SECOND_MS);
+    return (int) (start / SECOND_MS);
   }
-  
-  public int secondsOfPeriodEnd(int seconds, int period) {
-    DateMapCacheEntry entry;
-    int secs = secondsOfPeriodStart(seconds, period);
 
-    if (period < (MONTH_MS / SECOND_MS)) {
-      secs = secs + period - 1;
-    } else if (period == (MONTH_MS / SECOND_MS)) {
-      entry = getEntry(seconds + 1, false);
-      secs = entry.mSeconds - 1;
-    } else if (period == (QUARTER_MS / SECOND_MS)) {
-      entry = getEntry(seconds + 1, false);
-      while (!(entry.mMonth == 0 || entry.mMonth == 3 || entry.mMonth == 6 || entry.mMonth == 9)) {
-        entry = getEntry(entry.mSeconds + 1, false);
-      }
-      secs = entry.mSeconds - 1;
-    } else { // YEAR_MS / SECOND_MS
-      entry = getEntry(seconds + 1, false);
-      while (entry.mMonth != 0) {
-        entry = getEntry(entry.mSeconds + 1, false);
-      }
-      secs = entry.mSeconds - 1;
-    }
-      
-    return secs;
+  public int secondsOfPeriodEnd(int seconds, int period) {
+    long end = mPeriods.nextPeriodStart((long) seconds * SECOND_MS,
+        (long) period * SECOND_MS);
+    return (int) (end / SECOND_MS) - 1;
   }
 
+
   public void populateCache(Context ctx) {
     DateMapCacheEntry entry = null;
 
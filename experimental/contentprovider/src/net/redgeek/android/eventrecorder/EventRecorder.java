@@ -72,6 +72,9 @@ public class EventRecorder extends Service {
             || action.equals(Intent.ACTION_TIME_TICK)
             || action.equals(Intent.ACTION_TIME_CHANGED)) {
           boolean hourChanged = true;
+          // the period boundaries are in the time zone the cache was made in
+          if (action.equals(Intent.ACTION_TIMEZONE_CHANGED))
+            mDateMap = new DateMapCache();
           mCal.setTimeInMillis(System.currentTimeMillis() / DateMapCache.SECOND_MS);
 
           // if it's just a time tick (minute), don't try to update unless the
@@ -103,7 +106,6 @@ public class EventRecorder extends Service {
 
     mLastHr = mCal.get(Calendar.HOUR_OF_DAY);
 
-    mDateMap.populateCache(this);
     zerofill();
   }
 
@@ -448,7 +450,8 @@ public class EventRecorder extends Service {
         values.put(Datapoint.TIMESERIES_ID, timeSeriesId);
         values.put(Datapoint.TS_START, periodStart);
         if (type.equals(TimeSeries.TYPE_RANGE))
-          values.put(Datapoint.TS_END, periodStart + period - 1);
+          values.put(Datapoint.TS_END, mDateMap.secondsOfPeriodEnd(periodStart,
+              period));
         else
           values.put(Datapoint.TS_END, periodStart);
         values.put(Datapoint.VALUE, 0);
@@ -457,24 +460,30 @@ public class EventRecorder extends Service {
         getContentResolver().insert(uri, values);
       } else {
         int tsEnd = Datapoint.getTsEnd(dpCur);        
-        int secs = mDateMap.secondsOfPeriodStart(tsEnd + period, period);
+        int secs = mDateMap.secondsOfPeriodEnd(tsEnd, period) + 1;
 
+        ArrayList<ContentValues> fills = new ArrayList<ContentValues>();
         while (true) {
           if (secs + period >= now)
             break;
 
-          values.clear();
-          values.put(Datapoint.TIMESERIES_ID, timeSeriesId);
-          values.put(Datapoint.TS_START, secs);
+          ContentValues fill = new ContentValues();
+          fill.put(Datapoint.TIMESERIES_ID, timeSeriesId);
+          fill.put(Datapoint.TS_START, secs);
           if (type.equals(TimeSeries.TYPE_RANGE))         
-            values.put(Datapoint.TS_END, secs + period - 1);
+            fill.put(Datapoint.TS_END,
+                mDateMap.secondsOfPeriodEnd(secs, period));
           else
-            values.put(Datapoint.TS_END, secs);
-          values.put(Datapoint.VALUE, 0);
-          values.put(Datapoint.ENTRIES, 1);
+            fill.put(Datapoint.TS_END, secs);
+          fill.put(Datapoint.VALUE, 0);
+          fill.put(Datapoint.ENTRIES, 1);
 
-          getContentResolver().insert(uri, values);
-          secs = mDateMap.secondsOfPeriodStart(secs + period, period);
+          fills.add(fill);
+          secs = mDateMap.secondsOfPeriodEnd(secs, period) + 1;
+        }
+        if (fills.size() > 0) {
+          getContentResolver().bulkInsert(uri,
+              fills.toArray(new ContentValues[fills.size()]));
         }
       }
       dpCur.close();
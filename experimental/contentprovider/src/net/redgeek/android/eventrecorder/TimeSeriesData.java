@@ -20,7 +20,6 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.TextUtils;
 
 public class TimeSeriesData {
   public static final String AUTHORITY = "net.redgeek.android.eventrecorder";
@@ -143,24 +142,16 @@ public class TimeSeriesData {
     };
 
     /**
-     * The table creation sql
-     * We create tables for each aggregation level.
+     * The table creation sql. This only holds the raw datapoints, the
+     * aggregations by period are kept in the {@link Rollup} tables.
      */
     
     /* for raw (un-aggregated) data:
       -- value => instantaneous value
       -- entries => instantaneous value
       -- trend => trend[n-1] + (smoothing * ((value[n-1] / entries) - trend[n-1])) || value
-      -- sumsqr => sumsqr[n-1] + value^2 || value^2
-      -- stddev => sqrt(sumsqr / entries - (mean)^2) || 0
-       for aggregated data
-      -- value, entries, trend, stddev are instantaneous
-      -- sum_* are monotonically increasing
-      -- value => value[n-1] + value || value
-      -- entries => entries[n-1] + 1 || entries
-      -- sumsqr => sumsqr[n-1] + row.value^2 || row.value^2
-      -- trend => trend[n-1] + (smoothing * ((value[n-1] / entries) - trend[n-1])) || avg(trend)
-      -- stddev => sqrt(period.sumsqr / count(value) - (mean)^2)
+      -- sum_* => sum_*[n-1] + row.* || row.*
+      -- stddev => sqrt(sumsqr / entries - (mean)^2) over the last history rows || 0
     */
     public static final String TABLE_CREATE = "create table "
         + TABLE_NAME + " ( "
@@ -174,57 +165,7 @@ public class TimeSeriesData {
         + Datapoint.STDDEV + " double not null default 0.0, "
         + Datapoint.SUM_ENTRIES + " integer not null default 0, "
         + Datapoint.SUM_VALUE + " double not null default 0.0, "
-        + Datapoint.SUM_VALUE_SQR + " double not null default 0.0, "
-
-        + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[0] + " integer key not null default 0, "
-        + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[0] + " integer key not null default 0, "
-        + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[0] + " double not null default 0.0, "
-        + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[0] + " integer not null default 0.0, "
-        + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[0] + " double not null default 0.0, "
-        + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[0] + " double not null default 0.0, "
-        + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[0] + " integer not null default 0.0, "
-        + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[0] + " double not null default 0.0, "
-        + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[0] + " double not null default 0.0, "
-
-        + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[1] + " integer key not null default 0, "
-        + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[1] + " integer key not null default 0, "
-        + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[1] + " double not null default 0.0, "
-        + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[1] + " integer not null default 0.0, "
-        + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[1] + " double not null default 0.0, "
-        + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[1] + " double not null default 0.0, "
-        + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[1] + " integer not null default 0.0, "
-        + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[1] + " double not null default 0.0, "
-        + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[1] + " double not null default 0.0, "
-
-        + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[2] + " integer key not null default 0, "
-        + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[2] + " integer key not null default 0, "
-        + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[2] + " double not null default 0.0, "
-        + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[2] + " integer not null default 0.0, "
-        + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[2] + " double not null default 0.0, "
-        + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[2] + " double not null default 0.0, "
-        + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[2] + " integer not null default 0.0, "
-        + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[2] + " double not null default 0.0, "
-        + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[2] + " double not null default 0.0, "
-
-        + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[3] + " integer key not null default 0, "
-        + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[3] + " integer key not null default 0, "
-        + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[3] + " double not null default 0.0, "
-        + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[3] + " integer not null default 0.0, "
-        + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[3] + " double not null default 0.0, "
-        + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[3] + " double not null default 0.0, "
-        + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[3] + " integer not null default 0.0, "
-        + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[3] + " double not null default 0.0, "
-        + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[3] + " double not null default 0.0, "
-
-        + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[4] + " integer key not null default 0, "
-        + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[4] + " integer key not null default 0, "
-        + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[4] + " double not null default 0.0, "
-        + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[4] + " integer not null default 0.0, "
-        + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[4] + " double not null default 0.0, "
-        + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[4] + " double not null default 0.0, "
-        + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[4] + " integer not null default 0.0, "
-        + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[4] + " double not null default 0.0, "
-        + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[4] + " double not null default 0.0 "
+        + Datapoint.SUM_VALUE_SQR + " double not null default 0.0 "
         + ");";
         
     /* since we have so many columns, and getColumnIndexOrThrow and appendColumn
@@ -244,57 +185,7 @@ public class TimeSeriesData {
       + Datapoint.STDDEV + ", "
       + Datapoint.SUM_ENTRIES + ", "
       + Datapoint.SUM_VALUE + ", "
-      + Datapoint.SUM_VALUE_SQR + ", "
-
-      + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[0] + ", "
-      + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[0] + ", "
-
-      + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[1] + ", "
-      + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[1] + ", "
-
-      + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[2] + ", "
-      + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[2] + ", "
-
-      + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[3] + ", "
-      + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[3] + ", "
-
-      + Datapoint.TS_START + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.TS_END + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.VALUE + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.ENTRIES + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.TREND + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.STDDEV + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.SUM_ENTRIES + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.SUM_VALUE + "_" + AGGREGATE_SUFFIX[4] + ", "
-      + Datapoint.SUM_VALUE_SQR + "_" + AGGREGATE_SUFFIX[4] + " ";
+      + Datapoint.SUM_VALUE_SQR + " ";
     
     public static final int DATAPOINT_ID_IDX                    =  0;
     public static final int DATAPOINT_TIMESERIES_ID_IDX         =  1;
@@ -307,56 +198,6 @@ public class TimeSeriesData {
     public static final int DATAPOINT_SUM_ENTRIES_IDX           =  8;
     public static final int DATAPOINT_SUM_VALUE_IDX             =  9;
     public static final int DATAPOINT_SUM_VALUE_SQR_IDX         = 10;
-    
-    public static final int DATAPOINT_TS_START_DAY_IDX          = 11;
-    public static final int DATAPOINT_TS_END_DAY_IDX            = 12;
-    public static final int DATAPOINT_VALUE_DAY_IDX             = 13;
-    public static final int DATAPOINT_ENTRIES_DAY_IDX           = 14;
-    public static final int DATAPOINT_TREND_DAY_IDX             = 15;
-    public static final int DATAPOINT_STDDEV_DAY_IDX            = 16;
-    public static final int DATAPOINT_SUM_ENTRIES_DAY_IDX       = 17;
-    public static final int DATAPOINT_SUM_VALUE_DAY_IDX         = 18;
-    public static final int DATAPOINT_SUM_VALUE_SQR_DAY_IDX     = 19;
-
-    public static final int DATAPOINT_TS_START_WEEK_IDX         = 20;
-    public static final int DATAPOINT_TS_END_WEEK_IDX           = 21;
-    public static final int DATAPOINT_VALUE_WEEK_IDX            = 22;
-    public static final int DATAPOINT_ENTRIES_WEEK_IDX          = 23;
-    public static final int DATAPOINT_TREND_WEEK_IDX            = 24;
-    public static final int DATAPOINT_STDDEV_WEEK_IDX           = 25;
-    public static final int DATAPOINT_SUM_ENTRIES_WEEK_IDX      = 26;
-    public static final int DATAPOINT_SUM_VALUE_WEEK_IDX        = 27;
-    public static final int DATAPOINT_SUM_VALUE_SQR_WEEK_IDX    = 28;
-
-    public static final int DATAPOINT_TS_START_MONTH_IDX        = 29;
-    public static final int DATAPOINT_TS_END_MONTH_IDX          = 30;
-    public static final int DATAPOINT_VALUE_MONTH_IDX           = 31;
-    public static final int DATAPOINT_ENTRIES_MONTH_IDX         = 32;
-    public static final int DATAPOINT_TREND_MONTH_IDX           = 33;
-    public static final int DATAPOINT_STDDEV_MONTH_IDX          = 34;
-    public static final int DATAPOINT_SUM_ENTRIES_MONTH_IDX     = 35;
-    public static final int DATAPOINT_SUM_VALUE_MONTH_IDX       = 36;
-    public static final int DATAPOINT_SUM_VALUE_SQR_MONTH_IDX   = 37;
-
-    public static final int DATAPOINT_TS_START_QUARTER_IDX      = 38;
-    public static final int DATAPOINT_TS_END_QUARTER_IDX        = 39;
-    public static final int DATAPOINT_VALUE_QUARTER_IDX         = 40;
-    public static final int DATAPOINT_ENTRIES_QUARTER_IDX       = 41;
-    public static final int DATAPOINT_TREND_QUARTER_IDX         = 42;
-    public static final int DATAPOINT_STDDEV_QUARTER_IDX        = 43;
-    public static final int DATAPOINT_SUM_ENTRIES_QUARTER_IDX   = 44;
-    public static final int DATAPOINT_SUM_VALUE_QUARTER_IDX     = 45;
-    public static final int DATAPOINT_SUM_VALUE_SQR_QUARTER_IDX = 46;
-
-    public static final int DATAPOINT_TS_START_YEAR_IDX         = 47;
-    public static final int DATAPOINT_TS_END_YEAR_IDX           = 48;
-    public static final int DATAPOINT_VALUE_YEAR_IDX            = 49;
-    public static final int DATAPOINT_ENTRIES_YEAR_IDX          = 50;
-    public static final int DATAPOINT_TREND_YEAR_IDX            = 51;
-    public static final int DATAPOINT_STDDEV_YEAR_IDX           = 52;
-    public static final int DATAPOINT_SUM_ENTRIES_YEAR_IDX      = 53;
-    public static final int DATAPOINT_SUM_VALUE_YEAR_IDX        = 54;
-    public static final int DATAPOINT_SUM_VALUE_SQR_YEAR_IDX    = 55;
 
 
     
@@ -380,29 +221,8 @@ public class TimeSeriesData {
       return c.getDouble(c.getColumnIndexOrThrow(VALUE));
     }
 
-    public static double getValue(Cursor c, String suffix) {
-      return c.getDouble(c.getColumnIndexOrThrow(VALUE + "_" + suffix));
-    }
     
-    public static double getValueIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getDouble(DATAPOINT_VALUE_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getDouble(DATAPOINT_VALUE_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getDouble(DATAPOINT_VALUE_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getDouble(DATAPOINT_VALUE_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getDouble(DATAPOINT_VALUE_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getDouble(DATAPOINT_VALUE_YEAR_IDX);        
-      }
+    public static double getValueIdx(Cursor c) {
       return c.getDouble(DATAPOINT_VALUE_IDX);
     }
 
@@ -410,29 +230,8 @@ public class TimeSeriesData {
       return c.getInt(c.getColumnIndexOrThrow(ENTRIES));
     }
 
-    public static int getEntries(Cursor c, String suffix) {
-      return c.getInt(c.getColumnIndexOrThrow(ENTRIES + "_" + suffix));
-    }
 
-    public static int getEntriesIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getInt(DATAPOINT_ENTRIES_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getInt(DATAPOINT_ENTRIES_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getInt(DATAPOINT_ENTRIES_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getInt(DATAPOINT_ENTRIES_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getInt(DATAPOINT_ENTRIES_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getInt(DATAPOINT_ENTRIES_YEAR_IDX);        
-      }
+    public static int getEntriesIdx(Cursor c) {
       return c.getInt(DATAPOINT_ENTRIES_IDX);
     }
 
@@ -440,29 +239,8 @@ public class TimeSeriesData {
       return c.getInt(c.getColumnIndexOrThrow(TS_START));
     }
 
-    public static int getTsStart(Cursor c, String suffix) {
-      return c.getInt(c.getColumnIndexOrThrow(TS_START + "_" + suffix));
-    }
     
-    public static int getTsStartIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getInt(DATAPOINT_TS_START_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getInt(DATAPOINT_TS_START_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getInt(DATAPOINT_TS_START_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getInt(DATAPOINT_TS_START_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getInt(DATAPOINT_TS_START_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getInt(DATAPOINT_TS_START_YEAR_IDX);        
-      }
+    public static int getTsStartIdx(Cursor c) {
       return c.getInt(DATAPOINT_TS_START_IDX);
     }
 
@@ -470,29 +248,8 @@ public class TimeSeriesData {
       return c.getInt(c.getColumnIndexOrThrow(TS_END));
     }
 
-    public static int getTsEnd(Cursor c, String suffix) {
-      return c.getInt(c.getColumnIndexOrThrow(TS_END + "_" + suffix));
-    }
 
-    public static int getTsEndIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getInt(DATAPOINT_TS_END_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getInt(DATAPOINT_TS_END_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getInt(DATAPOINT_TS_END_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getInt(DATAPOINT_TS_END_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getInt(DATAPOINT_TS_END_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getInt(DATAPOINT_TS_END_YEAR_IDX);        
-      }
+    public static int getTsEndIdx(Cursor c) {
       return c.getInt(DATAPOINT_TS_END_IDX);
     }
 
@@ -500,29 +257,8 @@ public class TimeSeriesData {
       return c.getDouble(c.getColumnIndexOrThrow(TREND));
     }
 
-    public static double getTrend(Cursor c, String suffix) {
-      return c.getDouble(c.getColumnIndexOrThrow(TREND + "_" + suffix));
-    }
 
-    public static double getTrendIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getDouble(DATAPOINT_TREND_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getDouble(DATAPOINT_TREND_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getDouble(DATAPOINT_TREND_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getDouble(DATAPOINT_TREND_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getDouble(DATAPOINT_TREND_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getDouble(DATAPOINT_TREND_YEAR_IDX);        
-      }
+    public static double getTrendIdx(Cursor c) {
       return c.getDouble(DATAPOINT_TREND_IDX);
     }
 
@@ -530,29 +266,8 @@ public class TimeSeriesData {
       return c.getDouble(c.getColumnIndexOrThrow(STDDEV));
     }
 
-    public static double getStdDev(Cursor c, String suffix) {
-      return c.getDouble(c.getColumnIndexOrThrow(STDDEV + "_" + suffix));
-    }
 
-    public static double getStdDevIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getDouble(DATAPOINT_STDDEV_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getDouble(DATAPOINT_STDDEV_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getDouble(DATAPOINT_STDDEV_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getDouble(DATAPOINT_STDDEV_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getDouble(DATAPOINT_STDDEV_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getDouble(DATAPOINT_STDDEV_YEAR_IDX);        
-      }
+    public static double getStdDevIdx(Cursor c) {
       return c.getDouble(DATAPOINT_STDDEV_IDX);
     }
 
@@ -560,29 +275,8 @@ public class TimeSeriesData {
       return c.getInt(c.getColumnIndexOrThrow(SUM_ENTRIES));
     }
 
-    public static int getSumEntries(Cursor c, String suffix) {
-      return c.getInt(c.getColumnIndexOrThrow(SUM_ENTRIES + "_" + suffix));
-    }
     
-    public static int getSumEntriesIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getInt(DATAPOINT_SUM_ENTRIES_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getInt(DATAPOINT_SUM_ENTRIES_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getInt(DATAPOINT_SUM_ENTRIES_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getInt(DATAPOINT_SUM_ENTRIES_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getInt(DATAPOINT_SUM_ENTRIES_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getInt(DATAPOINT_SUM_ENTRIES_YEAR_IDX);        
-      }
+    public static int getSumEntriesIdx(Cursor c) {
       return c.getInt(DATAPOINT_SUM_ENTRIES_IDX);
     }
 
@@ -590,29 +284,8 @@ public class TimeSeriesData {
       return c.getDouble(c.getColumnIndexOrThrow(SUM_VALUE));
     }
 
-    public static double getSumValue(Cursor c, String suffix) {
-      return c.getDouble(c.getColumnIndexOrThrow(SUM_VALUE + "_" + suffix));
-    }
 
-    public static double getSumValueIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_YEAR_IDX);        
-      }
+    public static double getSumValueIdx(Cursor c) {
       return c.getDouble(DATAPOINT_SUM_VALUE_IDX);
     }
 
@@ -620,29 +293,8 @@ public class TimeSeriesData {
       return c.getDouble(c.getColumnIndexOrThrow(SUM_VALUE_SQR));
     }
 
-    public static double getSumValueSqr(Cursor c, String suffix) {
-      return c.getDouble(c.getColumnIndexOrThrow(SUM_VALUE_SQR + "_" + suffix));
-    }
 
-    public static double getSumValueSqrIdx(Cursor c, String suffix) {
-      if (TextUtils.isEmpty(suffix)) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_SQR_IDX);
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[0])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_SQR_DAY_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[1])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_SQR_WEEK_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[2])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_SQR_MONTH_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[3])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_SQR_QUARTER_IDX);        
-      }
-      else if(suffix.equals(AGGREGATE_SUFFIX[4])) {
-        return c.getDouble(DATAPOINT_SUM_VALUE_SQR_YEAR_IDX);        
-      }
+    public static double getSumValueSqrIdx(Cursor c) {
       return c.getDouble(DATAPOINT_SUM_VALUE_SQR_IDX);
     }
 
@@ -658,72 +310,146 @@ public class TimeSeriesData {
       cv.put(VALUE, value);
     }
 
-    public static void setValue(ContentValues cv, String suffix, double value) {
-      cv.put(VALUE + "_" + suffix, value);
-    }
-
     public static void setEntries(ContentValues cv, int entries) {
       cv.put(ENTRIES, entries);
     }
 
-    public static void setEntries(ContentValues cv, String suffix, int entries) {
-      cv.put(ENTRIES + "_" + suffix, entries);
-    }
-
     public static void setTsStart(ContentValues cv, int tsStart) {
       cv.put(TS_START, tsStart);
     }
 
-    public static void setTsStart(ContentValues cv, String suffix, int tsStart) {
-      cv.put(TS_START + "_" + suffix, tsStart);
-    }
-
     public static void setTsEnd(ContentValues cv, int tsEnd) {
       cv.put(TS_END, tsEnd);
     }
 
-    public static void setTsEnd(ContentValues cv, String suffix, int tsEnd) {
-      cv.put(TS_END + "_" + suffix, tsEnd);
-    }
-
     public static void setTrend(ContentValues cv, double trend) {
       cv.put(TREND, trend);
     }
 
-    public static void setTrend(ContentValues cv, String suffix, double trend) {
-      cv.put(TREND + "_" + suffix, trend);
-    }
-
     public static void setStdDev(ContentValues cv, double sumSqr) {
       cv.put(STDDEV, sumSqr);
     }
 
-    public static void setStdDev(ContentValues cv, String suffix, double sumSqr) {
-      cv.put(STDDEV + "_" + suffix, sumSqr);
-    }
-
     public static void setSumEntries(ContentValues cv, int entries) {
       cv.put(SUM_ENTRIES, entries);
     }
 
-    public static void setSumEntries(ContentValues cv, String suffix, int entries) {
-      cv.put(SUM_ENTRIES + "_" + suffix, entries);
-    }
     
     public static void setSumValue(ContentValues cv, double sumValue) {
       cv.put(SUM_VALUE, sumValue);
     }
 
-    public static void setSumValue(ContentValues cv, String suffix, double sumValue) {
-      cv.put(SUM_VALUE + "_" + suffix, sumValue);
-    }
     
     public static void setSumValueSqr(ContentValues cv, double sumValueSqr) {
       cv.put(SUM_VALUE_SQR, sumValueSqr);
     }
 
-    public static void setSumValueSqr(ContentValues cv, String suffix, double sumValueSqr) {
-      cv.put(SUM_VALUE_SQR + "_" + suffix, sumValueSqr);
+  }
+
+  /**
+   * The datapoints of a timeseries aggregated by period, with one table per
+   * period in {@link Datapoint#AGGREGATE_SUFFIX} and one row per timeseries
+   * and period that has any datapoints. The value, entries and sum of squares
+   * are adjusted as datapoints are added and removed, the trend and stddev
+   * are those of the series of periods.
+   */
+  public static final class Rollup implements BaseColumns {
+    private Rollup() {
+    }
+
+    /**
+     * The prefix of the names of the sql tables, which are suffixed with
+     * one of {@link Datapoint#AGGREGATE_SUFFIX}.
+     */
+    public static final String TABLE_PREFIX = "rollup_";
+
+    /**
+     * The default sort order for these tables
+     */
+    public static final String DEFAULT_SORT_ORDER = "ts_start ASC";
+
+    public static final String _ID = "_id";
+
+    /**
+     * The _id of the timeseries this period belongs to
+     * <p>
+     * Type: LONG
+     * </p>
+     */
+    public static final String TIMESERIES_ID = Datapoint.TIMESERIES_ID;
+
+    /**
+     * The start and end timestamps of the period
+     * <p>
+     * Type: INTEGER, seconds since epoch (System.currentTimeInMillis() / 1000)
+     * </p>
+     */
+    public static final String TS_START = Datapoint.TS_START;
+    public static final String TS_END = Datapoint.TS_END;
+
+    /**
+     * The sum of the values of the datapoints in the period
+     * <p>
+     * Type: DOUBLE
+     * </p>
+     */
+    public static final String VALUE = Datapoint.VALUE;
+
+    /**
+     * The sum of the entries of the datapoints in the period
+     * <p>
+     * Type: INTEGER
+     * </p>
+     */
+    public static final String ENTRIES = Datapoint.ENTRIES;
+
+    /**
+     * The sum of the squares of the values of the datapoints in the period
+     * <p>
+     * Type: DOUBLE
+     * </p>
+     */
+    public static final String VALUE_SQR = "value_sqr";
+
+    /**
+     * The trend of the period values, and the standard deviation of the
+     * datapoint values over the last history periods.
+     * <p>
+     * Type: DOUBLE
+     * </p>
+     */
+    public static final String TREND = Datapoint.TREND;
+    public static final String STDDEV = Datapoint.STDDEV;
+
+    public static String tableName(String suffix) {
+      return TABLE_PREFIX + suffix;
+    }
+
+    /**
+     * Returns the name of the table for <code>suffix</code>, or null if it
+     * isn't one of {@link Datapoint#AGGREGATE_SUFFIX}.
+     */
+    public static String lookupTableName(String suffix) {
+      for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++) {
+        if (Datapoint.AGGREGATE_SUFFIX[i].equals(suffix))
+          return tableName(suffix);
+      }
+      return null;
+    }
+
+    public static String tableCreate(String suffix) {
+      return "create table " + tableName(suffix) + " ( "
+          + _ID + " integer primary key autoincrement, "
+          + TIMESERIES_ID + " integer not null, "
+          + TS_START + " integer not null, "
+          + TS_END + " integer not null, "
+          + VALUE + " double not null default 0.0, "
+          + ENTRIES + " integer not null default 0, "
+          + VALUE_SQR + " double not null default 0.0, "
+          + TREND + " double not null default 0.0, "
+          + STDDEV + " double not null default 0.0, "
+          + "unique (" + TIMESERIES_ID + ", " + TS_START + ") "
+          + ");";
     }
   }
 
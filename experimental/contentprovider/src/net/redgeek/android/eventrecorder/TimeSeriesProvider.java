@@ -25,6 +25,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Debug;
 import android.text.TextUtils;
@@ -33,14 +34,18 @@ import android.util.Log;
 import net.redgeek.android.eventrecorder.TimeSeriesData.Datapoint;
 import net.redgeek.android.eventrecorder.TimeSeriesData.DateMap;
 import net.redgeek.android.eventrecorder.TimeSeriesData.FormulaCache;
+import net.redgeek.android.eventrecorder.TimeSeriesData.Rollup;
 import net.redgeek.android.eventrecorder.TimeSeriesData.TimeSeries;
 import net.redgeek.android.eventrecorder.synthetic.Formula;
 import net.redgeek.android.eventrecorder.synthetic.SeriesData;
 import net.redgeek.android.eventrecorder.synthetic.SeriesData.Datum;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -49,7 +54,7 @@ import java.util.concurrent.locks.ReentrantLock;
 public class TimeSeriesProvider extends ContentProvider {
   private static final String TAG = "TimeSeriesProvider";
 
-  private static final int DATABASE_VERSION = 1;
+  private static final int DATABASE_VERSION = 2;
 
   private static final int TIMESERIES = 1;
   private static final int TIMESERIES_ID = 2;
@@ -64,12 +69,7 @@ public class TimeSeriesProvider extends ContentProvider {
   private static UriMatcher sURIMatcher;
   private static HashMap<String, String> sTimeSeriesProjection;
   private static HashMap<String, String> sDatapointProjection;
-  private static HashMap<String, String> sDatapointProjectionDay;
-  private static HashMap<String, String> sDatapointProjectionWeek;
-  private static HashMap<String, String> sDatapointProjectionMonth;
-  private static HashMap<String, String> sDatapointProjectionQuarter;
-  private static HashMap<String, String> sDatapointProjectionYear;
-  private static HashMap<String, String> sDatapointProjectionAll;
+  private static HashMap<String, String> sRollupProjection;
   private static HashMap<String, String> sDatemapProjection;
   private DateMapCache mDateMap;
   private Lock mLock;
@@ -129,203 +129,15 @@ public class TimeSeriesProvider extends ContentProvider {
     sDatapointProjection.put(Datapoint.TREND, Datapoint.TREND);
     sDatapointProjection.put(Datapoint.STDDEV, Datapoint.STDDEV);
 
-    sDatapointProjectionDay = new HashMap<String, String>();
-    sDatapointProjectionDay.put(Datapoint._ID, Datapoint._ID);
-    sDatapointProjectionDay.put(Datapoint.TIMESERIES_ID, Datapoint.TIMESERIES_ID);
-    sDatapointProjectionDay.put(Datapoint.VALUE, 
-        Datapoint.VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[0] + " as " + Datapoint.VALUE);
-    sDatapointProjectionDay.put(Datapoint.ENTRIES,
-        Datapoint.ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[0] + " as " + Datapoint.ENTRIES);
-    sDatapointProjectionDay.put(Datapoint.TS_START, 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[0] + " as " + Datapoint.TS_START);
-    sDatapointProjectionDay.put(Datapoint.TS_END, 
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[0] + " as " + Datapoint.TS_END);
-    sDatapointProjectionDay.put(Datapoint.TREND, 
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[0] + " as " + Datapoint.TREND);
-    sDatapointProjectionDay.put(Datapoint.STDDEV, 
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[0] + " as " + Datapoint.STDDEV);
-
-    sDatapointProjectionWeek = new HashMap<String, String>();
-    sDatapointProjectionWeek.put(Datapoint._ID, Datapoint._ID);
-    sDatapointProjectionWeek.put(Datapoint.TIMESERIES_ID, Datapoint.TIMESERIES_ID);
-    sDatapointProjectionWeek.put(Datapoint.VALUE, 
-        Datapoint.VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[1] + " as " + Datapoint.VALUE);
-    sDatapointProjectionWeek.put(Datapoint.ENTRIES,
-        Datapoint.ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[1] + " as " + Datapoint.ENTRIES);
-    sDatapointProjectionWeek.put(Datapoint.TS_START, 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[1] + " as " + Datapoint.TS_START);
-    sDatapointProjectionWeek.put(Datapoint.TS_END, 
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[1] + " as " + Datapoint.TS_END);
-    sDatapointProjectionWeek.put(Datapoint.TREND, 
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[1] + " as " + Datapoint.TREND);
-    sDatapointProjectionWeek.put(Datapoint.STDDEV, 
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[1] + " as " + Datapoint.STDDEV);
-
-    sDatapointProjectionMonth = new HashMap<String, String>();
-    sDatapointProjectionMonth.put(Datapoint._ID, Datapoint._ID);
-    sDatapointProjectionMonth.put(Datapoint.TIMESERIES_ID, Datapoint.TIMESERIES_ID);
-    sDatapointProjectionMonth.put(Datapoint.VALUE, 
-        Datapoint.VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[2] + " as " + Datapoint.VALUE);
-    sDatapointProjectionMonth.put(Datapoint.ENTRIES,
-        Datapoint.ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[2] + " as " + Datapoint.ENTRIES);
-    sDatapointProjectionMonth.put(Datapoint.TS_START, 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[2] + " as " + Datapoint.TS_START);
-    sDatapointProjectionMonth.put(Datapoint.TS_END, 
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[2] + " as " + Datapoint.TS_END);
-    sDatapointProjectionMonth.put(Datapoint.TREND, 
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[2] + " as " + Datapoint.TREND);
-    sDatapointProjectionMonth.put(Datapoint.STDDEV, 
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[2] + " as " + Datapoint.STDDEV);
-
-    sDatapointProjectionQuarter = new HashMap<String, String>();
-    sDatapointProjectionQuarter.put(Datapoint._ID, Datapoint._ID);
-    sDatapointProjectionQuarter.put(Datapoint.TIMESERIES_ID, Datapoint.TIMESERIES_ID);
-    sDatapointProjectionQuarter.put(Datapoint.VALUE, 
-        Datapoint.VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[3] + " as " + Datapoint.VALUE);
-    sDatapointProjectionQuarter.put(Datapoint.ENTRIES,
-        Datapoint.ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[3] + " as " + Datapoint.ENTRIES);
-    sDatapointProjectionQuarter.put(Datapoint.TS_START, 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[3] + " as " + Datapoint.TS_START);
-    sDatapointProjectionQuarter.put(Datapoint.TS_END, 
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[3] + " as " + Datapoint.TS_END);
-    sDatapointProjectionQuarter.put(Datapoint.TREND, 
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[3] + " as " + Datapoint.TREND);
-    sDatapointProjectionQuarter.put(Datapoint.STDDEV, 
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[3] + " as " + Datapoint.STDDEV);
-
-    sDatapointProjectionYear = new HashMap<String, String>();
-    sDatapointProjectionYear.put(Datapoint._ID, Datapoint._ID);
-    sDatapointProjectionYear.put(Datapoint.TIMESERIES_ID, Datapoint.TIMESERIES_ID);
-    sDatapointProjectionYear.put(Datapoint.VALUE, 
-        Datapoint.VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[4] + " as " + Datapoint.VALUE);
-    sDatapointProjectionYear.put(Datapoint.ENTRIES,
-        Datapoint.ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[4] + " as " + Datapoint.ENTRIES);
-    sDatapointProjectionYear.put(Datapoint.TS_START, 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[4] + " as " + Datapoint.TS_START);
-    sDatapointProjectionYear.put(Datapoint.TS_END, 
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[4] + " as " + Datapoint.TS_END);
-    sDatapointProjectionYear.put(Datapoint.TREND, 
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[4] + " as " + Datapoint.TREND);
-    sDatapointProjectionYear.put(Datapoint.STDDEV, 
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[4] + " as " + Datapoint.STDDEV);
-
-    sDatapointProjectionAll = new HashMap<String, String>();
-    sDatapointProjectionAll.put(Datapoint._ID, Datapoint._ID);
-    sDatapointProjectionAll.put(Datapoint.TIMESERIES_ID, Datapoint.TIMESERIES_ID);
-    sDatapointProjectionAll.put(Datapoint.VALUE, Datapoint.VALUE);
-    sDatapointProjectionAll.put(Datapoint.ENTRIES, "1 as " + Datapoint.ENTRIES);
-    sDatapointProjectionAll.put(Datapoint.TS_START, Datapoint.TS_START);
-    sDatapointProjectionAll.put(Datapoint.TS_END, Datapoint.TS_END);
-    sDatapointProjectionAll.put(Datapoint.TREND, Datapoint.TREND);
-    sDatapointProjectionAll.put(Datapoint.STDDEV, Datapoint.STDDEV);
-    sDatapointProjectionAll.put(Datapoint.SUM_VALUE, Datapoint.SUM_VALUE);
-    sDatapointProjectionAll.put(Datapoint.SUM_ENTRIES, Datapoint.SUM_ENTRIES);
-    sDatapointProjectionAll.put(Datapoint.SUM_VALUE_SQR, Datapoint.SUM_VALUE_SQR);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[0], 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[0],
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[0],
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[0],
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[0],
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[0],
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[0],
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[0]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[1], 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[1],
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[1],
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[1],
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[1],
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[1],
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[1],
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[1]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[2], 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[2],
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[2],
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[2],
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[2],
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[2],
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[2],
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[2]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[3], 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[3],
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[3],
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[3],
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[3],
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[3],
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[3],
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[3]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[4], 
-        Datapoint.TS_START + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
-    sDatapointProjectionAll.put(
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[4],
-        Datapoint.TS_END + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
-    sDatapointProjectionAll.put(
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[4],
-        Datapoint.TREND + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
-    sDatapointProjectionAll.put(
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[4],
-        Datapoint.STDDEV + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[4],
-        Datapoint.SUM_ENTRIES + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[4],
-        Datapoint.SUM_VALUE + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
-    sDatapointProjectionAll.put(
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[4],
-        Datapoint.SUM_VALUE_SQR + "_" + Datapoint.AGGREGATE_SUFFIX[4]);
+    sRollupProjection = new HashMap<String, String>();
+    sRollupProjection.put(Rollup._ID, Rollup._ID);
+    sRollupProjection.put(Rollup.TIMESERIES_ID, Rollup.TIMESERIES_ID);
+    sRollupProjection.put(Rollup.VALUE, Rollup.VALUE);
+    sRollupProjection.put(Rollup.ENTRIES, Rollup.ENTRIES);
+    sRollupProjection.put(Rollup.TS_START, Rollup.TS_START);
+    sRollupProjection.put(Rollup.TS_END, Rollup.TS_END);
+    sRollupProjection.put(Rollup.TREND, Rollup.TREND);
+    sRollupProjection.put(Rollup.STDDEV, Rollup.STDDEV);
 
     sDatemapProjection = new HashMap<String, String>();
     sDatemapProjection.put(DateMap._ID, DateMap._ID);
@@ -340,7 +152,6 @@ public class TimeSeriesProvider extends ContentProvider {
     mDbHelper = new DatabaseHelper(getContext());
     mLock = new ReentrantLock();
     mDateMap = new DateMapCache();
-    mDateMap.populateCacheLocalToProvider(mDbHelper.getReadableDatabase());
     return true;
   }
   
@@ -488,13 +299,13 @@ public class TimeSeriesProvider extends ContentProvider {
       c.moveToLast();
       for (int j = 0; j < count; j++) {
         d = new Datum();
-        d.mTsStart = Datapoint.getTsStartIdx(c, null);
+        d.mTsStart = Datapoint.getTsStartIdx(c);
         if (d.mTsStart < ts.mTsEarliest) {
           ts.mTsEarliest = d.mTsStart;
         }
-        d.mTsEnd = Datapoint.getTsEndIdx(c, null);
-        d.mValue = Datapoint.getValueIdx(c, null);
-        int entries = Datapoint.getEntriesIdx(c, null);
+        d.mTsEnd = Datapoint.getTsEndIdx(c);
+        d.mValue = Datapoint.getValueIdx(c);
+        int entries = Datapoint.getEntriesIdx(c);
         if (avg == true) {
           d.mValue /= entries;
         }
@@ -514,10 +325,10 @@ public class TimeSeriesProvider extends ContentProvider {
       c.moveToFirst();
       for (int j = 0; j < count; j++) {
         d = new Datum();
-        d.mTsStart = Datapoint.getTsStartIdx(c, null);
-        d.mTsEnd = Datapoint.getTsEndIdx(c, null);
-        d.mValue = Datapoint.getValueIdx(c, null);
-        int entries = Datapoint.getEntriesIdx(c, null);
+        d.mTsStart = Datapoint.getTsStartIdx(c);
+        d.mTsEnd = Datapoint.getTsEndIdx(c);
+        d.mValue = Datapoint.getValueIdx(c);
+        int entries = Datapoint.getEntriesIdx(c);
         if (avg == true) {
           d.mValue /= entries;
         }
@@ -562,19 +373,6 @@ public class TimeSeriesProvider extends ContentProvider {
         }
       }
       
-      // fetch the smoothing and history parameters of the resultant timeseries
-      Uri timeseriesParams = ContentUris.withAppendedId(
-          TimeSeries.CONTENT_URI, timeSeriesId);
-      c = query(timeseriesParams, 
-          new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY,
-          TimeSeries.RECORDING_DATAPOINT_ID }, 
-          null, null, null);
-      c.moveToFirst();
-      double smoothing = TimeSeries.getSmoothing(c);
-      int history = TimeSeries.getHistory(c);
-      long recordingDatapointId = TimeSeries.getRecordingDatapointId(c);
-      c.close();
-
       // Store the results
       Datum d;
       ContentValues values = new ContentValues();
@@ -592,10 +390,11 @@ public class TimeSeriesProvider extends ContentProvider {
         Datapoint.setValue(values, d.mValue);
         Datapoint.setEntries(values, 1);
 
-        setContentValues(db, values, timeSeriesId, recordingDatapointId,
-            d.mTsStart, d.mValue, 1, smoothing, history);
+        setBaseContentValues(values, d.mTsStart, d.mValue, 1);
         db.insert(Datapoint.TABLE_NAME, null, values);
       }
+      rebuildRollups(db, timeSeriesId, minTime);
+      updateStats(db, timeSeriesId, minTime, Integer.MAX_VALUE);
     }
     
     // Now try updating all series that may be dependent on this one:
@@ -650,408 +449,421 @@ public class TimeSeriesProvider extends ContentProvider {
     return;
   }
 
-  private void updateStats(SQLiteDatabase db, long timeSeriesId, int tsStart, 
-      int tsEnd) {
-    ContentValues values = new ContentValues();
-    int oldTsStart;
-    double value;
-    int entries;
-    long id;
-    int newPeriodStart, newPeriodEnd;
-    Uri sumsUri;
-    StringBuilder where = new StringBuilder();
+  /**
+   * Stats over a sliding window of the last <code>size</code> periods, the
+   * current one included. The sums for each period are kept in a ring buffer
+   * so that moving the window on a period is constant time. For the raw stats
+   * every datapoint is a period of its own.
+   */
+  private static class RollingStats {
+    private double[] mValueSums;
+    private double[] mValueSqrSums;
+    private int[] mEntriesSums;
+    private int mHead;
+    private double mWindowValue;
+    private double mWindowValueSqr;
+    private int mWindowEntries;
+
+    public int mPeriods;
+    public int mPeriodStart;
+    public double mValue;
+    public int mEntries;
+    public double mTrend;
+    // the trend as of the end of the previous period
+    public double mLastTrend;
+
+    public RollingStats(int size) {
+      if (size < 1)
+        size = 1;
+      mValueSums = new double[size];
+      mValueSqrSums = new double[size];
+      mEntriesSums = new int[size];
+    }
 
-    Datapoint.setTimeSeriesId(values, timeSeriesId);
-    
-    where.setLength(0);
-    where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-    where.append(Datapoint.TS_START).append(" <= ").append(tsStart);
-    String sortOrder = Datapoint.TS_START + " desc ";
-    String limit = "2";
-    Cursor c = queryDatapointInternal(where.toString(), null, null, sortOrder, limit);
+    public void nextPeriod(int periodStart) {
+      mHead = (mHead + 1) % mValueSums.length;
+      mWindowValue -= mValueSums[mHead];
+      mWindowValueSqr -= mValueSqrSums[mHead];
+      mWindowEntries -= mEntriesSums[mHead];
+      mValueSums[mHead] = 0.0;
+      mValueSqrSums[mHead] = 0.0;
+      mEntriesSums[mHead] = 0;
+
+      mLastTrend = mTrend;
+      mPeriodStart = periodStart;
+      mValue = 0.0;
+      mEntries = 0;
+      mPeriods++;
+    }
 
-    c.moveToFirst();
-    if (c.getCount() == 1) {
-      // have one datapoint, which means it's the first in the series.
-      // Only update it if it's at the current start time, since that's a 
-      // special case.  The rest of the updates will be handled below.
-      int timestamp = Datapoint.getTsStart(c);
-      if (timestamp == tsStart) {      
-        id = Datapoint.getId(c);
-        value = Datapoint.getValue(c);
-
-        Datapoint.setTrend(values, value);
-        Datapoint.setStdDev(values, 0.0f);
-
-        int length = Datapoint.AGGREGATE_SUFFIX.length;
-        for (int i = 0; i < length; i++) {
-          String suffix = Datapoint.AGGREGATE_SUFFIX[i];
-          Datapoint.setTrend(values, suffix, value);
-          Datapoint.setStdDev(values, suffix, 0.0f);
-        }
-        
-        db.update(Datapoint.TABLE_NAME, values, Datapoint._ID + " = " + id, null);
-      }
-    }    
-    c.close();
+    public void add(double value, double valueSqr, int entries) {
+      mValueSums[mHead] += value;
+      mValueSqrSums[mHead] += valueSqr;
+      mEntriesSums[mHead] += entries;
+      mWindowValue += value;
+      mWindowValueSqr += valueSqr;
+      mWindowEntries += entries;
+      mValue += value;
+      mEntries += entries;
+    }
+
+    public void updateTrend(double value, double smoothing) {
+      if (mPeriods > 1)
+        mTrend = calculateTrend(value, mLastTrend, smoothing);
+      else
+        mTrend = value;
+    }
+
+    public double getStdDev() {
+      if (mWindowEntries <= 0)
+        return 0.0;
+      double mean = mWindowValue / mWindowEntries;
+      double variance = (mWindowValueSqr / mWindowEntries) - (mean * mean);
+      return variance > 0.0 ? Math.sqrt(variance) : 0.0;
+    }
+  }
+
+  /**
+   * Recalculates the trend, standard deviation and running sums of every
+   * datapoint of the series with a start time in [tsStart, tsEnd), and the
+   * trend and stddev of its rollup periods from the one containing tsStart.
+   * This is a single pass over those datapoints in time order: the state it
+   * needs from before tsStart is read up front, limited to the history
+   * window, so the cost only depends on the number of datapoints updated and
+   * not on the length of the series.
+   */
+  private void updateStats(SQLiteDatabase db, long timeSeriesId, int tsStart,
+      int tsEnd) {
+    StringBuilder sql = new StringBuilder();
 
-    // fetch the smoothing parameter of the timeseries
-    Uri smoothingUri = ContentUris.withAppendedId(TimeSeries.CONTENT_URI, timeSeriesId);
-    c = query(smoothingUri, 
+    // fetch the smoothing and history parameters of the timeseries
+    Uri timeseriesParams = ContentUris.withAppendedId(TimeSeries.CONTENT_URI,
+        timeSeriesId);
+    Cursor c = query(timeseriesParams, 
         new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY }, 
         null, null, null);
     c.moveToFirst();
     double smoothing = TimeSeries.getSmoothing(c);
     int history = TimeSeries.getHistory(c);
     c.close();
-
-    // now fetch all the datapoints at or after the start time
-    where.setLength(0);
-    where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-    where.append(Datapoint.TS_START).append(" >= ").append(tsStart).append(" and ");
-    where.append(Datapoint.TS_START).append(" < ").append(tsStart);
-    sortOrder = Datapoint.TS_START + " asc ";
-    c = queryDatapointInternal(where.toString(), null, null, sortOrder, null);
-
-    if (c.getCount() < 1) {
-      c.close();
-      return;
-    }
-
-    // loops through all datapoints updating stats
-    c.moveToFirst();
-    int count = c.getCount();
-    for (int i = 0; i < count; i++) {
-      id = Datapoint.getIdIdx(c);
-
-      // set the aggregated stats
-      int length = Datapoint.AGGREGATE_SUFFIX.length;
-      for (int j = 0; j < length; j++) {
-        String suffix = Datapoint.AGGREGATE_SUFFIX[j];
-        newPeriodStart = Datapoint.getTsStartIdx(c, suffix);
-        newPeriodEnd = Datapoint.getTsEndIdx(c, suffix);
-        value = Datapoint.getValueIdx(c, suffix);
-        entries = Datapoint.getEntriesIdx(c, suffix);
-
-        // fetch data for the previous entry as aggregated for the period
-        
-        where.setLength(0);
-        where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-        where.append(Datapoint.TS_START).append(" < ").append(newPeriodStart).append(" ");
-        sortOrder = Datapoint.TS_START + " desc ";
-        String groupBy = Datapoint.TS_START + "_" + suffix;
-        limit = "" + history;
-        Cursor c2 = queryDatapointInternal(where.toString(), null, groupBy, sortOrder, limit);
-
-        c2.moveToLast();
-        int oldPeriodStart = Datapoint.getTsStartIdx(c2, suffix);
-        double oldValue = Datapoint.getValueIdx(c2, suffix);
-        double oldValueSum = Datapoint.getSumValueIdx(c2, suffix);
-        double oldValueSumSqr = Datapoint.getSumValueSqrIdx(c2, suffix);
-        int oldEntries = Datapoint.getEntriesIdx(c2, suffix);
-        int oldEntriesSum = Datapoint.getSumEntriesIdx(c2, suffix);
-        double oldTrend = Datapoint.getTrendIdx(c2, suffix);
-        double trend;
-
-        if (newPeriodStart > oldPeriodStart) {
-          // restart the per-period counters
-          trend = calculateTrend(value, oldTrend, smoothing);
-          Datapoint.setTrend(values, suffix, trend);
-        } else {
-          // add to the per-period counters
-          if (c2.getCount() < 2) {
-            // there was a previous entry, but it was in this same period,
-            // so there's no entry before this for the period
-            Datapoint.setTrend(values, suffix, oldValue + value);
-          } else {
-            trend = calculateTrend(oldValue + value, oldTrend, smoothing);
-            Datapoint.setTrend(values, suffix, trend);
-          }                
-        }
-          
-        // calculate standard deviation based on history
-        double newValueSum = oldValueSum + value;
-        double newValueSumSqr = oldValueSumSqr + (value * value);
-        int newEntriesSum = oldEntriesSum + entries;
-
-        double firstValueSum = 0.0f;
-        double firstValueSumSqr = 0.0f;
-        int firstEntriesSum = 0;
-        if (c2.getCount() == history) {
-          // only subtract out the initial values if we have a full history
-          // window
-          c2.moveToLast();
-          firstValueSum = Datapoint.getSumValueIdx(c2, suffix);
-          firstValueSumSqr = Datapoint.getSumValueSqrIdx(c2, suffix);
-          firstEntriesSum = Datapoint.getSumEntriesIdx(c2, suffix);
-        }
-        double stddev = calculateStdDev(firstValueSumSqr, newValueSumSqr,
-            firstValueSum, newValueSum, firstEntriesSum, newEntriesSum);
-        Datapoint.setStdDev(values, suffix, stddev);
-        c2.close();
-      }
-      
-      id = db.update(Datapoint.TABLE_NAME, values, Datapoint._ID, 
-          new String[] { "" + id } );      
+    if (history < 1)
+      history = 1;
+
+    // the stats as of the datapoints just before tsStart, oldest first
+    RollingStats raw = new RollingStats(history);
+    double sumValue = 0.0;
+    double sumValueSqr = 0.0;
+    int sumEntries = 0;
+
+    sql.append("select ").append(Datapoint.TS_START).append(", ");
+    sql.append(Datapoint.VALUE).append(", ");
+    sql.append(Datapoint.ENTRIES).append(", ");
+    sql.append(Datapoint.TREND).append(", ");
+    sql.append(Datapoint.SUM_VALUE).append(", ");
+    sql.append(Datapoint.SUM_VALUE_SQR).append(", ");
+    sql.append(Datapoint.SUM_ENTRIES);
+    sql.append(" from ").append(Datapoint.TABLE_NAME);
+    sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+    sql.append(" and ").append(Datapoint.TS_START).append(" < ").append(tsStart);
+    sql.append(" order by ").append(Datapoint.TS_START).append(" desc, ");
+    sql.append(Datapoint._ID).append(" desc limit ").append(history);
+    c = db.rawQuery(sql.toString(), null);
+    if (c.moveToLast()) {
+      do {
+        double value = c.getDouble(1);
+        int entries = c.getInt(2);
+        raw.nextPeriod(c.getInt(0));
+        raw.add(value, value * value, entries);
+        raw.mTrend = c.getDouble(3);
+        sumValue = c.getDouble(4);
+        sumValueSqr = c.getDouble(5);
+        sumEntries = c.getInt(6);
+      } while (c.moveToPrevious());
     }
     c.close();
 
-    return;
-  }
-      
-  private void updateAggregations(SQLiteDatabase db, long timeSeriesId, 
-      int fromTimestamp, double value, int entries) throws Exception {
-    String[] aggregations = Datapoint.AGGREGATE_SUFFIX;
-    String suffix;
-    StringBuilder sql = new StringBuilder();
-    
-    double valSqr = value * value;
-
+    // one statement, compiled once, to write back each datapoint
+    sql.setLength(0);
     sql.append("update ").append(Datapoint.TABLE_NAME).append(" set ");
-    sql.append(Datapoint.SUM_VALUE).append(" = ");
-    sql.append(Datapoint.SUM_VALUE).append(" + ").append(value).append(", ");
-    sql.append(Datapoint.SUM_VALUE_SQR).append(" = ");
-    sql.append(Datapoint.SUM_VALUE_SQR).append(" + ").append(valSqr).append(", ");
-    sql.append(Datapoint.SUM_ENTRIES).append(" = ");
-    sql.append(Datapoint.SUM_ENTRIES).append(" + ").append(entries).append(" ");
-
-    for (int i = 0; i < aggregations.length; i++) {
-      suffix = Datapoint.AGGREGATE_SUFFIX[i];
-      sql.append(", ").append(Datapoint.VALUE).append("_").append(suffix).append(" = ");
-      sql.append(Datapoint.VALUE).append("_").append(suffix).append(" + ").append(value);
-      sql.append(", ").append(Datapoint.SUM_VALUE_SQR).append("_").append(suffix).append(" = ");
-      sql.append(Datapoint.SUM_VALUE_SQR).append("_").append(suffix).append(" + ").append(valSqr);
-      sql.append(", ").append(Datapoint.SUM_ENTRIES).append("_").append(suffix).append(" = ");
-      sql.append(Datapoint.SUM_ENTRIES).append("_").append(suffix).append(" + ").append(entries);
+    sql.append(Datapoint.TREND).append(" = ?, ");
+    sql.append(Datapoint.STDDEV).append(" = ?, ");
+    sql.append(Datapoint.SUM_VALUE).append(" = ?, ");
+    sql.append(Datapoint.SUM_VALUE_SQR).append(" = ?, ");
+    sql.append(Datapoint.SUM_ENTRIES).append(" = ?");
+    sql.append(" where ").append(Datapoint._ID).append(" = ?");
+    SQLiteStatement update = db.compileStatement(sql.toString());
+
+    // now walk the datapoints in [tsStart, tsEnd), in order
+    sql.setLength(0);
+    sql.append("select ").append(Datapoint._ID).append(", ");
+    sql.append(Datapoint.TS_START).append(", ");
+    sql.append(Datapoint.VALUE).append(", ");
+    sql.append(Datapoint.ENTRIES);
+    sql.append(" from ").append(Datapoint.TABLE_NAME);
+    sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+    sql.append(" and ").append(Datapoint.TS_START).append(" >= ").append(tsStart);
+    sql.append(" and ").append(Datapoint.TS_START).append(" < ").append(tsEnd);
+    sql.append(" order by ").append(Datapoint.TS_START).append(" asc, ");
+    sql.append(Datapoint._ID).append(" asc");
+    c = db.rawQuery(sql.toString(), null);
+
+    db.beginTransaction();
+    try {
+      while (c.moveToNext()) {
+        double value = c.getDouble(2);
+        int entries = c.getInt(3);
+        double valueSqr = value * value;
+
+        raw.nextPeriod(c.getInt(1));
+        raw.add(value, valueSqr, entries);
+        raw.updateTrend(value, smoothing);
+        sumValue += value;
+        sumValueSqr += valueSqr;
+        sumEntries += entries;
+
+        update.bindDouble(1, raw.mTrend);
+        update.bindDouble(2, raw.getStdDev());
+        update.bindDouble(3, sumValue);
+        update.bindDouble(4, sumValueSqr);
+        update.bindLong(5, sumEntries);
+        update.bindLong(6, c.getLong(0));
+        update.execute();
+      }
+
+      updateRollupStats(db, timeSeriesId, tsStart, smoothing, history);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      update.close();
+      c.close();
     }
-    sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" == ").append(timeSeriesId).append(" and ");
-    sql.append(Datapoint.TS_START).append(" > ").append(fromTimestamp);
-        
-    db.rawQuery(sql.toString(), null);
+
     return;
   }
 
-  private double calculateTrend(double newValue, double oldTrend, double smoothing) {
-    // T(n) = T(n-1) + (smoothing * (V(n) - T(n-1)))
-    return oldTrend + (smoothing * (newValue - oldTrend));
-  }
-  
-  private double calculateStdDev(double firstSumSqr, double lastSumSqr,
-      double firstValueSum, double lastValueSum, int firstEntriesSum, 
-      int lastEntriesSum) {
-    double sumSqr = lastSumSqr - firstSumSqr;
-    double sumValue = lastValueSum - firstValueSum;
-    double entriesSum = lastEntriesSum - firstEntriesSum;
-    double mean = sumValue / entriesSum;
-    
-    double stddev = Math.sqrt((sumSqr / entriesSum) - (mean * mean));
-    return stddev;
-  }
-    
-  private void setBaseContentValues(ContentValues values, int timestamp, double value,
-      int entries) {
-    int period, periodStart, periodEnd;
-    
-    // set the non-aggregated stats
-    Datapoint.setTrend(values, value);
-    Datapoint.setStdDev(values, 0.0f);
-    Datapoint.setSumValueSqr(values, value * value);              
-    Datapoint.setSumEntries(values, entries);
-    Datapoint.setSumValue(values, value);
+  /**
+   * Adds a datapoint's value and entries to the period that contains it in
+   * each of the rollup tables, or removes them if <code>sign</code> is
+   * negative. A period left with no entries is deleted. This only touches
+   * one row per table; updateStats() brings the trend and stddev up to date.
+   */
+  private void adjustRollups(SQLiteDatabase db, long timeSeriesId,
+      int timestamp, double value, int entries, int sign) {
+    StringBuilder sql = new StringBuilder();
+    double valueSqr = value * value;
 
-    // set the aggregated stats
     int length = Datapoint.AGGREGATE_SUFFIX.length;
     for (int i = 0; i < length; i++) {
-      String suffix = Datapoint.AGGREGATE_SUFFIX[i];
-      period = (int) Datapoint.AGGREGATE_TABLE_PERIOD[i];
-      periodStart = mDateMap.secondsOfPeriodStart(timestamp, period);
-      periodEnd = mDateMap.secondsOfPeriodEnd(periodStart, period);
-      
-      Datapoint.setTsStart(values, suffix, periodStart);
-      Datapoint.setTsEnd(values, suffix, periodEnd);
-      Datapoint.setValue(values, suffix, value);
-      Datapoint.setEntries(values, suffix, entries);
-      Datapoint.setTrend(values, suffix, value);
-      Datapoint.setStdDev(values, suffix, 0.0f);
-      Datapoint.setSumEntries(values, suffix, entries);
-      Datapoint.setSumValue(values, suffix, value);
-      Datapoint.setSumValueSqr(values, suffix, value * value);              
+      String table = Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]);
+      int period = (int) Datapoint.AGGREGATE_TABLE_PERIOD[i];
+      int periodStart = mDateMap.secondsOfPeriodStart(timestamp, period);
+      int periodEnd = mDateMap.secondsOfPeriodEnd(periodStart, period);
+
+      sql.setLength(0);
+      sql.append("insert or ignore into ").append(table).append(" (");
+      sql.append(Rollup.TIMESERIES_ID).append(", ");
+      sql.append(Rollup.TS_START).append(", ");
+      sql.append(Rollup.TS_END).append(") values (");
+      sql.append(timeSeriesId).append(", ");
+      sql.append(periodStart).append(", ");
+      sql.append(periodEnd).append(")");
+      db.execSQL(sql.toString());
+
+      sql.setLength(0);
+      sql.append("update ").append(table).append(" set ");
+      sql.append(Rollup.VALUE).append(" = ").append(Rollup.VALUE);
+      sql.append(sign < 0 ? " - " : " + ").append(value).append(", ");
+      sql.append(Rollup.ENTRIES).append(" = ").append(Rollup.ENTRIES);
+      sql.append(sign < 0 ? " - " : " + ").append(entries).append(", ");
+      sql.append(Rollup.VALUE_SQR).append(" = ").append(Rollup.VALUE_SQR);
+      sql.append(sign < 0 ? " - " : " + ").append(valueSqr);
+      sql.append(" where ").append(Rollup.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+      sql.append(" and ").append(Rollup.TS_START).append(" = ").append(periodStart);
+      db.execSQL(sql.toString());
+
+      if (sign < 0) {
+        db.delete(table, Rollup.TIMESERIES_ID + " = " + timeSeriesId + " and "
+            + Rollup.TS_START + " = " + periodStart + " and " 
+            + Rollup.ENTRIES + " <= 0", null);
+      }
     }
 
     return;
   }
-  
-  private void setRawContentValuesStats(Cursor c, ContentValues values,
-      long timeSeriesId, double value, int entries, double smoothing, int history) {
-    // these are in reverse chronological order
-    c.moveToFirst();
 
-    // update the non-aggregated stats
-    double oldValue = Datapoint.getValueIdx(c, null);
-    double oldValueSum = Datapoint.getSumValueIdx(c, null);
-    double oldValueSumSqr = Datapoint.getSumValueSqrIdx(c, null);
-    int oldEntries = Datapoint.getEntriesIdx(c, null);
-    int oldEntriesSum = Datapoint.getSumEntriesIdx(c, null);
-    double oldTrend = Datapoint.getTrendIdx(c, null);
-
-    double newValueSum = oldValueSum + value;
-    double newValueSumSqr = oldValueSumSqr + (value * value);
-    int newEntriesSum = oldEntriesSum + entries;
-
-    double trend = calculateTrend(value, oldTrend, smoothing);
-    Datapoint.setTrend(values, trend);
-    Datapoint.setSumEntries(values, newEntriesSum);
-    Datapoint.setSumValue(values, newValueSum);
-    Datapoint.setSumValueSqr(values, newValueSumSqr);
-
-    double firstValueSum = 0.0f;
-    double firstValueSumSqr = 0.0f;
-    int firstEntriesSum = 0;
-    if (c.getCount() == history) {
-      // only subtract out the initial values if we have a full history window
-      c.moveToLast();
-      firstValueSum = Datapoint.getSumValueIdx(c, null);
-      firstValueSumSqr = Datapoint.getSumValueSqrIdx(c, null);
-      firstEntriesSum = Datapoint.getSumEntriesIdx(c, null);
+  /**
+   * Regenerates the rollup rows of a series for the periods containing
+   * <code>fromTimestamp</code> and after, from the raw datapoints. This is
+   * for when many datapoints have been replaced at once; updateStats() still
+   * needs calling for the trend and stddev.
+   */
+  private void rebuildRollups(SQLiteDatabase db, long timeSeriesId,
+      int fromTimestamp) {
+    StringBuilder sql = new StringBuilder();
+
+    int length = Datapoint.AGGREGATE_SUFFIX.length;
+    for (int i = 0; i < length; i++) {
+      String table = Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]);
+      int period = (int) Datapoint.AGGREGATE_TABLE_PERIOD[i];
+      int fromPeriod = mDateMap.secondsOfPeriodStart(fromTimestamp, period);
+
+      db.delete(table, Rollup.TIMESERIES_ID + " = " + timeSeriesId + " and "
+          + Rollup.TS_START + " >= " + fromPeriod, null);
+
+      sql.setLength(0);
+      sql.append("select ").append(Datapoint.TS_START).append(", ");
+      sql.append(Datapoint.VALUE).append(", ");
+      sql.append(Datapoint.ENTRIES);
+      sql.append(" from ").append(Datapoint.TABLE_NAME);
+      sql.append(" where ").append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+      sql.append(" and ").append(Datapoint.TS_START).append(" >= ").append(fromPeriod);
+      sql.append(" order by ").append(Datapoint.TS_START).append(" asc");
+      Cursor c = db.rawQuery(sql.toString(), null);
+
+      sql.setLength(0);
+      sql.append("insert into ").append(table).append(" (");
+      sql.append(Rollup.TIMESERIES_ID).append(", ");
+      sql.append(Rollup.TS_START).append(", ");
+      sql.append(Rollup.TS_END).append(", ");
+      sql.append(Rollup.VALUE).append(", ");
+      sql.append(Rollup.ENTRIES).append(", ");
+      sql.append(Rollup.VALUE_SQR).append(") values (?, ?, ?, ?, ?, ?)");
+      SQLiteStatement insert = db.compileStatement(sql.toString());
+
+      try {
+        int periodStart = 0;
+        double value = 0.0;
+        int entries = 0;
+        double valueSqr = 0.0;
+        boolean havePeriod = false;
+        while (true) {
+          boolean more = c.moveToNext();
+          int start = more ? mDateMap.secondsOfPeriodStart(c.getInt(0), period) : 0;
+          if (havePeriod && (more == false || start != periodStart)) {
+            insert.bindLong(1, timeSeriesId);
+            insert.bindLong(2, periodStart);
+            insert.bindLong(3, mDateMap.secondsOfPeriodEnd(periodStart, period));
+            insert.bindDouble(4, value);
+            insert.bindLong(5, entries);
+            insert.bindDouble(6, valueSqr);
+            insert.executeInsert();
+            havePeriod = false;
+          }
+          if (more == false)
+            break;
+
+          if (havePeriod == false) {
+            periodStart = start;
+            value = 0.0;
+            entries = 0;
+            valueSqr = 0.0;
+            havePeriod = true;
+          }
+          double v = c.getDouble(1);
+          value += v;
+          entries += c.getInt(2);
+          valueSqr += v * v;
+        }
+      } finally {
+        insert.close();
+        c.close();
+      }
     }
-    double stddev = calculateStdDev(firstValueSumSqr, newValueSumSqr,
-        firstValueSum, newValueSum, firstEntriesSum, newEntriesSum);
-    Datapoint.setStdDev(values, stddev);
 
     return;
   }
 
-  private Cursor getPreviousDatapoints(SQLiteDatabase db, long timeSeriesId, 
-      long recordingDatapointId, int timestamp, int history) {
-    StringBuilder where = new StringBuilder();
-
-    where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-    where.append(Datapoint.TS_START).append(" < ").append(timestamp).append(" and ");
-    where.append(Datapoint._ID).append(" != ").append(recordingDatapointId).append(" ");
-    String sortOrder = Datapoint.TS_START + " desc ";
-    String groupBy = Datapoint.TS_START;
-    String limit = "" + history;
-    return queryDatapointInternal(where.toString(), null, groupBy, sortOrder, limit);
-  }
-
-  private void setAggregatedContentValuesStats(ContentValues values,
-      long timeSeriesId, long recordingDatapointId, int timestamp, 
-      int lastTimestamp, double value, int entries, 
-      double smoothing, int history) {
-    double oldValue, oldValueSum, oldValueSumSqr;
-    int oldEntries, oldEntriesSum;
-    double newTrend, oldTrend;
-    double newValueSum, newValueSumSqr;
-    int newEntriesSum;
-    int period, oldPeriodStart, newPeriodStart, oldPeriodEnd, newPeriodEnd;
-    double firstValueSum, firstValueSumSqr;
-    double stddev;
-    int firstEntriesSum;
-    long id;
-    Uri sumsUri;
-    Cursor c;
-    StringBuilder where = new StringBuilder();
+  /**
+   * Recalculates the trend and stddev of the rollup rows of a series from
+   * the period containing <code>fromTimestamp</code> on, with the same
+   * single forward pass as the raw stats in updateStats(), but over periods.
+   */
+  private void updateRollupStats(SQLiteDatabase db, long timeSeriesId,
+      int fromTimestamp, double smoothing, int history) {
+    StringBuilder sql = new StringBuilder();
 
-    // update the aggregated stats
     int length = Datapoint.AGGREGATE_SUFFIX.length;
     for (int i = 0; i < length; i++) {
-      String suffix = Datapoint.AGGREGATE_SUFFIX[i];
-      period = (int) TimeSeriesData.Datapoint.AGGREGATE_TABLE_PERIOD[i];
-      newPeriodStart = mDateMap.secondsOfPeriodStart(timestamp, period);
-      newPeriodEnd = mDateMap.secondsOfPeriodEnd(newPeriodStart, period);
-      oldPeriodStart = mDateMap.secondsOfPeriodStart(lastTimestamp, period);
-
-      // fetch data for the previous entry as aggregated for the period
-      where.setLength(0);
-      where.append(Datapoint.TIMESERIES_ID).append(" = ").append(timeSeriesId).append(" and ");
-      where.append(Datapoint._ID).append(" != ").append(recordingDatapointId).append(" ");
-      String groupBy = Datapoint.TS_START + "_" + suffix + " ";
-      String sortOrder = Datapoint.TS_START + " desc ";
-      String limit = "" + history;
-      c = queryDatapointInternal(where.toString(), null, groupBy, sortOrder, limit);      
-      
-      c.moveToFirst();
-      oldValue = Datapoint.getValueIdx(c, suffix);
-      oldValueSum = Datapoint.getSumValueIdx(c, suffix);
-      oldValueSumSqr = Datapoint.getSumValueSqrIdx(c, suffix);
-      oldEntries = Datapoint.getEntriesIdx(c, suffix);
-      oldEntriesSum = Datapoint.getSumEntriesIdx(c, suffix);
-      oldTrend = Datapoint.getTrendIdx(c, suffix);
-
-      Datapoint.setTsStart(values, suffix, newPeriodStart);
-      Datapoint.setTsEnd(values, suffix, newPeriodEnd);
-      if (newPeriodStart > oldPeriodStart) {
-        // restart the per-period counters
-        Datapoint.setValue(values, suffix, value);
-        Datapoint.setEntries(values, suffix, entries);
-        newTrend = calculateTrend(value, oldTrend, smoothing);
-        Datapoint.setTrend(values, suffix, newTrend);
-      } else {
-        // add to the per-period counters
-        if (c.getCount() < 2) {
-          // there was a previous entry, but it was in this same period,
-          // so there's no entry before this for the period
-          Datapoint.setTrend(values, suffix, oldValue + value);
-        } else {
-          newTrend = calculateTrend(oldValue + value, oldTrend, smoothing);
-          Datapoint.setTrend(values, suffix, newTrend);
-        }                
-        Datapoint.setValue(values, suffix, oldValue + value);
-        Datapoint.setEntries(values, suffix, oldEntries + entries);
-      }
-        
-      // calculate standard deviation based on history
-      newValueSum = oldValueSum + value;
-      newValueSumSqr = oldValueSumSqr + (value * value);
-      newEntriesSum = oldEntriesSum + entries;
-
-      Datapoint.setSumEntries(values, suffix, newEntriesSum);
-      Datapoint.setSumValue(values, suffix, newValueSum);
-      Datapoint.setSumValueSqr(values, suffix, newValueSumSqr);
-
-      firstValueSum = 0.0f;
-      firstValueSumSqr = 0.0f;
-      firstEntriesSum = 0;
-      if (c.getCount() == history) {
-        // only subtract out the initial values if we have a full history
-        // window
-        c.moveToLast();
-        firstValueSum = Datapoint.getSumValueIdx(c, suffix);
-        firstValueSumSqr = Datapoint.getSumValueSqrIdx(c, suffix);
-        firstEntriesSum = Datapoint.getSumEntriesIdx(c, suffix);
+      String table = Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]);
+      int period = (int) Datapoint.AGGREGATE_TABLE_PERIOD[i];
+      int fromPeriod = mDateMap.secondsOfPeriodStart(fromTimestamp, period);
+      RollingStats stats = new RollingStats(history);
+
+      // the periods just before, oldest first
+      sql.setLength(0);
+      sql.append("select ").append(Rollup.TS_START).append(", ");
+      sql.append(Rollup.VALUE).append(", ");
+      sql.append(Rollup.VALUE_SQR).append(", ");
+      sql.append(Rollup.ENTRIES).append(", ");
+      sql.append(Rollup.TREND);
+      sql.append(" from ").append(table);
+      sql.append(" where ").append(Rollup.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+      sql.append(" and ").append(Rollup.TS_START).append(" < ").append(fromPeriod);
+      sql.append(" order by ").append(Rollup.TS_START).append(" desc limit ").append(history);
+      Cursor c = db.rawQuery(sql.toString(), null);
+      if (c.moveToLast()) {
+        do {
+          stats.nextPeriod(c.getInt(0));
+          stats.add(c.getDouble(1), c.getDouble(2), c.getInt(3));
+          stats.mTrend = c.getDouble(4);
+        } while (c.moveToPrevious());
       }
-      stddev = calculateStdDev(firstValueSumSqr, newValueSumSqr,
-          firstValueSum, newValueSum, firstEntriesSum, newEntriesSum);
-      Datapoint.setStdDev(values, suffix, stddev);
       c.close();
+
+      sql.setLength(0);
+      sql.append("update ").append(table).append(" set ");
+      sql.append(Rollup.TREND).append(" = ?, ");
+      sql.append(Rollup.STDDEV).append(" = ?");
+      sql.append(" where ").append(Rollup._ID).append(" = ?");
+      SQLiteStatement update = db.compileStatement(sql.toString());
+
+      sql.setLength(0);
+      sql.append("select ").append(Rollup._ID).append(", ");
+      sql.append(Rollup.TS_START).append(", ");
+      sql.append(Rollup.VALUE).append(", ");
+      sql.append(Rollup.VALUE_SQR).append(", ");
+      sql.append(Rollup.ENTRIES);
+      sql.append(" from ").append(table);
+      sql.append(" where ").append(Rollup.TIMESERIES_ID).append(" = ").append(timeSeriesId);
+      sql.append(" and ").append(Rollup.TS_START).append(" >= ").append(fromPeriod);
+      sql.append(" order by ").append(Rollup.TS_START).append(" asc");
+      c = db.rawQuery(sql.toString(), null);
+
+      try {
+        while (c.moveToNext()) {
+          stats.nextPeriod(c.getInt(1));
+          stats.add(c.getDouble(2), c.getDouble(3), c.getInt(4));
+          stats.updateTrend(stats.mValue, smoothing);
+
+          update.bindDouble(1, stats.mTrend);
+          update.bindDouble(2, stats.getStdDev());
+          update.bindLong(3, c.getLong(0));
+          update.execute();
+        }
+      } finally {
+        update.close();
+        c.close();
+      }
     }
 
     return;
   }
 
-  private void setContentValues(SQLiteDatabase db, ContentValues values,
-      long timeSeriesId, long recordingDatapointId, int tsStart, double value, 
-      int entries, double smoothing, int history) {
-    Cursor c = getPreviousDatapoints(db, timeSeriesId, recordingDatapointId, tsStart, history);
-    if (c.getCount() < 1) {
-      // no earlier entries for this timestamp
-      c.close();
-      setBaseContentValues(values, tsStart, value, entries);
-    }
-    else {
-      // there exists an entry before this entry, chronologically
-      // update the raw, un-aggregated stats:
-      setRawContentValuesStats(c, values, timeSeriesId, value, 
-          entries, smoothing, history);
-
-      c.moveToFirst();
-      int oldTsStart = Datapoint.getTsStart(c);
-      c.close();            
+  private static double calculateTrend(double newValue, double oldTrend, double smoothing) {
+    // T(n) = T(n-1) + (smoothing * (V(n) - T(n-1)))
+    return oldTrend + (smoothing * (newValue - oldTrend));
+  }
+  
+  private void setBaseContentValues(ContentValues values, int timestamp, double value,
+      int entries) {
+    // placeholders until updateStats() runs over the datapoint
+    Datapoint.setTrend(values, value);
+    Datapoint.setStdDev(values, 0.0f);
+    Datapoint.setSumValueSqr(values, value * value);              
+    Datapoint.setSumEntries(values, entries);
+    Datapoint.setSumValue(values, value);
 
-      // update the aggregated stats
-      setAggregatedContentValuesStats(values, timeSeriesId, recordingDatapointId,
-          tsStart, oldTsStart, value, entries, smoothing, history);
-    }
+    return;
   }
 
   @Override
@@ -1094,22 +906,7 @@ public class TimeSeriesProvider extends ContentProvider {
           int entries = values.getAsInteger(Datapoint.ENTRIES);
 
           Datapoint.setTimeSeriesId(values, timeSeriesId);
-          
-          // first fetch the smoothing and history parameters of the timeseries
-          Uri timeseriesParams = ContentUris.withAppendedId(
-              TimeSeries.CONTENT_URI, timeSeriesId);
-          Cursor c = query(timeseriesParams, 
-              new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY,
-              TimeSeries.RECORDING_DATAPOINT_ID }, 
-              null, null, null);
-          c.moveToFirst();
-          double smoothing = TimeSeries.getSmoothing(c);
-          int history = TimeSeries.getHistory(c);
-          long recordingDatapointId = TimeSeries.getRecordingDatapointId(c);
-          c.close();
-
-          setContentValues(db, values, timeSeriesId, recordingDatapointId,
-              tsStart, value, entries, smoothing, history);
+          setBaseContentValues(values, tsStart, value, entries);
           
           id = db.insert(Datapoint.TABLE_NAME, null, values);
           if (id == -1) {
@@ -1120,8 +917,8 @@ public class TimeSeriesProvider extends ContentProvider {
                 .appendPath("datapoints").appendPath(""+id).build();
           }
           
-          // TODO: update for new schema
-          updateAggregations(db, timeSeriesId, tsStart, value, entries);
+          adjustRollups(db, timeSeriesId, tsStart, value, entries, 1);
+          updateStats(db, timeSeriesId, tsStart, Integer.MAX_VALUE);
           updateFormulaData(db, timeSeriesId, tsStart, null);
 
           db.setTransactionSuccessful();
@@ -1144,29 +941,100 @@ public class TimeSeriesProvider extends ContentProvider {
     return outputUri;
   }
   
-  // TODO: move constant strings to defined values
-  private HashMap<String, String> fetchProjectionMap(String aggregation) {
-    if (aggregation == null) {
-      return sDatapointProjection;
-    } 
-    else if (aggregation.equals("day")) {
-      return sDatapointProjectionDay;
-    }
-    else if (aggregation.equals("week")) {
-      return sDatapointProjectionWeek;
-    }
-    else if (aggregation.equals("month")) {
-      return sDatapointProjectionDay;
+  @Override
+  public int bulkInsert(Uri uri, ContentValues[] values) {
+    if (sURIMatcher.match(uri) != DATAPOINTS)
+      return super.bulkInsert(uri, values);
+    if (values == null || values.length < 1)
+      return 0;
+
+    for (int i = 0; i < values.length; i++) {
+      Long timeSeriesId = values[i].getAsLong(Datapoint.TIMESERIES_ID);
+      if (timeSeriesId == null || timeSeriesId < 1
+          || values[i].getAsInteger(Datapoint.TS_START) == null) {
+        throw new IllegalArgumentException("bulkInsert: Invalid URI " + uri);
+      }
     }
-    else if (aggregation.equals("quarter")) {
-      return sDatapointProjectionDay;
+
+    // Insert in time order, so the first datapoint seen for a series is its
+    // earliest, and the stats and formulas of each series only have to be
+    // recalculated once, from there.
+    ContentValues[] sorted = values.clone();
+    Arrays.sort(sorted, new Comparator<ContentValues>() {
+      public int compare(ContentValues a, ContentValues b) {
+        int aStart = a.getAsInteger(Datapoint.TS_START);
+        int bStart = b.getAsInteger(Datapoint.TS_START);
+        return aStart < bStart ? -1 : (aStart == bStart ? 0 : 1);
+      }
+    });
+
+    HashMap<Long, Integer> earliest = new HashMap<Long, Integer>();
+    int nInserts = 0;
+    SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+    LockUtil.waitForLock(mLock);
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < sorted.length; i++) {
+        ContentValues datapoint = new ContentValues(sorted[i]);
+        Long timeSeriesId = datapoint.getAsLong(Datapoint.TIMESERIES_ID);
+        int tsStart = datapoint.getAsInteger(Datapoint.TS_START);
+        double value = datapoint.getAsDouble(Datapoint.VALUE);
+        int entries = datapoint.getAsInteger(Datapoint.ENTRIES);
+
+        setBaseContentValues(datapoint, tsStart, value, entries);
+        if (db.insert(Datapoint.TABLE_NAME, null, datapoint) == -1)
+          throw new Exception("bulkInsert: couldn't insert datapoint");
+        adjustRollups(db, timeSeriesId, tsStart, value, entries, 1);
+
+        if (earliest.containsKey(timeSeriesId) == false)
+          earliest.put(timeSeriesId, Integer.valueOf(tsStart));
+        nInserts++;
+      }
+
+      Iterator<Long> iterator = earliest.keySet().iterator();
+      while (iterator.hasNext()) {
+        Long timeSeriesId = iterator.next();
+        int tsStart = earliest.get(timeSeriesId).intValue();
+        updateStats(db, timeSeriesId, tsStart, Integer.MAX_VALUE);
+        updateFormulaData(db, timeSeriesId, tsStart, null);
+      }
+
+      db.setTransactionSuccessful();
+    } catch (Exception e) {
+      Log.v(TAG, e.getMessage());
+      nInserts = 0;
+    } finally {
+      db.endTransaction();
+      LockUtil.unlock(mLock);
     }
-    else if (aggregation.equals("year")) {
-      return sDatapointProjectionDay;
+
+    // A batch can hold datapoints for several series, so every series that
+    // got one is notified, not just the one in the request's URI.
+    if (nInserts > 0) {
+      Iterator<Long> iterator = earliest.keySet().iterator();
+      while (iterator.hasNext()) {
+        Uri seriesUri = ContentUris.withAppendedId(
+            TimeSeriesData.TimeSeries.CONTENT_URI, iterator.next()).buildUpon()
+            .appendPath("datapoints").build();
+        getContext().getContentResolver().notifyChange(seriesUri, null);
+      }
     }
-    return sDatapointProjection;
+
+    return nInserts;
   }
-      
+
+  /**
+   * Returns the rollup table named by the aggregation path segment at
+   * <code>segment</code> of the uri, or null if there's no such segment or
+   * it doesn't name an aggregation.
+   */
+  private String fetchRollupTable(Uri uri, int segment) {
+    if (uri.getPathSegments().size() <= segment)
+      return null;
+    return Rollup.lookupTableName(uri.getPathSegments().get(segment));
+  }
+
   private Cursor queryDatapointInternal(String selection, String[] selectionArgs,
       String groupBy, String sortOrder, String limit) {
     SQLiteDatabase db = mDbHelper.getReadableDatabase();
@@ -1227,39 +1095,38 @@ public class TimeSeriesProvider extends ContentProvider {
         break;
       case DATAPOINTS_RECENT:
         String count = uri.getPathSegments().get(PATH_SEGMENT_DATAPOINT_RECENT_COUNT);
-        qb.setTables(Datapoint.TABLE_NAME);
+        // aggregated datapoints are read straight from the rollup table
+        agg = fetchRollupTable(uri, PATH_SEGMENT_DATAPOINT_RECENT_AGGREGATION);
+        if (agg != null) {
+          qb.setTables(agg);
+          if (map == null)
+            qb.setProjectionMap(sRollupProjection);
+        } else {
+          qb.setTables(Datapoint.TABLE_NAME);
+          if (map == null)
+            qb.setProjectionMap(sDatapointProjection);
+        }
 
         orderBy = Datapoint.TS_START + " desc";
-        if (map == null)
-          qb.setProjectionMap(sDatapointProjection);
-        try {
-          agg = uri.getPathSegments().get(PATH_SEGMENT_DATAPOINT_RECENT_AGGREGATION);
-          if (map == null)
-            qb.setProjectionMap(fetchProjectionMap(agg));
-          groupBy = Datapoint.TS_START + "_" + agg;
-        } catch (Exception e) { } // nothing
         qb.appendWhere(Datapoint.TIMESERIES_ID + " = " + uri.getPathSegments().get(PATH_SEGMENT_TIMERSERIES_ID));
         limit = count;
         break;
       case DATAPOINTS_RANGE:
         String start = uri.getPathSegments().get(PATH_SEGMENT_DATAPOINT_RANGE_START);
         String end = uri.getPathSegments().get(PATH_SEGMENT_DATAPOINT_RANGE_END);
-        qb.setTables(Datapoint.TABLE_NAME);
+        agg = fetchRollupTable(uri, PATH_SEGMENT_DATAPOINT_RANGE_AGGREGATION);
+        if (agg != null) {
+          qb.setTables(agg);
+          if (map == null)
+            qb.setProjectionMap(sRollupProjection);
+        } else {
+          qb.setTables(Datapoint.TABLE_NAME);
+          if (map == null)
+            qb.setProjectionMap(sDatapointProjection);
+        }
 
         orderBy = Datapoint.TS_START + " desc";
-        if (map == null)
-          qb.setProjectionMap(sDatapointProjection);
-        try {
-          agg = uri.getPathSegments().get(PATH_SEGMENT_DATAPOINT_RECENT_AGGREGATION);
-          if (map != null)
-            qb.setProjectionMap(fetchProjectionMap(agg));
-          groupBy = Datapoint.TS_START + "_" + agg;
-          if (sortOrder == null || TextUtils.isEmpty(sortOrder)) {
-            orderBy = Datapoint.TS_START + " desc ";            
-          }
-        } catch (Exception e) { } // nothing
-        
-        qb.appendWhere(TimeSeries._ID + " = " 
+        qb.appendWhere(Datapoint.TIMESERIES_ID + " = " 
             + uri.getPathSegments().get(PATH_SEGMENT_TIMERSERIES_ID) + " AND ");
         qb.appendWhere(Datapoint.TS_START + " >= " + start + " AND ");
         qb.appendWhere(Datapoint.TS_START + " < " + end + " ");
@@ -1403,29 +1270,15 @@ public class TimeSeriesProvider extends ContentProvider {
             newValue = values.getAsDouble(Datapoint.VALUE);
           if (values.containsKey(Datapoint.ENTRIES))
             newEntries = values.getAsInteger(Datapoint.ENTRIES);
-          
-          // fetch the smoothing and history parameters of the timeseries
-          Uri timeseriesParams = ContentUris.withAppendedId(
-              TimeSeries.CONTENT_URI, tsId);
-          c = query(timeseriesParams, 
-              new String[] { TimeSeries.SMOOTHING, TimeSeries.HISTORY,
-              TimeSeries.RECORDING_DATAPOINT_ID }, 
-              null, null, null);
-          c.moveToFirst();
-          double smoothing = TimeSeries.getSmoothing(c);
-          int history = TimeSeries.getHistory(c);
-          long recordingDatapointId = TimeSeries.getRecordingDatapointId(c);
-          c.close();
 
-          setContentValues(db, values, tsId, recordingDatapointId, newStart, 
-              newValue, newEntries, smoothing, history);
+          setBaseContentValues(values, newStart, newValue, newEntries);
 
           count = db.update(Datapoint.TABLE_NAME, values, Datapoint._ID + "=" + datapointId
               + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
               whereArgs);
                     
-          updateAggregations(db, tsId, oldStart, -oldValue, -oldEntries);
-          updateAggregations(db, tsId, newStart, newValue, newEntries);      
+          adjustRollups(db, tsId, oldStart, oldValue, oldEntries, -1);
+          adjustRollups(db, tsId, newStart, newValue, newEntries, 1);
           updateStats(db, tsId, oldStart < newStart ? oldStart : newStart, 
               Integer.MAX_VALUE);
           updateFormulaData(db, tsId, oldStart < newStart ? oldStart : newStart, null);
@@ -1468,6 +1321,10 @@ public class TimeSeriesProvider extends ContentProvider {
           // Delete datapoints associated with the timeseries
           count = db.delete(Datapoint.TABLE_NAME, Datapoint.TIMESERIES_ID + "=" 
               + seriesId, null);
+          for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++) {
+            db.delete(Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]),
+                Rollup.TIMESERIES_ID + "=" + seriesId, null);
+          }
           // and the timeseries meta-data
           db.delete(TimeSeries.TABLE_NAME, TimeSeries._ID + "=" + seriesId
               + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
@@ -1512,7 +1369,7 @@ public class TimeSeriesProvider extends ContentProvider {
               + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
               whereArgs);
                     
-          updateAggregations(db, tsId, oldStart, -oldValue, -oldEntries);
+          adjustRollups(db, tsId, oldStart, oldValue, oldEntries, -1);
           updateStats(db, tsId, oldStart, Integer.MAX_VALUE);
           updateFormulaData(db, tsId, oldStart, null);
 
@@ -1546,19 +1403,23 @@ public class TimeSeriesProvider extends ContentProvider {
       db.execSQL(Datapoint.TABLE_CREATE);
       db.execSQL(DateMap.TABLE_CREATE);
       db.execSQL(FormulaCache.TABLE_CREATE);
+      for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++)
+        db.execSQL(Rollup.tableCreate(Datapoint.AGGREGATE_SUFFIX[i]));
     
       generateDateMapCacheData(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      db.execSQL("drop table " + TimeSeries.TABLE_CREATE);
-      db.execSQL("drop table " + Datapoint.TABLE_CREATE);
-      db.execSQL("drop table " + DateMap.TABLE_CREATE);
-      db.execSQL(TimeSeries.TABLE_CREATE);
-      db.execSQL(Datapoint.TABLE_CREATE);
-      db.execSQL(DateMap.TABLE_CREATE);
-      db.execSQL(FormulaCache.TABLE_CREATE);
+      db.execSQL("drop table if exists " + TimeSeries.TABLE_NAME);
+      db.execSQL("drop table if exists " + Datapoint.TABLE_NAME);
+      db.execSQL("drop table if exists " + DateMap.TABLE_NAME);
+      db.execSQL("drop table if exists " + FormulaCache.TABLE_NAME);
+      for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++) {
+        db.execSQL("drop table if exists " 
+            + Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]));
+      }
+      onCreate(db);
     }
     
     private void generateDateMapCacheData(SQLiteDatabase db) {
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.redgeek.android.eventrend.test.eventrecorder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.redgeek.android.eventrecorder.DateMapCache;
+import net.redgeek.android.eventrecorder.TimeSeriesData;
+import net.redgeek.android.eventrecorder.TimeSeriesProvider;
+import net.redgeek.android.eventrecorder.TimeSeriesData.Datapoint;
+import net.redgeek.android.eventrecorder.TimeSeriesData.DateMap;
+import net.redgeek.android.eventrecorder.TimeSeriesData.Rollup;
+import net.redgeek.android.eventrecorder.TimeSeriesData.TimeSeries;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase;
+import android.text.TextUtils;
+
+// These go through the provider to a real SQLite, so have to be run on a
+// device or emulator. After each change the stored stats are checked against
+// the same stats recalculated from scratch over the raw datapoints.
+public class TimeSeriesProviderTest extends ProviderTestCase<TimeSeriesProvider> {
+  private static final int START = 1257033600; // 2009-11-01 UTC
+  private static final int HOUR = 60 * 60;
+  private static final int DAY = HOUR * 24;
+  private static final double SMOOTHING = 0.25;
+  private static final int HISTORY = 3;
+  private static final double DELTA = 0.000001;
+
+  private SQLiteDatabase mDb;
+
+  public TimeSeriesProviderTest() {
+    super(TimeSeriesProvider.class, TimeSeriesData.AUTHORITY);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // the renamed database may be left over from an earlier run
+    getMockContext().deleteDatabase(TimeSeriesData.DATABASE_NAME);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mDb != null)
+      mDb.close();
+    super.tearDown();
+  }
+
+  public void testInsertInOrder() {
+    long id = insertSeries("in order");
+    for (int i = 0; i < 10; i++)
+      insertDatapoint(id, START + i * HOUR, i % 4 + 1, 1);
+
+    assertEquals(10, assertStats(id));
+  }
+
+  public void testInsertOutOfOrder() {
+    long id = insertSeries("out of order");
+    for (int i = 0; i < 10; i++)
+      insertDatapoint(id, START + (i * 2 + 1) * HOUR, i + 1, 1);
+    assertEquals(10, assertStats(id));
+
+    // before the first, between two, at the same time as one, and last
+    insertDatapoint(id, START, 7, 2);
+    insertDatapoint(id, START + 8 * HOUR, 3, 1);
+    insertDatapoint(id, START + 9 * HOUR, 5, 3);
+    insertDatapoint(id, START + 30 * HOUR, 2, 1);
+    assertEquals(14, assertStats(id));
+  }
+
+  public void testSeriesAreIndependent() {
+    long a = insertSeries("a");
+    long b = insertSeries("b");
+    for (int i = 0; i < 8; i++) {
+      insertDatapoint(a, START + i * HOUR, i + 1, 1);
+      insertDatapoint(b, START + i * HOUR + HOUR / 2, 10 - i, 2);
+    }
+
+    assertEquals(8, assertStats(a));
+    assertEquals(8, assertStats(b));
+  }
+
+  public void testUpdate() {
+    long id = insertSeries("update");
+    ArrayList<Uri> uris = new ArrayList<Uri>();
+    for (int i = 0; i < 10; i++)
+      uris.add(insertDatapoint(id, START + i * HOUR, i + 1, 1));
+
+    ContentValues values = new ContentValues();
+    values.put(Datapoint.VALUE, 20.0);
+    values.put(Datapoint.ENTRIES, 2);
+    assertEquals(1, getMockContentResolver().update(uris.get(5), values, null, null));
+    assertEquals(10, assertStats(id));
+
+    // moving a datapoint later and earlier changes the stats from wherever
+    // it was or is, whichever is first
+    values.clear();
+    values.put(Datapoint.TS_START, START + 8 * HOUR + HOUR / 2);
+    assertEquals(1, getMockContentResolver().update(uris.get(2), values, null, null));
+    assertEquals(10, assertStats(id));
+
+    values.clear();
+    values.put(Datapoint.TS_START, START - HOUR);
+    assertEquals(1, getMockContentResolver().update(uris.get(7), values, null, null));
+    assertEquals(10, assertStats(id));
+  }
+
+  public void testDelete() {
+    long id = insertSeries("delete");
+    ArrayList<Uri> uris = new ArrayList<Uri>();
+    for (int i = 0; i < 10; i++)
+      uris.add(insertDatapoint(id, START + i * HOUR, (i * 7) % 5 + 1, 1));
+
+    assertEquals(1, getMockContentResolver().delete(uris.get(4), null, null));
+    assertEquals(9, assertStats(id));
+
+    assertEquals(1, getMockContentResolver().delete(uris.get(0), null, null));
+    assertEquals(8, assertStats(id));
+
+    assertEquals(1, getMockContentResolver().delete(uris.get(9), null, null));
+    assertEquals(7, assertStats(id));
+  }
+
+  public void testRollupsInsert() {
+    long id = insertSeries("rollups");
+    // ~4 months from November on, so across months, a quarter and a year,
+    // inserted out of order
+    for (int i = 0; i < 40; i++) {
+      int j = (i * 7) % 40;
+      insertDatapoint(id, START + j * 3 * DAY + j * HOUR, j % 6 + 1, j % 2 + 1);
+    }
+
+    assertEquals(40, assertRollups(id));
+    assertEquals(40, assertStats(id));
+  }
+
+  public void testRollupsUpdate() {
+    long id = insertSeries("rollups update");
+    ArrayList<Uri> uris = new ArrayList<Uri>();
+    for (int i = 0; i < 20; i++)
+      uris.add(insertDatapoint(id, START + i * 5 * DAY, i % 3 + 1, 1));
+
+    ContentValues values = new ContentValues();
+    values.put(Datapoint.VALUE, 9.0);
+    assertEquals(1, getMockContentResolver().update(uris.get(3), values, null, null));
+    assertEquals(20, assertRollups(id));
+
+    // into another day, week and month, with more entries
+    values.clear();
+    values.put(Datapoint.TS_START, START + 47 * DAY);
+    values.put(Datapoint.ENTRIES, 3);
+    assertEquals(1, getMockContentResolver().update(uris.get(1), values, null, null));
+    assertEquals(20, assertRollups(id));
+
+    // and to before any other datapoint
+    values.clear();
+    values.put(Datapoint.TS_START, START - 40 * DAY);
+    assertEquals(1, getMockContentResolver().update(uris.get(10), values, null, null));
+    assertEquals(20, assertRollups(id));
+  }
+
+  public void testRollupsDelete() {
+    long id = insertSeries("rollups delete");
+    ArrayList<Uri> uris = new ArrayList<Uri>();
+    for (int i = 0; i < 20; i++)
+      uris.add(insertDatapoint(id, START + i * 5 * DAY, i % 3 + 1, 1));
+    // two in the same day, so deleting one leaves the period behind
+    uris.add(insertDatapoint(id, START + 5 * DAY + HOUR, 4, 1));
+
+    assertEquals(1, getMockContentResolver().delete(uris.get(20), null, null));
+    assertEquals(20, assertRollups(id));
+
+    // the only datapoint in its day, so the period goes
+    assertEquals(1, getMockContentResolver().delete(uris.get(7), null, null));
+    assertEquals(19, assertRollups(id));
+
+    assertEquals(1, getMockContentResolver().delete(uris.get(0), null, null));
+    assertEquals(1, getMockContentResolver().delete(uris.get(19), null, null));
+    assertEquals(17, assertRollups(id));
+  }
+
+  public void testUpgradeFromVersion1() {
+    // version 1 kept the aggregations in columns of the datapoint table;
+    // this is that table trimmed to one of them
+    SQLiteDatabase old = getMockContext().openOrCreateDatabase(
+        TimeSeriesData.DATABASE_NAME, 0, null);
+    old.execSQL(TimeSeries.TABLE_CREATE);
+    old.execSQL("create table " + Datapoint.TABLE_NAME + " ( "
+        + Datapoint._ID + " integer primary key autoincrement, "
+        + Datapoint.TIMESERIES_ID + " integer key not null, "
+        + Datapoint.TS_START + " integer key not null, "
+        + Datapoint.VALUE + " double not null default 0.0, "
+        + Datapoint.ENTRIES + " integer not null default 0, "
+        + Datapoint.VALUE + "_day double not null default 0.0);");
+    old.execSQL("insert into " + TimeSeries.TABLE_NAME + " ("
+        + TimeSeries.TIMESERIES_NAME + ", " + TimeSeries.RANK
+        + ") values ('old', 1);");
+    old.execSQL("insert into " + Datapoint.TABLE_NAME + " ("
+        + Datapoint.TIMESERIES_ID + ", " + Datapoint.TS_START + ", "
+        + Datapoint.VALUE + ", " + Datapoint.ENTRIES + ", "
+        + Datapoint.VALUE + "_day) values (1, " + START + ", 1.0, 1, 1.0);");
+    old.setVersion(1);
+    old.close();
+
+    // the first use of the provider upgrades, which starts from empty tables
+    long id = insertSeries("new");
+    assertEquals(2, db().getVersion());
+    assertEquals(1, count("select count(*) from " + TimeSeries.TABLE_NAME));
+    assertEquals(0, count("select count(*) from " + Datapoint.TABLE_NAME));
+    assertEquals(20 * 12, count("select count(*) from " + DateMap.TABLE_NAME));
+    for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++) {
+      String table = Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]);
+      assertEquals(table, 1, count("select count(*) from sqlite_master"
+          + " where type = 'table' and name = '" + table + "'"));
+    }
+
+    for (int i = 0; i < 5; i++)
+      insertDatapoint(id, START + i * DAY, i + 1, 1);
+    assertEquals(5, assertStats(id));
+    assertEquals(5, assertRollups(id));
+  }
+
+  public void testBulkInsertMatchesSingleInserts() {
+    long single = insertSeries("single");
+    long bulk = insertSeries("bulk");
+    long other = insertSeries("other");
+    for (int i = 0; i < 10; i++) {
+      insertDatapoint(single, START + i * 2 * DAY, i % 4 + 1, 1);
+      insertDatapoint(bulk, START + i * 2 * DAY, i % 4 + 1, 1);
+    }
+
+    // the rest go in before, between and after those, out of order and
+    // mixed in with another series
+    ArrayList<ContentValues> batch = new ArrayList<ContentValues>();
+    for (int i = 0; i < 30; i++) {
+      int j = (i * 11) % 30;
+      int tsStart = START + (j - 5) * DAY + HOUR;
+      double value = j % 5 + 1;
+      int entries = j % 3 + 1;
+      insertDatapoint(single, tsStart, value, entries);
+      batch.add(datapointValues(bulk, tsStart, value, entries));
+      batch.add(datapointValues(other, tsStart + HOUR, value * 2, 1));
+    }
+    ContentValues[] values = batch.toArray(new ContentValues[batch.size()]);
+    assertEquals(60, getMockContentResolver().bulkInsert(datapointsUri(bulk),
+        values));
+
+    assertEquals(40, assertStats(bulk));
+    assertEquals(40, assertRollups(bulk));
+    assertEquals(30, assertStats(other));
+    assertEquals(30, assertRollups(other));
+
+    assertSameRows(Datapoint.TABLE_NAME, single, bulk, Datapoint.TS_START
+        + " asc, " + Datapoint.VALUE + " asc", new String[] {
+        Datapoint.TS_START, Datapoint.TS_END, Datapoint.VALUE,
+        Datapoint.ENTRIES, Datapoint.TREND, Datapoint.STDDEV,
+        Datapoint.SUM_ENTRIES, Datapoint.SUM_VALUE, Datapoint.SUM_VALUE_SQR });
+    for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++) {
+      assertSameRows(Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]), single,
+          bulk, Rollup.TS_START + " asc", new String[] { Rollup.TS_START,
+          Rollup.TS_END, Rollup.VALUE, Rollup.ENTRIES, Rollup.VALUE_SQR,
+          Rollup.TREND, Rollup.STDDEV });
+    }
+
+    assertEquals(0, getMockContentResolver().bulkInsert(datapointsUri(bulk),
+        new ContentValues[0]));
+  }
+
+  private long insertSeries(String name) {
+    ContentValues values = new ContentValues();
+    values.put(TimeSeries.TIMESERIES_NAME, name);
+    values.put(TimeSeries.RANK, 1);
+    values.put(TimeSeries.SMOOTHING, SMOOTHING);
+    values.put(TimeSeries.HISTORY, HISTORY);
+    Uri uri = getMockContentResolver().insert(TimeSeries.CONTENT_URI, values);
+    assertNotNull(uri);
+    return ContentUris.parseId(uri);
+  }
+
+  private ContentValues datapointValues(long timeSeriesId, int tsStart,
+      double value, int entries) {
+    ContentValues values = new ContentValues();
+    values.put(Datapoint.TIMESERIES_ID, timeSeriesId);
+    values.put(Datapoint.TS_START, tsStart);
+    values.put(Datapoint.TS_END, tsStart);
+    values.put(Datapoint.VALUE, value);
+    values.put(Datapoint.ENTRIES, entries);
+    return values;
+  }
+
+  private Uri datapointsUri(long timeSeriesId) {
+    return ContentUris.withAppendedId(TimeSeries.CONTENT_URI, timeSeriesId)
+        .buildUpon().appendPath("datapoints").build();
+  }
+
+  private Uri insertDatapoint(long timeSeriesId, int tsStart, double value,
+      int entries) {
+    Uri uri = getMockContentResolver().insert(datapointsUri(timeSeriesId),
+        datapointValues(timeSeriesId, tsStart, value, entries));
+    assertNotNull(uri);
+    return uri;
+  }
+
+  // The provider doesn't expose the running sums, so the checks read its
+  // database directly.
+  private SQLiteDatabase db() {
+    if (mDb == null)
+      mDb = getMockContext().openOrCreateDatabase(TimeSeriesData.DATABASE_NAME,
+          0, null);
+    return mDb;
+  }
+
+  private void assertSameRows(String table, long expectedId, long actualId,
+      String order, String[] columns) {
+    String select = "select " + TextUtils.join(", ", columns) + " from "
+        + table + " where " + Datapoint.TIMESERIES_ID + " = ";
+    Cursor expected = db().rawQuery(select + expectedId + " order by " + order,
+        null);
+    Cursor actual = db().rawQuery(select + actualId + " order by " + order,
+        null);
+    assertEquals(table, expected.getCount(), actual.getCount());
+    while (expected.moveToNext()) {
+      assertTrue(actual.moveToNext());
+      for (int i = 0; i < columns.length; i++) {
+        assertEquals(table + " " + columns[i] + " " + expected.getPosition(),
+            expected.getDouble(i), actual.getDouble(i), DELTA);
+      }
+    }
+    expected.close();
+    actual.close();
+  }
+
+  private int count(String sql) {
+    Cursor c = db().rawQuery(sql, null);
+    assertTrue(c.moveToFirst());
+    int count = c.getInt(0);
+    c.close();
+    return count;
+  }
+
+  /**
+   * The trend and stddev of a series of periods, as the provider defines
+   * them: the trend starts at the first value and is exponentially smoothed
+   * from there, the stddev is over the last HISTORY periods.
+   */
+  private static double[][] expectedTrendAndStdDev(double[] value,
+      double[] valueSqr, int[] entries) {
+    int n = value.length;
+    double[][] expected = new double[2][n];
+    for (int i = 0; i < n; i++) {
+      if (i == 0)
+        expected[0][i] = value[i];
+      else
+        expected[0][i] = expected[0][i - 1] + SMOOTHING
+            * (value[i] - expected[0][i - 1]);
+
+      double windowValue = 0.0;
+      double windowValueSqr = 0.0;
+      int windowEntries = 0;
+      for (int j = Math.max(0, i - HISTORY + 1); j <= i; j++) {
+        windowValue += value[j];
+        windowValueSqr += valueSqr[j];
+        windowEntries += entries[j];
+      }
+      double mean = windowValue / windowEntries;
+      double variance = windowValueSqr / windowEntries - mean * mean;
+      expected[1][i] = variance > 0.0 ? Math.sqrt(variance) : 0.0;
+    }
+    return expected;
+  }
+
+  /**
+   * Checks every datapoint of the series against stats recalculated from
+   * the raw values, and returns how many datapoints there are.
+   */
+  private int assertStats(long timeSeriesId) {
+    Cursor c = db().rawQuery("select " + Datapoint.VALUE + ", "
+        + Datapoint.ENTRIES + ", " + Datapoint.TREND + ", "
+        + Datapoint.STDDEV + ", " + Datapoint.SUM_VALUE + ", "
+        + Datapoint.SUM_VALUE_SQR + ", " + Datapoint.SUM_ENTRIES
+        + " from " + Datapoint.TABLE_NAME
+        + " where " + Datapoint.TIMESERIES_ID + " = " + timeSeriesId
+        + " order by " + Datapoint.TS_START + " asc, "
+        + Datapoint._ID + " asc", null);
+    int n = c.getCount();
+    double[] value = new double[n];
+    double[] valueSqr = new double[n];
+    int[] entries = new int[n];
+    double[][] actual = new double[5][n];
+    for (int i = 0; i < n; i++) {
+      assertTrue(c.moveToNext());
+      value[i] = c.getDouble(0);
+      valueSqr[i] = value[i] * value[i];
+      entries[i] = c.getInt(1);
+      for (int j = 0; j < 5; j++)
+        actual[j][i] = c.getDouble(j + 2);
+    }
+    c.close();
+
+    double[][] expected = expectedTrendAndStdDev(value, valueSqr, entries);
+    double sumValue = 0.0;
+    double sumValueSqr = 0.0;
+    int sumEntries = 0;
+    for (int i = 0; i < n; i++) {
+      sumValue += value[i];
+      sumValueSqr += valueSqr[i];
+      sumEntries += entries[i];
+      assertEquals("trend " + i, expected[0][i], actual[0][i], DELTA);
+      assertEquals("stddev " + i, expected[1][i], actual[1][i], DELTA);
+      assertEquals("sum value " + i, sumValue, actual[2][i], DELTA);
+      assertEquals("sum value sqr " + i, sumValueSqr, actual[3][i], DELTA);
+      assertEquals("sum entries " + i, sumEntries, actual[4][i], DELTA);
+    }
+    return n;
+  }
+
+  /**
+   * Checks every rollup table of the series against the periods summed up
+   * from the raw datapoints, and their trend and stddev against those
+   * recalculated over the periods. Returns how many datapoints there are.
+   */
+  private int assertRollups(long timeSeriesId) {
+    DateMapCache dates = new DateMapCache();
+    int n = 0;
+
+    for (int i = 0; i < Datapoint.AGGREGATE_SUFFIX.length; i++) {
+      String table = Rollup.tableName(Datapoint.AGGREGATE_SUFFIX[i]);
+      int period = (int) Datapoint.AGGREGATE_TABLE_PERIOD[i];
+
+      // period start -> { value, entries, value squared }
+      TreeMap<Integer, double[]> periods = new TreeMap<Integer, double[]>();
+      Cursor c = db().rawQuery("select " + Datapoint.TS_START + ", "
+          + Datapoint.VALUE + ", " + Datapoint.ENTRIES
+          + " from " + Datapoint.TABLE_NAME
+          + " where " + Datapoint.TIMESERIES_ID + " = " + timeSeriesId, null);
+      n = c.getCount();
+      while (c.moveToNext()) {
+        Integer start = Integer.valueOf(dates.secondsOfPeriodStart(c.getInt(0),
+            period));
+        double[] sums = periods.get(start);
+        if (sums == null) {
+          sums = new double[3];
+          periods.put(start, sums);
+        }
+        double value = c.getDouble(1);
+        sums[0] += value;
+        sums[1] += c.getInt(2);
+        sums[2] += value * value;
+      }
+      c.close();
+
+      int nPeriods = periods.size();
+      int[] start = new int[nPeriods];
+      double[] value = new double[nPeriods];
+      int[] entries = new int[nPeriods];
+      double[] valueSqr = new double[nPeriods];
+      Iterator<Map.Entry<Integer, double[]>> iterator = periods.entrySet()
+          .iterator();
+      for (int j = 0; j < nPeriods; j++) {
+        Map.Entry<Integer, double[]> entry = iterator.next();
+        start[j] = entry.getKey().intValue();
+        value[j] = entry.getValue()[0];
+        entries[j] = (int) entry.getValue()[1];
+        valueSqr[j] = entry.getValue()[2];
+      }
+      double[][] expected = expectedTrendAndStdDev(value, valueSqr, entries);
+
+      c = db().rawQuery("select " + Rollup.TS_START + ", " + Rollup.TS_END
+          + ", " + Rollup.VALUE + ", " + Rollup.ENTRIES + ", "
+          + Rollup.VALUE_SQR + ", " + Rollup.TREND + ", " + Rollup.STDDEV
+          + " from " + table
+          + " where " + Rollup.TIMESERIES_ID + " = " + timeSeriesId
+          + " order by " + Rollup.TS_START + " asc", null);
+      assertEquals(table, nPeriods, c.getCount());
+      for (int j = 0; j < nPeriods; j++) {
+        assertTrue(c.moveToNext());
+        String where = table + " " + j;
+        assertEquals(where, start[j], c.getInt(0));
+        assertEquals(where, dates.secondsOfPeriodEnd(start[j], period),
+            c.getInt(1));
+        assertEquals(where, value[j], c.getDouble(2), DELTA);
+        assertEquals(where, entries[j], c.getInt(3));
+        assertEquals(where, valueSqr[j], c.getDouble(4), DELTA);
+        assertEquals(where, expected[0][j], c.getDouble(5), DELTA);
+        assertEquals(where, expected[1][j], c.getDouble(6), DELTA);
+      }
+      c.close();
+    }
+    return n;
+  }
+}